@@ -4,36 +4,73 @@ import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.*;
 
+import javax.management.ObjectName;
+
 /**
  * This implementation wraps an {@link LdapService} and makes the calls asynchronously (when possible), thus fetches the
  * result lazily. The returned object is a wrapper (when possible) implementation which uses concurrency to enable lazy
  * loading.
+ * <p/>
+ * Cached reads live until their time to live is up, unless a change feed such as {@link PersistentSearchChangeFeed}
+ * or {@link PollingChangeFeed} reports the directory changes to this wrapper, see {@link #entriesChanged(List)}.
  *
  * @author Patrik Bergström
  * @see LdapService
  */
 @Service
 @SuppressWarnings("unchecked")
-public class AsyncCachingLdapServiceWrapper implements LdapService {
+public class AsyncCachingLdapServiceWrapper implements LdapService, LdapChangeListener {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncCachingLdapServiceWrapper.class);
     private static final CacheManager SINGLE_CACHE_MANAGER = CacheManager.create();
+    private static final long DEFAULT_TIME_TO_LIVE_SECONDS = 48 * 60 * 60; // 48 hours
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long DEFAULT_NEGATIVE_TIME_TO_LIVE_SECONDS = 5;
+    private static final int DEFAULT_NEGATIVE_MAX_ELEMENTS = 1000;
+    private static final Boolean NOT_FOUND = Boolean.TRUE;
+    private static final int DEFAULT_MAX_ELEMENTS_IN_MEMORY = 500;
+    private static final long DISK_EXPIRY_THREAD_INTERVAL_SECONDS = 120;
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+    private static final long DEFAULT_GET_TIMEOUT_MILLIS = 30000;
+    // The attribute the uid lookups of the directory services match.
+    private static final String UID = "uid";
 
     private Ehcache cache;
     private LdapService ldapService;
     private static final int N_THREADS = 10;
-    private ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
-    private ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-    private ScheduledFuture<?> lastScheduledTask;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(N_THREADS, N_THREADS, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    private Ehcache negativeCache;
+    private final ConcurrentMap<CacheKey, Future<?>> inFlightLoads = new ConcurrentHashMap<CacheKey, Future<?>>();
+    private final long timeToLiveSeconds;
+    private final long negativeTimeToLiveSeconds;
+    private volatile double refreshAheadFactor;
+    private volatile long staleGracePeriodSeconds;
+    private volatile File snapshotFile;
+    private volatile long getTimeoutMillis = DEFAULT_GET_TIMEOUT_MILLIS;
+    private volatile boolean refreshOnChange;
+    private volatile ChangeIndex changeIndex;
+    private final CacheMetrics metrics;
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
 
     /**
      * Constructor.
@@ -41,22 +78,7 @@ public class AsyncCachingLdapServiceWrapper implements LdapService {
      * @param ldapService ldapService
      */
     public AsyncCachingLdapServiceWrapper(LdapService ldapService) {
-        final int hours = 48;
-        final int minutes = 60;
-        final int seconds = 60;
-        long timeoutInSeconds = hours * minutes * seconds; // 48 hours
-        // The timeout arguments mean that it's only the time from creation that matters; the idle time can
-        // never be longer than the time since creation.
-        String name = this.getClass() + "Cache_" + timeoutInSeconds;
-        if (!SINGLE_CACHE_MANAGER.cacheExists(name)) {
-            final int maxElementsInMemory = 500;
-            this.cache = new Cache(name, maxElementsInMemory, false, false, timeoutInSeconds, timeoutInSeconds);
-            SINGLE_CACHE_MANAGER.addCache(cache);
-        } else {
-            this.cache = SINGLE_CACHE_MANAGER.getCache(name);
-        }
-
-        this.ldapService = ldapService;
+        this(ldapService, DEFAULT_TIME_TO_LIVE_SECONDS);
     }
 
     /**
@@ -66,64 +88,515 @@ public class AsyncCachingLdapServiceWrapper implements LdapService {
      * @param timeToLiveSeconds the time the cached elements should live (from creation)
      */
     public AsyncCachingLdapServiceWrapper(LdapService ldapService, long timeToLiveSeconds) {
-        // The timeout arguments mean that it's only the time from creation that matters; the idle time can
-        // never be longer than the time since creation.
+        this(ldapService, timeToLiveSeconds, DEFAULT_NEGATIVE_TIME_TO_LIVE_SECONDS, DEFAULT_NEGATIVE_MAX_ELEMENTS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService       ldapService
+     * @param timeToLiveSeconds the time the cached elements should live (from creation)
+     * @param cacheManager      the cache manager to keep the caches in, instead of the shared one
+     */
+    public AsyncCachingLdapServiceWrapper(LdapService ldapService, long timeToLiveSeconds, CacheManager cacheManager) {
+        this(ldapService, timeToLiveSeconds, DEFAULT_NEGATIVE_TIME_TO_LIVE_SECONDS, DEFAULT_NEGATIVE_MAX_ELEMENTS,
+                DEFAULT_MAX_ELEMENTS_IN_MEMORY, 0, cacheManager);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService                 ldapService
+     * @param timeToLiveSeconds           the time the cached elements should live (from creation)
+     * @param negativeTimeToLiveSeconds   the time a "user not found" result should be remembered
+     * @param negativeMaxElementsInMemory the maximum number of "user not found" results to remember
+     */
+    public AsyncCachingLdapServiceWrapper(LdapService ldapService, long timeToLiveSeconds,
+                                          long negativeTimeToLiveSeconds, int negativeMaxElementsInMemory) {
+        this(ldapService, timeToLiveSeconds, negativeTimeToLiveSeconds, negativeMaxElementsInMemory,
+                DEFAULT_MAX_ELEMENTS_IN_MEMORY, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService                 ldapService
+     * @param timeToLiveSeconds           the time the cached elements should live (from creation)
+     * @param negativeTimeToLiveSeconds   the time a "user not found" result should be remembered
+     * @param negativeMaxElementsInMemory the maximum number of "user not found" results to remember
+     * @param maxElementsInMemory         the maximum number of elements to keep in memory
+     * @param maxElementsOnDisk           the maximum number of elements to overflow to disk when the memory is full;
+     *                                    zero disables the disk tier
+     */
+    public AsyncCachingLdapServiceWrapper(LdapService ldapService, long timeToLiveSeconds,
+                                          long negativeTimeToLiveSeconds, int negativeMaxElementsInMemory,
+                                          int maxElementsInMemory, int maxElementsOnDisk) {
+        this(ldapService, timeToLiveSeconds, negativeTimeToLiveSeconds, negativeMaxElementsInMemory,
+                maxElementsInMemory, maxElementsOnDisk, SINGLE_CACHE_MANAGER);
+    }
+
+    /**
+     * Constructor. Wrappers that share a cache manager share the caches of the same size and time to live; give a
+     * wrapper a cache manager of its own to keep its caches apart.
+     *
+     * @param ldapService                 ldapService
+     * @param timeToLiveSeconds           the time the cached elements should live (from creation)
+     * @param negativeTimeToLiveSeconds   the time a "user not found" result should be remembered
+     * @param negativeMaxElementsInMemory the maximum number of "user not found" results to remember
+     * @param maxElementsInMemory         the maximum number of elements to keep in memory
+     * @param maxElementsOnDisk           the maximum number of elements to overflow to disk when the memory is full;
+     *                                    zero disables the disk tier
+     * @param cacheManager                the cache manager to keep the caches in
+     */
+    public AsyncCachingLdapServiceWrapper(LdapService ldapService, long timeToLiveSeconds,
+                                          long negativeTimeToLiveSeconds, int negativeMaxElementsInMemory,
+                                          int maxElementsInMemory, int maxElementsOnDisk, CacheManager cacheManager) {
         String name = this.getClass() + "Cache_" + timeToLiveSeconds;
-        if (!SINGLE_CACHE_MANAGER.cacheExists(name)) {
-            final int maxElementsInMemory = 500;
-            cache = new Cache(name, maxElementsInMemory, false, false, timeToLiveSeconds, timeToLiveSeconds);
-            SINGLE_CACHE_MANAGER.addCache(cache);
-        } else {
-            this.cache = SINGLE_CACHE_MANAGER.getCache(name);
+        if (maxElementsInMemory != DEFAULT_MAX_ELEMENTS_IN_MEMORY || maxElementsOnDisk > 0) {
+            name += "_" + maxElementsInMemory + "_" + maxElementsOnDisk;
         }
+        this.cache = getOrCreateCache(cacheManager, name, maxElementsInMemory, maxElementsOnDisk, timeToLiveSeconds);
+        this.negativeCache = getOrCreateCache(cacheManager, this.getClass() + "NegativeCache_"
+                + negativeTimeToLiveSeconds + "_" + negativeMaxElementsInMemory, negativeMaxElementsInMemory, 0,
+                negativeTimeToLiveSeconds);
 
         this.ldapService = ldapService;
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.negativeTimeToLiveSeconds = negativeTimeToLiveSeconds;
+        this.metrics = new CacheMetrics(cache, negativeCache, executor, inFlightLoads);
+    }
+
+    private static Ehcache getOrCreateCache(CacheManager cacheManager, String name, int maxElementsInMemory,
+                                            int maxElementsOnDisk, long timeToLiveSeconds) {
+        synchronized (cacheManager) {
+            if (!cacheManager.cacheExists(name)) {
+                // The timeout arguments mean that it's only the time from creation that matters; the idle time can
+                // never be longer than the time since creation.
+                Cache cache;
+                if (maxElementsOnDisk > 0) {
+                    // The disk store is not persistent; surviving a restart is handled by the snapshot instead, since
+                    // a persistent disk store needs the shared cache manager to be shut down cleanly.
+                    cache = new Cache(name, maxElementsInMemory, MemoryStoreEvictionPolicy.LRU, true, null, false,
+                            timeToLiveSeconds, timeToLiveSeconds, false, DISK_EXPIRY_THREAD_INTERVAL_SECONDS, null,
+                            null, maxElementsOnDisk);
+                } else {
+                    cache = new Cache(name, maxElementsInMemory, false, false, timeToLiveSeconds,
+                            timeToLiveSeconds);
+                }
+                cacheManager.addCache(cache);
+                return cache;
+            } else {
+                return cacheManager.getCache(name);
+            }
+        }
+    }
+
+    /**
+     * Enables refresh-ahead. When a cached element has reached this fraction of its time to live, a read still returns
+     * the cached value immediately but also schedules a reload in the background, so that popular entries are
+     * refreshed before they expire. A value of zero (the default) disables refresh-ahead.
+     *
+     * @param refreshAheadFactor a value in the range [0, 1)
+     */
+    public void setRefreshAheadFactor(double refreshAheadFactor) {
+        if (refreshAheadFactor < 0 || refreshAheadFactor >= 1) {
+            throw new IllegalArgumentException("refreshAheadFactor must be in the range [0, 1): "
+                    + refreshAheadFactor);
+        }
+        this.refreshAheadFactor = refreshAheadFactor;
+    }
+
+    /**
+     * Keeps elements for this many seconds after they have expired. An expired element is reloaded as usual, but if
+     * the directory call fails the expired value is served instead of the error. Zero (the default) disables it.
+     *
+     * @param staleGracePeriodSeconds the grace period in seconds
+     */
+    public void setStaleGracePeriodSeconds(long staleGracePeriodSeconds) {
+        if (staleGracePeriodSeconds < 0) {
+            throw new IllegalArgumentException("staleGracePeriodSeconds must not be negative: "
+                    + staleGracePeriodSeconds);
+        }
+        this.staleGracePeriodSeconds = staleGracePeriodSeconds;
+    }
+
+    /**
+     * Sets the longest time a caller waits for a directory call, both when reading a user returned before its lookup
+     * was done and when waiting for a search that another caller started. When the time is up the caller gets an
+     * {@link LdapUserRetrievalException}; the call itself goes on and its result is cached as usual.
+     *
+     * @param getTimeoutMillis the timeout in milliseconds, defaults to 30 seconds; zero waits as long as it takes
+     */
+    public void setGetTimeoutMillis(long getTimeoutMillis) {
+        if (getTimeoutMillis < 0) {
+            throw new IllegalArgumentException("getTimeoutMillis must not be negative: " + getTimeoutMillis);
+        }
+        this.getTimeoutMillis = getTimeoutMillis;
+    }
+
+    /**
+     * Makes a reported change reload the cached reads it affects in the background, serving the cached value until
+     * the reload is done, instead of evicting them so that the next read waits for the directory. Off by default.
+     *
+     * @param refreshOnChange whether to reload rather than evict
+     */
+    public void setRefreshOnChange(boolean refreshOnChange) {
+        this.refreshOnChange = refreshOnChange;
+    }
+
+    /**
+     * Sets the file that {@link #saveSnapshot()} writes the cached elements to and {@link #restoreSnapshot()} reads
+     * them from. Null (the default) disables snapshots.
+     *
+     * @param snapshotFile the snapshot file
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
     }
 
+    /**
+     * Loads the elements saved by {@link #saveSnapshot()} back into the cache, in the background so that startup is
+     * not held up. The elements keep their original creation time and thus only live for what remained of their time
+     * to live; elements that have expired since are skipped, and so are keys that were loaded anew in the meantime.
+     * Reads made before the restore is done go to the directory as usual.
+     *
+     * @return the number of elements restored, when done; zero if there is no snapshot file
+     */
+    public Future<Integer> restoreSnapshot() {
+        final File file = snapshotFile;
+        if (file == null || !file.isFile()) {
+            return new AsyncResult<Integer>(0);
+        }
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    int restored = readSnapshot(file);
+                    LOGGER.info("Restored " + restored + " cached elements from " + file + ".");
+                    return restored;
+                } catch (Exception e) {
+                    LOGGER.warn("Could not restore the cache from " + file + ", starting cold.", e);
+                    return 0;
+                }
+            }
+        });
+    }
+
+    private int readSnapshot(File file) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SNAPSHOT_FORMAT_VERSION) {
+                LOGGER.warn("Ignoring " + file + ", it was written by another version.");
+                return 0;
+            }
+            int restored = 0;
+            CacheKey cacheKey;
+            while ((cacheKey = (CacheKey) in.readObject()) != null) {
+                long creationTime = in.readLong();
+                Object value = in.readObject();
+                if (currentTimeMillis() - creationTime >= timeToLiveSeconds * MILLIS_PER_SECOND
+                        || cache.getQuiet(cacheKey) != null) {
+                    continue;
+                }
+                if (value instanceof LdapUser) {
+                    value = new AsyncLdapUserWrapper(new AsyncResult<LdapUser>((LdapUser) value), cacheKey);
+                }
+                cache.put(newElement(cacheKey, value, creationTime));
+                restored++;
+            }
+            return restored;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the cached elements that have not expired to the snapshot file, see {@link #setSnapshotFile(File)}.
+     * Lookups that have not finished, or have failed, are left out.
+     *
+     * @return the number of elements written
+     * @throws IOException if the file could not be written
+     */
+    public int saveSnapshot() throws IOException {
+        File file = snapshotFile;
+        if (file == null) {
+            return 0;
+        }
+        // Write to a temporary file first so that a crash while writing leaves the previous snapshot intact.
+        File tmp = new File(file.getPath() + ".tmp");
+        int saved = 0;
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(SNAPSHOT_FORMAT_VERSION);
+            for (Object key : cache.getKeys()) {
+                Element element = cache.getQuiet(key);
+                if (element == null || isStale(element)) {
+                    continue;
+                }
+                Object value = element.getObjectValue();
+                if (value instanceof AsyncLdapUserWrapper) {
+                    value = ((AsyncLdapUserWrapper) value).getLdapUserIfDone();
+                    if (value == null) {
+                        continue;
+                    }
+                }
+                out.writeObject(key);
+                out.writeLong(element.getCreationTime());
+                out.writeObject(value);
+                saved++;
+            }
+            out.writeObject(null);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Could not replace " + file + " with " + tmp + ".");
+        }
+        return saved;
+    }
+
+    /**
+     * Stops the background threads and saves a snapshot if a snapshot file is set. Call it when the application shuts
+     * down, e.g. as the destroy method of the bean.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        unregisterMBeans();
+        synchronized (this) {
+            if (changeIndex != null) {
+                cache.getCacheEventNotificationService().unregisterListener(changeIndex);
+                changeIndex = null;
+            }
+        }
+        try {
+            int saved = saveSnapshot();
+            if (saved > 0) {
+                LOGGER.info("Saved " + saved + " cached elements to " + snapshotFile + ".");
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not save the cache to " + snapshotFile + ".", e);
+        }
+    }
+
+    /**
+     * @return the hit, load, executor and size metrics of this instance
+     */
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the {@link #getMetrics() metrics} as an MBean, see {@link LdapMBeans}.
+     *
+     * @param serviceName the name that tells this instance apart from other caching wrappers
+     */
+    public synchronized void registerMBeans(String serviceName) {
+        unregisterMBeans();
+        metrics.getLoads().setTiming(true);
+        registeredNames.add(LdapMBeans.register(metrics, "LdapCache", serviceName, null));
+    }
+
+    /**
+     * Unregisters the MBean registered by {@link #registerMBeans(String)}.
+     */
+    public synchronized void unregisterMBeans() {
+        LdapMBeans.unregister(registeredNames);
+    }
+
+    /**
+     * Evicts, or with {@link #setRefreshOnChange(boolean) refreshOnChange} reloads, the cached reads the changes may
+     * affect: those whose result holds a changed entry, the lookups still loading, and the searches whose base holds
+     * a changed entry that matches their filter. A change reported without the entry affects all searches under its
+     * base, unless it is a delete. The remembered "user not found" results the changed entries may now answer are
+     * dropped as well.
+     * <p/>
+     * The affected reads are found through an index of the cache, built on the first call and kept up to date by the
+     * events of the cache from then on, so a change costs in proportion to the reads it affects and the number of
+     * cached searches, not the size of the cache.
+     * <p/>
+     * A search that is loading when the change arrives may still put the result it got before the change in the
+     * cache, where it stays until it expires or the entry changes again.
+     *
+     * @param changes the changes
+     */
     @Override
-    public LdapUser[] search(final String base, final String filter) {
-        Integer cacheKey = createCacheKey(base, filter);
-        Element element = cache.get(cacheKey);
-        if (element != null) {
-            return (LdapUser[]) element.getValue();
+    public void entriesChanged(List<LdapChange> changes) {
+        Set<CacheKey> affected = changeIndex().affectedBy(changes);
+        for (CacheKey cacheKey : affected) {
+            invalidate(cacheKey);
+        }
+        int notFound = forgetNotFound(changes);
+        if (!affected.isEmpty()) {
+            metrics.invalidated(affected.size());
         }
+        if (!affected.isEmpty() || notFound > 0) {
+            LOGGER.debug((refreshOnChange ? "Refreshing " : "Evicted ") + affected.size() + " cached reads and "
+                    + notFound + " not found results after " + changes.size() + " directory changes.");
+        }
+    }
 
-        // We cannot make a wrapper of an Array, so just delegate synchronously.
-        LdapUser[] search = ldapService.search(base, filter);
+    private synchronized ChangeIndex changeIndex() {
+        if (changeIndex == null) {
+            ChangeIndex index = new ChangeIndex();
+            // Register first so that nothing put while the cache is gone through is missed.
+            cache.getCacheEventNotificationService().registerListener(index);
+            for (Object key : cache.getKeys()) {
+                Element element = cache.getQuiet(key);
+                if (element != null) {
+                    index.notifyElementPut(cache, element);
+                }
+            }
+            changeIndex = index;
+        }
+        return changeIndex;
+    }
 
-        if (search != null) {
-            cache.put(new Element(cacheKey, search));
+    /**
+     * Removes the "user not found" results that the changes may have made wrong. The negative cache is small and
+     * held in memory only, and may be shared with other instances, so only the affected keys are removed.
+     */
+    private int forgetNotFound(List<LdapChange> changes) {
+        int removed = 0;
+        for (Object key : negativeCache.getKeys()) {
+            if (key instanceof CacheKey && mayNowBeFound((CacheKey) key, changes) && negativeCache.remove(key)) {
+                removed++;
+            }
         }
+        return removed;
+    }
 
-        return search;
+    private static boolean mayNowBeFound(CacheKey cacheKey, List<LdapChange> changes) {
+        String base = cacheKey.getBase() != null ? normalizeDn(cacheKey.getBase()) : "";
+        for (LdapChange change : changes) {
+            if (change.getType() == LdapChange.Type.DELETE || !isBelow(normalizeDn(change.getDn()), base)) {
+                continue;
+            }
+            LdapUser entry = change.getEntry();
+            if (cacheKey.getOperation() != CacheKey.Operation.GET_LDAP_USER_BY_UID) {
+                if (entry == null || cacheKey.getFilter() == null || mayMatch(toMatcher(cacheKey.getFilter()), entry)) {
+                    return true;
+                }
+            } else if (entry == null || hasValue(entry.getAttributeValues(UID), cacheKey.getUid())) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private Integer createCacheKey(Object... args) {
-        int callingLineNumber = new Exception().getStackTrace()[1].getLineNumber();
-        final int prime = 7;
-        int hash = callingLineNumber * prime;
-        for (Object arg : args) {
-            if (arg != null) {
-                hash += arg.hashCode() * prime;
+    private static boolean hasValue(String[] values, String value) {
+        if (values != null) {
+            for (String candidate : values) {
+                if (candidate != null && candidate.equalsIgnoreCase(value)) {
+                    return true;
+                }
             }
         }
+        return false;
+    }
+
+    private static String normalizeDn(String dn) {
+        return dn.trim().toLowerCase(Locale.ENGLISH).replaceAll("\\s*([,=])\\s*", "$1");
+    }
 
-        return hash;
+    private static boolean isBelow(String dn, String base) {
+        // The base may be relative to the base of the service, so look for it anywhere in the name.
+        return base.length() == 0 || ("," + dn + ",").contains("," + base + ",");
+    }
+
+    /**
+     * @return the matcher of the filter, or null if the filter is not supported and may match anything
+     */
+    private static LdapFilterMatcher toMatcher(String filter) {
+        try {
+            return LdapFilterMatcher.parse(filter);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean mayMatch(LdapFilterMatcher matcher, LdapUser entry) {
+        return matcher == null || matcher.matches(entry);
+    }
+
+    private void invalidate(CacheKey cacheKey) {
+        // Later reads must not join a load that may have read the entry before the change.
+        inFlightLoads.remove(cacheKey);
+        if (!refreshOnChange || !refresh(cacheKey, loaderFor(cacheKey), true)) {
+            cache.remove(cacheKey);
+        }
+    }
+
+    private Callable<?> loaderFor(CacheKey cacheKey) {
+        final String base = cacheKey.getBase();
+        final String filter = cacheKey.getFilter();
+        final String[] attributes = cacheKey.getAttributes();
+        final String uid = cacheKey.getUid();
+        switch (cacheKey.getOperation()) {
+            case SEARCH:
+                return new Callable<LdapUser[]>() {
+                    @Override
+                    public LdapUser[] call() throws Exception {
+                        return attributes == null ? ldapService.search(base, filter)
+                                : ldapService.search(base, filter, attributes);
+                    }
+                };
+            case GET_LDAP_USER:
+                return new Callable<LdapUser>() {
+                    @Override
+                    public LdapUser call() throws Exception {
+                        return attributes == null ? ldapService.getLdapUser(base, filter)
+                                : ldapService.getLdapUser(base, filter, attributes);
+                    }
+                };
+            default:
+                return new Callable<LdapUser>() {
+                    @Override
+                    public LdapUser call() throws Exception {
+                        return base == null ? ldapService.getLdapUserByUid(uid)
+                                : ldapService.getLdapUserByUid(base, uid);
+                    }
+                };
+        }
     }
 
     @Override
-    public LdapUser[] search(String s, String s1, String[] strings) {
-        throw new UnsupportedOperationException();
+    public LdapUser[] search(final String base, final String filter) {
+        return searchCached(CacheKey.forSearch(base, filter, null), new Callable<LdapUser[]>() {
+            @Override
+            public LdapUser[] call() throws Exception {
+                return ldapService.search(base, filter);
+            }
+        });
     }
 
     @Override
-    public LdapUser getLdapUser(String s, String s1) {
-        throw new UnsupportedOperationException();
+    public LdapUser[] search(final String base, final String filter, final String[] attributes) {
+        return searchCached(CacheKey.forSearch(base, filter, attributes), new Callable<LdapUser[]>() {
+            @Override
+            public LdapUser[] call() throws Exception {
+                return ldapService.search(base, filter, attributes);
+            }
+        });
     }
 
     @Override
-    public LdapUser getLdapUser(String s, String s1, String[] strings) {
-        throw new UnsupportedOperationException();
+    public LdapUser getLdapUser(final String base, final String filter) {
+        return getLdapUserCached(CacheKey.forLdapUser(base, filter, null), new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUser(base, filter);
+            }
+        });
+    }
+
+    @Override
+    public LdapUser getLdapUser(final String base, final String filter, final String[] attributes) {
+        return getLdapUserCached(CacheKey.forLdapUser(base, filter, attributes), new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUser(base, filter, attributes);
+            }
+        });
     }
 
     @Override
@@ -147,205 +620,804 @@ public class AsyncCachingLdapServiceWrapper implements LdapService {
     }
 
     @Override
-    public LdapUser getLdapUserByUid(String s, String s1) {
-        throw new UnsupportedOperationException();
+    public LdapUser getLdapUserByUid(final String base, final String uid) {
+        return getLdapUserCached(CacheKey.forUid(base, uid), new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUserByUid(base, uid);
+            }
+        });
     }
 
     @Override
     public LdapUser getLdapUserByUid(final String userId) {
-        Integer cacheKey = createCacheKey(userId);
+        return getLdapUserCached(CacheKey.forUid(null, userId), new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUserByUid(userId);
+            }
+        });
+    }
+
+    /**
+     * Resolves the uids from the cache first and asks the wrapped service for the remaining ones in one bulk call. The
+     * users found, as well as the uids not found, are then cached per uid just like {@link #getLdapUserByUid(String)}
+     * does.
+     *
+     * @param uids the uids to look up
+     * @return the users found, keyed by the uid they were requested with
+     */
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        Map<String, LdapUser> result = new HashMap<String, LdapUser>();
+        List<String> missing = new ArrayList<String>();
+        for (String uid : uids) {
+            CacheKey cacheKey = CacheKey.forUid(null, uid);
+            Element element = cache.get(cacheKey);
+            if (element != null && !isStale(element)) {
+                LdapUser ldapUser = (LdapUser) element.getObjectValue();
+                if (ldapUser instanceof AsyncLdapUserWrapper) {
+                    ldapUser = ((AsyncLdapUserWrapper) ldapUser).getLdapUser();
+                }
+                if (ldapUser != null) {
+                    result.put(uid, ldapUser);
+                }
+                metrics.hit();
+            } else if (!isKnownNotFound(cacheKey)) {
+                missing.add(uid);
+                metrics.miss();
+            } else {
+                metrics.negativeHit();
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<String, LdapUser> loaded;
+            long start = metrics.getLoads().start();
+            boolean failed = true;
+            try {
+                loaded = ldapService.getLdapUsersByUids(missing);
+                failed = false;
+            } finally {
+                metrics.getLoads().record(start, failed);
+            }
+            for (String uid : missing) {
+                CacheKey cacheKey = CacheKey.forUid(null, uid);
+                LdapUser ldapUser = loaded.get(uid);
+                if (ldapUser != null) {
+                    cache.put(newElement(cacheKey, new AsyncLdapUserWrapper(new AsyncResult<LdapUser>(ldapUser),
+                            cacheKey)));
+                    result.put(uid, ldapUser);
+                } else {
+                    negativeCache.put(notFoundElement(cacheKey));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private LdapUser[] searchCached(CacheKey cacheKey, Callable<LdapUser[]> loader) {
         Element element = cache.get(cacheKey);
         if (element != null) {
-            return (LdapUser) element.getValue();
+            if (!isStale(element)) {
+                metrics.hit();
+                refreshAheadIfDue(cacheKey, element, loader);
+                return (LdapUser[]) element.getValue();
+            }
+            // Time the directory call itself, not the fallback to the expired value.
+            loader = withStaleFallback(cacheKey, element, timed(loader));
+        }
+        metrics.miss();
+        if (element == null) {
+            loader = timed(loader);
+        }
+
+        // We cannot make a wrapper of an Array, so the first caller loads synchronously while concurrent callers for
+        // the same key wait for that load instead of making their own.
+        FutureTask<LdapUser[]> task = new FutureTask<LdapUser[]>(loader);
+        Future<LdapUser[]> inFlight = (Future<LdapUser[]>) inFlightLoads.putIfAbsent(cacheKey, task);
+        if (inFlight != null) {
+            return awaitSearch(inFlight);
         }
 
-        Callable callable = new Callable<LdapUser>() {
+        try {
+            element = cache.get(cacheKey);
+            if (element != null && !isStale(element)) {
+                return (LdapUser[]) element.getValue();
+            }
+
+            task.run();
+            LdapUser[] search = awaitSearch(task);
+
+            if (search != null && (element == null || search != element.getObjectValue())) {
+                cache.put(newElement(cacheKey, search));
+            }
+
+            return search;
+        } finally {
+            inFlightLoads.remove(cacheKey, task);
+        }
+    }
+
+    private LdapUser[] awaitSearch(Future<LdapUser[]> future) {
+        try {
+            long timeout = getTimeoutMillis;
+            return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            throw new LdapUserRetrievalException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LdapUserRetrievalException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new LdapUserRetrievalException(e.getCause());
+        }
+    }
+
+    private LdapUser getLdapUserCached(final CacheKey cacheKey, Callable<LdapUser> loader) {
+        Element element = cache.get(cacheKey);
+        if (element != null) {
+            if (!isStale(element)) {
+                metrics.hit();
+                refreshAheadIfDue(cacheKey, element, loader);
+                return (LdapUser) element.getValue();
+            }
+            // Time the directory call itself, not the fallback to the expired value.
+            loader = withStaleFallback(cacheKey, element, timed(loader));
+        }
+
+        if (isKnownNotFound(cacheKey)) {
+            metrics.negativeHit();
+            return new AsyncLdapUserWrapper(new AsyncResult<LdapUser>(null), cacheKey);
+        }
+        metrics.miss();
+        if (element == null) {
+            loader = timed(loader);
+        }
+
+        // Concurrent callers that miss the cache for the same key share one pending directory call.
+        FutureTask<LdapUser> futureLdapUser = new FutureTask<LdapUser>(loader) {
             @Override
-            public LdapUser call() throws Exception {
-                return ldapService.getLdapUserByUid(userId);
+            protected void set(LdapUser ldapUser) {
+                try {
+                    if (ldapUser == null) {
+                        // Before the callers get the result, so that looking the user up again finds it.
+                        removeIfBackedBy(cacheKey, this);
+                        negativeCache.put(notFoundElement(cacheKey));
+                    }
+                } finally {
+                    inFlightLoads.remove(cacheKey, this);
+                    super.set(ldapUser);
+                }
             }
-        };
 
-        Future<LdapUser> futureLdapUser = executor.submit(callable);
-
-        AsyncLdapUserWrapper ldapUser = new AsyncLdapUserWrapper(futureLdapUser, cacheKey);
-
-        cache.put(new Element(cacheKey, ldapUser));
-
-        // Cleanup null objects since we don't want to cache them.
-        if (lastScheduledTask == null || lastScheduledTask.isDone()) {
-            // Otherwise it is unnecessary to pile up tasks
-            final int delay = 5;
-            lastScheduledTask = scheduledExecutorService.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    final List keys = cache.getKeys();
-                    for (Object key : keys) {
-                        final Element element1 = cache.get(key);
-                        if (element1 == null || element1.getObjectValue() == null
-                                || ((LdapUser)element1.getValue()).getDn() == null) {
-                            cache.remove(key);
+            @Override
+            protected void done() {
+                try {
+                    if (!isCancelled() && get() != null && changeIndex != null) {
+                        // The name of the entry is known now, so that changes to it can find this lookup.
+                        Element element = cache.getQuiet(cacheKey);
+                        if (element != null) {
+                            changeIndex.put(element);
                         }
                     }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // The callers holding the wrapper get the error; don't keep a failed lookup in the cache.
+                    removeIfBackedBy(cacheKey, this);
+                } finally {
+                    inFlightLoads.remove(cacheKey, this);
                 }
-            }, delay, TimeUnit.SECONDS);
+            }
+        };
+        Future<LdapUser> inFlight = (Future<LdapUser>) inFlightLoads.putIfAbsent(cacheKey, futureLdapUser);
+        if (inFlight != null) {
+            return new AsyncLdapUserWrapper(inFlight, cacheKey, getTimeoutMillis);
         }
 
+        Element current = cache.get(cacheKey);
+        if (current != null && !isStale(current)) {
+            inFlightLoads.remove(cacheKey, futureLdapUser);
+            return (LdapUser) current.getValue();
+        }
+
+        AsyncLdapUserWrapper ldapUser = new AsyncLdapUserWrapper(futureLdapUser, cacheKey, getTimeoutMillis);
+
+        cache.put(newElement(cacheKey, ldapUser));
+
+        executor.execute(futureLdapUser);
+
         return ldapUser;
     }
 
+    private void removeIfBackedBy(CacheKey cacheKey, Future<LdapUser> future) {
+        Element element = cache.getQuiet(cacheKey);
+        if (element != null && element.getObjectValue() instanceof AsyncLdapUserWrapper
+                && ((AsyncLdapUserWrapper) element.getObjectValue()).isBackedBy(future)) {
+            cache.remove(cacheKey);
+        }
+    }
+
+    private Element newElement(CacheKey cacheKey, Object value) {
+        return newElement(cacheKey, value, currentTimeMillis());
+    }
+
+    private Element newElement(CacheKey cacheKey, Object value, long creationTime) {
+        Element element = new Element(cacheKey, value, 1, creationTime, creationTime, 0, creationTime, 0);
+        if (staleGracePeriodSeconds > 0) {
+            // Keep the element around during the grace period; isStale(...) tells when it has really expired.
+            int lifetime = (int) (timeToLiveSeconds + staleGracePeriodSeconds);
+            element.setTimeToLive(lifetime);
+            element.setTimeToIdle(lifetime);
+        }
+        return element;
+    }
+
+    private Element notFoundElement(CacheKey cacheKey) {
+        long now = currentTimeMillis();
+        return new Element(cacheKey, NOT_FOUND, 1, now, now, 0, now, 0);
+    }
+
+    private boolean isKnownNotFound(CacheKey cacheKey) {
+        Element element = negativeCache.get(cacheKey);
+        return element != null && age(element) < negativeTimeToLiveSeconds * MILLIS_PER_SECOND;
+    }
+
+    private long age(Element element) {
+        return currentTimeMillis() - element.getCreationTime();
+    }
+
+    private boolean isStale(Element element) {
+        return age(element) >= timeToLiveSeconds * MILLIS_PER_SECOND;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void refreshAheadIfDue(CacheKey cacheKey, Element element, Callable<?> loader) {
+        if (refreshAheadFactor <= 0 || age(element) < refreshAheadFactor * timeToLiveSeconds * MILLIS_PER_SECOND) {
+            return;
+        }
+        if (refresh(cacheKey, loader, false)) {
+            metrics.refreshAhead();
+        }
+    }
+
+    /**
+     * Reloads an element in the background while the cached value is still served.
+     *
+     * @return whether the reload was started; not if another load of the key is in flight
+     */
+    private boolean refresh(final CacheKey cacheKey, Callable<?> loader, final boolean evictOnFailure) {
+        // The cache is updated before the reload is done, so that whoever waits for it reads the new value.
+        FutureTask<Object> refresh = new FutureTask<Object>((Callable<Object>) timed(loader)) {
+            @Override
+            protected void set(Object loaded) {
+                try {
+                    if (loaded == null) {
+                        cache.remove(cacheKey);
+                        negativeCache.put(notFoundElement(cacheKey));
+                    } else if (loaded instanceof LdapUser) {
+                        cache.put(newElement(cacheKey, new AsyncLdapUserWrapper(
+                                new AsyncResult<LdapUser>((LdapUser) loaded), cacheKey)));
+                    } else {
+                        cache.put(newElement(cacheKey, loaded));
+                    }
+                } finally {
+                    inFlightLoads.remove(cacheKey, this);
+                    super.set(loaded);
+                }
+            }
+
+            @Override
+            protected void setException(Throwable t) {
+                try {
+                    if (evictOnFailure) {
+                        LOGGER.warn("Refresh of " + cacheKey + " failed, evicting it.", t);
+                        cache.remove(cacheKey);
+                    } else {
+                        LOGGER.warn("Refresh-ahead of " + cacheKey + " failed, keeping the cached value.", t);
+                    }
+                } finally {
+                    inFlightLoads.remove(cacheKey, this);
+                    super.setException(t);
+                }
+            }
+
+            @Override
+            protected void done() {
+                inFlightLoads.remove(cacheKey, this);
+            }
+        };
+
+        // Only one refresh per key; callers that miss while it runs share it like any other in-flight load.
+        if (inFlightLoads.putIfAbsent(cacheKey, refresh) == null) {
+            executor.execute(refresh);
+            return true;
+        }
+        return false;
+    }
+
+    private <T> Callable<T> withStaleFallback(final CacheKey cacheKey, final Element staleElement,
+                                              final Callable<T> loader) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return loader.call();
+                } catch (Exception e) {
+                    LOGGER.warn("Lookup of " + cacheKey + " failed, serving the expired value.", e);
+                    metrics.staleServed();
+                    // Put the expired element back so that it keeps its original expiry.
+                    cache.remove(cacheKey);
+                    cache.put(staleElement);
+                    Object stale = staleElement.getObjectValue();
+                    if (stale instanceof AsyncLdapUserWrapper) {
+                        return (T) ((AsyncLdapUserWrapper) stale).getLdapUser();
+                    }
+                    return (T) stale;
+                }
+            }
+        };
+    }
+
+    private <T> Callable<T> timed(final Callable<T> loader) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = metrics.getLoads().start();
+                boolean failed = true;
+                try {
+                    T result = loader.call();
+                    failed = false;
+                    return result;
+                } finally {
+                    metrics.getLoads().record(start, failed);
+                }
+            }
+        };
+    }
+
     Ehcache getCache() {
         return cache;
     }
 
+    Ehcache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * @return the load of the key that is in flight, e.g. a refresh in the background, or null if there is none
+     */
+    Future<?> getInFlightLoad(CacheKey cacheKey) {
+        return inFlightLoads.get(cacheKey);
+    }
+
+    /**
+     * Index of the cached reads by what may affect them, see {@link #entriesChanged(List)}: the keys by the names of
+     * the entries in their result, the keys of the lookups that are still loading, and the searches with their base
+     * and filter. Kept up to date by the events of the cache, so it also covers the reads cached by other instances
+     * sharing the cache.
+     */
+    private static final class ChangeIndex implements CacheEventListener {
+
+        private final Map<String, Set<CacheKey>> keysByDn = new HashMap<String, Set<CacheKey>>();
+        private final Map<CacheKey, List<String>> dnsByKey = new HashMap<CacheKey, List<String>>();
+        private final Set<CacheKey> loading = new HashSet<CacheKey>();
+        private final Map<CacheKey, SearchScope> searches = new HashMap<CacheKey, SearchScope>();
+
+        synchronized Set<CacheKey> affectedBy(List<LdapChange> changes) {
+            Set<CacheKey> affected = new HashSet<CacheKey>(loading);
+            for (LdapChange change : changes) {
+                String dn = normalizeDn(change.getDn());
+                addKeysOf(dn, affected);
+                if (change.getPreviousDn() != null) {
+                    addKeysOf(normalizeDn(change.getPreviousDn()), affected);
+                }
+                for (Map.Entry<CacheKey, SearchScope> search : searches.entrySet()) {
+                    if (search.getValue().mayHold(dn, change)) {
+                        affected.add(search.getKey());
+                    }
+                }
+            }
+            return affected;
+        }
+
+        /**
+         * Adds the keys of the reads holding the entry, also when they hold it by a name relative to the base of the
+         * service, i.e. by the leading part of the name.
+         */
+        private void addKeysOf(String dn, Set<CacheKey> affected) {
+            int end = dn.indexOf(',');
+            while (true) {
+                Set<CacheKey> keys = keysByDn.get(end < 0 ? dn : dn.substring(0, end));
+                if (keys != null) {
+                    affected.addAll(keys);
+                }
+                if (end < 0) {
+                    return;
+                }
+                end = dn.indexOf(',', end + 1);
+            }
+        }
+
+        private void index(CacheKey cacheKey, Object value) {
+            unindex(cacheKey);
+            if (cacheKey.getOperation() != CacheKey.Operation.GET_LDAP_USER_BY_UID) {
+                searches.put(cacheKey, new SearchScope(cacheKey));
+            }
+            LdapUser[] ldapUsers;
+            if (value instanceof AsyncLdapUserWrapper) {
+                LdapUser ldapUser = ((AsyncLdapUserWrapper) value).getLdapUserIfDone();
+                if (ldapUser == null) {
+                    // Indexed by its name once loaded, see getLdapUserCached(...).
+                    loading.add(cacheKey);
+                    return;
+                }
+                ldapUsers = new LdapUser[]{ldapUser};
+            } else if (value instanceof LdapUser[]) {
+                ldapUsers = (LdapUser[]) value;
+            } else if (value instanceof LdapUser) {
+                ldapUsers = new LdapUser[]{(LdapUser) value};
+            } else {
+                return;
+            }
+            List<String> dns = new ArrayList<String>(ldapUsers.length);
+            for (LdapUser ldapUser : ldapUsers) {
+                if (ldapUser != null && ldapUser.getDn() != null) {
+                    String dn = normalizeDn(ldapUser.getDn());
+                    Set<CacheKey> keys = keysByDn.get(dn);
+                    if (keys == null) {
+                        keys = new HashSet<CacheKey>(2);
+                        keysByDn.put(dn, keys);
+                    }
+                    keys.add(cacheKey);
+                    dns.add(dn);
+                }
+            }
+            dnsByKey.put(cacheKey, dns);
+        }
+
+        private void unindex(CacheKey cacheKey) {
+            List<String> dns = dnsByKey.remove(cacheKey);
+            if (dns != null) {
+                for (String dn : dns) {
+                    Set<CacheKey> keys = keysByDn.get(dn);
+                    if (keys != null && keys.remove(cacheKey) && keys.isEmpty()) {
+                        keysByDn.remove(dn);
+                    }
+                }
+            }
+            loading.remove(cacheKey);
+            searches.remove(cacheKey);
+        }
+
+        private synchronized void put(Element element) {
+            if (element != null && element.getObjectKey() instanceof CacheKey) {
+                index((CacheKey) element.getObjectKey(), element.getObjectValue());
+            }
+        }
+
+        private synchronized void remove(Element element) {
+            if (element != null && element.getObjectKey() instanceof CacheKey) {
+                unindex((CacheKey) element.getObjectKey());
+            }
+        }
+
+        @Override
+        public void notifyElementPut(Ehcache cache, Element element) {
+            put(element);
+        }
+
+        @Override
+        public void notifyElementUpdated(Ehcache cache, Element element) {
+            put(element);
+        }
+
+        @Override
+        public void notifyElementRemoved(Ehcache cache, Element element) {
+            remove(element);
+        }
+
+        @Override
+        public void notifyElementExpired(Ehcache cache, Element element) {
+            remove(element);
+        }
+
+        @Override
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+            remove(element);
+        }
+
+        @Override
+        public synchronized void notifyRemoveAll(Ehcache cache) {
+            keysByDn.clear();
+            dnsByKey.clear();
+            loading.clear();
+            searches.clear();
+        }
+
+        @Override
+        public void dispose() {
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            throw new CloneNotSupportedException("The index belongs to one cache.");
+        }
+    }
+
+    /**
+     * The base and filter of a cached search, telling which changed entries it may hold.
+     */
+    private static final class SearchScope {
+
+        private final String base;
+        private final LdapFilterMatcher matcher;
+
+        SearchScope(CacheKey cacheKey) {
+            this.base = cacheKey.getBase() != null ? normalizeDn(cacheKey.getBase()) : "";
+            this.matcher = cacheKey.getFilter() != null ? toMatcher(cacheKey.getFilter()) : null;
+        }
+
+        boolean mayHold(String dn, LdapChange change) {
+            if (!isBelow(dn, base)) {
+                return false;
+            }
+            if (change.getEntry() == null) {
+                return change.getType() != LdapChange.Type.DELETE;
+            }
+            return mayMatch(matcher, change.getEntry());
+        }
+    }
+
+    /**
+     * Key of a cached directory read. Each read operation gets its own {@link Operation} so that e.g. a search and a
+     * single user lookup with the same base and filter never share an entry. The attribute list is kept sorted since
+     * the order of the requested attributes does not affect the result.
+     */
+    static final class CacheKey implements Serializable {
+        private static final long serialVersionUID = 4514120395622398415L;
+
+        enum Operation { SEARCH, GET_LDAP_USER, GET_LDAP_USER_BY_UID }
+
+        private final Operation operation;
+        private final String base;
+        private final String filter;
+        private final String[] attributes;
+        private final String uid;
+        private final int hash;
+
+        private CacheKey(Operation operation, String base, String filter, String[] attributes, String uid) {
+            this.operation = operation;
+            this.base = base;
+            this.filter = filter;
+            if (attributes != null) {
+                this.attributes = attributes.clone();
+                Arrays.sort(this.attributes);
+            } else {
+                this.attributes = null;
+            }
+            this.uid = uid;
+
+            final int prime = 31;
+            int result = operation.ordinal();
+            result = prime * result + (base != null ? base.hashCode() : 0);
+            result = prime * result + (filter != null ? filter.hashCode() : 0);
+            result = prime * result + Arrays.hashCode(this.attributes);
+            result = prime * result + (uid != null ? uid.hashCode() : 0);
+            this.hash = result;
+        }
+
+        static CacheKey forSearch(String base, String filter, String[] attributes) {
+            return new CacheKey(Operation.SEARCH, base, filter, attributes, null);
+        }
+
+        static CacheKey forLdapUser(String base, String filter, String[] attributes) {
+            return new CacheKey(Operation.GET_LDAP_USER, base, filter, attributes, null);
+        }
+
+        static CacheKey forUid(String base, String uid) {
+            return new CacheKey(Operation.GET_LDAP_USER_BY_UID, base, null, null, uid);
+        }
+
+        Operation getOperation() {
+            return operation;
+        }
+
+        String getBase() {
+            return base;
+        }
+
+        String getFilter() {
+            return filter;
+        }
+
+        String[] getAttributes() {
+            return attributes != null ? attributes.clone() : null;
+        }
+
+        String getUid() {
+            return uid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash
+                    && operation == other.operation
+                    && equal(base, other.base)
+                    && equal(filter, other.filter)
+                    && Arrays.equals(attributes, other.attributes)
+                    && equal(uid, other.uid);
+        }
+
+        private static boolean equal(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return operation + "[base=" + base + ", filter=" + filter + ", attributes="
+                    + Arrays.toString(attributes) + ", uid=" + uid + "]";
+        }
+    }
+
     static class AsyncLdapUserWrapper implements LdapUser, Serializable {
-        private final Logger LOGGER = LoggerFactory.getLogger(AsyncLdapUserWrapper.class);
+        private static final Logger LOGGER = LoggerFactory.getLogger(AsyncLdapUserWrapper.class);
         private static final long serialVersionUID = -1123850060733039675L;
 
         private transient Future<LdapUser> futureLdapUser;
-        private Integer cacheKey;
+        private CacheKey cacheKey;
+        private long timeoutMillis;
+
+        /**
+         * Constructor.
+         *
+         * @param futureLdapUser futureLdapUser
+         * @param cacheKey       cacheKey
+         */
+        public AsyncLdapUserWrapper(Future<LdapUser> futureLdapUser, CacheKey cacheKey) {
+            this(futureLdapUser, cacheKey, 0);
+        }
 
         /**
          * Constructor.
          *
          * @param futureLdapUser futureLdapUser
          * @param cacheKey       cacheKey
+         * @param timeoutMillis  the longest time to wait for the user, zero to wait as long as it takes
          */
-        public AsyncLdapUserWrapper(Future<LdapUser> futureLdapUser, Integer cacheKey) {
+        AsyncLdapUserWrapper(Future<LdapUser> futureLdapUser, CacheKey cacheKey, long timeoutMillis) {
             this.futureLdapUser = futureLdapUser;
             this.cacheKey = cacheKey;
+            this.timeoutMillis = timeoutMillis;
         }
 
-        @Override
-        public String getDn() {
+        boolean isBackedBy(Future<?> future) {
+            return futureLdapUser == future;
+        }
+
+        /**
+         * @return the user, or null if the lookup has not finished, has failed or found nothing
+         */
+        LdapUser getLdapUserIfDone() {
+            if (!futureLdapUser.isDone()) {
+                return null;
+            }
             try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return null;
-                }
-                return ldapUser.getDn();
+                return futureLdapUser.get();
             } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
+                Thread.currentThread().interrupt();
+                return null;
             } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
+                return null;
             }
         }
 
-        @Override
-        public String getAttributeValue(String s) {
+        LdapUser getLdapUser() {
+            return await();
+        }
+
+        private LdapUser await() {
             try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return null;
+                if (timeoutMillis > 0) {
+                    return futureLdapUser.get(timeoutMillis, TimeUnit.MILLISECONDS);
                 }
-                return ldapUser.getAttributeValue(s);
+                return futureLdapUser.get();
             } catch (InterruptedException e) {
                 throw new LdapUserRetrievalException(e);
             } catch (ExecutionException e) {
                 throw new LdapUserRetrievalException(e);
+            } catch (TimeoutException e) {
+                // The lookup goes on, and a later call may still get the user.
+                throw new LdapUserRetrievalException(e);
             }
         }
 
+        @Override
+        public String getDn() {
+            LdapUser ldapUser = await();
+            return ldapUser == null ? null : ldapUser.getDn();
+        }
+
+        @Override
+        public String getAttributeValue(String s) {
+            LdapUser ldapUser = await();
+            return ldapUser == null ? null : ldapUser.getAttributeValue(s);
+        }
+
         @Override
         public String[] getAttributeValues(String s) {
-            try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return null;
-                }
-                return ldapUser.getAttributeValues(s);
-            } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
-            } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
-            }
+            LdapUser ldapUser = await();
+            return ldapUser == null ? null : ldapUser.getAttributeValues(s);
         }
 
         @Override
         public Map<String, ArrayList<String>> getAttributes() {
-            try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return null;
-                }
-                return ldapUser.getAttributes();
-            } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
-            } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
-            }
+            LdapUser ldapUser = await();
+            return ldapUser == null ? null : ldapUser.getAttributes();
         }
 
         @Override
         public void clearAttribute(String s) {
-            try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return;
-                }
+            LdapUser ldapUser = await();
+            if (ldapUser != null) {
                 ldapUser.clearAttribute(s);
-            } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
-            } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
             }
         }
 
         @Override
         public void setAttributeValue(String s, Object o) {
-            try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return;
-                }
+            LdapUser ldapUser = await();
+            if (ldapUser != null) {
                 ldapUser.setAttributeValue(s, o);
-            } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
-            } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
             }
         }
 
         @Override
         public void addAttributeValue(String s, Object o) {
-            try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return;
-                }
+            LdapUser ldapUser = await();
+            if (ldapUser != null) {
                 ldapUser.addAttributeValue(s, o);
-            } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
-            } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
             }
         }
 
         @Override
         public void setAttributeValue(String s, Object[] objects) {
-            try {
-                LdapUser ldapUser = futureLdapUser.get();
-                if (ldapUser == null) {
-                    return;
-                }
+            LdapUser ldapUser = await();
+            if (ldapUser != null) {
                 ldapUser.setAttributeValue(s, objects);
-            } catch (InterruptedException e) {
-                throw new LdapUserRetrievalException(e);
-            } catch (ExecutionException e) {
-                throw new LdapUserRetrievalException(e);
             }
         }
 
         private void writeObject(java.io.ObjectOutputStream out)
                 throws IOException {
             out.defaultWriteObject();
+            LdapUser ldapUser = null;
             try {
-                out.writeObject(futureLdapUser.get());
-            } catch (InterruptedException e) {
-                LOGGER.error(e.getMessage(), e);
-            } catch (ExecutionException e) {
+                ldapUser = await();
+            } catch (LdapUserRetrievalException e) {
                 LOGGER.error(e.getMessage(), e);
             }
+            // Always write the user, so that readObject finds one even when the lookup failed.
+            out.writeObject(ldapUser);
         }
 
         private void readObject(java.io.ObjectInputStream in)
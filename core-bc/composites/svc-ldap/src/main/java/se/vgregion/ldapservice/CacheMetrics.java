@@ -0,0 +1,306 @@
+package se.vgregion.ldapservice;
+
+import net.sf.ehcache.Ehcache;
+
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of an {@link AsyncCachingLdapServiceWrapper}: hits and misses, directory loads, the load executor and the
+ * size of the caches. The counters cost an atomic increment per read; the sizes are read from the caches and the
+ * executor only when asked for. Load latencies are measured once the metrics have been read or registered, see
+ * {@link OperationMetrics}.
+ */
+public final class CacheMetrics implements CacheMetricsMBean {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong refreshAheads = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final OperationMetrics loads = new OperationMetrics("load");
+    private final Ehcache cache;
+    private final Ehcache negativeCache;
+    private final ThreadPoolExecutor executor;
+    private final Map<?, ?> inFlightLoads;
+
+    CacheMetrics(Ehcache cache, Ehcache negativeCache, ThreadPoolExecutor executor, Map<?, ?> inFlightLoads) {
+        this.cache = cache;
+        this.negativeCache = negativeCache;
+        this.executor = executor;
+        this.inFlightLoads = inFlightLoads;
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    void negativeHit() {
+        negativeHits.incrementAndGet();
+    }
+
+    void staleServed() {
+        staleServed.incrementAndGet();
+    }
+
+    void refreshAhead() {
+        refreshAheads.incrementAndGet();
+    }
+
+    void invalidated(int count) {
+        invalidations.addAndGet(count);
+    }
+
+    OperationMetrics getLoads() {
+        return loads;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return the fraction of the reads answered from the cache, counting remembered "not found" results as hits
+     */
+    @Override
+    public double getHitRatio() {
+        long answered = hits.get() + negativeHits.get();
+        long total = answered + misses.get();
+        return total == 0 ? 0 : (double) answered / total;
+    }
+
+    @Override
+    public long getStaleServedCount() {
+        return staleServed.get();
+    }
+
+    @Override
+    public long getRefreshAheadCount() {
+        return refreshAheads.get();
+    }
+
+    /**
+     * @return the number of elements evicted or refreshed because the directory reported a change
+     */
+    @Override
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.getCount();
+    }
+
+    @Override
+    public long getLoadErrorCount() {
+        return loads.getErrorCount();
+    }
+
+    @Override
+    public long getLoadMeanMicros() {
+        return loads.getMeanMicros();
+    }
+
+    @Override
+    public long getLoadP99Micros() {
+        return loads.getP99Micros();
+    }
+
+    /**
+     * @return the number of directory loads started but not finished, i.e. the pending futures of the wrapper
+     */
+    @Override
+    public int getInFlightLoads() {
+        return inFlightLoads.size();
+    }
+
+    @Override
+    public int getExecutorActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of loads waiting for a free executor thread
+     */
+    @Override
+    public int getExecutorQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getElementsInMemory() {
+        return cache.getMemoryStoreSize();
+    }
+
+    @Override
+    public long getElementsOnDisk() {
+        return cache.getDiskStoreSize();
+    }
+
+    @Override
+    public long getNegativeElements() {
+        return negativeCache.getMemoryStoreSize();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.getStatistics().getEvictionCount();
+    }
+
+    /**
+     * Resets the counters and the load latencies. The cache sizes and the eviction count are not affected.
+     */
+    @Override
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        negativeHits.set(0);
+        staleServed.set(0);
+        refreshAheads.set(0);
+        invalidations.set(0);
+        loads.reset();
+    }
+
+    /**
+     * Reads the current values together, and switches load timing on for the following loads.
+     *
+     * @return the current values
+     */
+    public Snapshot snapshot() {
+        loads.setTiming(true);
+        return new Snapshot(this);
+    }
+
+    @Override
+    public String toString() {
+        return new Snapshot(this).toString();
+    }
+
+    /**
+     * The values of a {@link CacheMetrics} at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long negativeHitCount;
+        private final double hitRatio;
+        private final long staleServedCount;
+        private final long refreshAheadCount;
+        private final long invalidationCount;
+        private final OperationMetrics.Snapshot loads;
+        private final int inFlightLoads;
+        private final int executorActiveThreads;
+        private final int executorQueueSize;
+        private final long elementsInMemory;
+        private final long elementsOnDisk;
+        private final long negativeElements;
+        private final long evictionCount;
+
+        private Snapshot(CacheMetrics metrics) {
+            this.hitCount = metrics.getHitCount();
+            this.missCount = metrics.getMissCount();
+            this.negativeHitCount = metrics.getNegativeHitCount();
+            this.hitRatio = metrics.getHitRatio();
+            this.staleServedCount = metrics.getStaleServedCount();
+            this.refreshAheadCount = metrics.getRefreshAheadCount();
+            this.invalidationCount = metrics.getInvalidationCount();
+            this.loads = new OperationMetrics.Snapshot(metrics.loads);
+            this.inFlightLoads = metrics.getInFlightLoads();
+            this.executorActiveThreads = metrics.getExecutorActiveThreads();
+            this.executorQueueSize = metrics.getExecutorQueueSize();
+            this.elementsInMemory = metrics.getElementsInMemory();
+            this.elementsOnDisk = metrics.getElementsOnDisk();
+            this.negativeElements = metrics.getNegativeElements();
+            this.evictionCount = metrics.getEvictionCount();
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getNegativeHitCount() {
+            return negativeHitCount;
+        }
+
+        public double getHitRatio() {
+            return hitRatio;
+        }
+
+        public long getStaleServedCount() {
+            return staleServedCount;
+        }
+
+        public long getRefreshAheadCount() {
+            return refreshAheadCount;
+        }
+
+        public long getInvalidationCount() {
+            return invalidationCount;
+        }
+
+        public OperationMetrics.Snapshot getLoads() {
+            return loads;
+        }
+
+        public int getInFlightLoads() {
+            return inFlightLoads;
+        }
+
+        public int getExecutorActiveThreads() {
+            return executorActiveThreads;
+        }
+
+        public int getExecutorQueueSize() {
+            return executorQueueSize;
+        }
+
+        public long getElementsInMemory() {
+            return elementsInMemory;
+        }
+
+        public long getElementsOnDisk() {
+            return elementsOnDisk;
+        }
+
+        public long getNegativeElements() {
+            return negativeElements;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheMetrics[hits=" + hitCount + ", misses=" + missCount + ", negativeHits=" + negativeHitCount
+                    + ", staleServed=" + staleServedCount + ", refreshAheads=" + refreshAheadCount + ", invalidations="
+                    + invalidationCount + ", " + loads + ", inFlight=" + inFlightLoads + ", activeThreads="
+                    + executorActiveThreads + ", queued=" + executorQueueSize + ", inMemory=" + elementsInMemory
+                    + ", onDisk=" + elementsOnDisk + ", negative=" + negativeElements + ", evictions=" + evictionCount
+                    + "]";
+        }
+    }
+}
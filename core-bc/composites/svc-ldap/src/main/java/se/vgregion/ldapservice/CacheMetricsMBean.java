@@ -0,0 +1,45 @@
+package se.vgregion.ldapservice;
+
+/**
+ * JMX view of a {@link CacheMetrics}. Times are in microseconds.
+ */
+public interface CacheMetricsMBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getNegativeHitCount();
+
+    double getHitRatio();
+
+    long getStaleServedCount();
+
+    long getRefreshAheadCount();
+
+    long getInvalidationCount();
+
+    long getLoadCount();
+
+    long getLoadErrorCount();
+
+    long getLoadMeanMicros();
+
+    long getLoadP99Micros();
+
+    int getInFlightLoads();
+
+    int getExecutorActiveThreads();
+
+    int getExecutorQueueSize();
+
+    long getElementsInMemory();
+
+    long getElementsOnDisk();
+
+    long getNegativeElements();
+
+    long getEvictionCount();
+
+    void reset();
+}
@@ -0,0 +1,356 @@
+package se.vgregion.ldapservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps an {@link LdapService} so that a stalled directory cannot hold up the calling threads.
+ * <p/>
+ * Every call gets a deadline: it runs on a thread of this service while the caller waits at most
+ * {@link #setTimeoutMillis(long) timeoutMillis} for it, and gets an {@link LdapServiceUnavailableException} when the
+ * time is up. The number of threads is bounded, so a hung directory ties up at most that many threads; once they are
+ * all busy further calls fail at once. Set connect and read timeouts and a search time limit on the wrapped service as
+ * well, e.g. {@link LdapServiceImpl#setReadTimeoutMillis(int)}, so that the abandoned calls end too.
+ * <p/>
+ * After {@link #setFailureThreshold(int) failureThreshold} failures or timeouts in a row the circuit opens: calls fail
+ * at once for {@link #setOpenMillis(long) openMillis}, after which a single call is let through as a probe. If it
+ * succeeds the circuit closes again, otherwise it stays open for another period. Exceptions that are the caller's
+ * fault, {@link IllegalArgumentException} and {@link UnsupportedOperationException}, do not count as failures.
+ * <p/>
+ * To serve cached data while the circuit is open, put an {@link AsyncCachingLdapServiceWrapper} with a
+ * {@link AsyncCachingLdapServiceWrapper#setStaleGracePeriodSeconds(long) stale grace period} in front of this service.
+ */
+public class CircuitBreakerLdapService implements LdapService {
+
+    /**
+     * The state of the circuit.
+     */
+    public enum State {
+        /** Calls go to the directory. */
+        CLOSED,
+        /** Calls fail at once. */
+        OPEN,
+        /** One probe call is on its way to the directory; other calls fail at once. */
+        HALF_OPEN
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakerLdapService.class);
+    private static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_OPEN_MILLIS = 30000;
+    private static final int DEFAULT_MAX_THREADS = 20;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private final LdapService ldapService;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Long> operationTimeoutsMillis = new ConcurrentHashMap<String, Long>();
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openMillis = DEFAULT_OPEN_MILLIS;
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService the service to protect
+     */
+    public CircuitBreakerLdapService(LdapService ldapService) {
+        this.ldapService = ldapService;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS, THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ldap-call-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param timeoutMillis the time a caller waits for an operation without an own timeout; defaults to 10 seconds
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be at least 1: " + timeoutMillis);
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets timeouts for single operations, e.g. a longer one for "getLdapUsersByUids". The operations are named after
+     * the methods of {@link LdapService}; overloaded methods share a name.
+     *
+     * @param operationTimeoutsMillis the timeouts in milliseconds, keyed by operation name
+     */
+    public void setOperationTimeoutsMillis(Map<String, Long> operationTimeoutsMillis) {
+        this.operationTimeoutsMillis.clear();
+        this.operationTimeoutsMillis.putAll(operationTimeoutsMillis);
+    }
+
+    /**
+     * @param failureThreshold the number of failures in a row that opens the circuit; defaults to 5
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @param openMillis the time the circuit stays open before a probe call is let through; defaults to 30 seconds
+     */
+    public void setOpenMillis(long openMillis) {
+        if (openMillis < 0) {
+            throw new IllegalArgumentException("openMillis must not be negative: " + openMillis);
+        }
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @param maxThreads the maximum number of calls in progress against the directory; defaults to 20
+     */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1: " + maxThreads);
+        }
+        if (maxThreads < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(maxThreads);
+            executor.setMaximumPoolSize(maxThreads);
+        } else {
+            executor.setMaximumPoolSize(maxThreads);
+            executor.setCorePoolSize(maxThreads);
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * Stops the threads running the calls. Calls in progress are interrupted.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public LdapUser[] search(final String base, final String filter) {
+        return call("search", new Callable<LdapUser[]>() {
+            @Override
+            public LdapUser[] call() throws Exception {
+                return ldapService.search(base, filter);
+            }
+        });
+    }
+
+    @Override
+    public LdapUser[] search(final String base, final String filter, final String[] attributes) {
+        return call("search", new Callable<LdapUser[]>() {
+            @Override
+            public LdapUser[] call() throws Exception {
+                return ldapService.search(base, filter, attributes);
+            }
+        });
+    }
+
+    @Override
+    public LdapUser getLdapUser(final String base, final String filter) {
+        return call("getLdapUser", new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUser(base, filter);
+            }
+        });
+    }
+
+    @Override
+    public LdapUser getLdapUser(final String base, final String filter, final String[] attributes) {
+        return call("getLdapUser", new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUser(base, filter, attributes);
+            }
+        });
+    }
+
+    @Override
+    public Properties getProperties() {
+        return ldapService.getProperties();
+    }
+
+    @Override
+    public boolean addLdapUser(final String context, final HashMap<String, String> attributes) {
+        return call("addLdapUser", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return ldapService.addLdapUser(context, attributes);
+            }
+        });
+    }
+
+    @Override
+    public boolean modifyLdapUser(final LdapUser e, final HashMap<String, String> modifyAttributes) {
+        return call("modifyLdapUser", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return ldapService.modifyLdapUser(e, modifyAttributes);
+            }
+        });
+    }
+
+    @Override
+    public boolean deleteLdapUser(final LdapUser e) {
+        return call("deleteLdapUser", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return ldapService.deleteLdapUser(e);
+            }
+        });
+    }
+
+    @Override
+    public LdapUser getLdapUserByUid(final String base, final String uid) {
+        return call("getLdapUserByUid", new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUserByUid(base, uid);
+            }
+        });
+    }
+
+    @Override
+    public LdapUser getLdapUserByUid(final String uid) {
+        return call("getLdapUserByUid", new Callable<LdapUser>() {
+            @Override
+            public LdapUser call() throws Exception {
+                return ldapService.getLdapUserByUid(uid);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(final Collection<String> uids) {
+        return call("getLdapUsersByUids", new Callable<Map<String, LdapUser>>() {
+            @Override
+            public Map<String, LdapUser> call() throws Exception {
+                return ldapService.getLdapUsersByUids(uids);
+            }
+        });
+    }
+
+    private <T> T call(String operation, Callable<T> call) {
+        if (!allowCall()) {
+            throw new LdapServiceUnavailableException("The directory is unavailable, " + operation
+                    + " was not attempted.");
+        }
+
+        Future<T> future;
+        try {
+            future = executor.submit(call);
+        } catch (RejectedExecutionException e) {
+            // A probe that never ran tells nothing; try again after another period.
+            reopenIfProbing();
+            throw new LdapServiceUnavailableException("All " + executor.getMaximumPoolSize()
+                    + " directory calls are busy, " + operation + " was not attempted.", e);
+        }
+
+        Long operationTimeout = operationTimeoutsMillis.get(operation);
+        long timeout = operationTimeout != null ? operationTimeout : timeoutMillis;
+        try {
+            T result = future.get(timeout, TimeUnit.MILLISECONDS);
+            onSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            onFailure();
+            throw new LdapServiceUnavailableException(operation + " did not finish within " + timeout + " ms.", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            reopenIfProbing();
+            Thread.currentThread().interrupt();
+            throw new LdapUserRetrievalException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException || cause instanceof UnsupportedOperationException) {
+                onSuccess();
+            } else {
+                onFailure();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new LdapUserRetrievalException(cause);
+        }
+    }
+
+    private boolean allowCall() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && currentTimeMillis() - openedAt >= openMillis) {
+            // Only the caller that moves the circuit to half open makes the probe call.
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            LOGGER.info("The directory answers again, closing the circuit.");
+        }
+    }
+
+    private void onFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state.get() == State.HALF_OPEN || failures >= failureThreshold) {
+            openedAt = currentTimeMillis();
+            if (state.getAndSet(State.OPEN) == State.CLOSED) {
+                LOGGER.warn("Opening the circuit after " + failures + " failed directory calls in a row, failing "
+                        + "fast for " + openMillis + " ms.");
+            }
+        }
+    }
+
+    private void reopenIfProbing() {
+        if (state.get() == State.HALF_OPEN) {
+            openedAt = currentTimeMillis();
+            state.compareAndSet(State.HALF_OPEN, State.OPEN);
+        }
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
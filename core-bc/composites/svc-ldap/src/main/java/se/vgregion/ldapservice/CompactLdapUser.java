@@ -0,0 +1,311 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory efficient {@link LdapUser}, meant for holding many users at once, e.g. in a cache. The attributes are kept in
+ * a small open addressing table of two parallel arrays instead of a map of lists: attribute names are interned, so
+ * all users share one instance of each name, and an attribute with a single value stores that value directly.
+ * <p/>
+ * {@link #getAttributeValue(String)} does not allocate. {@link #getAttributeValues(String)} returns a new array like
+ * the other implementations do, since callers are free to modify it.
+ */
+public final class CompactLdapUser implements LdapUser {
+
+    private static final long serialVersionUID = 6079325806359549436L;
+    private static final String[] NO_VALUES = new String[0];
+    private static final int MIN_CAPACITY = 4;
+
+    private final String dn;
+    private String[] names;
+    // Each slot holds the single value of the attribute, or an Object[] when it has several values.
+    private Object[] values;
+    private int size;
+
+    /**
+     * Creates a user without attributes.
+     *
+     * @param dn the distinguished name
+     */
+    public CompactLdapUser(String dn) {
+        this.dn = dn;
+        this.names = new String[MIN_CAPACITY];
+        this.values = new Object[MIN_CAPACITY];
+    }
+
+    /**
+     * Creates a user from a search result, the same way as the other implementations do.
+     *
+     * @param base the base the search was made in
+     * @param res  the search result
+     */
+    public CompactLdapUser(String base, SearchResult res) {
+        this(base != null && base.length() != 0 ? res.getName() + "," + base : res.getName(), res.getAttributes());
+    }
+
+    /**
+     * Creates a user from attributes.
+     *
+     * @param dn         the distinguished name
+     * @param attributes the attributes
+     */
+    public CompactLdapUser(String dn, Attributes attributes) {
+        this.dn = dn;
+        int capacity = capacityFor(attributes.size());
+        this.names = new String[capacity];
+        this.values = new Object[capacity];
+        try {
+            NamingEnumeration<? extends Attribute> all = attributes.getAll();
+            while (all.hasMore()) {
+                Attribute attribute = all.next();
+                int count = attribute.size();
+                if (count == 0) {
+                    put(attribute.getID(), null);
+                } else if (count == 1) {
+                    put(attribute.getID(), attribute.get());
+                } else {
+                    Object[] attributeValues = new Object[count];
+                    for (int i = 0; i < count; i++) {
+                        attributeValues[i] = attribute.get(i);
+                    }
+                    put(attribute.getID(), attributeValues);
+                }
+            }
+        } catch (NamingException e) {
+            throw new RuntimeException("Parsing attrs failed", e);
+        }
+    }
+
+    /**
+     * Makes a compact copy of any user.
+     *
+     * @param ldapUser the user to copy
+     * @return the copy
+     */
+    public static CompactLdapUser copyOf(LdapUser ldapUser) {
+        if (ldapUser instanceof CompactLdapUser) {
+            CompactLdapUser other = (CompactLdapUser) ldapUser;
+            CompactLdapUser copy = new CompactLdapUser(other.dn);
+            copy.names = other.names.clone();
+            copy.values = other.values.clone();
+            for (int i = 0; i < copy.values.length; i++) {
+                if (copy.values[i] instanceof Object[]) {
+                    copy.values[i] = ((Object[]) copy.values[i]).clone();
+                }
+            }
+            copy.size = other.size;
+            return copy;
+        }
+        Map<String, ArrayList<String>> attributes = ldapUser.getAttributes();
+        CompactLdapUser copy = new CompactLdapUser(ldapUser.getDn());
+        for (Map.Entry<String, ArrayList<String>> entry : attributes.entrySet()) {
+            copy.setAttributeValue(entry.getKey(), entry.getValue().toArray());
+        }
+        return copy;
+    }
+
+    @Override
+    public String getDn() {
+        return dn;
+    }
+
+    @Override
+    public String getAttributeValue(String attrName) {
+        int index = indexOf(attrName);
+        if (index < 0) {
+            return null;
+        }
+        Object value = values[index];
+        if (value instanceof Object[]) {
+            Object[] multiple = (Object[]) value;
+            return multiple.length > 0 ? (String) multiple[0] : null;
+        }
+        return (String) value;
+    }
+
+    @Override
+    public String[] getAttributeValues(String attrName) {
+        int index = indexOf(attrName);
+        if (index < 0) {
+            return NO_VALUES;
+        }
+        Object value = values[index];
+        if (value instanceof Object[]) {
+            Object[] multiple = (Object[]) value;
+            String[] res = new String[multiple.length];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = (String) multiple[i];
+            }
+            return res;
+        }
+        return new String[]{(String) value};
+    }
+
+    /**
+     * Builds a map of the attributes. Changes to the map are not reflected in the user.
+     */
+    @Override
+    public Map<String, ArrayList<String>> getAttributes() {
+        Map result = new LinkedHashMap(size * 2);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                ArrayList list = new ArrayList();
+                if (values[i] instanceof Object[]) {
+                    list.addAll(Arrays.asList((Object[]) values[i]));
+                } else {
+                    list.add(values[i]);
+                }
+                result.put(names[i], list);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void clearAttribute(String attr) {
+        int index = indexOf(attr);
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    @Override
+    public void setAttributeValue(String attr, Object value) {
+        put(attr, value);
+    }
+
+    @Override
+    public void addAttributeValue(String attr, Object value) {
+        int index = indexOf(attr);
+        if (index < 0) {
+            put(attr, value);
+            return;
+        }
+        Object current = values[index];
+        Object[] added;
+        if (current instanceof Object[]) {
+            Object[] multiple = (Object[]) current;
+            added = Arrays.copyOf(multiple, multiple.length + 1);
+        } else {
+            added = new Object[]{current, null};
+        }
+        added[added.length - 1] = value;
+        values[index] = added;
+    }
+
+    @Override
+    public void setAttributeValue(String attr, Object[] newValues) {
+        if (newValues.length == 1) {
+            put(attr, newValues[0]);
+        } else {
+            put(attr, newValues.clone());
+        }
+    }
+
+    /**
+     * @return the number of attributes
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        // Keep the load factor at or below one half so that probe sequences stay short.
+        while (capacity < entries * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int slot(String name, int mask) {
+        int h = name.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        int mask = names.length - 1;
+        for (int i = slot(name, mask); names[i] != null; i = (i + 1) & mask) {
+            if (names[i] == name || names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void put(String name, Object value) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+        if ((size + 1) * 2 > names.length) {
+            resize(names.length << 1);
+        }
+        insert(name.intern(), value);
+        size++;
+    }
+
+    private void insert(String name, Object value) {
+        int mask = names.length - 1;
+        int i = slot(name, mask);
+        while (names[i] != null) {
+            i = (i + 1) & mask;
+        }
+        names[i] = name;
+        values[i] = value;
+    }
+
+    private void resize(int capacity) {
+        String[] oldNames = names;
+        Object[] oldValues = values;
+        names = new String[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                insert(oldNames[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void removeAt(int index) {
+        int mask = names.length - 1;
+        names[index] = null;
+        values[index] = null;
+        size--;
+        // Re-insert the rest of the probe run so that no lookup stops early at the new gap.
+        for (int i = (index + 1) & mask; names[i] != null; i = (i + 1) & mask) {
+            String name = names[i];
+            Object value = values[i];
+            names[i] = null;
+            values[i] = null;
+            insert(name, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(200);
+        buf.append(dn).append("\n");
+        for (Map.Entry<String, ArrayList<String>> entry : getAttributes().entrySet()) {
+            buf.append("   ").append(entry.getKey()).append(": |");
+            for (Object value : entry.getValue()) {
+                buf.append(value).append("|");
+            }
+            buf.append("\n");
+        }
+        buf.append("\n");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes entries as CSV (RFC 4180) to a stream as they are handed to it, one row per entry with the dn and the given
+ * attributes as columns, so that a search of any size can be exported with only the current entry in memory. The
+ * first row holds the column names.
+ * <p/>
+ * The values of a multi valued attribute are separated by semicolons and binary values are base64 encoded. CSV is
+ * meant for reading and spreadsheets; use {@link LdifWriter} for an export that can be imported again.
+ */
+public class CsvEntryWriter implements LdapEntryCallbackHandler, Closeable, Flushable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char VALUE_SEPARATOR = ';';
+
+    private final Writer writer;
+    private final String[] attributeNames;
+
+    /**
+     * @param out            the stream to write to; it is buffered, so it need not be
+     * @param attributeNames the attributes to write, in column order after the dn
+     * @throws IOException if the header could not be written
+     */
+    public CsvEntryWriter(OutputStream out, String... attributeNames) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE);
+        this.attributeNames = attributeNames.clone();
+        writeField("dn");
+        for (String attributeName : attributeNames) {
+            writer.write(',');
+            writeField(attributeName);
+        }
+        writer.write("\r\n");
+    }
+
+    @Override
+    public void handleEntry(String dn, Attributes attributes) throws NamingException, IOException {
+        write(dn, attributes);
+    }
+
+    /**
+     * Writes an entry.
+     *
+     * @param dn         the full name of the entry
+     * @param attributes the attributes of the entry; attributes not among the columns are left out
+     * @throws NamingException if the attributes could not be read
+     * @throws IOException     if the stream could not be written
+     */
+    public void write(String dn, Attributes attributes) throws NamingException, IOException {
+        writeField(dn);
+        for (String attributeName : attributeNames) {
+            writer.write(',');
+            Attribute attribute = attributes.get(attributeName);
+            if (attribute == null) {
+                continue;
+            }
+            if (attribute.size() == 1) {
+                writeField(toText(attribute.get()));
+                continue;
+            }
+            StringBuilder values = new StringBuilder();
+            NamingEnumeration<?> all = attribute.getAll();
+            try {
+                while (all.hasMore()) {
+                    if (values.length() > 0) {
+                        values.append(VALUE_SEPARATOR);
+                    }
+                    values.append(toText(all.next()));
+                }
+            } finally {
+                all.close();
+            }
+            writeField(values.toString());
+        }
+        writer.write("\r\n");
+    }
+
+    private static String toText(Object value) {
+        if (value instanceof byte[]) {
+            return DatatypeConverter.printBase64Binary((byte[]) value);
+        }
+        return value != null ? value.toString() : "";
+    }
+
+    private void writeField(String value) throws IOException {
+        if (!needsQuotes(value)) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        int start = 0;
+        for (int quote = value.indexOf('"'); quote >= 0; quote = value.indexOf('"', start)) {
+            writer.write(value, start, quote + 1 - start);
+            writer.write('"');
+            start = quote + 1;
+        }
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n' || c == VALUE_SEPARATOR) {
+                return true;
+            }
+        }
+        return value.length() > 0 && (value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' ');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,388 @@
+package se.vgregion.ldapservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.CommunicationException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ContextSource} that spreads the contexts over several replicas of the same directory, each reached through
+ * its own context source (typically a {@link PooledContextSource} per server). Read-only contexts go to the replica
+ * chosen by the {@link Strategy}; read-write contexts go to the first server, the primary, unless
+ * {@link #setWriteToPrimary(boolean) writeToPrimary} is turned off.
+ * <p/>
+ * A server that cannot be reached, i.e. fails with a {@link CommunicationException} or a
+ * {@link ServiceUnavailableException} when a context is taken or used, is taken out of rotation and the next one is
+ * tried. A background thread then tries to get a context from it every {@link #setProbeIntervalMillis(long)
+ * probeInterval} and puts it back once that works. When all servers are out of rotation they are all tried anyway.
+ * <p/>
+ * Use it with {@link SimpleLdapServiceImpl#SimpleLdapServiceImpl(ContextSource)} or
+ * {@link LdapServiceImpl#setContextSource(ContextSource)}. {@link LdapServiceImpl} creates one itself when its
+ * <code>BIND_URL</code> property lists more than one server.
+ */
+public class FailoverContextSource implements ContextSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailoverContextSource.class);
+    private static final long DEFAULT_PROBE_INTERVAL_MILLIS = 10000;
+    private static final int LATENCY_SMOOTHING = 8;
+
+    /**
+     * How a server is chosen for a read-only context.
+     */
+    public enum Strategy {
+        /** Each server in turn. */
+        ROUND_ROBIN,
+        /** The server with the fewest contexts in use. */
+        LEAST_OUTSTANDING,
+        /** A random server, weighted by the inverse of its average response time. */
+        LATENCY_WEIGHTED
+    }
+
+    private final List<Server> servers;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Random random = new Random();
+    private final ScheduledExecutorService prober;
+    private volatile Strategy strategy = Strategy.ROUND_ROBIN;
+    private volatile boolean writeToPrimary = true;
+    private volatile long probeIntervalMillis = DEFAULT_PROBE_INTERVAL_MILLIS;
+
+    /**
+     * Constructor.
+     *
+     * @param servers the context source of each server by the name used in logs, e.g. its url; the first one is the
+     *                primary
+     */
+    public FailoverContextSource(Map<String, ? extends ContextSource> servers) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("At least one server is needed.");
+        }
+        List<Server> list = new ArrayList<Server>(servers.size());
+        for (Map.Entry<String, ? extends ContextSource> entry : servers.entrySet()) {
+            list.add(new Server(entry.getKey(), entry.getValue()));
+        }
+        this.servers = Collections.unmodifiableList(list);
+        this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ldap-failover-probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param strategy how a server is chosen for read-only contexts; defaults to {@link Strategy#ROUND_ROBIN}
+     */
+    public void setStrategy(Strategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("strategy must not be null");
+        }
+        this.strategy = strategy;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @param writeToPrimary whether read-write contexts always come from the first server (the default), or are
+     *                       spread like the read-only ones
+     */
+    public void setWriteToPrimary(boolean writeToPrimary) {
+        this.writeToPrimary = writeToPrimary;
+    }
+
+    /**
+     * @param probeIntervalMillis how often a server out of rotation is tried again; defaults to 10000
+     */
+    public void setProbeIntervalMillis(long probeIntervalMillis) {
+        if (probeIntervalMillis < 1) {
+            throw new IllegalArgumentException("probeIntervalMillis must be at least 1: " + probeIntervalMillis);
+        }
+        this.probeIntervalMillis = probeIntervalMillis;
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return getContext(true, false, null, null);
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return getContext(false, writeToPrimary, null, null);
+    }
+
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        return getContext(false, false, principal, credentials);
+    }
+
+    private DirContext getContext(boolean readOnly, boolean primaryOnly, String principal, String credentials) {
+        if (primaryOnly) {
+            return servers.get(0).getContext(readOnly, principal, credentials);
+        }
+        List<Server> candidates = availableServers();
+        if (candidates.isEmpty()) {
+            candidates = new ArrayList<Server>(servers);
+        }
+        RuntimeException failure = null;
+        while (!candidates.isEmpty()) {
+            Server server = choose(candidates);
+            try {
+                return server.getContext(readOnly, principal, credentials);
+            } catch (RuntimeException e) {
+                if (!isServerFailure(e)) {
+                    throw e;
+                }
+                failure = e;
+                candidates.remove(server);
+            }
+        }
+        throw failure;
+    }
+
+    private Server choose(List<Server> candidates) {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        switch (strategy) {
+            case LEAST_OUTSTANDING:
+                Server least = null;
+                for (int i = 0; i < candidates.size(); i++) {
+                    Server server = candidates.get((start + i) % candidates.size());
+                    if (least == null || server.outstanding.get() < least.outstanding.get()) {
+                        least = server;
+                    }
+                }
+                return least;
+            case LATENCY_WEIGHTED:
+                return chooseByLatency(candidates);
+            default:
+                return candidates.get(start);
+        }
+    }
+
+    private Server chooseByLatency(List<Server> candidates) {
+        // Servers without a measurement yet count as the fastest, so that they get some traffic.
+        long fastest = Long.MAX_VALUE;
+        for (Server server : candidates) {
+            long latency = server.latencyMicros.get();
+            if (latency > 0 && latency < fastest) {
+                fastest = latency;
+            }
+        }
+        double[] weights = new double[candidates.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            long latency = candidates.get(i).latencyMicros.get();
+            weights[i] = 1.0 / (latency > 0 ? latency : (fastest == Long.MAX_VALUE ? 1 : fastest));
+            total += weights[i];
+        }
+        double r;
+        synchronized (random) {
+            r = random.nextDouble() * total;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return candidates.get(i);
+            }
+        }
+        return candidates.get(weights.length - 1);
+    }
+
+    private List<Server> availableServers() {
+        List<Server> available = new ArrayList<Server>(servers.size());
+        for (Server server : servers) {
+            if (!server.down.get()) {
+                available.add(server);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * @return the names of the servers currently in rotation, the primary first
+     */
+    public List<String> getAvailableServers() {
+        List<String> names = new ArrayList<String>(servers.size());
+        for (Server server : availableServers()) {
+            names.add(server.name);
+        }
+        return names;
+    }
+
+    /**
+     * @param name the name of a server
+     * @return the number of contexts from the server that have not been closed yet
+     */
+    public int getOutstanding(String name) {
+        return server(name).outstanding.get();
+    }
+
+    /**
+     * @param name the name of a server
+     * @return the smoothed time the server takes per operation in microseconds, or zero if not measured yet
+     */
+    public long getLatencyMicros(String name) {
+        return server(name).latencyMicros.get();
+    }
+
+    private Server server(String name) {
+        for (Server server : servers) {
+            if (server.name.equals(name)) {
+                return server;
+            }
+        }
+        throw new IllegalArgumentException("No such server: " + name);
+    }
+
+    /**
+     * Stops probing the servers out of rotation.
+     */
+    public void shutdown() {
+        prober.shutdownNow();
+    }
+
+    private static boolean isServerFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CommunicationException || t instanceof ServiceUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Server {
+
+        private final String name;
+        private final ContextSource contextSource;
+        private final AtomicBoolean down = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong latencyMicros = new AtomicLong();
+
+        Server(String name, ContextSource contextSource) {
+            this.name = name;
+            this.contextSource = contextSource;
+        }
+
+        DirContext getContext(boolean readOnly, String principal, String credentials) {
+            DirContext dirContext;
+            try {
+                if (principal != null) {
+                    dirContext = contextSource.getContext(principal, credentials);
+                } else if (readOnly) {
+                    dirContext = contextSource.getReadOnlyContext();
+                } else {
+                    dirContext = contextSource.getReadWriteContext();
+                }
+            } catch (RuntimeException e) {
+                if (isServerFailure(e)) {
+                    markDown(e);
+                }
+                throw e;
+            }
+            outstanding.incrementAndGet();
+            Class<?> contextInterface = dirContext instanceof LdapContext ? LdapContext.class : DirContext.class;
+            return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{contextInterface},
+                    new TrackingHandler(this, dirContext));
+        }
+
+        void recordLatency(long micros) {
+            // Lost updates between concurrent callers only make the average a little less smooth.
+            long average = latencyMicros.get();
+            latencyMicros.set(average == 0 ? Math.max(micros, 1) : average + (micros - average) / LATENCY_SMOOTHING);
+        }
+
+        void markDown(Throwable cause) {
+            if (down.compareAndSet(false, true)) {
+                LOGGER.warn("Taking ldap server " + name + " out of rotation: " + cause.getMessage());
+                scheduleProbe();
+            }
+        }
+
+        private void scheduleProbe() {
+            try {
+                prober.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        probe();
+                    }
+                }, probeIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down, stop probing.
+            }
+        }
+
+        private void probe() {
+            try {
+                contextSource.getReadOnlyContext().close();
+            } catch (Exception e) {
+                LOGGER.debug("Ldap server " + name + " is still unavailable: " + e.getMessage());
+                scheduleProbe();
+                return;
+            }
+            latencyMicros.set(0);
+            down.set(false);
+            LOGGER.info("Ldap server " + name + " is back in rotation.");
+        }
+    }
+
+    private static final class TrackingHandler implements InvocationHandler {
+
+        private final Server server;
+        private final DirContext dirContext;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        TrackingHandler(Server server, DirContext dirContext) {
+            this.server = server;
+            this.dirContext = dirContext;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            boolean close = "close".equals(method.getName()) && method.getParameterTypes().length == 0;
+            if (close && !closed.compareAndSet(false, true)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            try {
+                Object result = method.invoke(dirContext, args);
+                if (!close) {
+                    server.recordLatency(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (isServerFailure(cause)) {
+                    server.markDown(cause);
+                }
+                throw cause;
+            } finally {
+                if (close) {
+                    server.outstanding.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package se.vgregion.ldapservice;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Wraps any {@link LdapService} and records the call count, error count and latency of each operation, see
+ * {@link OperationMetrics}. The numbers can be read with {@link #snapshot()} or over JMX after
+ * {@link #registerMBeans(String)}; latencies are measured from the first time either is called. Wrap the
+ * directory-facing service to measure directory calls, or a caching wrapper to measure what the callers see.
+ */
+public class InstrumentedLdapService implements LdapService {
+
+    private final LdapService ldapService;
+    private final OperationMetrics search = new OperationMetrics("search");
+    private final OperationMetrics getLdapUser = new OperationMetrics("getLdapUser");
+    private final OperationMetrics getLdapUserByUid = new OperationMetrics("getLdapUserByUid");
+    private final OperationMetrics getLdapUsersByUids = new OperationMetrics("getLdapUsersByUids");
+    private final OperationMetrics addLdapUser = new OperationMetrics("addLdapUser");
+    private final OperationMetrics modifyLdapUser = new OperationMetrics("modifyLdapUser");
+    private final OperationMetrics deleteLdapUser = new OperationMetrics("deleteLdapUser");
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService the service to measure
+     */
+    public InstrumentedLdapService(LdapService ldapService) {
+        this.ldapService = ldapService;
+    }
+
+    @Override
+    public LdapUser[] search(String base, String filter) {
+        long start = search.start();
+        boolean failed = true;
+        try {
+            LdapUser[] result = ldapService.search(base, filter);
+            failed = false;
+            return result;
+        } finally {
+            search.record(start, failed);
+        }
+    }
+
+    @Override
+    public LdapUser[] search(String base, String filter, String[] attributes) {
+        long start = search.start();
+        boolean failed = true;
+        try {
+            LdapUser[] result = ldapService.search(base, filter, attributes);
+            failed = false;
+            return result;
+        } finally {
+            search.record(start, failed);
+        }
+    }
+
+    @Override
+    public LdapUser getLdapUser(String base, String filter) {
+        long start = getLdapUser.start();
+        boolean failed = true;
+        try {
+            LdapUser result = ldapService.getLdapUser(base, filter);
+            failed = false;
+            return result;
+        } finally {
+            getLdapUser.record(start, failed);
+        }
+    }
+
+    @Override
+    public LdapUser getLdapUser(String base, String filter, String[] attributes) {
+        long start = getLdapUser.start();
+        boolean failed = true;
+        try {
+            LdapUser result = ldapService.getLdapUser(base, filter, attributes);
+            failed = false;
+            return result;
+        } finally {
+            getLdapUser.record(start, failed);
+        }
+    }
+
+    @Override
+    public Properties getProperties() {
+        return ldapService.getProperties();
+    }
+
+    @Override
+    public boolean addLdapUser(String context, HashMap<String, String> attributes) {
+        long start = addLdapUser.start();
+        boolean failed = true;
+        try {
+            boolean result = ldapService.addLdapUser(context, attributes);
+            failed = false;
+            return result;
+        } finally {
+            addLdapUser.record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean modifyLdapUser(LdapUser e, HashMap<String, String> modifyAttributes) {
+        long start = modifyLdapUser.start();
+        boolean failed = true;
+        try {
+            boolean result = ldapService.modifyLdapUser(e, modifyAttributes);
+            failed = false;
+            return result;
+        } finally {
+            modifyLdapUser.record(start, failed);
+        }
+    }
+
+    @Override
+    public boolean deleteLdapUser(LdapUser e) {
+        long start = deleteLdapUser.start();
+        boolean failed = true;
+        try {
+            boolean result = ldapService.deleteLdapUser(e);
+            failed = false;
+            return result;
+        } finally {
+            deleteLdapUser.record(start, failed);
+        }
+    }
+
+    @Override
+    public LdapUser getLdapUserByUid(String base, String uid) {
+        long start = getLdapUserByUid.start();
+        boolean failed = true;
+        try {
+            LdapUser result = ldapService.getLdapUserByUid(base, uid);
+            failed = false;
+            return result;
+        } finally {
+            getLdapUserByUid.record(start, failed);
+        }
+    }
+
+    @Override
+    public LdapUser getLdapUserByUid(String uid) {
+        long start = getLdapUserByUid.start();
+        boolean failed = true;
+        try {
+            LdapUser result = ldapService.getLdapUserByUid(uid);
+            failed = false;
+            return result;
+        } finally {
+            getLdapUserByUid.record(start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        long start = getLdapUsersByUids.start();
+        boolean failed = true;
+        try {
+            Map<String, LdapUser> result = ldapService.getLdapUsersByUids(uids);
+            failed = false;
+            return result;
+        } finally {
+            getLdapUsersByUids.record(start, failed);
+        }
+    }
+
+    /**
+     * @return the metrics of each operation, keyed by the operation name
+     */
+    public Map<String, OperationMetrics> getMetrics() {
+        Map<String, OperationMetrics> metrics = new LinkedHashMap<String, OperationMetrics>();
+        for (OperationMetrics operation : new OperationMetrics[]{search, getLdapUser, getLdapUserByUid,
+                getLdapUsersByUids, addLdapUser, modifyLdapUser, deleteLdapUser}) {
+            metrics.put(operation.getName(), operation);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the current values of each operation, keyed by the operation name
+     */
+    public Map<String, OperationMetrics.Snapshot> snapshot() {
+        Map<String, OperationMetrics.Snapshot> snapshot = new LinkedHashMap<String, OperationMetrics.Snapshot>();
+        for (OperationMetrics operation : getMetrics().values()) {
+            snapshot.put(operation.getName(), operation.snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Registers one MBean per operation, see {@link LdapMBeans}.
+     *
+     * @param serviceName the name that tells this instance apart from other instrumented services
+     */
+    public synchronized void registerMBeans(String serviceName) {
+        unregisterMBeans();
+        for (OperationMetrics operation : getMetrics().values()) {
+            operation.setTiming(true);
+            registeredNames.add(LdapMBeans.register(operation, "LdapOperation", serviceName, operation.getName()));
+        }
+    }
+
+    /**
+     * Unregisters the MBeans registered by {@link #registerMBeans(String)}.
+     */
+    public synchronized void unregisterMBeans() {
+        LdapMBeans.unregister(registeredNames);
+    }
+}
@@ -0,0 +1,65 @@
+package se.vgregion.ldapservice;
+
+/**
+ * A change of a directory entry, as reported by a change feed such as {@link PollingChangeFeed} or
+ * {@link PersistentSearchChangeFeed}. Instances are immutable.
+ */
+public final class LdapChange {
+
+    /**
+     * What happened to the entry. Feeds that can't tell report {@link #UNKNOWN}.
+     */
+    public enum Type {
+        ADD, DELETE, MODIFY, RENAME, UNKNOWN
+    }
+
+    private final Type type;
+    private final String dn;
+    private final String previousDn;
+    private final LdapUser entry;
+
+    /**
+     * Constructor.
+     *
+     * @param type       what happened to the entry
+     * @param dn         the name of the entry
+     * @param previousDn the name of the entry before a rename, or null
+     * @param entry      the entry as it is after the change, or null if it was deleted or is not known
+     */
+    public LdapChange(Type type, String dn, String previousDn, LdapUser entry) {
+        if (type == null || dn == null) {
+            throw new IllegalArgumentException("type and dn must not be null");
+        }
+        this.type = type;
+        this.dn = dn;
+        this.previousDn = previousDn;
+        this.entry = entry;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getDn() {
+        return dn;
+    }
+
+    /**
+     * @return the name of the entry before a rename, or null
+     */
+    public String getPreviousDn() {
+        return previousDn;
+    }
+
+    /**
+     * @return the entry as it is after the change, or null if it was deleted or is not known
+     */
+    public LdapUser getEntry() {
+        return entry;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + dn + (previousDn != null ? " (was " + previousDn + ")" : "");
+    }
+}
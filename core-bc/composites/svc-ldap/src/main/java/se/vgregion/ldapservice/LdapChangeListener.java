@@ -0,0 +1,22 @@
+package se.vgregion.ldapservice;
+
+import java.util.List;
+
+/**
+ * Receives the changes reported by a change feed, e.g. {@link AsyncCachingLdapServiceWrapper}, which evicts or
+ * refreshes the cached reads they affect.
+ *
+ * @see PollingChangeFeed
+ * @see PersistentSearchChangeFeed
+ */
+public interface LdapChangeListener {
+
+    /**
+     * Called from the thread of the feed with the changes found together, in the order they were made as far as the
+     * feed can tell.
+     *
+     * @param changes the changes, never empty
+     */
+    void entriesChanged(List<LdapChange> changes);
+
+}
@@ -0,0 +1,26 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import java.io.IOException;
+
+/**
+ * Receives the entries of a streaming search one at a time, as they arrive from the directory, with the attributes
+ * as the directory returned them. Unlike {@link LdapUserCallbackHandler} no {@link LdapUser} is built, which makes it
+ * the cheaper choice for passing entries on, e.g. to an {@link LdifWriter} or a {@link CsvEntryWriter}.
+ *
+ * @see LdapServiceImpl#searchEntries(LdapQuery, LdapEntryCallbackHandler)
+ */
+public interface LdapEntryCallbackHandler {
+
+    /**
+     * Called once for every entry in the search result.
+     *
+     * @param dn         the full name of the entry
+     * @param attributes the attributes of the entry
+     * @throws NamingException if the attributes could not be read
+     * @throws IOException     if the entry could not be written
+     */
+    void handleEntry(String dn, Attributes attributes) throws NamingException, IOException;
+
+}
@@ -0,0 +1,568 @@
+package se.vgregion.ldapservice;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates an LDAP search filter (RFC 4515) against {@link LdapUser}s, for answering searches from data held in
+ * memory. Supports and, or, not, equality, presence, substrings, greater or equal and less or equal. Values are
+ * compared ignoring case, and ordering compares numbers numerically when both sides are numbers. Approximate match
+ * is treated as equality; extensible match is not supported.
+ * <p/>
+ * Instances are immutable and thread safe.
+ */
+public final class LdapFilterMatcher {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Node root;
+    private final String filter;
+
+    private LdapFilterMatcher(String filter, Node root) {
+        this.filter = filter;
+        this.root = root;
+    }
+
+    /**
+     * Parses a filter.
+     *
+     * @param filter the filter, with or without enclosing parentheses
+     * @return the matcher
+     * @throws IllegalArgumentException if the filter is malformed or uses extensible match
+     */
+    public static LdapFilterMatcher parse(String filter) {
+        return parse(filter, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Parses a filter, replacing the attribute names in it with the names the users to match have.
+     *
+     * @param filter         the filter, with or without enclosing parentheses
+     * @param attributeNames the attribute names of the users, keyed by the lower case name
+     * @return the matcher
+     * @throws IllegalArgumentException if the filter is malformed or uses extensible match
+     */
+    public static LdapFilterMatcher parse(String filter, Map<String, String> attributeNames) {
+        String text = filter.trim();
+        if (!text.startsWith("(")) {
+            text = "(" + text + ")";
+        }
+        Parser parser = new Parser(text, attributeNames);
+        Node root = parser.parseFilter();
+        if (parser.pos != text.length()) {
+            throw new IllegalArgumentException("Unexpected text after the filter: " + filter);
+        }
+        return new LdapFilterMatcher(filter, root);
+    }
+
+    /**
+     * @param ldapUser the user
+     * @return whether the user matches the filter
+     */
+    public boolean matches(LdapUser ldapUser) {
+        return root.matches(ldapUser);
+    }
+
+    /**
+     * @return the names of all attributes the filter tests, as they were given to {@link #parse(String, Map)}
+     */
+    public Set<String> getAttributeNames() {
+        Set<String> names = new HashSet<String>();
+        root.collectAttributeNames(names);
+        return names;
+    }
+
+    /**
+     * Finds a value that an attribute must equal for a user to match, e.g. the uid in
+     * <code>(&(objectclass=person)(uid=foo))</code>. Useful for looking up candidates in an index.
+     *
+     * @param attributeName the attribute name, as given to {@link #parse(String, Map)}
+     * @return the value, or null if the filter has no such requirement
+     */
+    public String getRequiredValue(String attributeName) {
+        return root.requiredValue(attributeName);
+    }
+
+    /**
+     * Tells whether every user that matches this filter also matches another one, judging by the form of the
+     * filters: this filter must be the other one, or an and that has all of the other one's terms among its own, e.g.
+     * <code>(&(objectClass=person)(uid=foo))</code> implies <code>(objectClass=person)</code>. A term that tests a
+     * value also implies that the attribute is present, e.g. <code>(uid=foo)</code> implies <code>(uid=*)</code>.
+     * Other filters that imply each other by their meaning, like <code>(uid=foo)</code> and <code>(uid=f*)</code>, are
+     * not recognized, so true is certain but false is not.
+     *
+     * @param other the other filter
+     * @return whether this filter selects a subset of the users the other one selects
+     */
+    public boolean implies(LdapFilterMatcher other) {
+        Set<String> terms = new HashSet<String>();
+        root.collectTerms(terms);
+        Set<String> required = new HashSet<String>();
+        other.root.collectTerms(required);
+        return terms.containsAll(required);
+    }
+
+    @Override
+    public String toString() {
+        return filter;
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ("\\*()".indexOf(c) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private abstract static class Node {
+
+        abstract boolean matches(LdapUser ldapUser);
+
+        abstract void collectAttributeNames(Set<String> names);
+
+        /**
+         * @return the node as a filter with lower case names and values, equal for nodes that match the same users
+         */
+        abstract String key();
+
+        /**
+         * Adds the terms that all must match, i.e. the node itself, or the terms of the children of an and.
+         */
+        void collectTerms(Set<String> terms) {
+            terms.add(key());
+        }
+
+        String requiredValue(String attributeName) {
+            return null;
+        }
+    }
+
+    private static final class And extends Node {
+
+        private final Node[] children;
+
+        And(List<Node> children) {
+            this.children = children.toArray(new Node[children.size()]);
+        }
+
+        @Override
+        boolean matches(LdapUser ldapUser) {
+            for (Node child : children) {
+                if (!child.matches(ldapUser)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void collectAttributeNames(Set<String> names) {
+            for (Node child : children) {
+                child.collectAttributeNames(names);
+            }
+        }
+
+        @Override
+        String requiredValue(String attributeName) {
+            for (Node child : children) {
+                String value = child.requiredValue(attributeName);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        String key() {
+            return keyOf('&', children);
+        }
+
+        @Override
+        void collectTerms(Set<String> terms) {
+            for (Node child : children) {
+                child.collectTerms(terms);
+            }
+        }
+    }
+
+    private static String keyOf(char operator, Node[] children) {
+        StringBuilder sb = new StringBuilder("(").append(operator);
+        for (Node child : children) {
+            sb.append(child.key());
+        }
+        return sb.append(')').toString();
+    }
+
+    private static final class Or extends Node {
+
+        private final Node[] children;
+
+        Or(List<Node> children) {
+            this.children = children.toArray(new Node[children.size()]);
+        }
+
+        @Override
+        boolean matches(LdapUser ldapUser) {
+            for (Node child : children) {
+                if (child.matches(ldapUser)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void collectAttributeNames(Set<String> names) {
+            for (Node child : children) {
+                child.collectAttributeNames(names);
+            }
+        }
+
+        @Override
+        String key() {
+            return keyOf('|', children);
+        }
+    }
+
+    private static final class Not extends Node {
+
+        private final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean matches(LdapUser ldapUser) {
+            return !child.matches(ldapUser);
+        }
+
+        @Override
+        void collectAttributeNames(Set<String> names) {
+            child.collectAttributeNames(names);
+        }
+
+        @Override
+        String key() {
+            return "(!" + child.key() + ")";
+        }
+    }
+
+    private abstract static class Item extends Node {
+
+        final String attribute;
+
+        Item(String attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        boolean matches(LdapUser ldapUser) {
+            for (String value : ldapUser.getAttributeValues(attribute)) {
+                if (value != null && matches(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        abstract boolean matches(String value);
+
+        @Override
+        void collectAttributeNames(Set<String> names) {
+            names.add(attribute);
+        }
+
+        @Override
+        String key() {
+            return "(" + attribute.toLowerCase(Locale.ENGLISH) + assertionKey() + ")";
+        }
+
+        @Override
+        void collectTerms(Set<String> terms) {
+            super.collectTerms(terms);
+            // Only a present attribute can have a matching value.
+            terms.add("(" + attribute.toLowerCase(Locale.ENGLISH) + "=*)");
+        }
+
+        /**
+         * @return the operator and the value of the item, with the value in lower case
+         */
+        abstract String assertionKey();
+    }
+
+    private static final class Present extends Item {
+
+        Present(String attribute) {
+            super(attribute);
+        }
+
+        @Override
+        boolean matches(String value) {
+            return true;
+        }
+
+        @Override
+        String assertionKey() {
+            return "=*";
+        }
+    }
+
+    private static final class Equality extends Item {
+
+        private final String assertion;
+
+        Equality(String attribute, String assertion) {
+            super(attribute);
+            this.assertion = assertion;
+        }
+
+        @Override
+        boolean matches(String value) {
+            return value.equalsIgnoreCase(assertion);
+        }
+
+        @Override
+        String requiredValue(String attributeName) {
+            return attribute.equalsIgnoreCase(attributeName) ? assertion : null;
+        }
+
+        @Override
+        String assertionKey() {
+            return "=" + escape(assertion.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    private static final class Ordering extends Item {
+
+        private final String assertion;
+        private final boolean greater;
+
+        Ordering(String attribute, String assertion, boolean greater) {
+            super(attribute);
+            this.assertion = assertion;
+            this.greater = greater;
+        }
+
+        @Override
+        boolean matches(String value) {
+            int comparison = compare(value, assertion);
+            return greater ? comparison >= 0 : comparison <= 0;
+        }
+
+        @Override
+        String assertionKey() {
+            return (greater ? ">=" : "<=") + escape(assertion.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    private static final class Substring extends Item {
+
+        private final String initial;
+        private final String[] any;
+        private final String last;
+
+        Substring(String attribute, String initial, List<String> any, String last) {
+            super(attribute);
+            this.initial = initial == null ? null : initial.toLowerCase(Locale.ENGLISH);
+            this.any = new String[any.size()];
+            for (int i = 0; i < this.any.length; i++) {
+                this.any[i] = any.get(i).toLowerCase(Locale.ENGLISH);
+            }
+            this.last = last == null ? null : last.toLowerCase(Locale.ENGLISH);
+        }
+
+        @Override
+        boolean matches(String value) {
+            String text = value.toLowerCase(Locale.ENGLISH);
+            int pos = 0;
+            if (initial != null) {
+                if (!text.startsWith(initial)) {
+                    return false;
+                }
+                pos = initial.length();
+            }
+            for (String part : any) {
+                int found = text.indexOf(part, pos);
+                if (found < 0) {
+                    return false;
+                }
+                pos = found + part.length();
+            }
+            return last == null || (text.length() - last.length() >= pos && text.endsWith(last));
+        }
+
+        @Override
+        String assertionKey() {
+            StringBuilder sb = new StringBuilder("=");
+            if (initial != null) {
+                sb.append(escape(initial));
+            }
+            for (String part : any) {
+                sb.append('*').append(escape(part));
+            }
+            sb.append('*');
+            if (last != null) {
+                sb.append(escape(last));
+            }
+            return sb.toString();
+        }
+    }
+
+    static int compare(String value, String assertion) {
+        if (isNumber(value) && isNumber(assertion)) {
+            try {
+                long a = Long.parseLong(value);
+                long b = Long.parseLong(assertion);
+                return a < b ? -1 : (a == b ? 0 : 1);
+            } catch (NumberFormatException e) {
+                // Too large for a long, compare as text.
+            }
+        }
+        return value.compareToIgnoreCase(assertion);
+    }
+
+    private static boolean isNumber(String text) {
+        int start = text.startsWith("-") ? 1 : 0;
+        if (text.length() == start) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Parser {
+
+        private final String text;
+        private final Map<String, String> attributeNames;
+        private int pos;
+
+        Parser(String text, Map<String, String> attributeNames) {
+            this.text = text;
+            this.attributeNames = attributeNames;
+        }
+
+        Node parseFilter() {
+            expect('(');
+            Node node;
+            char c = peek();
+            if (c == '&' || c == '|') {
+                pos++;
+                List<Node> children = new ArrayList<Node>();
+                while (peek() == '(') {
+                    children.add(parseFilter());
+                }
+                node = c == '&' ? new And(children) : new Or(children);
+            } else if (c == '!') {
+                pos++;
+                node = new Not(parseFilter());
+            } else {
+                node = parseItem();
+            }
+            expect(')');
+            return node;
+        }
+
+        private Node parseItem() {
+            int start = pos;
+            while (pos < text.length() && "=<>~()".indexOf(text.charAt(pos)) < 0) {
+                pos++;
+            }
+            String attribute = text.substring(start, pos).trim();
+            if (attribute.length() == 0 || attribute.indexOf(':') >= 0) {
+                throw new IllegalArgumentException("Unsupported filter item at " + start + ": " + text);
+            }
+            String name = attributeNames.get(attribute.toLowerCase(Locale.ENGLISH));
+            if (name != null) {
+                attribute = name;
+            }
+            char type = peek();
+            if (type == '<' || type == '>' || type == '~') {
+                pos++;
+                expect('=');
+                String value = decode(readValue());
+                if (type == '~') {
+                    return new Equality(attribute, value);
+                }
+                return new Ordering(attribute, value, type == '>');
+            }
+            expect('=');
+            String raw = readValue();
+            if ("*".equals(raw)) {
+                return new Present(attribute);
+            }
+            if (raw.indexOf('*') < 0) {
+                return new Equality(attribute, decode(raw));
+            }
+            String[] parts = raw.split("\\*", -1);
+            List<String> any = new ArrayList<String>();
+            for (int i = 1; i < parts.length - 1; i++) {
+                if (parts[i].length() > 0) {
+                    any.add(decode(parts[i]));
+                }
+            }
+            String initial = parts[0].length() > 0 ? decode(parts[0]) : null;
+            String last = parts[parts.length - 1].length() > 0 ? decode(parts[parts.length - 1]) : null;
+            return new Substring(attribute, initial, any, last);
+        }
+
+        private String readValue() {
+            int start = pos;
+            while (pos < text.length() && text.charAt(pos) != ')') {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private String decode(String value) {
+            if (value.indexOf('\\') < 0) {
+                return value;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 2 < value.length()) {
+                    bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else if (c == '\\') {
+                    throw new IllegalArgumentException("Malformed escape in filter value: " + value);
+                } else {
+                    byte[] encoded = String.valueOf(c).getBytes(UTF_8);
+                    bytes.write(encoded, 0, encoded.length);
+                }
+            }
+            return new String(bytes.toByteArray(), UTF_8);
+        }
+
+        private char peek() {
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of filter: " + text);
+            }
+            return text.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos + ": " + text);
+            }
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package se.vgregion.ldapservice;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Registers the metrics MBeans of this package with the platform MBean server. The beans are named
+ * <code>se.vgregion.ldapservice:type=&lt;type&gt;,service=&lt;service&gt;[,name=&lt;name&gt;]</code>, where the
+ * service name tells instances of the same class apart. A bean already registered under the name is replaced.
+ */
+public final class LdapMBeans {
+
+    /**
+     * The domain of the object names.
+     */
+    public static final String DOMAIN = "se.vgregion.ldapservice";
+
+    private LdapMBeans() {
+    }
+
+    static ObjectName register(Object mbean, String type, String service, String name) {
+        try {
+            String objectName = DOMAIN + ":type=" + ObjectName.quote(type) + ",service=" + ObjectName.quote(service);
+            if (name != null) {
+                objectName += ",name=" + ObjectName.quote(name);
+            }
+            ObjectName result = new ObjectName(objectName);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(result)) {
+                server.unregisterMBean(result);
+            }
+            server.registerMBean(mbean, result);
+            return result;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the " + type + " MBean of " + service + ".", e);
+        }
+    }
+
+    static void unregister(List<ObjectName> names) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                throw new IllegalStateException("Could not unregister " + name + ".", e);
+            }
+        }
+        names.clear();
+    }
+}
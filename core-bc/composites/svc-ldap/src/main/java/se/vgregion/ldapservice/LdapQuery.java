@@ -0,0 +1,123 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.directory.SearchControls;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable description of one directory search: base, filter, returned attributes, scope and limits. The
+ * <code>with</code> methods return modified copies, so one instance can be shared freely between threads.
+ *
+ * @see LdapServiceImpl#search(LdapQuery)
+ */
+public final class LdapQuery implements Serializable {
+
+    private static final long serialVersionUID = -2883447716069651370L;
+
+    private final String base;
+    private final String filter;
+    private final String[] attributes;
+    private final int scope;
+    private final long countLimit;
+    private final int timeLimit;
+
+    /**
+     * Creates a subtree search without limits that returns all attributes.
+     *
+     * @param base   the search base, or null for the base configured in the service
+     * @param filter the search filter
+     */
+    public LdapQuery(String base, String filter) {
+        this(base, filter, null, SearchControls.SUBTREE_SCOPE, 0, 0);
+    }
+
+    private LdapQuery(String base, String filter, String[] attributes, int scope, long countLimit, int timeLimit) {
+        this.base = base;
+        this.filter = filter;
+        this.attributes = attributes;
+        this.scope = scope;
+        this.countLimit = countLimit;
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * @param returningAttributes the attributes to return, or null or empty for all attributes
+     * @return a copy of this query returning the given attributes
+     */
+    public LdapQuery withAttributes(String... returningAttributes) {
+        String[] copy = returningAttributes != null && returningAttributes.length > 0
+                ? returningAttributes.clone() : null;
+        return new LdapQuery(base, filter, copy, scope, countLimit, timeLimit);
+    }
+
+    /**
+     * @param searchScope one of the scope constants in {@link SearchControls}
+     * @return a copy of this query with the given scope
+     */
+    public LdapQuery withScope(int searchScope) {
+        return new LdapQuery(base, filter, attributes, searchScope, countLimit, timeLimit);
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries to return, zero for no limit
+     * @return a copy of this query with the given count limit
+     */
+    public LdapQuery withCountLimit(long maxEntries) {
+        return new LdapQuery(base, filter, attributes, scope, maxEntries, timeLimit);
+    }
+
+    /**
+     * @param millis the time the directory may spend on the search in milliseconds, zero for no limit
+     * @return a copy of this query with the given time limit
+     */
+    public LdapQuery withTimeLimit(int millis) {
+        return new LdapQuery(base, filter, attributes, scope, countLimit, millis);
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return a copy of the attributes to return, or null for all attributes
+     */
+    public String[] getAttributes() {
+        return attributes != null ? attributes.clone() : null;
+    }
+
+    public int getScope() {
+        return scope;
+    }
+
+    public long getCountLimit() {
+        return countLimit;
+    }
+
+    public int getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * @return new search controls for this query
+     */
+    public SearchControls toSearchControls() {
+        SearchControls sc = new SearchControls();
+        sc.setSearchScope(scope);
+        sc.setCountLimit(countLimit);
+        sc.setTimeLimit(timeLimit);
+        if (attributes != null) {
+            sc.setReturningAttributes(attributes.clone());
+        }
+        return sc;
+    }
+
+    @Override
+    public String toString() {
+        return "LdapQuery[base=" + base + ", filter=" + filter + ", attributes=" + Arrays.toString(attributes)
+                + ", scope=" + scope + ", countLimit=" + countLimit + ", timeLimit=" + timeLimit + "]";
+    }
+}
@@ -19,7 +19,9 @@
 
 package se.vgregion.ldapservice;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 public interface LdapService {
@@ -44,4 +46,12 @@ public interface LdapService {
     
     LdapUser getLdapUserByUid(String uid);
 
+    /**
+     * Looks up many users by uid with as few directory round trips as possible.
+     *
+     * @param uids the uids to look up
+     * @return the users found, keyed by the uid they were requested with; uids that were not found are left out
+     */
+    Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids);
+
 }
\ No newline at end of file
@@ -21,16 +21,38 @@ package se.vgregion.ldapservice;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.ContextSource;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.ContextNotEmptyException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.*;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LdapServiceImpl implements LdapService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LdapServiceImpl.class);
+    private static final int DEFAULT_PAGE_SIZE = 500;
+    private static final int DEFAULT_BATCH_PARALLELISM = 4;
 
     private String _bindDN;
     private String _bindPw;
@@ -44,6 +66,12 @@ public class LdapServiceImpl implements LdapService {
     protected String base;
     protected Properties properties;
     private Hashtable env;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private ContextSource contextSource;
+    private SlowQueryLog slowQueryLog;
+    private int searchTimeLimitMillis;
+    private int batchParallelism = DEFAULT_BATCH_PARALLELISM;
+    private ExecutorService batchExecutor;
 
     public Properties getProperties() {
         return properties;
@@ -62,6 +90,27 @@ public class LdapServiceImpl implements LdapService {
                 new String[]{}, new Object[]{});
         this.properties = p;
         this.base = p.getProperty("BASE");
+        if (p.getProperty("PAGE_SIZE") != null) {
+            setPageSize(Integer.parseInt(p.getProperty("PAGE_SIZE")));
+        }
+        if (p.getProperty("CONNECT_TIMEOUT_MILLIS") != null) {
+            setConnectTimeoutMillis(Integer.parseInt(p.getProperty("CONNECT_TIMEOUT_MILLIS")));
+        }
+        if (p.getProperty("READ_TIMEOUT_MILLIS") != null) {
+            setReadTimeoutMillis(Integer.parseInt(p.getProperty("READ_TIMEOUT_MILLIS")));
+        }
+        if (p.getProperty("BATCH_PARALLELISM") != null) {
+            setBatchParallelism(Integer.parseInt(p.getProperty("BATCH_PARALLELISM")));
+        }
+        if (p.getProperty("SEARCH_TIME_LIMIT_MILLIS") != null) {
+            setSearchTimeLimitMillis(Integer.parseInt(p.getProperty("SEARCH_TIME_LIMIT_MILLIS")));
+        }
+        String[] bindUrls = _bindUrl != null ? _bindUrl.trim().split("\\s+") : new String[0];
+        if (bindUrls.length > 1) {
+            setContextSource(newFailoverContextSource(p, bindUrls));
+        } else if (p.getProperty("POOL_MAX_ACTIVE") != null) {
+            setContextSource(newPooledContextSource(p, newServerContextSource(null)));
+        }
 
     }
 
@@ -90,45 +139,353 @@ public class LdapServiceImpl implements LdapService {
         }
     }
 
+    /**
+     * Spreads the operations over the servers in a space separated BIND_URL, see {@link FailoverContextSource}.
+     * The selection strategy is read from LOAD_BALANCING (ROUND_ROBIN, LEAST_OUTSTANDING or LATENCY_WEIGHTED),
+     * WRITE_TO_PRIMARY=false spreads the writes as well, and each server gets its own pool if POOL_MAX_ACTIVE is set.
+     */
+    private FailoverContextSource newFailoverContextSource(Properties p, String[] bindUrls) {
+        Map<String, ContextSource> servers = new LinkedHashMap<String, ContextSource>();
+        for (String bindUrl : bindUrls) {
+            ContextSource server = newServerContextSource(bindUrl);
+            if (p.getProperty("POOL_MAX_ACTIVE") != null) {
+                server = newPooledContextSource(p, server);
+            }
+            servers.put(bindUrl, server);
+        }
+        FailoverContextSource failoverContextSource = new FailoverContextSource(servers);
+        if (p.getProperty("LOAD_BALANCING") != null) {
+            failoverContextSource.setStrategy(FailoverContextSource.Strategy.valueOf(
+                    p.getProperty("LOAD_BALANCING").trim().toUpperCase(Locale.ENGLISH)));
+        }
+        if (p.getProperty("WRITE_TO_PRIMARY") != null) {
+            failoverContextSource.setWriteToPrimary(Boolean.parseBoolean(p.getProperty("WRITE_TO_PRIMARY").trim()));
+        }
+        if (p.getProperty("PROBE_INTERVAL_MILLIS") != null) {
+            failoverContextSource.setProbeIntervalMillis(Long.parseLong(p.getProperty("PROBE_INTERVAL_MILLIS")));
+        }
+        return failoverContextSource;
+    }
+
+    /**
+     * @param bindUrl the server to connect to, or null for the one(s) in BIND_URL
+     */
+    private ContextSource newServerContextSource(final String bindUrl) {
+        return new ContextSource() {
+            @Override
+            public DirContext getReadOnlyContext() {
+                return newContext(bindUrl);
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return newContext(bindUrl);
+            }
+
+            @Override
+            public DirContext getContext(String principal, String credentials) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private PooledContextSource newPooledContextSource(Properties p, ContextSource target) {
+        // The pool manages the connections, so don't let JNDI pool them as well.
+        env.remove("com.sun.jndi.ldap.connect.pool");
+        PooledContextSource pooledContextSource = new PooledContextSource(target);
+        pooledContextSource.setMaxActive(Integer.parseInt(p.getProperty("POOL_MAX_ACTIVE")));
+        pooledContextSource.setMaxIdle(Integer.parseInt(p.getProperty("POOL_MAX_ACTIVE")));
+        if (p.getProperty("POOL_MIN_IDLE") != null) {
+            pooledContextSource.setMinIdle(Integer.parseInt(p.getProperty("POOL_MIN_IDLE")));
+        }
+        if (p.getProperty("POOL_MAX_WAIT_MILLIS") != null) {
+            pooledContextSource.setMaxWaitMillis(Long.parseLong(p.getProperty("POOL_MAX_WAIT_MILLIS")));
+        }
+        if (p.getProperty("POOL_IDLE_EVICTION_MILLIS") != null) {
+            long idleEvictionMillis = Long.parseLong(p.getProperty("POOL_IDLE_EVICTION_MILLIS"));
+            pooledContextSource.setMinEvictableIdleTimeMillis(idleEvictionMillis);
+            pooledContextSource.setTimeBetweenEvictionRunsMillis(idleEvictionMillis);
+        }
+        return pooledContextSource;
+    }
+
+    /**
+     * Makes the service take its contexts from the given source, typically a {@link PooledContextSource}, instead of
+     * creating a new context for every operation. The contexts are closed after each operation as usual.
+     *
+     * @param contextSource the context source
+     */
+    public void setContextSource(ContextSource contextSource) {
+        this.contextSource = contextSource;
+    }
+
+    public ContextSource getContextSource() {
+        return contextSource;
+    }
+
+    /**
+     * Gives contexts that bypass the pools and have no read timeout, for connections that are kept open and may wait
+     * long for a response, like the search of a {@link PersistentSearchChangeFeed}.
+     *
+     * @return a context source creating a new connection to the server(s) in BIND_URL for every context
+     */
+    public ContextSource getDedicatedContextSource() {
+        if (env == null) {
+            throw new IllegalStateException("Only a service created from properties can create contexts.");
+        }
+        final Hashtable dedicatedEnv = (Hashtable) env.clone();
+        dedicatedEnv.remove("com.sun.jndi.ldap.connect.pool");
+        dedicatedEnv.remove("com.sun.jndi.ldap.read.timeout");
+        return new ContextSource() {
+            @Override
+            public DirContext getReadOnlyContext() {
+                try {
+                    return new InitialLdapContext(dedicatedEnv, null);
+                } catch (Exception e) {
+                    throw new RuntimeException("Bind failed", e);
+                }
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return getReadOnlyContext();
+            }
+
+            @Override
+            public DirContext getContext(String principal, String credentials) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Sets the time to wait for a connection to the directory. Applies to the contexts created from now on.
+     *
+     * @param connectTimeoutMillis the timeout in milliseconds, zero to wait as long as the network does
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        setTimeout("com.sun.jndi.ldap.connect.timeout", connectTimeoutMillis);
+    }
+
+    /**
+     * Sets the time to wait for each response from the directory, after which the operation fails. Applies to the
+     * contexts created from now on.
+     *
+     * @param readTimeoutMillis the timeout in milliseconds, zero to wait forever
+     */
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        setTimeout("com.sun.jndi.ldap.read.timeout", readTimeoutMillis);
+    }
+
+    private void setTimeout(String property, int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException(property + " must not be negative: " + millis);
+        }
+        if (env == null) {
+            throw new IllegalStateException("Timeouts can only be set on a service created from properties.");
+        }
+        if (millis == 0) {
+            env.remove(property);
+        } else {
+            env.put(property, String.valueOf(millis));
+        }
+    }
+
+    /**
+     * Sets the time limit of searches whose query has none, which makes the directory end the search in time.
+     *
+     * @param searchTimeLimitMillis the time limit in milliseconds, zero (the default) for none
+     */
+    public void setSearchTimeLimitMillis(int searchTimeLimitMillis) {
+        if (searchTimeLimitMillis < 0) {
+            throw new IllegalArgumentException("searchTimeLimitMillis must not be negative: " + searchTimeLimitMillis);
+        }
+        this.searchTimeLimitMillis = searchTimeLimitMillis;
+    }
+
+    /**
+     * Records the searches made by this service in the given log, which logs the slow ones and adds up the time per
+     * filter. No log (the default) records nothing.
+     *
+     * @param slowQueryLog the log, or null
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
     private DirContext getBaseContext() {
+        if (contextSource != null) {
+            return contextSource.getReadWriteContext();
+        }
+        return newContext(null);
+    }
+
+    private DirContext getReadOnlyContext() {
+        if (contextSource != null) {
+            return contextSource.getReadOnlyContext();
+        }
+        return newContext(null);
+    }
+
+    private DirContext newContext(String bindUrl) {
+        Hashtable contextEnv = env;
+        if (bindUrl != null) {
+            contextEnv = (Hashtable) env.clone();
+            contextEnv.put(Context.PROVIDER_URL, bindUrl);
+        }
         try {
-            return new InitialDirContext(env);
+            return new InitialLdapContext(contextEnv, null);
         } catch (Exception e) {
             throw new RuntimeException("Bind failed", e);
         }
     }
 
     public LdapUser[] search(String base, String filter, String[] attributes) {
-        this._defaultReadAttrs = attributes;
-        return this.search(base, filter);
+        return search(new LdapQuery(base, filter).withAttributes(attributes));
     }
 
     public LdapUser[] search(String base, String filter) {
-        if (base == null) {
-            base = this.base;
-        }
-        DirContext dirContext = null;
-        try {
-            SearchControls sc = new SearchControls();
-            sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            if (_defaultReadAttrs.length > 0) {
-                sc.setReturningAttributes(_defaultReadAttrs);
+        return search(base, filter, _defaultReadAttrs);
+    }
+
+    /**
+     * Searches the directory as described by the query. Unlike the other search methods the query carries its own
+     * attributes, scope and limits, so nothing is shared between concurrent callers.
+     *
+     * @param query the query
+     * @return the users found
+     */
+    public LdapUser[] search(LdapQuery query) {
+        final List<LdapUser> entries = new ArrayList<LdapUser>();
+        search(query, new LdapUserCallbackHandler() {
+            @Override
+            public void handleLdapUser(LdapUser ldapUser) {
+                entries.add(ldapUser);
             }
-            dirContext = getBaseContext();
-            NamingEnumeration results = dirContext.search(base, filter, sc);
-            List entries = new ArrayList();
+        });
+        return entries.toArray(new LdapUser[entries.size()]);
+    }
 
-            int j = 0;
-            while (results.hasMoreElements()) {
-                SearchResult oneRes = (SearchResult) results.nextElement();
-                entries.add(new LdapUserEntryImpl(base, oneRes));
+    /**
+     * Searches the directory and hands each user to the handler as it arrives. See
+     * {@link #search(LdapQuery, LdapUserCallbackHandler)}.
+     *
+     * @param base       the search base, or null for the configured base
+     * @param filter     the search filter
+     * @param attributes the attributes to return, or null or empty for all
+     * @param handler    receives every user found
+     * @return the number of users found
+     */
+    public int search(String base, String filter, String[] attributes, LdapUserCallbackHandler handler) {
+        return search(new LdapQuery(base, filter).withAttributes(attributes), handler);
+    }
+
+    /**
+     * Searches the directory and hands each user to the handler as it arrives. The search is made in pages of
+     * {@link #setPageSize(int) pageSize} entries using the paged results control, so only the current page is held
+     * in memory regardless of the size of the result. Directories that don't support paging return the whole result
+     * in one page. When the query has a count limit the search ends as soon as that many users have been found.
+     *
+     * @param query   the query
+     * @param handler receives every user found
+     * @return the number of users found
+     */
+    public int search(LdapQuery query, final LdapUserCallbackHandler handler) {
+        return searchPaged(query, new SearchResultHandler() {
+            @Override
+            public void handle(String base, SearchResult result) {
+                handler.handleLdapUser(new LdapUserEntryImpl(base, result));
             }
-            LdapUser[] res = new LdapUser[entries.size()];
-            for (int i = 0; i < res.length; i++) {
-                res[i] = (LdapUser) entries.get(i);
+        });
+    }
+
+    /**
+     * Searches the directory like {@link #search(LdapQuery, LdapUserCallbackHandler)}, but hands each entry to the
+     * handler with the attributes as the directory returned them, without building an {@link LdapUser}. Used to
+     * stream a subtree of any size to an {@link LdifWriter} or a {@link CsvEntryWriter}:
+     * <code>
+     * LdifWriter ldif = new LdifWriter(out);
+     * ldapService.searchEntries(new LdapQuery("ou=anv,O=VGR", "(objectclass=*)"), ldif);
+     * ldif.flush();
+     * </code>
+     * An exception thrown by the handler ends the search and is thrown as the cause of a RuntimeException.
+     *
+     * @param query   the query
+     * @param handler receives every entry found
+     * @return the number of entries found
+     */
+    public int searchEntries(LdapQuery query, final LdapEntryCallbackHandler handler) {
+        return searchPaged(query, new SearchResultHandler() {
+            @Override
+            public void handle(String base, SearchResult result) throws NamingException, IOException {
+                String dn = result.getName();
+                if (result.isRelative() && base != null && base.length() != 0) {
+                    dn = dn.length() == 0 ? base : dn + "," + base;
+                }
+                handler.handleEntry(dn, result.getAttributes());
             }
-            return res;
+        });
+    }
+
+    private int searchPaged(LdapQuery query, SearchResultHandler handler) {
+        String base = query.getBase() != null ? query.getBase() : this.base;
+        if (searchTimeLimitMillis > 0 && query.getTimeLimit() == 0) {
+            query = query.withTimeLimit(searchTimeLimitMillis);
+        }
+        SlowQueryLog log = slowQueryLog;
+        if (log == null) {
+            return searchPaged(base, query, handler);
+        }
+        long start = System.nanoTime();
+        int count = -1;
+        try {
+            count = searchPaged(base, query, handler);
+            return count;
+        } finally {
+            String[] attributes = query.getAttributes();
+            log.record("search", base, query.getFilter(), count, attributes != null ? attributes.length : -1, start);
+        }
+    }
+
+    private int searchPaged(String base, LdapQuery query, SearchResultHandler handler) {
+        String filter = query.getFilter();
+        long countLimit = query.getCountLimit();
+        DirContext dirContext = null;
+        try {
+            SearchControls sc = query.toSearchControls();
+            dirContext = getReadOnlyContext();
+
+            int count = 0;
+            byte[] cookie = null;
+            do {
+                if (dirContext instanceof LdapContext) {
+                    int size = countLimit > 0 ? (int) Math.min(pageSize, countLimit - count) : pageSize;
+                    ((LdapContext) dirContext).setRequestControls(new Control[]{
+                            new PagedResultsControl(size, cookie, Control.NONCRITICAL)});
+                }
+                NamingEnumeration<SearchResult> results = dirContext.search(base, filter, sc);
+                try {
+                    while ((countLimit == 0 || count < countLimit) && results.hasMore()) {
+                        handler.handle(base, results.next());
+                        count++;
+                    }
+                } catch (SizeLimitExceededException e) {
+                    if (countLimit > 0 && count >= countLimit) {
+                        // The directory stopped at the count limit; everything up to it has been handled.
+                        return count;
+                    }
+                    // A limit of the server cut the search short: the result is incomplete.
+                    throw e;
+                } finally {
+                    results.close();
+                }
+                if (countLimit > 0 && count >= countLimit) {
+                    return count;
+                }
+                cookie = nextPageCookie(dirContext);
+            } while (cookie != null && cookie.length > 0);
 
+            return count;
         } catch (Exception e) {
             throw new RuntimeException("Search failed: base=" + base + " filter=" + filter, e);
         } finally {
@@ -136,44 +493,66 @@ public class LdapServiceImpl implements LdapService {
         }
     }
 
-    public LdapUser getLdapUser(String base, String filter, String[] attributes) {
-        this._defaultReadAttrs = attributes;
-        return this.getLdapUser(base, filter);
+    private static byte[] nextPageCookie(DirContext dirContext) throws NamingException {
+        if (!(dirContext instanceof LdapContext)) {
+            return null;
+        }
+        Control[] controls = ((LdapContext) dirContext).getResponseControls();
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+        return null;
     }
 
-    public LdapUser getLdapUser(String base, String filter) {
-        if (base == null) {
-            base = this.base;
+    /**
+     * Sets the number of entries the directory returns per page in searches.
+     *
+     * @param pageSize the page size, at least one
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1: " + pageSize);
         }
-        DirContext dirContext = null;
-        try {
-            SearchControls sc = new SearchControls();
-            sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            if (_defaultReadAttrs.length > 0) {
-                sc.setReturningAttributes(_defaultReadAttrs);
-            }
-            dirContext = getBaseContext();
-            NamingEnumeration results = dirContext.search(base, filter, sc);
-            List entries = new ArrayList();
+        this.pageSize = pageSize;
+    }
 
-            while (results.hasMore()) {
-                SearchResult oneRes = (SearchResult) results.next();
-                entries.add(new LdapUserEntryImpl(base, oneRes));
-            }
+    public LdapUser getLdapUser(String base, String filter, String[] attributes) {
+        return getLdapUser(new LdapQuery(base, filter).withAttributes(attributes));
+    }
 
-            if (entries.size() > 1) {
-                throw new RuntimeException("Entry is not unique: " + filter);
-            } else if (entries.size() == 0) {
-                return null;
-            }
+    public LdapUser getLdapUser(String base, String filter) {
+        return getLdapUser(base, filter, _defaultReadAttrs);
+    }
 
-            return (LdapUser) entries.get(0);
+    /**
+     * Finds the single user matching the query. At most two entries are read from the directory, which is enough to
+     * tell that the match is not unique.
+     *
+     * @param query the query
+     * @return the user, or null if none matched
+     * @throws RuntimeException if more than one user matched
+     */
+    public LdapUser getLdapUser(LdapQuery query) {
+        final int uniquenessLimit = 2;
+        final List<LdapUser> entries = new ArrayList<LdapUser>(uniquenessLimit);
+        search(query.withCountLimit(uniquenessLimit), new LdapUserCallbackHandler() {
+            @Override
+            public void handleLdapUser(LdapUser ldapUser) {
+                entries.add(ldapUser);
+            }
+        });
 
-        } catch (Exception e) {
-            throw new RuntimeException("Search failed: base=" + base + " filter=" + filter, e);
-        } finally {
-            closeContext(dirContext);
+        if (entries.size() > 1) {
+            throw new RuntimeException("Entry is not unique: " + query.getFilter());
+        } else if (entries.size() == 0) {
+            return null;
         }
+
+        return entries.get(0);
     }
 
     /*
@@ -260,6 +639,203 @@ public class LdapServiceImpl implements LdapService {
 
     }
 
+    /**
+     * Sets the number of connections a batch is written over, see {@link #write(List)}.
+     *
+     * @param batchParallelism the number of operations written at the same time, at least one; defaults to 4
+     */
+    public synchronized void setBatchParallelism(int batchParallelism) {
+        if (batchParallelism < 1) {
+            throw new IllegalArgumentException("batchParallelism must be at least 1: " + batchParallelism);
+        }
+        this.batchParallelism = batchParallelism;
+        // The pool is sized by the parallelism, so the next batch creates a new one.
+        shutdown();
+    }
+
+    /**
+     * Stops the threads that batches are written with, see {@link #write(List)}. Batches being written are finished;
+     * a batch written afterwards starts new threads.
+     */
+    public synchronized void shutdown() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+    }
+
+    /**
+     * Writes a batch of adds, modifies and deletes. The operations are shared by {@link #setBatchParallelism(int)
+     * batchParallelism} workers, the calling thread being one of them, and each worker writes its share over one
+     * context that it keeps for the whole batch, instead of taking a new one per operation. Operations on the same
+     * entry should therefore not be in the same batch, as their order is not kept. The other workers run on threads
+     * that are kept for the next batches, until {@link #shutdown()}.
+     * <p/>
+     * An operation that fails does not stop the batch; its result tells what went wrong. A worker whose connection is
+     * lost takes a new context for its next operation.
+     *
+     * @param operations the operations
+     * @return the result of each operation, in the order of the operations
+     */
+    public List<LdapWriteResult> write(final List<LdapWriteOperation> operations) {
+        final LdapWriteResult[] results = new LdapWriteResult[operations.size()];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                writeBatch(operations, results, next);
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        synchronized (this) {
+            int workers = Math.min(batchParallelism, operations.size());
+            for (int i = 1; i < workers; i++) {
+                futures.add(getBatchExecutor().submit(writer));
+            }
+        }
+        try {
+            writer.run();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing a batch", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Batch write failed", e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            batchExecutor = Executors.newFixedThreadPool(batchParallelism - 1, new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ldap-batch-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return batchExecutor;
+    }
+
+    private void writeBatch(List<LdapWriteOperation> operations, LdapWriteResult[] results, AtomicInteger next) {
+        DirContext dirContext = null;
+        try {
+            for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                LdapWriteOperation operation = operations.get(i);
+                try {
+                    if (dirContext == null) {
+                        dirContext = getBaseContext();
+                    }
+                    operation.execute(dirContext);
+                    results[i] = new LdapWriteResult(operation, LdapWriteResult.Status.SUCCESS, null);
+                } catch (Exception e) {
+                    results[i] = new LdapWriteResult(operation, isConflict(e) ? LdapWriteResult.Status.CONFLICT
+                            : LdapWriteResult.Status.FAILURE, e);
+                    if (e instanceof CommunicationException || e instanceof ServiceUnavailableException) {
+                        closeContext(dirContext);
+                        dirContext = null;
+                    }
+                }
+            }
+        } finally {
+            closeContext(dirContext);
+        }
+    }
+
+    /**
+     * Imports LDIF, see {@link LdifReader}, by writing its records in batches of the given size with
+     * {@link #write(List)}, so that only one batch is held in memory. A batch is ended early when a record concerns
+     * an entry, or the parent or a child of an entry, that is already in it, so that e.g. an organizational unit is
+     * added before the users in it. Records that could not be written are logged.
+     *
+     * @param in        the LDIF, in UTF-8; it is not closed
+     * @param batchSize the number of records written per batch
+     * @return the number of records with each result
+     * @throws IOException if the stream could not be read or is not valid LDIF; the records before the invalid one
+     *                     have been written
+     */
+    public Map<LdapWriteResult.Status, Integer> importLdif(InputStream in, int batchSize) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+        }
+        Map<LdapWriteResult.Status, Integer> counts = new EnumMap<LdapWriteResult.Status, Integer>(
+                LdapWriteResult.Status.class);
+        for (LdapWriteResult.Status status : LdapWriteResult.Status.values()) {
+            counts.put(status, 0);
+        }
+        LdifReader reader = new LdifReader(in);
+        List<LdapWriteOperation> batch = new ArrayList<LdapWriteOperation>(batchSize);
+        Set<String> names = new HashSet<String>();
+        Set<String> parents = new HashSet<String>();
+        try {
+            for (LdapWriteOperation operation = reader.read(); operation != null; operation = reader.read()) {
+                String name = operation.getDn().toLowerCase(Locale.ENGLISH);
+                String parent = parentDn(name);
+                if (batch.size() == batchSize || names.contains(name) || names.contains(parent)
+                        || parents.contains(name)) {
+                    writeAndCount(batch, counts);
+                    batch.clear();
+                    names.clear();
+                    parents.clear();
+                }
+                batch.add(operation);
+                names.add(name);
+                parents.add(parent);
+            }
+        } catch (IOException e) {
+            writeAndCount(batch, counts);
+            throw e;
+        }
+        writeAndCount(batch, counts);
+        return counts;
+    }
+
+    private void writeAndCount(List<LdapWriteOperation> batch, Map<LdapWriteResult.Status, Integer> counts) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (LdapWriteResult result : write(batch)) {
+            counts.put(result.getStatus(), counts.get(result.getStatus()) + 1);
+            if (result.getStatus() == LdapWriteResult.Status.FAILURE) {
+                LOGGER.warn("Import failed: " + result);
+            } else if (result.getStatus() == LdapWriteResult.Status.CONFLICT) {
+                LOGGER.debug("Import conflict: " + result);
+            }
+        }
+    }
+
+    /**
+     * @return the dn without its first rdn, or an empty string for a dn of a single rdn
+     */
+    private static String parentDn(String dn) {
+        for (int i = 0; i < dn.length(); i++) {
+            char c = dn.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == ',') {
+                return dn.substring(i + 1).trim();
+            }
+        }
+        return "";
+    }
+
+    private static boolean isConflict(Exception e) {
+        return e instanceof NameAlreadyBoundException || e instanceof NameNotFoundException
+                || e instanceof AttributeInUseException || e instanceof NoSuchAttributeException
+                || e instanceof ContextNotEmptyException;
+    }
+
     @Override
     public LdapUser getLdapUserByUid(String base, String uid) {
         throw new UnsupportedOperationException("Not implemented in LdapServiceImpl, use simple ldap service");
@@ -317,6 +893,11 @@ public class LdapServiceImpl implements LdapService {
 
     }
 
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        throw new UnsupportedOperationException("Not implemented in LdapServiceImpl, use simple ldap service");
+    }
+
     private void closeContext(DirContext dirContext) {
         if (dirContext != null) {
             try {
@@ -326,4 +907,10 @@ public class LdapServiceImpl implements LdapService {
             }
         }
     }
+
+    private interface SearchResultHandler {
+
+        void handle(String base, SearchResult result) throws NamingException, IOException;
+
+    }
 }
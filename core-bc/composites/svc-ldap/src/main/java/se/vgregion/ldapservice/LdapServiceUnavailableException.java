@@ -0,0 +1,16 @@
+package se.vgregion.ldapservice;
+
+/**
+ * Thrown instead of calling the directory when it is considered down, or when a call did not finish in time. See
+ * {@link CircuitBreakerLdapService}.
+ */
+public class LdapServiceUnavailableException extends RuntimeException {
+
+    public LdapServiceUnavailableException(String message) {
+        super(message);
+    }
+
+    public LdapServiceUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
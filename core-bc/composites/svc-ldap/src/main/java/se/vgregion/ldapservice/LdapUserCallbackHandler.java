@@ -0,0 +1,18 @@
+package se.vgregion.ldapservice;
+
+/**
+ * Receives the users of a streaming search one at a time, as they arrive from the directory. Used to process large
+ * search results without holding the whole result in memory.
+ *
+ * @see LdapServiceImpl#search(String, String, String[], LdapUserCallbackHandler)
+ */
+public interface LdapUserCallbackHandler {
+
+    /**
+     * Called once for every user in the search result.
+     *
+     * @param ldapUser the user
+     */
+    void handleLdapUser(LdapUser ldapUser);
+
+}
@@ -0,0 +1,149 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import java.util.Map;
+
+/**
+ * One add, modify or delete in a batch written with {@link LdapServiceImpl#write(java.util.List)}. The attributes
+ * and modifications are given in the JNDI types the directory takes, so nothing is converted when the batch is
+ * written. Instances are immutable, apart from the attributes passed in, which must not be changed afterwards.
+ */
+public final class LdapWriteOperation {
+
+    /**
+     * The kind of operation.
+     */
+    public enum Type {
+        ADD, MODIFY, DELETE
+    }
+
+    private final Type type;
+    private final String dn;
+    private final Attributes attributes;
+    private final ModificationItem[] modifications;
+
+    private LdapWriteOperation(Type type, String dn, Attributes attributes, ModificationItem[] modifications) {
+        if (dn == null) {
+            throw new IllegalArgumentException("dn must not be null");
+        }
+        this.type = type;
+        this.dn = dn;
+        this.attributes = attributes;
+        this.modifications = modifications;
+    }
+
+    /**
+     * @param dn         the name of the entry to create
+     * @param attributes the attributes of the entry, including its object classes
+     * @return the operation
+     */
+    public static LdapWriteOperation add(String dn, Attributes attributes) {
+        return new LdapWriteOperation(Type.ADD, dn, attributes, null);
+    }
+
+    /**
+     * Creates an add of an entry with single valued attributes and the given object classes.
+     *
+     * @param dn            the name of the entry to create
+     * @param attributes    the attribute values by attribute name
+     * @param objectClasses the object classes of the entry
+     * @return the operation
+     */
+    public static LdapWriteOperation add(String dn, Map<String, String> attributes, String... objectClasses) {
+        Attributes attrs = new BasicAttributes(true);
+        if (objectClasses.length > 0) {
+            BasicAttribute objectClass = new BasicAttribute("objectclass");
+            for (String value : objectClasses) {
+                objectClass.add(value);
+            }
+            attrs.put(objectClass);
+        }
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            attrs.put(entry.getKey(), entry.getValue());
+        }
+        return add(dn, attrs);
+    }
+
+    /**
+     * @param dn            the name of the entry to modify
+     * @param modifications the modifications, applied in order
+     * @return the operation
+     */
+    public static LdapWriteOperation modify(String dn, ModificationItem... modifications) {
+        return new LdapWriteOperation(Type.MODIFY, dn, null, modifications.clone());
+    }
+
+    /**
+     * Creates a modification that replaces the values of the given attributes, like
+     * {@link LdapServiceImpl#modifyLdapUser(LdapUser, java.util.HashMap)}.
+     *
+     * @param dn         the name of the entry to modify
+     * @param attributes the new attribute values by attribute name
+     * @return the operation
+     */
+    public static LdapWriteOperation replace(String dn, Map<String, String> attributes) {
+        ModificationItem[] modifications = new ModificationItem[attributes.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            modifications[i++] = new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                    new BasicAttribute(entry.getKey(), entry.getValue()));
+        }
+        return new LdapWriteOperation(Type.MODIFY, dn, null, modifications);
+    }
+
+    /**
+     * @param dn the name of the entry to delete
+     * @return the operation
+     */
+    public static LdapWriteOperation delete(String dn) {
+        return new LdapWriteOperation(Type.DELETE, dn, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getDn() {
+        return dn;
+    }
+
+    /**
+     * @return the attributes of an add, otherwise null
+     */
+    public Attributes getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the modifications of a modify, otherwise null
+     */
+    public ModificationItem[] getModifications() {
+        return modifications == null ? null : modifications.clone();
+    }
+
+    void execute(DirContext dirContext) throws NamingException {
+        switch (type) {
+            case ADD:
+                DirContext created = dirContext.createSubcontext(dn, attributes);
+                if (created != null) {
+                    created.close();
+                }
+                break;
+            case MODIFY:
+                dirContext.modifyAttributes(dn, modifications);
+                break;
+            default:
+                dirContext.destroySubcontext(dn);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + dn;
+    }
+}
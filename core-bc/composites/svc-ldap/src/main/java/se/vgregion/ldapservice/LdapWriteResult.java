@@ -0,0 +1,56 @@
+package se.vgregion.ldapservice;
+
+/**
+ * The outcome of one {@link LdapWriteOperation} in a batch written with {@link LdapServiceImpl#write(java.util.List)}.
+ */
+public final class LdapWriteResult {
+
+    /**
+     * How the operation went.
+     */
+    public enum Status {
+        /** The directory made the change. */
+        SUCCESS,
+        /**
+         * The change does not fit the current state of the entry, e.g. an add of an entry that exists or a modify of
+         * one that doesn't. Trying again will not help.
+         */
+        CONFLICT,
+        /** Anything else, e.g. a lost connection or a schema violation. */
+        FAILURE
+    }
+
+    private final LdapWriteOperation operation;
+    private final Status status;
+    private final Exception exception;
+
+    LdapWriteResult(LdapWriteOperation operation, Status status, Exception exception) {
+        this.operation = operation;
+        this.status = status;
+        this.exception = exception;
+    }
+
+    public LdapWriteOperation getOperation() {
+        return operation;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    /**
+     * @return why the operation did not succeed, or null if it did
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return operation + ": " + status + (exception != null ? " (" + exception.getMessage() + ")" : "");
+    }
+}
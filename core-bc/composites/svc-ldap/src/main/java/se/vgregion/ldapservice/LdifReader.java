@@ -0,0 +1,268 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads LDIF (RFC 2849) from a stream one record at a time, turning every record into an {@link LdapWriteOperation}.
+ * Records without a changetype and records with <code>changetype: add</code> become adds; <code>modify</code> and
+ * <code>delete</code> records become modifies and deletes. Renames and values given by url are not supported.
+ * <p/>
+ * Values of attributes with the <code>;binary</code> option, which {@link LdifWriter} adds to binary values, are
+ * passed on as bytes, under the name without the option. Other base64 encoded values are passed on as text if they
+ * are valid UTF-8, otherwise as bytes. Only the current record is held in memory, so files of any size can be fed to
+ * {@link LdapServiceImpl#importLdif(InputStream, int)}.
+ */
+public class LdifReader implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String BINARY_OPTION = ";binary";
+
+    private final BufferedReader reader;
+    private boolean started;
+    private String pendingLine;
+    private int lineNumber;
+    private int recordLineNumber;
+
+    /**
+     * @param in the stream to read, in UTF-8; it is buffered, so it need not be
+     */
+    public LdifReader(InputStream in) {
+        this.reader = new BufferedReader(new InputStreamReader(in, UTF8), BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the operation of the record, or null at the end of the stream
+     * @throws IOException if the stream could not be read or is not valid LDIF
+     */
+    public LdapWriteOperation read() throws IOException {
+        List<String> lines = readRecord();
+        if (!started) {
+            started = true;
+            if (!lines.isEmpty() && name(lines.get(0)).equalsIgnoreCase("version")) {
+                lines.remove(0);
+                if (lines.isEmpty()) {
+                    lines = readRecord();
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+
+        String dn = valueAsText(lines.get(0), "dn");
+        int next = 1;
+        while (next < lines.size() && name(lines.get(next)).equalsIgnoreCase("control")) {
+            next++;
+        }
+        String changeType = "add";
+        boolean explicitChangeType = false;
+        if (next < lines.size() && name(lines.get(next)).equalsIgnoreCase("changetype")) {
+            changeType = valueAsText(lines.get(next), "changetype").toLowerCase(Locale.ENGLISH);
+            explicitChangeType = true;
+            next++;
+        }
+
+        if ("add".equals(changeType)) {
+            Attributes attributes = new BasicAttributes(true);
+            for (String line : lines.subList(next, lines.size())) {
+                String name = name(line);
+                Attribute attribute = attributes.get(withoutBinaryOption(name));
+                if (attribute == null) {
+                    attribute = new BasicAttribute(withoutBinaryOption(name));
+                    attributes.put(attribute);
+                }
+                attribute.add(value(line, name));
+            }
+            if (!explicitChangeType && attributes.size() == 0) {
+                throw error("Entry without attributes: " + dn);
+            }
+            return LdapWriteOperation.add(dn, attributes);
+        } else if ("delete".equals(changeType)) {
+            return LdapWriteOperation.delete(dn);
+        } else if ("modify".equals(changeType)) {
+            return LdapWriteOperation.modify(dn, modifications(lines.subList(next, lines.size())));
+        }
+        throw error("Unsupported changetype: " + changeType);
+    }
+
+    private ModificationItem[] modifications(List<String> lines) throws IOException {
+        List<ModificationItem> modifications = new ArrayList<ModificationItem>();
+        int i = 0;
+        while (i < lines.size()) {
+            String line = lines.get(i++);
+            String op = name(line).toLowerCase(Locale.ENGLISH);
+            int modOp;
+            if ("add".equals(op)) {
+                modOp = DirContext.ADD_ATTRIBUTE;
+            } else if ("replace".equals(op)) {
+                modOp = DirContext.REPLACE_ATTRIBUTE;
+            } else if ("delete".equals(op)) {
+                modOp = DirContext.REMOVE_ATTRIBUTE;
+            } else {
+                throw error("Expected add, replace or delete: " + line);
+            }
+            String attributeName = valueAsText(line, op);
+            Attribute attribute = new BasicAttribute(withoutBinaryOption(attributeName));
+            while (i < lines.size() && !"-".equals(lines.get(i))) {
+                String valueLine = lines.get(i++);
+                if (!name(valueLine).equalsIgnoreCase(attributeName)) {
+                    throw error("Expected a value of " + attributeName + ": " + valueLine);
+                }
+                attribute.add(value(valueLine, attributeName));
+            }
+            i++;
+            modifications.add(new ModificationItem(modOp, attribute));
+        }
+        return modifications.toArray(new ModificationItem[modifications.size()]);
+    }
+
+    /**
+     * Reads the unfolded lines of the next record, skipping comments and the blank lines before it.
+     */
+    private List<String> readRecord() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = nextLine()) != null) {
+            if (line.length() == 0) {
+                if (lines.isEmpty()) {
+                    continue;
+                }
+                break;
+            }
+            if (lines.isEmpty()) {
+                recordLineNumber = lineNumber;
+            }
+            if (line.charAt(0) != '#') {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the next line with its continuation lines appended, or null at the end of the stream
+     */
+    private String nextLine() throws IOException {
+        String line = pendingLine != null ? pendingLine : readPhysicalLine();
+        pendingLine = null;
+        if (line == null || line.length() == 0) {
+            return line;
+        }
+        StringBuilder unfolded = null;
+        String continuation;
+        while ((continuation = readPhysicalLine()) != null && continuation.startsWith(" ")) {
+            if (unfolded == null) {
+                unfolded = new StringBuilder(line);
+            }
+            unfolded.append(continuation, 1, continuation.length());
+        }
+        pendingLine = continuation;
+        return unfolded != null ? unfolded.toString() : line;
+    }
+
+    private String readPhysicalLine() throws IOException {
+        String line = reader.readLine();
+        if (line != null) {
+            lineNumber++;
+        }
+        return line;
+    }
+
+    private String name(String line) throws IOException {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw error("Expected name: value: " + line);
+        }
+        return line.substring(0, colon);
+    }
+
+    private String valueAsText(String line, String expectedName) throws IOException {
+        Object value = value(line, expectedName);
+        if (!(value instanceof String)) {
+            throw error("Expected text: " + line);
+        }
+        return (String) value;
+    }
+
+    /**
+     * @return the value of the line as a String, or as a byte[] if it is base64 encoded binary data
+     */
+    private Object value(String line, String expectedName) throws IOException {
+        String name = name(line);
+        if (!name.equalsIgnoreCase(expectedName)) {
+            throw error("Expected " + expectedName + ": " + line);
+        }
+        int start = name.length() + 1;
+        char type = start < line.length() ? line.charAt(start) : ' ';
+        if (type == '<') {
+            throw error("Values given by url are not supported: " + line);
+        }
+        if (type != ':') {
+            return trimStart(line, start);
+        }
+        byte[] bytes;
+        try {
+            bytes = DatatypeConverter.parseBase64Binary(trimStart(line, start + 1));
+        } catch (IllegalArgumentException e) {
+            throw error("Invalid base64 value: " + line);
+        }
+        if (isBinary(name)) {
+            return bytes;
+        }
+        try {
+            return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            return bytes;
+        }
+    }
+
+    private static boolean isBinary(String name) {
+        return name.toLowerCase(Locale.ENGLISH).endsWith(BINARY_OPTION);
+    }
+
+    /**
+     * @return the name without the <code>;binary</code> option, which many directories reject on other attributes
+     *         than certificates
+     */
+    private static String withoutBinaryOption(String name) {
+        return isBinary(name) ? name.substring(0, name.length() - BINARY_OPTION.length()) : name;
+    }
+
+    private static String trimStart(String line, int start) {
+        while (start < line.length() && line.charAt(start) == ' ') {
+            start++;
+        }
+        return line.substring(start);
+    }
+
+    private IOException error(String message) {
+        return new IOException("LDIF record at line " + recordLineNumber + ": " + message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,158 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Writes entries as LDIF (RFC 2849) to a stream as they are handed to it, so that a search of any size can be
+ * exported with only the current entry in memory:
+ * <code>
+ * LdifWriter ldif = new LdifWriter(out);
+ * ldapService.searchEntries(new LdapQuery(base, "(objectclass=*)"), ldif);
+ * ldif.flush();
+ * </code>
+ * Values that are not plain ASCII text, and binary values, are written base64 encoded. Binary values are written with
+ * the <code>;binary</code> option, e.g. <code>jpegPhoto;binary:: ...</code>, so that they are read back as bytes even
+ * when they happen to be valid UTF-8. Long lines are folded at 76 characters. The output can be read back with
+ * {@link LdifReader}.
+ */
+public class LdifWriter implements LdapEntryCallbackHandler, Closeable, Flushable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int LINE_LENGTH = 76;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String BINARY_OPTION = ";binary";
+
+    private final Writer writer;
+    private boolean versionWritten;
+    private int column;
+
+    /**
+     * @param out the stream to write to; it is buffered, so it need not be
+     */
+    public LdifWriter(OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE);
+    }
+
+    @Override
+    public void handleEntry(String dn, Attributes attributes) throws NamingException, IOException {
+        write(dn, attributes);
+    }
+
+    /**
+     * Writes an entry.
+     *
+     * @param dn         the full name of the entry
+     * @param attributes the attributes of the entry
+     * @throws NamingException if the attributes could not be read
+     * @throws IOException     if the stream could not be written
+     */
+    public void write(String dn, Attributes attributes) throws NamingException, IOException {
+        if (!versionWritten) {
+            writer.write("version: 1\n");
+            versionWritten = true;
+        }
+        writer.write('\n');
+        writeLine("dn", dn);
+        NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        try {
+            while (all.hasMore()) {
+                Attribute attribute = all.next();
+                NamingEnumeration<?> values = attribute.getAll();
+                try {
+                    while (values.hasMore()) {
+                        writeLine(attribute.getID(), values.next());
+                    }
+                } finally {
+                    values.close();
+                }
+            }
+        } finally {
+            all.close();
+        }
+    }
+
+    private void writeLine(String name, Object value) throws IOException {
+        column = 0;
+        append(name);
+        if (value instanceof byte[]) {
+            if (!name.toLowerCase(Locale.ENGLISH).endsWith(BINARY_OPTION)) {
+                append(BINARY_OPTION);
+            }
+            append(":: ");
+            append(DatatypeConverter.printBase64Binary((byte[]) value));
+        } else {
+            String text = value != null ? value.toString() : "";
+            if (isSafe(text)) {
+                append(": ");
+                append(text);
+            } else {
+                append(":: ");
+                append(DatatypeConverter.printBase64Binary(text.getBytes(UTF8)));
+            }
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Appends ASCII text to the current line, folding it when it gets too long.
+     */
+    private void append(String text) throws IOException {
+        int offset = 0;
+        while (offset < text.length()) {
+            if (column == LINE_LENGTH) {
+                writer.write("\n ");
+                column = 1;
+            }
+            int length = Math.min(text.length() - offset, LINE_LENGTH - column);
+            writer.write(text, offset, length);
+            offset += length;
+            column += length;
+        }
+    }
+
+    /**
+     * @return whether the value can be written as is, i.e. is a SAFE-STRING of RFC 2849 that doesn't end with a space
+     */
+    private static boolean isSafe(String value) {
+        if (value.length() == 0) {
+            return true;
+        }
+        char first = value.charAt(0);
+        if (first == ' ' || first == ':' || first == '<' || value.charAt(value.length() - 1) == ' ') {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c == '\n' || c == '\r' || c > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
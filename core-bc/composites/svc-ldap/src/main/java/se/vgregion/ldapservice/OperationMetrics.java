@@ -0,0 +1,276 @@
+package se.vgregion.ldapservice;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call count, error count and latency histogram of one operation. Recording a call is a few atomic increments, without
+ * locks or allocation; the percentiles are only computed when read.
+ * <p/>
+ * Reading the clock twice per call costs more than the counting, so latencies are only measured once
+ * {@link #setTiming(boolean) timing} is switched on, which {@link #snapshot()} and the MBean registration of the owning
+ * service do. Until then a call costs a single atomic increment.
+ * <p/>
+ * The histogram has four buckets per power of two microseconds, so a percentile is reported with an error of at most
+ * a quarter of its value.
+ */
+public final class OperationMetrics implements OperationMetricsMBean {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = SUB_BUCKETS * Long.SIZE;
+    private static final double P50 = 0.5;
+    private static final double P95 = 0.95;
+    private static final double P99 = 0.99;
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final String name;
+    private final AtomicLong untimedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private volatile boolean timing;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the operation
+     */
+    public OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return whether latencies are measured
+     */
+    public boolean isTiming() {
+        return timing;
+    }
+
+    /**
+     * @param timing whether to measure latencies, or only count calls
+     */
+    public void setTiming(boolean timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * Starts timing a call; pass the result to {@link #record(long, boolean)} when the call is done.
+     *
+     * @return the start time, or a marker telling that the call is not timed
+     */
+    public long start() {
+        return timing ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param start  what {@link #start()} returned when the call started
+     * @param failed whether the call threw an exception
+     */
+    public void record(long start, boolean failed) {
+        if (failed) {
+            errorCount.incrementAndGet();
+        }
+        if (start == NOT_TIMED) {
+            untimedCount.incrementAndGet();
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        if (micros < 0) {
+            micros = 0;
+        }
+        totalMicros.addAndGet(micros);
+        buckets.incrementAndGet(bucket(micros));
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - 1) + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls in the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+        return lowerBound + (1L << (exponent - 2)) - 1;
+    }
+
+    @Override
+    public long getCount() {
+        long count = untimedCount.get();
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @return the mean latency of the timed calls
+     */
+    @Override
+    public long getMeanMicros() {
+        long timed = getCount() - untimedCount.get();
+        return timed <= 0 ? 0 : totalMicros.get() / timed;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return getPercentileMicros(P50);
+    }
+
+    @Override
+    public long getP95Micros() {
+        return getPercentileMicros(P95);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return getPercentileMicros(P99);
+    }
+
+    /**
+     * @param fraction the percentile as a fraction, e.g. 0.99
+     * @return the latency that this fraction of the timed calls did not exceed, or zero if there were none
+     */
+    public long getPercentileMicros(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    @Override
+    public void reset() {
+        untimedCount.set(0);
+        errorCount.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    /**
+     * Reads the current values together, and switches timing on for the following calls.
+     *
+     * @return the current values
+     */
+    public Snapshot snapshot() {
+        timing = true;
+        return new Snapshot(this);
+    }
+
+    @Override
+    public String toString() {
+        return new Snapshot(this).toString();
+    }
+
+    /**
+     * The values of an {@link OperationMetrics} at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final String name;
+        private final long count;
+        private final long errorCount;
+        private final long meanMicros;
+        private final long maxMicros;
+        private final long p50Micros;
+        private final long p95Micros;
+        private final long p99Micros;
+
+        Snapshot(OperationMetrics metrics) {
+            this.name = metrics.getName();
+            this.count = metrics.getCount();
+            this.errorCount = metrics.getErrorCount();
+            this.meanMicros = metrics.getMeanMicros();
+            this.maxMicros = metrics.getMaxMicros();
+            this.p50Micros = metrics.getP50Micros();
+            this.p95Micros = metrics.getP95Micros();
+            this.p99Micros = metrics.getP99Micros();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP95Micros() {
+            return p95Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return name + "[count=" + count + ", errors=" + errorCount + ", mean=" + meanMicros + "us, p50="
+                    + p50Micros + "us, p95=" + p95Micros + "us, p99=" + p99Micros + "us, max=" + maxMicros + "us]";
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package se.vgregion.ldapservice;
+
+/**
+ * JMX view of an {@link OperationMetrics}. Times are in microseconds.
+ */
+public interface OperationMetricsMBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getMeanMicros();
+
+    long getMaxMicros();
+
+    long getP50Micros();
+
+    long getP95Micros();
+
+    long getP99Micros();
+
+    boolean isTiming();
+
+    void setTiming(boolean timing);
+
+    void reset();
+}
@@ -0,0 +1,346 @@
+package se.vgregion.ldapservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+
+/**
+ * Reports the entries that change in a part of the directory to a {@link LdapChangeListener} as soon as the directory
+ * tells, by keeping a search open that the directory answers with each change:
+ * <ul>
+ * <li>{@link Mode#PERSISTENT_SEARCH}, the persistent search control supported by OpenLDAP, 389/Red Hat Directory
+ * Server, OpenDJ and most other directories. Adds, deletes, modifications and renames are reported with their type.</li>
+ * <li>{@link Mode#AD_NOTIFICATION}, the change notification control of Active Directory. Adds, modifications and
+ * renames are reported, as {@link LdapChange.Type#UNKNOWN}, but not deletes. Active Directory only accepts the filter
+ * <code>(objectClass=*)</code>, and a subtree scope only at the root of a naming context.</li>
+ * </ul>
+ * The search runs on a background thread over a connection of its own, which should be unpooled and without a read
+ * timeout, see {@link LdapServiceImpl#getDedicatedContextSource()}. When the connection is lost the feed connects
+ * again after the {@link #setRetryDelayMillis(long) retry delay}; the changes made in between are not reported, so
+ * combine it with a {@link PollingChangeFeed} with a long interval, or a short cache time to live, to catch up.
+ */
+public class PersistentSearchChangeFeed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentSearchChangeFeed.class);
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 10000;
+    static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+    static final String ENTRY_CHANGE_NOTIFICATION_OID = "2.16.840.1.113730.3.4.7";
+    static final String AD_NOTIFICATION_OID = "1.2.840.113556.1.4.528";
+    // SEQUENCE { changeTypes INTEGER 15 (all), changesOnly BOOLEAN TRUE, returnECs BOOLEAN TRUE }
+    private static final byte[] PERSISTENT_SEARCH_VALUE = {
+            0x30, 0x09, 0x02, 0x01, 0x0F, 0x01, 0x01, (byte) 0xFF, 0x01, 0x01, (byte) 0xFF};
+    private static final int BER_SEQUENCE = 0x30;
+    private static final int BER_ENUMERATED = 0x0A;
+    private static final int BER_OCTET_STRING = 0x04;
+    private static final int CHANGE_ADD = 1;
+    private static final int CHANGE_DELETE = 2;
+    private static final int CHANGE_MODIFY = 4;
+    private static final int CHANGE_MODDN = 8;
+
+    /**
+     * The control that makes the directory report the changes.
+     */
+    public enum Mode {
+        /** The persistent search control, with entry change notifications. */
+        PERSISTENT_SEARCH,
+        /** The change notification control of Active Directory. */
+        AD_NOTIFICATION
+    }
+
+    private final ContextSource contextSource;
+    private final String base;
+    private final String filter;
+    private final LdapChangeListener listener;
+    private volatile Mode mode = Mode.PERSISTENT_SEARCH;
+    private volatile int scope = SearchControls.SUBTREE_SCOPE;
+    private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private volatile boolean running;
+    private volatile boolean listening;
+    private Thread thread;
+    private DirContext dirContext;
+    private NamingEnumeration<SearchResult> results;
+
+    /**
+     * Constructor.
+     *
+     * @param contextSource gives the connection the search is kept open on
+     * @param base          the base of the entries to watch
+     * @param filter        the filter of the entries to watch
+     * @param listener      receives the changes
+     */
+    public PersistentSearchChangeFeed(ContextSource contextSource, String base, String filter,
+                                      LdapChangeListener listener) {
+        this.contextSource = contextSource;
+        this.base = base == null ? "" : base;
+        this.filter = filter;
+        this.listener = listener;
+    }
+
+    /**
+     * @param mode the control to use; defaults to {@link Mode#PERSISTENT_SEARCH}. Applies from the next connection.
+     */
+    public void setMode(Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * @param scope the search scope, one of the {@link SearchControls} scopes; defaults to subtree
+     */
+    public void setScope(int scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @param retryDelayMillis the time to wait before connecting again after the connection was lost; defaults to
+     *                         10000
+     */
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        if (retryDelayMillis < 1) {
+            throw new IllegalArgumentException("retryDelayMillis must be at least 1: " + retryDelayMillis);
+        }
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * @return whether the search is open, i.e. changes are being reported
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Opens the search on a background thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listenUntilStopped();
+            }
+        }, "ldap-persistent-search");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes the search and stops the background thread.
+     */
+    public void stop() {
+        Thread stopped;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopped = thread;
+            thread = null;
+            closeConnection();
+        }
+        stopped.interrupt();
+    }
+
+    private void listenUntilStopped() {
+        while (running) {
+            try {
+                listen();
+            } catch (NamingException e) {
+                lost(e);
+            } catch (RuntimeException e) {
+                lost(e);
+            } finally {
+                listening = false;
+                synchronized (this) {
+                    closeConnection();
+                }
+            }
+            if (running) {
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void lost(Exception e) {
+        if (running) {
+            LOGGER.warn("Lost the change notifications of " + base + " " + filter + ", changes made until connected"
+                    + " again are not reported: " + e.getMessage(), e);
+        }
+    }
+
+    private void listen() throws NamingException {
+        DirContext context = contextSource.getReadOnlyContext();
+        synchronized (this) {
+            dirContext = context;
+            if (!running) {
+                return;
+            }
+        }
+        if (!(context instanceof LdapContext)) {
+            throw new IllegalStateException("Change notifications need an LdapContext, got " + context.getClass());
+        }
+        Control control = mode == Mode.AD_NOTIFICATION
+                ? new BasicControl(AD_NOTIFICATION_OID, true, null)
+                : new BasicControl(PERSISTENT_SEARCH_OID, true, PERSISTENT_SEARCH_VALUE);
+        ((LdapContext) context).setRequestControls(new Control[]{control});
+
+        SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(scope);
+        NamingEnumeration<SearchResult> enumeration = context.search(base, filter, searchControls);
+        synchronized (this) {
+            results = enumeration;
+        }
+        listening = true;
+        LOGGER.info("Listening for changes of " + base + " " + filter + ".");
+        while (enumeration.hasMore()) {
+            SearchResult result = enumeration.next();
+            String dn = dnOf(result);
+            LdapChange change = toChange(result, dn, new CompactLdapUser(dn, result.getAttributes()));
+            try {
+                listener.entriesChanged(Collections.singletonList(change));
+            } catch (RuntimeException e) {
+                LOGGER.warn("The listener failed on " + change + ".", e);
+            }
+        }
+    }
+
+    private String dnOf(SearchResult result) {
+        try {
+            return result.getNameInNamespace();
+        } catch (UnsupportedOperationException e) {
+            String name = result.getName();
+            if (name.length() == 0) {
+                return base;
+            }
+            return base.length() == 0 ? name : name + "," + base;
+        }
+    }
+
+    private static LdapChange toChange(SearchResult result, String dn, LdapUser entry) {
+        if (result instanceof HasControls) {
+            try {
+                Control[] controls = ((HasControls) result).getControls();
+                if (controls != null) {
+                    for (Control control : controls) {
+                        if (ENTRY_CHANGE_NOTIFICATION_OID.equals(control.getID())) {
+                            return parseEntryChange(control.getEncodedValue(), dn, entry);
+                        }
+                    }
+                }
+            } catch (NamingException e) {
+                LOGGER.debug("Could not read the controls of " + dn + ".", e);
+            }
+        }
+        return new LdapChange(LdapChange.Type.UNKNOWN, dn, null, entry);
+    }
+
+    /**
+     * Reads the value of an entry change notification control:
+     * <code>SEQUENCE { changeType ENUMERATED, previousDN LDAPDN OPTIONAL, changeNumber INTEGER OPTIONAL }</code>.
+     *
+     * @param value the BER encoded value
+     * @param dn    the name of the entry
+     * @param entry the entry as returned with the notification
+     * @return the change; {@link LdapChange.Type#UNKNOWN} if the value can't be read
+     */
+    static LdapChange parseEntryChange(byte[] value, String dn, LdapUser entry) {
+        LdapChange.Type type = LdapChange.Type.UNKNOWN;
+        String previousDn = null;
+        try {
+            int[] pos = {0};
+            if (value != null && readTag(value, pos) == BER_SEQUENCE) {
+                int end = readLength(value, pos) + pos[0];
+                if (readTag(value, pos) == BER_ENUMERATED) {
+                    int length = readLength(value, pos);
+                    int changeType = 0;
+                    for (int i = 0; i < length; i++) {
+                        changeType = (changeType << 8) | (value[pos[0]++] & 0xFF);
+                    }
+                    type = toType(changeType);
+                }
+                if (pos[0] < end && readTag(value, pos) == BER_OCTET_STRING) {
+                    int length = readLength(value, pos);
+                    previousDn = new String(value, pos[0], length, "UTF-8");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            LOGGER.debug("Malformed entry change notification for " + dn + ".");
+        } catch (StringIndexOutOfBoundsException e) {
+            LOGGER.debug("Malformed entry change notification for " + dn + ".");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new LdapChange(type, dn, previousDn, type == LdapChange.Type.DELETE ? null : entry);
+    }
+
+    private static LdapChange.Type toType(int changeType) {
+        switch (changeType) {
+            case CHANGE_ADD:
+                return LdapChange.Type.ADD;
+            case CHANGE_DELETE:
+                return LdapChange.Type.DELETE;
+            case CHANGE_MODIFY:
+                return LdapChange.Type.MODIFY;
+            case CHANGE_MODDN:
+                return LdapChange.Type.RENAME;
+            default:
+                return LdapChange.Type.UNKNOWN;
+        }
+    }
+
+    private static int readTag(byte[] value, int[] pos) {
+        return value[pos[0]++] & 0xFF;
+    }
+
+    private static int readLength(byte[] value, int[] pos) {
+        int length = value[pos[0]++] & 0xFF;
+        if ((length & 0x80) != 0) {
+            int octets = length & 0x7F;
+            length = 0;
+            for (int i = 0; i < octets; i++) {
+                length = (length << 8) | (value[pos[0]++] & 0xFF);
+            }
+        }
+        return length;
+    }
+
+    private void closeConnection() {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (NamingException e) {
+                LOGGER.debug("Could not close the search.", e);
+            }
+            results = null;
+        }
+        if (dirContext != null) {
+            try {
+                dirContext.close();
+            } catch (NamingException e) {
+                LOGGER.debug("Could not close the connection.", e);
+            }
+            dirContext = null;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package se.vgregion.ldapservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the entries that change in a part of the directory to a {@link LdapChangeListener}, by periodically
+ * searching for the entries whose change attribute is above the highest value seen so far, like
+ * {@link ReplicatingLdapServiceWrapper} does: <code>uSNChanged</code> on Active Directory or
+ * <code>modifyTimestamp</code> on other directories. Works with any directory and any {@link LdapService}, but only
+ * notices changes at the next poll, and never notices deletes; use a {@link PersistentSearchChangeFeed} where the
+ * directory supports it, and this feed with a longer interval as a fallback for what it misses while reconnecting.
+ * <p/>
+ * The first poll only finds out where the directory is: the highest committed update sequence number of the domain
+ * controller for <code>uSNChanged</code>, which needs an {@link LdapServiceImpl}, or the current time less the
+ * {@link #setClockSkewSeconds(long) clock skew} for timestamps. Changes are reported from then on.
+ * <p/>
+ * Example, keeping a cache up to date:
+ * <code>
+ * PollingChangeFeed feed = new PollingChangeFeed(ldapService, "ou=anv,o=VGR", "(objectclass=person)",
+ * ReplicatingLdapServiceWrapper.USN_CHANGED, cachingWrapper);
+ * feed.start();
+ * </code>
+ */
+public class PollingChangeFeed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PollingChangeFeed.class);
+    private static final long DEFAULT_POLL_INTERVAL_SECONDS = 30;
+    private static final long DEFAULT_CLOCK_SKEW_SECONDS = 60;
+    private static final String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+
+    private final LdapService ldapService;
+    private final String base;
+    private final String filter;
+    private final String changeAttribute;
+    private final LdapChangeListener listener;
+    private volatile ScheduledExecutorService scheduler;
+    private long pollIntervalSeconds = DEFAULT_POLL_INTERVAL_SECONDS;
+    private long clockSkewSeconds = DEFAULT_CLOCK_SKEW_SECONDS;
+    private volatile String highWaterMark;
+    // Timestamps are compared with >=, so the entries changed at the high-water mark are found again by the next poll.
+    private Set<String> reportedAtHighWaterMark = new HashSet<String>();
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                poll();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Polling for directory changes failed, trying again at the next poll: " + e.getMessage(),
+                        e);
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService     the service to search with; an {@link LdapServiceImpl} streams the changes page by page
+     * @param base            the base of the entries to watch
+     * @param filter          the filter of the entries to watch
+     * @param changeAttribute the attribute that increases whenever an entry changes, e.g.
+     *                        {@link ReplicatingLdapServiceWrapper#USN_CHANGED} or
+     *                        {@link ReplicatingLdapServiceWrapper#MODIFY_TIMESTAMP}
+     * @param listener        receives the changes
+     */
+    public PollingChangeFeed(LdapService ldapService, String base, String filter, String changeAttribute,
+                             LdapChangeListener listener) {
+        this.ldapService = ldapService;
+        this.base = base == null ? "" : base;
+        this.filter = filter;
+        this.changeAttribute = changeAttribute;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the time between polls. Defaults to 30 seconds. Has no effect once started.
+     *
+     * @param pollIntervalSeconds the interval in seconds
+     */
+    public void setPollIntervalSeconds(long pollIntervalSeconds) {
+        if (pollIntervalSeconds < 1) {
+            throw new IllegalArgumentException("pollIntervalSeconds must be at least 1: " + pollIntervalSeconds);
+        }
+        this.pollIntervalSeconds = pollIntervalSeconds;
+    }
+
+    /**
+     * Sets how far the clock of the directory may be behind ours, when the change attribute is a timestamp. The first
+     * poll reports the changes made this long before it. Defaults to 60 seconds.
+     *
+     * @param clockSkewSeconds the skew in seconds
+     */
+    public void setClockSkewSeconds(long clockSkewSeconds) {
+        if (clockSkewSeconds < 0) {
+            throw new IllegalArgumentException("clockSkewSeconds must not be negative: " + clockSkewSeconds);
+        }
+        this.clockSkewSeconds = clockSkewSeconds;
+    }
+
+    /**
+     * @return the highest value of the change attribute seen so far, or null before the first poll
+     */
+    public String getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Makes the feed report the changes after the given value of the change attribute, e.g. one saved by a previous
+     * run, instead of the changes after the first poll.
+     *
+     * @param highWaterMark the value
+     */
+    public synchronized void setHighWaterMark(String highWaterMark) {
+        this.highWaterMark = highWaterMark;
+        reportedAtHighWaterMark = new HashSet<String>();
+    }
+
+    /**
+     * Starts polling in the background.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ldap-change-poll");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(pollTask, 0, pollIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops polling.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Searches for the entries changed since the last poll and reports them to the listener. Called periodically
+     * once started.
+     *
+     * @return the number of changes reported
+     */
+    public synchronized int poll() {
+        if (highWaterMark == null) {
+            setHighWaterMark(initialHighWaterMark());
+            LOGGER.debug("Watching " + base + " " + filter + " for changes after " + changeAttribute + " "
+                    + highWaterMark);
+            return 0;
+        }
+
+        String searchFilter = ReplicatingLdapServiceWrapper.deltaFilter(filter, changeAttribute, highWaterMark);
+        List<LdapChange> changes = new ArrayList<LdapChange>();
+        String newHighWaterMark = highWaterMark;
+        Set<String> reportedAtNewHighWaterMark = new HashSet<String>();
+        for (LdapUser entry : fetch(searchFilter)) {
+            String change = entry.getAttributeValue(changeAttribute);
+            String dn = entry.getDn().toLowerCase(Locale.ENGLISH);
+            if (change != null && change.equals(highWaterMark) && reportedAtHighWaterMark.contains(dn)) {
+                continue;
+            }
+            changes.add(new LdapChange(LdapChange.Type.UNKNOWN, entry.getDn(), null, entry));
+            if (change == null) {
+                continue;
+            }
+            int compared = LdapFilterMatcher.compare(change, newHighWaterMark);
+            if (compared > 0) {
+                newHighWaterMark = change;
+                reportedAtNewHighWaterMark.clear();
+            }
+            if (compared >= 0) {
+                reportedAtNewHighWaterMark.add(dn);
+            }
+        }
+        if (!newHighWaterMark.equals(highWaterMark)) {
+            highWaterMark = newHighWaterMark;
+            reportedAtHighWaterMark = reportedAtNewHighWaterMark;
+        } else {
+            reportedAtHighWaterMark.addAll(reportedAtNewHighWaterMark);
+        }
+
+        if (!changes.isEmpty()) {
+            LOGGER.debug("Found " + changes.size() + " changed entries in " + base + " " + filter);
+            listener.entriesChanged(changes);
+        }
+        return changes.size();
+    }
+
+    private List<LdapUser> fetch(String searchFilter) {
+        String[] attributes = {"*", changeAttribute};
+        if (ldapService instanceof LdapServiceImpl) {
+            final List<LdapUser> found = new ArrayList<LdapUser>();
+            ((LdapServiceImpl) ldapService).searchEntries(new LdapQuery(base, searchFilter).withAttributes(attributes),
+                    new LdapEntryCallbackHandler() {
+                        @Override
+                        public void handleEntry(String dn, Attributes entryAttributes) {
+                            found.add(new CompactLdapUser(dn, entryAttributes));
+                        }
+                    });
+            return found;
+        }
+        LdapUser[] found;
+        try {
+            found = ldapService.search(base, searchFilter, attributes);
+        } catch (UnsupportedOperationException e) {
+            found = ldapService.search(base, searchFilter);
+        }
+        List<LdapUser> list = new ArrayList<LdapUser>(found.length);
+        for (LdapUser ldapUser : found) {
+            list.add(ldapUser);
+        }
+        return list;
+    }
+
+    private String initialHighWaterMark() {
+        if (ReplicatingLdapServiceWrapper.USN_CHANGED.equalsIgnoreCase(changeAttribute)) {
+            if (!(ldapService instanceof LdapServiceImpl)) {
+                throw new IllegalStateException("Reading the highest committed USN needs an LdapServiceImpl; set the"
+                        + " high-water mark instead.");
+            }
+            final String[] usn = new String[1];
+            ((LdapServiceImpl) ldapService).searchEntries(new LdapQuery("", "(objectclass=*)")
+                    .withScope(SearchControls.OBJECT_SCOPE).withAttributes(HIGHEST_COMMITTED_USN),
+                    new LdapEntryCallbackHandler() {
+                        @Override
+                        public void handleEntry(String dn, Attributes attributes) throws NamingException {
+                            Attribute attribute = attributes.get(HIGHEST_COMMITTED_USN);
+                            usn[0] = attribute != null ? String.valueOf(attribute.get()) : null;
+                        }
+                    });
+            if (usn[0] == null) {
+                throw new IllegalStateException("The directory did not return " + HIGHEST_COMMITTED_USN + ".");
+            }
+            return usn[0];
+        }
+        SimpleDateFormat generalizedTime = new SimpleDateFormat("yyyyMMddHHmmss'Z'", Locale.ENGLISH);
+        generalizedTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return generalizedTime.format(new Date(System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(clockSkewSeconds)));
+    }
+}
@@ -0,0 +1,275 @@
+package se.vgregion.ldapservice;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ContextSource} that keeps a pool of contexts created by another (non-pooling) context source. Closing a
+ * context taken from this source returns it to the pool instead of closing the connection.
+ * <p/>
+ * The pool size, idle eviction, validation on borrow and the time to wait for a free context are configurable, and
+ * the current number of active, idle and waiting borrowers can be read for monitoring. Contexts are validated with a
+ * base scope search on the root DSE, like Spring LDAP's <code>DefaultDirContextValidator</code>.
+ * <p/>
+ * Example:
+ * <code>
+ * <bean id="ldapContextSource" class="se.vgregion.ldapservice.PooledContextSource">
+ * <constructor-arg ref="contextSourceTarget" />
+ * <property name="maxActive" value="16" />
+ * <property name="maxWaitMillis" value="2000" />
+ * </bean>
+ * </code>
+ * Use it with {@link SimpleLdapServiceImpl#SimpleLdapServiceImpl(ContextSource)} or
+ * {@link LdapServiceImpl#setContextSource(ContextSource)}.
+ */
+public class PooledContextSource implements ContextSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledContextSource.class);
+    private static final int DEFAULT_MAX_ACTIVE = 8;
+    private static final long DEFAULT_MAX_WAIT_MILLIS = 5000;
+
+    private final ContextSource target;
+    private final GenericObjectPool pool;
+    private final AtomicInteger numWaiters = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param target creates the contexts to pool; it should not pool them itself
+     */
+    public PooledContextSource(ContextSource target) {
+        this.target = target;
+        this.pool = new GenericObjectPool(new DirContextFactory());
+        pool.setMaxActive(DEFAULT_MAX_ACTIVE);
+        pool.setMaxIdle(DEFAULT_MAX_ACTIVE);
+        pool.setMaxWait(DEFAULT_MAX_WAIT_MILLIS);
+        pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        pool.setTestOnBorrow(true);
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return borrow();
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return borrow();
+    }
+
+    /**
+     * Authenticating contexts are bound to a specific user and are not pooled.
+     */
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        return target.getContext(principal, credentials);
+    }
+
+    private DirContext borrow() {
+        numWaiters.incrementAndGet();
+        DirContext dirContext;
+        try {
+            dirContext = (DirContext) pool.borrowObject();
+        } catch (NoSuchElementException e) {
+            throw new LdapUserRetrievalException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new LdapUserRetrievalException(e);
+        } finally {
+            numWaiters.decrementAndGet();
+        }
+
+        Class<?> contextInterface = dirContext instanceof LdapContext ? LdapContext.class : DirContext.class;
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{contextInterface},
+                new PooledContextHandler(dirContext));
+    }
+
+    /**
+     * Closes the pool and all idle contexts in it.
+     */
+    public void close() {
+        try {
+            pool.close();
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of contexts currently borrowed from the pool
+     */
+    public int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    /**
+     * @return the number of contexts currently idle in the pool
+     */
+    public int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    /**
+     * @return the number of threads currently waiting for a context
+     */
+    public int getNumWaiters() {
+        return numWaiters.get();
+    }
+
+    /**
+     * @param maxActive the maximum number of contexts borrowed at the same time
+     */
+    public void setMaxActive(int maxActive) {
+        pool.setMaxActive(maxActive);
+    }
+
+    /**
+     * @param maxIdle the maximum number of idle contexts kept in the pool
+     */
+    public void setMaxIdle(int maxIdle) {
+        pool.setMaxIdle(maxIdle);
+    }
+
+    /**
+     * @param minIdle the number of idle contexts the evictor tries to keep in the pool
+     */
+    public void setMinIdle(int minIdle) {
+        pool.setMinIdle(minIdle);
+    }
+
+    /**
+     * @param maxWaitMillis how long a borrower waits for a free context before failing
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        pool.setMaxWait(maxWaitMillis);
+    }
+
+    /**
+     * @param testOnBorrow whether contexts are validated before they are handed out
+     */
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        pool.setTestOnBorrow(testOnBorrow);
+    }
+
+    /**
+     * @param testWhileIdle whether the evictor validates idle contexts
+     */
+    public void setTestWhileIdle(boolean testWhileIdle) {
+        pool.setTestWhileIdle(testWhileIdle);
+    }
+
+    /**
+     * @param timeBetweenEvictionRunsMillis how often the evictor runs; zero or less disables it
+     */
+    public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+        pool.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRunsMillis);
+    }
+
+    /**
+     * @param minEvictableIdleTimeMillis how long a context may be idle before the evictor closes it
+     */
+    public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
+        pool.setMinEvictableIdleTimeMillis(minEvictableIdleTimeMillis);
+    }
+
+    private class DirContextFactory extends BasePoolableObjectFactory {
+
+        @Override
+        public Object makeObject() throws Exception {
+            return target.getReadWriteContext();
+        }
+
+        @Override
+        public void destroyObject(Object obj) throws Exception {
+            ((DirContext) obj).close();
+        }
+
+        @Override
+        public boolean validateObject(Object obj) {
+            try {
+                SearchControls sc = new SearchControls();
+                sc.setSearchScope(SearchControls.OBJECT_SCOPE);
+                sc.setCountLimit(1);
+                sc.setReturningAttributes(new String[]{"objectclass"});
+                NamingEnumeration<?> results = ((DirContext) obj).search("", "(objectclass=*)", sc);
+                results.close();
+                return true;
+            } catch (Exception e) {
+                LOGGER.warn("Pooled ldap context failed validation: " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public void passivateObject(Object obj) throws Exception {
+            // Request controls, e.g. paging, must not leak to the next borrower.
+            if (obj instanceof LdapContext) {
+                ((LdapContext) obj).setRequestControls(null);
+            }
+        }
+    }
+
+    private class PooledContextHandler implements InvocationHandler {
+
+        private final DirContext dirContext;
+        private boolean closed;
+        private boolean broken;
+
+        PooledContextHandler(DirContext dirContext) {
+            this.dirContext = dirContext;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("close".equals(method.getName()) && method.getParameterTypes().length == 0) {
+                release();
+                return null;
+            }
+            if (closed) {
+                throw new IllegalStateException("The context has been returned to the pool");
+            }
+            try {
+                return method.invoke(dirContext, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        private synchronized void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (broken) {
+                    pool.invalidateObject(dirContext);
+                } else {
+                    pool.returnObject(dirContext);
+                }
+            } catch (Exception e) {
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+}
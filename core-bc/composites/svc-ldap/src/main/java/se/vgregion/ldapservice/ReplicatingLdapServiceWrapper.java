@@ -0,0 +1,687 @@
+package se.vgregion.ldapservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps an {@link LdapService} and keeps a copy of a part of the directory in memory, from which reads are served.
+ * <p/>
+ * The replica holds the entries below a base that match a filter, with a given set of attributes. {@link #start()}
+ * loads them all with one paged search and then pulls changes periodically: each pull fetches only the entries
+ * whose change attribute is above the highest value seen so far (the high-water mark), i.e. <code>uSNChanged</code>
+ * on Active Directory or <code>modifyTimestamp</code> on other directories. Deleted entries never show up in such a
+ * pull, nor do entries that no longer match the filter, so the whole replica is reloaded now and then as well,
+ * daily by default.
+ * <p/>
+ * Searches are answered from the replica when their base is within the replicated base, their filter only uses
+ * replicated attributes and is the replica filter or an and that contains it, e.g.
+ * <code>(&(objectClass=person)(cn=A*))</code> with a replica of <code>(objectClass=person)</code>, and they name the
+ * attributes to return, all of them replicated; anything else, and everything before the first load has completed,
+ * goes to the wrapped service. Reads that don't name their attributes,
+ * i.e. the two argument searches and the uid lookups, get all attributes from the wrapped service, so they only use
+ * the replica when {@link #setServeReadsWithoutAttributes(boolean) serveReadsWithoutAttributes} is set. Users looked
+ * up by uid, or searched for with a filter that requires a uid, that are not in the replica are looked up in the
+ * wrapped service too, since they may have been added after the last pull. Writes go to the wrapped service, and the entries they
+ * touch are dropped from the replica until the next pull, which is started right away.
+ * <p/>
+ * With a {@link #setStateFile(File) state file} the replica and its high-water mark are saved after every pull that
+ * changed something, and read back by {@link #start()}, so that a restart only pulls the changes made meanwhile.
+ * <p/>
+ * Note that <code>uSNChanged</code> is local to each domain controller, so the wrapped service must keep talking to
+ * the same one; use <code>modifyTimestamp</code> (or <code>whenChanged</code>) when it doesn't, at the price of
+ * refetching the entries changed in the last second of each pull.
+ *
+ * @see LdapFilterMatcher
+ */
+public class ReplicatingLdapServiceWrapper implements LdapService {
+
+    public static final String USN_CHANGED = "uSNChanged";
+    public static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicatingLdapServiceWrapper.class);
+    private static final long DEFAULT_SYNC_INTERVAL_SECONDS = 60;
+    private static final long DEFAULT_FULL_RELOAD_INTERVAL_SECONDS = 24 * 60 * 60; // 24 hours
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private final LdapService ldapService;
+    private final String base;
+    private final String filter;
+    // The replica filter as a matcher, or null if the matcher can't parse it and no search can be answered.
+    private final LdapFilterMatcher filterMatcher;
+    private final String uidAttribute;
+    private final String changeAttribute;
+    private final String[] attributes;
+    // The replicated attribute names keyed by their lower case form, since attribute names are case insensitive.
+    private final Map<String, String> attributeNames;
+    private volatile Store store;
+    private volatile ScheduledExecutorService scheduler;
+    private File stateFile;
+    private long syncIntervalSeconds = DEFAULT_SYNC_INTERVAL_SECONDS;
+    private long fullReloadIntervalSeconds = DEFAULT_FULL_RELOAD_INTERVAL_SECONDS;
+    private volatile boolean serveReadsWithoutAttributes;
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sync();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Replica sync failed, serving the replica as it is: " + e.getMessage(), e);
+            }
+        }
+    };
+
+    /**
+     * Constructor for a replica of an Active Directory, with users identified by <code>uid</code> and changes
+     * tracked by <code>uSNChanged</code>.
+     *
+     * @param ldapService the service to replicate and to fall back on
+     * @param base        the base of the replicated entries
+     * @param filter      the filter of the replicated entries
+     * @param attributes  the replicated attributes
+     */
+    public ReplicatingLdapServiceWrapper(LdapService ldapService, String base, String filter, String[] attributes) {
+        this(ldapService, base, filter, "uid", USN_CHANGED, attributes);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ldapService     the service to replicate and to fall back on
+     * @param base            the base of the replicated entries
+     * @param filter          the filter of the replicated entries
+     * @param uidAttribute    the attribute looked up by {@link #getLdapUserByUid(String)}
+     * @param changeAttribute the attribute that increases whenever an entry changes, e.g. {@link #USN_CHANGED} or
+     *                        {@link #MODIFY_TIMESTAMP}
+     * @param attributes      the replicated attributes; the uid and change attributes and objectClass are always
+     *                        replicated
+     */
+    public ReplicatingLdapServiceWrapper(LdapService ldapService, String base, String filter, String uidAttribute,
+                                         String changeAttribute, String[] attributes) {
+        this.ldapService = ldapService;
+        this.base = base == null ? "" : base;
+        this.filter = filter;
+        this.uidAttribute = uidAttribute;
+        this.changeAttribute = changeAttribute;
+
+        Map<String, String> names = new LinkedHashMap<String, String>();
+        List<String> all = new ArrayList<String>(Arrays.asList(attributes));
+        all.addAll(Arrays.asList(uidAttribute, changeAttribute, "objectClass"));
+        for (String attribute : all) {
+            String key = attribute.toLowerCase(Locale.ENGLISH);
+            if (!names.containsKey(key)) {
+                names.put(key, attribute);
+            }
+        }
+        this.attributeNames = Collections.unmodifiableMap(names);
+        this.attributes = names.values().toArray(new String[names.size()]);
+        this.filterMatcher = parseReplicaFilter(filter, attributeNames);
+    }
+
+    private static LdapFilterMatcher parseReplicaFilter(String filter, Map<String, String> attributeNames) {
+        try {
+            return LdapFilterMatcher.parse(filter, attributeNames);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Replica filter not supported by the matcher, all searches use the directory: " + filter);
+            return null;
+        }
+    }
+
+    /**
+     * Sets the file the replica is saved to and restored from. None by default, and then every start makes a full
+     * load.
+     *
+     * @param stateFile the file
+     */
+    public void setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Sets the time between pulls of changes. Defaults to one minute. Has no effect once started.
+     *
+     * @param syncIntervalSeconds the interval in seconds
+     */
+    public void setSyncIntervalSeconds(long syncIntervalSeconds) {
+        if (syncIntervalSeconds < 1) {
+            throw new IllegalArgumentException("syncIntervalSeconds must be at least 1: " + syncIntervalSeconds);
+        }
+        this.syncIntervalSeconds = syncIntervalSeconds;
+    }
+
+    /**
+     * Sets the time between full reloads, which is what removes deleted entries from the replica. Defaults to 24
+     * hours.
+     *
+     * @param fullReloadIntervalSeconds the interval in seconds
+     */
+    public void setFullReloadIntervalSeconds(long fullReloadIntervalSeconds) {
+        if (fullReloadIntervalSeconds < 1) {
+            throw new IllegalArgumentException("fullReloadIntervalSeconds must be at least 1: "
+                    + fullReloadIntervalSeconds);
+        }
+        this.fullReloadIntervalSeconds = fullReloadIntervalSeconds;
+    }
+
+    /**
+     * Lets the replica answer the reads that don't name the attributes to return, i.e.
+     * {@link #search(String, String)}, {@link #getLdapUser(String, String)} and the uid lookups, with the replicated
+     * attributes only. Set it when the callers need no other attributes. Off by default, and then those reads go to
+     * the wrapped service, which returns all attributes.
+     *
+     * @param serveReadsWithoutAttributes whether to answer reads without attributes from the replica
+     */
+    public void setServeReadsWithoutAttributes(boolean serveReadsWithoutAttributes) {
+        this.serveReadsWithoutAttributes = serveReadsWithoutAttributes;
+    }
+
+    /**
+     * Restores the replica from the state file, if there is one made with the same base, filter and attributes, and
+     * starts pulling changes (or the initial full load) in the background.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (store == null) {
+            store = restore();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ldap-replica-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(syncTask, 0, syncIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops pulling changes and saves the replica to the state file. The replica keeps serving reads.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        save(store);
+    }
+
+    /**
+     * Brings the replica up to date: a full load the first time and when the full reload interval has passed, and a
+     * pull of the entries changed since the last one otherwise. Called periodically once started.
+     *
+     * @return the number of entries fetched
+     */
+    public synchronized int sync() {
+        Store current = store;
+        long now = currentTimeMillis();
+        int count;
+        if (current == null || current.highWaterMark == null
+                || now - current.loadedMillis >= fullReloadIntervalSeconds * MILLIS_PER_SECOND) {
+            final Store loaded = new Store(uidAttribute, changeAttribute, now);
+            count = fetch(filter, loaded);
+            store = loaded;
+            LOGGER.info("Loaded " + count + " entries into the replica of " + base + " " + filter);
+        } else {
+            count = fetch(deltaFilter(current.highWaterMark), current);
+            if (count > 0) {
+                LOGGER.debug("Pulled " + count + " changed entries into the replica of " + base + " " + filter);
+            }
+        }
+        if (count > 0 || store != current) {
+            save(store);
+        }
+        return count;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return whether the replica is loaded and serving reads
+     */
+    public boolean isLoaded() {
+        return store != null;
+    }
+
+    /**
+     * @return the number of entries in the replica
+     */
+    public int size() {
+        Store current = store;
+        return current == null ? 0 : current.entries.size();
+    }
+
+    /**
+     * @return the highest value of the change attribute in the replica, or null if it is empty
+     */
+    public String getHighWaterMark() {
+        Store current = store;
+        return current == null ? null : current.highWaterMark;
+    }
+
+    String deltaFilter(String highWaterMark) {
+        return deltaFilter(filter, changeAttribute, highWaterMark);
+    }
+
+    /**
+     * @return a filter for the entries matching the filter whose change attribute is at or above the high-water mark
+     */
+    static String deltaFilter(String filter, String changeAttribute, String highWaterMark) {
+        String from = highWaterMark;
+        try {
+            // Update sequence numbers are exact, timestamps only have a resolution of a second or so.
+            from = String.valueOf(Long.parseLong(highWaterMark) + 1);
+        } catch (NumberFormatException e) {
+            // Not a number, compare with >= and refetch the entries changed at the high-water mark.
+        }
+        String wrapped = filter.trim().startsWith("(") ? filter.trim() : "(" + filter.trim() + ")";
+        return "(&" + wrapped + "(" + changeAttribute + ">=" + from + "))";
+    }
+
+    private int fetch(String searchFilter, final Store target) {
+        final int[] count = new int[1];
+        LdapUserCallbackHandler handler = new LdapUserCallbackHandler() {
+            @Override
+            public void handleLdapUser(LdapUser ldapUser) {
+                target.put(toReplica(ldapUser));
+                count[0]++;
+            }
+        };
+        if (ldapService instanceof LdapServiceImpl) {
+            // Streams the result page by page instead of holding all of it.
+            ((LdapServiceImpl) ldapService).search(new LdapQuery(base, searchFilter).withAttributes(attributes),
+                    handler);
+            return count[0];
+        }
+        LdapUser[] found;
+        try {
+            found = ldapService.search(base, searchFilter, attributes);
+        } catch (UnsupportedOperationException e) {
+            found = ldapService.search(base, searchFilter);
+        }
+        for (LdapUser ldapUser : found) {
+            handler.handleLdapUser(ldapUser);
+        }
+        return count[0];
+    }
+
+    private CompactLdapUser toReplica(LdapUser ldapUser) {
+        CompactLdapUser replica = new CompactLdapUser(ldapUser.getDn());
+        for (Map.Entry<String, ArrayList<String>> entry : ldapUser.getAttributes().entrySet()) {
+            String name = attributeNames.get(entry.getKey().toLowerCase(Locale.ENGLISH));
+            if (name != null && !entry.getValue().isEmpty()) {
+                replica.setAttributeValue(name, entry.getValue().toArray());
+            }
+        }
+        return replica;
+    }
+
+    /**
+     * Searches the replica only.
+     *
+     * @param searchBase   the search base
+     * @param searchFilter the search filter
+     * @param returning    the attributes to return, or null or empty for all replicated ones
+     * @return copies of the users found, or null if the search can't be answered by the replica, which includes a
+     * search for a uid that is not in the replica
+     */
+    public LdapUser[] searchReplica(String searchBase, String searchFilter, String[] returning) {
+        Store current = store;
+        if (current == null || !isReplicated(returning)) {
+            return null;
+        }
+        String normalizedBase = searchBase == null ? "" : searchBase.trim().toLowerCase(Locale.ENGLISH);
+        String replicaBase = base.trim().toLowerCase(Locale.ENGLISH);
+        boolean wholeReplica = normalizedBase.equals(replicaBase);
+        if (!wholeReplica && replicaBase.length() > 0 && !normalizedBase.endsWith("," + replicaBase)) {
+            return null;
+        }
+        LdapFilterMatcher matcher = toMatcher(searchFilter);
+        if (matcher == null || filterMatcher == null || !matcher.implies(filterMatcher)) {
+            // The filter may select entries outside the replica.
+            return null;
+        }
+
+        Collection<CompactLdapUser> candidates;
+        String uid = matcher.getRequiredValue(uidAttribute);
+        if (uid != null) {
+            CompactLdapUser ldapUser = current.getByUid(uid);
+            if (ldapUser == null) {
+                // Possibly added after the last pull, so left to the directory like in getLdapUserByUid.
+                return null;
+            }
+            candidates = Collections.singleton(ldapUser);
+        } else {
+            candidates = current.entries.values();
+        }
+        List<LdapUser> result = new ArrayList<LdapUser>();
+        for (CompactLdapUser candidate : candidates) {
+            if ((wholeReplica || isBelow(candidate.getDn(), normalizedBase)) && matcher.matches(candidate)) {
+                result.add(copy(candidate, returning));
+            }
+        }
+        return result.toArray(new LdapUser[result.size()]);
+    }
+
+    private boolean isReplicated(String[] returning) {
+        if (returning == null) {
+            return true;
+        }
+        for (String attribute : returning) {
+            if (!attributeNames.containsKey(attribute.toLowerCase(Locale.ENGLISH))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBelow(String dn, String normalizedBase) {
+        String normalizedDn = dn.toLowerCase(Locale.ENGLISH);
+        return normalizedBase.length() == 0 || normalizedDn.equals(normalizedBase)
+                || normalizedDn.endsWith("," + normalizedBase);
+    }
+
+    private LdapFilterMatcher toMatcher(String searchFilter) {
+        LdapFilterMatcher matcher;
+        try {
+            matcher = LdapFilterMatcher.parse(searchFilter, attributeNames);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Filter not supported by the replica, using the directory: " + searchFilter);
+            return null;
+        }
+        for (String name : matcher.getAttributeNames()) {
+            if (!attributeNames.containsKey(name.toLowerCase(Locale.ENGLISH))) {
+                return null;
+            }
+        }
+        return matcher;
+    }
+
+    private LdapUser copy(CompactLdapUser ldapUser, String[] returning) {
+        if (returning == null || returning.length == 0) {
+            return CompactLdapUser.copyOf(ldapUser);
+        }
+        CompactLdapUser copy = new CompactLdapUser(ldapUser.getDn());
+        for (String attribute : returning) {
+            String name = attributeNames.get(attribute.toLowerCase(Locale.ENGLISH));
+            String[] values = ldapUser.getAttributeValues(name);
+            if (values.length > 0) {
+                copy.setAttributeValue(name, values);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return the replica to read from, or null if the read must go to the wrapped service
+     */
+    private Store storeFor(String[] returning) {
+        boolean named = returning != null && returning.length > 0;
+        return named || serveReadsWithoutAttributes ? store : null;
+    }
+
+    @Override
+    public LdapUser[] search(String base, String filter) {
+        LdapUser[] found = storeFor(null) != null ? searchReplica(base, filter, null) : null;
+        return found != null ? found : ldapService.search(base, filter);
+    }
+
+    @Override
+    public LdapUser[] search(String base, String filter, String[] attributes) {
+        LdapUser[] found = storeFor(attributes) != null ? searchReplica(base, filter, attributes) : null;
+        return found != null ? found : ldapService.search(base, filter, attributes);
+    }
+
+    @Override
+    public LdapUser getLdapUser(String base, String filter) {
+        LdapUser[] found = storeFor(null) != null ? searchReplica(base, filter, null) : null;
+        return found != null ? single(found, filter) : ldapService.getLdapUser(base, filter);
+    }
+
+    @Override
+    public LdapUser getLdapUser(String base, String filter, String[] attributes) {
+        LdapUser[] found = storeFor(attributes) != null ? searchReplica(base, filter, attributes) : null;
+        return found != null ? single(found, filter) : ldapService.getLdapUser(base, filter, attributes);
+    }
+
+    private static LdapUser single(LdapUser[] found, String filter) {
+        if (found.length > 1) {
+            throw new RuntimeException("Entry is not unique: " + filter);
+        }
+        return found.length == 0 ? null : found[0];
+    }
+
+    @Override
+    public LdapUser getLdapUserByUid(String base, String uid) {
+        Store current = storeFor(null);
+        CompactLdapUser ldapUser = current == null ? null : current.getByUid(uid);
+        String normalizedBase = base == null ? "" : base.trim().toLowerCase(Locale.ENGLISH);
+        if (ldapUser != null && isBelow(ldapUser.getDn(), normalizedBase)) {
+            return CompactLdapUser.copyOf(ldapUser);
+        }
+        return ldapService.getLdapUserByUid(base, uid);
+    }
+
+    @Override
+    public LdapUser getLdapUserByUid(String uid) {
+        Store current = storeFor(null);
+        CompactLdapUser ldapUser = current == null ? null : current.getByUid(uid);
+        if (ldapUser != null) {
+            return CompactLdapUser.copyOf(ldapUser);
+        }
+        return ldapService.getLdapUserByUid(uid);
+    }
+
+    /**
+     * Takes the users that are in the replica from it, and looks up the rest with one call to the wrapped service.
+     * Only uses the replica when {@link #setServeReadsWithoutAttributes(boolean) serveReadsWithoutAttributes} is set.
+     */
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        Store current = storeFor(null);
+        if (current == null) {
+            return ldapService.getLdapUsersByUids(uids);
+        }
+        Map<String, LdapUser> result = new HashMap<String, LdapUser>();
+        Set<String> missing = new LinkedHashSet<String>();
+        for (String uid : uids) {
+            if (uid == null) {
+                continue;
+            }
+            CompactLdapUser ldapUser = current.getByUid(uid);
+            if (ldapUser != null) {
+                result.put(uid, CompactLdapUser.copyOf(ldapUser));
+            } else {
+                missing.add(uid);
+            }
+        }
+        if (!missing.isEmpty()) {
+            result.putAll(ldapService.getLdapUsersByUids(missing));
+        }
+        return result;
+    }
+
+    @Override
+    public Properties getProperties() {
+        return ldapService.getProperties();
+    }
+
+    @Override
+    public boolean addLdapUser(String context, HashMap<String, String> attributes) {
+        boolean added = ldapService.addLdapUser(context, attributes);
+        requestSync();
+        return added;
+    }
+
+    @Override
+    public boolean modifyLdapUser(LdapUser e, HashMap<String, String> modifyAttributes) {
+        boolean modified = ldapService.modifyLdapUser(e, modifyAttributes);
+        invalidate(e);
+        return modified;
+    }
+
+    @Override
+    public boolean deleteLdapUser(LdapUser e) {
+        boolean deleted = ldapService.deleteLdapUser(e);
+        invalidate(e);
+        return deleted;
+    }
+
+    private void invalidate(LdapUser ldapUser) {
+        Store current = store;
+        if (current != null) {
+            current.remove(ldapUser.getDn());
+        }
+        requestSync();
+    }
+
+    private void requestSync() {
+        ScheduledExecutorService current = scheduler;
+        if (current != null) {
+            try {
+                current.execute(syncTask);
+            } catch (RejectedExecutionException e) {
+                // Stopped meanwhile.
+            }
+        }
+    }
+
+    private String stateKey() {
+        return base + "\n" + filter + "\n" + uidAttribute + "\n" + changeAttribute + "\n" + Arrays.toString(attributes);
+    }
+
+    private Store restore() {
+        if (stateFile == null || !stateFile.isFile()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                if (!stateKey().equals(in.readUTF())) {
+                    LOGGER.info("Replica state in " + stateFile + " was made with other settings, ignoring it.");
+                    return null;
+                }
+                Store restored = (Store) in.readObject();
+                LOGGER.info("Restored " + restored.entries.size() + " entries into the replica from " + stateFile);
+                return restored;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to restore the replica from " + stateFile + ", making a full load.", e);
+        } catch (ClassNotFoundException e) {
+            LOGGER.warn("Failed to restore the replica from " + stateFile + ", making a full load.", e);
+        }
+        return null;
+    }
+
+    private synchronized void save(Store current) {
+        if (stateFile == null || current == null) {
+            return;
+        }
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeUTF(stateKey());
+                out.writeObject(current);
+            } finally {
+                out.close();
+            }
+            // Replace the old state only when the new one is complete.
+            if (stateFile.exists() && !stateFile.delete() || !temp.renameTo(stateFile)) {
+                throw new IOException("Failed to rename " + temp + " to " + stateFile);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save the replica to " + stateFile, e);
+        }
+    }
+
+    /**
+     * The replicated entries, keyed by the lower case DN, with an index by lower case uid.
+     */
+    private static final class Store implements Serializable {
+
+        private static final long serialVersionUID = 2413275046237781452L;
+
+        private final String uidAttribute;
+        private final String changeAttribute;
+        private final long loadedMillis;
+        private final ConcurrentMap<String, CompactLdapUser> entries = new ConcurrentHashMap<String, CompactLdapUser>();
+        private final ConcurrentMap<String, String> dnByUid = new ConcurrentHashMap<String, String>();
+        private volatile String highWaterMark;
+
+        Store(String uidAttribute, String changeAttribute, long loadedMillis) {
+            this.uidAttribute = uidAttribute;
+            this.changeAttribute = changeAttribute;
+            this.loadedMillis = loadedMillis;
+        }
+
+        CompactLdapUser getByUid(String uid) {
+            if (uid == null) {
+                return null;
+            }
+            String dn = dnByUid.get(uid.toLowerCase(Locale.ENGLISH));
+            return dn == null ? null : entries.get(dn);
+        }
+
+        void put(CompactLdapUser ldapUser) {
+            String dn = ldapUser.getDn().toLowerCase(Locale.ENGLISH);
+            entries.put(dn, ldapUser);
+            String uid = ldapUser.getAttributeValue(uidAttribute);
+            if (uid != null) {
+                String previousDn = dnByUid.put(uid.toLowerCase(Locale.ENGLISH), dn);
+                if (previousDn != null && !previousDn.equals(dn)) {
+                    // The entry was moved or renamed.
+                    entries.remove(previousDn);
+                }
+            }
+            String change = ldapUser.getAttributeValue(changeAttribute);
+            if (change != null && (highWaterMark == null || LdapFilterMatcher.compare(change, highWaterMark) > 0)) {
+                highWaterMark = change;
+            }
+        }
+
+        void remove(String dn) {
+            CompactLdapUser removed = entries.remove(dn.toLowerCase(Locale.ENGLISH));
+            if (removed != null) {
+                String uid = removed.getAttributeValue(uidAttribute);
+                if (uid != null) {
+                    dnByUid.remove(uid.toLowerCase(Locale.ENGLISH), dn.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+    }
+}
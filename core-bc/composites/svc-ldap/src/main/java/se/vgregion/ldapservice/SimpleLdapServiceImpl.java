@@ -20,44 +20,91 @@
 package se.vgregion.ldapservice;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DistinguishedName;
 import org.springframework.ldap.core.simple.ParameterizedContextMapper;
 import org.springframework.ldap.core.simple.SimpleLdapTemplate;
 import org.springframework.ldap.filter.AndFilter;
 import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.OrFilter;
 
 public class SimpleLdapServiceImpl implements LdapService {
 
     private SimpleLdapTemplate ldapTemplate;
     private static final Logger LOGGER = LoggerFactory.getLogger(SimpleLdapServiceImpl.class);
+    private static final int DEFAULT_BULK_CHUNK_SIZE = 100;
+    private static final int DEFAULT_BULK_THREADS = 4;
+
+    private int bulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
+    private ExecutorService bulkExecutor;
+    private boolean ownBulkExecutor;
+    private SlowQueryLog slowQueryLog;
+    private int searchTimeLimitMillis;
 
     public SimpleLdapServiceImpl(SimpleLdapTemplate ldapTemplate) {
         this.ldapTemplate = ldapTemplate;
     }
 
+    /**
+     * Constructor, e.g. for use with a {@link PooledContextSource}.
+     *
+     * @param contextSource the source of the contexts used for all operations
+     */
+    public SimpleLdapServiceImpl(ContextSource contextSource) {
+        this(new SimpleLdapTemplate(contextSource));
+    }
+
     /**
      * {@inheritDoc}
      */
    
     public LdapUser[] search(String base, String filter) {
-        ParameterizedContextMapper<SimpleLdapUser> ldapUserMapper = new SimpleLdapServiceImpl.LdapUserMapper();
-        List<SimpleLdapUser> ldapUsers = ldapTemplate.search(base, filter, ldapUserMapper);
+        List<SimpleLdapUser> ldapUsers = search("search", base, filter);
         return ldapUsers.toArray(new SimpleLdapUser[] {});
     }
 
+    private List<SimpleLdapUser> search(String operation, String base, String filter) {
+        SlowQueryLog log = slowQueryLog;
+        if (log == null) {
+            return searchDirectory(base, filter);
+        }
+        long start = System.nanoTime();
+        int count = -1;
+        try {
+            List<SimpleLdapUser> ldapUsers = searchDirectory(base, filter);
+            count = ldapUsers.size();
+            return ldapUsers;
+        } finally {
+            log.record(operation, base, filter, count, -1, start);
+        }
+    }
+
     
     public boolean addLdapUser(String context, HashMap<String, String> attributes) {
         throw new UnsupportedOperationException("Not implemented in simple ldap service, use LdapServiceImpl.");
@@ -78,6 +125,19 @@ public class SimpleLdapServiceImpl implements LdapService {
         throw new UnsupportedOperationException("Not implemented in simple ldap service, use LdapServiceImpl.");
     }
 
+    @SuppressWarnings("unchecked")
+    private List<SimpleLdapUser> searchDirectory(String base, String filter) {
+        ParameterizedContextMapper<SimpleLdapUser> ldapUserMapper = new SimpleLdapServiceImpl.LdapUserMapper();
+        if (searchTimeLimitMillis == 0) {
+            return ldapTemplate.search(base, filter, ldapUserMapper);
+        }
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningObjFlag(true);
+        controls.setTimeLimit(searchTimeLimitMillis);
+        return ldapTemplate.getLdapOperations().search(base, filter, controls, ldapUserMapper);
+    }
+
     /**
      * Returns an ldap user by its id.
      * 
@@ -89,10 +149,23 @@ public class SimpleLdapServiceImpl implements LdapService {
         SimpleLdapUser ldapUser = null;
         AndFilter filter = new AndFilter();
         filter.and(new EqualsFilter("objectclass", "person")).and(new EqualsFilter("uid", uid));
+        SlowQueryLog log = slowQueryLog;
+        long start = log != null ? System.nanoTime() : 0;
+        int count = -1;
         try {
-            ldapUser = ldapTemplate.searchForObject(base, filter.encode(), ldapUserMapper);
+            if (searchTimeLimitMillis == 0) {
+                ldapUser = ldapTemplate.searchForObject(base, filter.encode(), ldapUserMapper);
+            } else {
+                ldapUser = searchForObject(base, filter.encode());
+            }
+            count = 1;
         } catch (EmptyResultDataAccessException e) {
             // User was not found.
+            count = 0;
+        } finally {
+            if (log != null) {
+                log.record("getLdapUserByUid", base, filter.encode(), count, -1, start);
+            }
         }
         return ldapUser;
     }
@@ -101,6 +174,92 @@ public class SimpleLdapServiceImpl implements LdapService {
         return getLdapUserByUid("", uid);
     }
 
+    /**
+     * Like {@link SimpleLdapTemplate#searchForObject}, which takes no search controls, but with the search time limit.
+     */
+    private SimpleLdapUser searchForObject(String base, String filter) {
+        List<SimpleLdapUser> found = searchDirectory(base, filter);
+        if (found.isEmpty()) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        if (found.size() > 1) {
+            throw new IncorrectResultSizeDataAccessException(1, found.size());
+        }
+        return found.get(0);
+    }
+
+    /**
+     * Looks up the users in chunks of {@link #setBulkChunkSize(int) bulkChunkSize} uids, one
+     * <code>(&(objectclass=person)(|(uid=a)(uid=b)...))</code> search per chunk. The chunks are searched
+     * concurrently.
+     *
+     * @param uids the uids to look up
+     * @return the users found, keyed by the uid they were requested with
+     */
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        // uid matching is case insensitive in the directory, so map the returned uids back to the requested ones.
+        Map<String, String> requestedUids = new LinkedHashMap<String, String>();
+        for (String uid : uids) {
+            if (uid != null) {
+                requestedUids.put(uid.toLowerCase(Locale.ENGLISH), uid);
+            }
+        }
+
+        List<Future<List<SimpleLdapUser>>> chunkResults = new ArrayList<Future<List<SimpleLdapUser>>>();
+        List<String> chunk = new ArrayList<String>(bulkChunkSize);
+        for (String uid : requestedUids.values()) {
+            chunk.add(uid);
+            if (chunk.size() == bulkChunkSize) {
+                chunkResults.add(getBulkExecutor().submit(newChunkSearch(chunk)));
+                chunk = new ArrayList<String>(bulkChunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunkResults.add(getBulkExecutor().submit(newChunkSearch(chunk)));
+        }
+
+        Map<String, LdapUser> result = new HashMap<String, LdapUser>();
+        try {
+            for (Future<List<SimpleLdapUser>> chunkResult : chunkResults) {
+                for (SimpleLdapUser ldapUser : chunkResult.get()) {
+                    String uid = ldapUser.getAttributeValue("uid");
+                    String requestedUid = uid != null ? requestedUids.get(uid.toLowerCase(Locale.ENGLISH)) : null;
+                    if (requestedUid != null) {
+                        result.put(requestedUid, ldapUser);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LdapUserRetrievalException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new LdapUserRetrievalException(e.getCause());
+        } finally {
+            for (Future<List<SimpleLdapUser>> chunkResult : chunkResults) {
+                chunkResult.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    private Callable<List<SimpleLdapUser>> newChunkSearch(final List<String> uids) {
+        return new Callable<List<SimpleLdapUser>>() {
+            @Override
+            public List<SimpleLdapUser> call() throws Exception {
+                OrFilter anyUid = new OrFilter();
+                for (String uid : uids) {
+                    anyUid.or(new EqualsFilter("uid", uid));
+                }
+                AndFilter filter = new AndFilter();
+                filter.and(new EqualsFilter("objectclass", "person")).and(anyUid);
+                return search("getLdapUsersByUids", "", filter.encode());
+            }
+        };
+    }
+
     public Properties getProperties() {
         throw new UnsupportedOperationException("Not implemented in simple ldap service, use LdapServiceImpl.");
     }
@@ -123,6 +282,84 @@ public class SimpleLdapServiceImpl implements LdapService {
       this.ldapTemplate = ldapTemplate;
     }
 
+    /**
+     * Sets the maximum number of uids in one search made by {@link #getLdapUsersByUids(Collection)}.
+     *
+     * @param bulkChunkSize the chunk size, at least one
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+      if (bulkChunkSize < 1) {
+        throw new IllegalArgumentException("bulkChunkSize must be at least 1: " + bulkChunkSize);
+      }
+      this.bulkChunkSize = bulkChunkSize;
+    }
+
+    /**
+     * Sets the executor that runs the chunk searches of {@link #getLdapUsersByUids(Collection)}. Its size limits
+     * how many of those searches run against the directory at the same time. By default a pool of four daemon
+     * threads is created on first use, and stopped by {@link #shutdown()}; an executor set here is left to the
+     * caller to shut down.
+     *
+     * @param bulkExecutor the executor
+     */
+    public synchronized void setBulkExecutor(ExecutorService bulkExecutor) {
+      shutdown();
+      this.bulkExecutor = bulkExecutor;
+    }
+
+    private synchronized ExecutorService getBulkExecutor() {
+      if (bulkExecutor == null) {
+        bulkExecutor = Executors.newFixedThreadPool(DEFAULT_BULK_THREADS, new ThreadFactory() {
+          private final AtomicInteger threadCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ldap-bulk-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+        ownBulkExecutor = true;
+      }
+      return bulkExecutor;
+    }
+
+    /**
+     * Stops the threads of the default bulk executor, if it was created. Call it when the service is no longer used,
+     * e.g. as the destroy method of the bean; a later bulk lookup creates a new one.
+     */
+    public synchronized void shutdown() {
+      if (ownBulkExecutor) {
+        bulkExecutor.shutdown();
+        bulkExecutor = null;
+        ownBulkExecutor = false;
+      }
+    }
+
+    /**
+     * Records the searches made by this service in the given log, which logs the slow ones and adds up the time per
+     * filter. No log (the default) records nothing.
+     *
+     * @param slowQueryLog the log, or null
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+      this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * Sets the time limit of the searches, which makes the directory end them in time. Connect and read timeouts
+     * are set on the context source, e.g. as the base environment properties
+     * <code>com.sun.jndi.ldap.connect.timeout</code> and <code>com.sun.jndi.ldap.read.timeout</code>.
+     *
+     * @param searchTimeLimitMillis the time limit in milliseconds, zero (the default) for none
+     */
+    public void setSearchTimeLimitMillis(int searchTimeLimitMillis) {
+      if (searchTimeLimitMillis < 0) {
+        throw new IllegalArgumentException("searchTimeLimitMillis must not be negative: " + searchTimeLimitMillis);
+      }
+      this.searchTimeLimitMillis = searchTimeLimitMillis;
+    }
+
     /**
      * Used to map an LDAP entry into a SimpleLdapUser.
      */
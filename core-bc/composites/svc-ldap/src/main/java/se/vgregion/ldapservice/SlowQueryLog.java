@@ -0,0 +1,374 @@
+package se.vgregion.ldapservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs directory searches that take longer than a threshold, and adds up the time spent per filter fingerprint so that
+ * the filters that cost the most in total can be found. A fingerprint is the filter with the values taken out, see
+ * {@link #fingerprint(String)}, so <code>(cn=*anna*)</code> and <code>(cn=*bo*)</code> count as the same filter and no
+ * personal data ends up in the log.
+ * <p/>
+ * The services log nothing unless a log is set on them, e.g. {@link LdapServiceImpl#setSlowQueryLog(SlowQueryLog)}.
+ * One log may be shared by several services. The slow searches are logged as warnings by the logger of this class.
+ */
+public class SlowQueryLog implements SlowQueryLogMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLog.class);
+    private static final long DEFAULT_THRESHOLD_MILLIS = 500;
+    private static final int DEFAULT_MAX_FINGERPRINTS = 1000;
+    private static final int DEFAULT_TOP = 20;
+    private static final String OTHER = "(other)";
+
+    private volatile long thresholdMillis = DEFAULT_THRESHOLD_MILLIS;
+    private volatile int maxFingerprints = DEFAULT_MAX_FINGERPRINTS;
+    private final ConcurrentMap<String, Aggregate> aggregates = new ConcurrentHashMap<String, Aggregate>();
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    @Override
+    public long getThresholdMillis() {
+        return thresholdMillis;
+    }
+
+    /**
+     * @param thresholdMillis searches taking at least this long are logged; defaults to 500
+     */
+    @Override
+    public void setThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("thresholdMillis must not be negative: " + thresholdMillis);
+        }
+        this.thresholdMillis = thresholdMillis;
+    }
+
+    /**
+     * Limits the memory used by the totals. Once this many fingerprints are tracked, searches with a new fingerprint
+     * are added up as "(other)".
+     *
+     * @param maxFingerprints the maximum number of fingerprints to keep totals for; defaults to 1000
+     */
+    public void setMaxFingerprints(int maxFingerprints) {
+        if (maxFingerprints < 1) {
+            throw new IllegalArgumentException("maxFingerprints must be at least 1: " + maxFingerprints);
+        }
+        this.maxFingerprints = maxFingerprints;
+    }
+
+    /**
+     * Records a search.
+     *
+     * @param operation      what was done, e.g. "search"
+     * @param base           the search base
+     * @param filter         the search filter
+     * @param resultCount    the number of entries found, or a negative number if the search failed
+     * @param attributeCount the number of attributes asked for, or a negative number for all
+     * @param startNanos     the {@link System#nanoTime()} when the search started
+     */
+    public void record(String operation, String base, String filter, int resultCount, int attributeCount,
+                       long startNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        String fingerprint = fingerprint(filter);
+        boolean slow = micros >= TimeUnit.MILLISECONDS.toMicros(thresholdMillis);
+
+        aggregateFor(fingerprint).add(micros, resultCount, slow);
+
+        if (slow) {
+            LOGGER.warn("Slow " + operation + ": " + TimeUnit.MICROSECONDS.toMillis(micros) + " ms, base=" + base
+                    + ", filter=" + fingerprint + ", results=" + (resultCount < 0 ? "failed" : resultCount)
+                    + ", attributes=" + (attributeCount < 0 ? "all" : attributeCount));
+        }
+    }
+
+    private Aggregate aggregateFor(String fingerprint) {
+        Aggregate aggregate = aggregates.get(fingerprint);
+        if (aggregate == null) {
+            String key = aggregates.size() < maxFingerprints ? fingerprint : OTHER;
+            aggregate = aggregates.get(key);
+            if (aggregate == null) {
+                Aggregate created = new Aggregate(key);
+                aggregate = aggregates.putIfAbsent(key, created);
+                if (aggregate == null) {
+                    aggregate = created;
+                }
+            }
+        }
+        return aggregate;
+    }
+
+    /**
+     * Gets the fingerprints that the most time has been spent on.
+     *
+     * @param n the number of fingerprints to return
+     * @return the totals of the fingerprints, the most expensive first
+     */
+    public List<FingerprintStats> getTop(int n) {
+        List<FingerprintStats> stats = new ArrayList<FingerprintStats>(aggregates.size());
+        for (Aggregate aggregate : aggregates.values()) {
+            stats.add(aggregate.toStats());
+        }
+        Collections.sort(stats, new Comparator<FingerprintStats>() {
+            @Override
+            public int compare(FingerprintStats o1, FingerprintStats o2) {
+                long t1 = o1.getTotalMicros();
+                long t2 = o2.getTotalMicros();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return stats.size() > n ? new ArrayList<FingerprintStats>(stats.subList(0, n)) : stats;
+    }
+
+    @Override
+    public int getFingerprintCount() {
+        return aggregates.size();
+    }
+
+    /**
+     * @return the 20 most expensive fingerprints, formatted one per line
+     */
+    @Override
+    public String[] getTopByTotalTime() {
+        List<FingerprintStats> top = getTop(DEFAULT_TOP);
+        String[] lines = new String[top.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = top.get(i).toString();
+        }
+        return lines;
+    }
+
+    /**
+     * Forgets the totals.
+     */
+    @Override
+    public void reset() {
+        aggregates.clear();
+    }
+
+    /**
+     * Registers this log as an MBean, see {@link LdapMBeans}.
+     *
+     * @param serviceName the name that tells this log apart from other slow query logs
+     */
+    public synchronized void registerMBean(String serviceName) {
+        unregisterMBean();
+        registeredNames.add(LdapMBeans.register(this, "LdapSlowQueryLog", serviceName, null));
+    }
+
+    /**
+     * Unregisters the MBean registered by {@link #registerMBean(String)}.
+     */
+    public synchronized void unregisterMBean() {
+        LdapMBeans.unregister(registeredNames);
+    }
+
+    /**
+     * Takes the values out of a filter, keeping its structure: the attribute names (in lower case), the operators and
+     * where the wildcards are. A run of equal filters within an and, or or not is written once followed by "...",
+     * so the same search for a different number of uids gets the same fingerprint. For example
+     * <code>(&amp;(objectClass=person)(|(uid=a)(uid=b)(uid=c)))</code> becomes
+     * <code>(&amp;(objectclass=?)(|(uid=?)...))</code> and <code>(cn=*anna*)</code> becomes <code>(cn=*?*)</code>.
+     *
+     * @param filter the filter, with or without enclosing parentheses
+     * @return the fingerprint
+     */
+    public static String fingerprint(String filter) {
+        if (filter == null) {
+            return "null";
+        }
+        String text = filter.trim();
+        if (!text.startsWith("(")) {
+            text = "(" + text + ")";
+        }
+        try {
+            int[] pos = {0};
+            StringBuilder fingerprint = new StringBuilder(text.length());
+            appendNode(text, pos, fingerprint);
+            if (pos[0] == text.length()) {
+                return fingerprint.toString();
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Not a well-formed filter, fall through.
+        } catch (IllegalArgumentException e) {
+            // Not a well-formed filter, fall through.
+        }
+        return text.replaceAll("=[^()]*", "=?");
+    }
+
+    private static void appendNode(String text, int[] pos, StringBuilder out) {
+        expect(text, pos, '(');
+        out.append('(');
+        char c = text.charAt(pos[0]);
+        if (c == '&' || c == '|' || c == '!') {
+            out.append(c);
+            pos[0]++;
+            String previous = null;
+            boolean repeated = false;
+            while (text.charAt(pos[0]) == '(') {
+                StringBuilder child = new StringBuilder();
+                appendNode(text, pos, child);
+                String childText = child.toString();
+                if (childText.equals(previous)) {
+                    repeated = true;
+                } else {
+                    if (repeated) {
+                        out.append("...");
+                        repeated = false;
+                    }
+                    out.append(childText);
+                    previous = childText;
+                }
+            }
+            if (repeated) {
+                out.append("...");
+            }
+        } else {
+            int end = text.indexOf(')', pos[0]);
+            if (end < 0) {
+                throw new IllegalArgumentException(text);
+            }
+            appendItem(text.substring(pos[0], end), out);
+            pos[0] = end;
+        }
+        expect(text, pos, ')');
+        out.append(')');
+    }
+
+    private static void appendItem(String item, StringBuilder out) {
+        int eq = item.indexOf('=');
+        if (eq < 0) {
+            throw new IllegalArgumentException(item);
+        }
+        out.append(item.substring(0, eq).trim().toLowerCase(Locale.ENGLISH)).append('=');
+        String value = item.substring(eq + 1);
+        boolean inValue = false;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '*') {
+                out.append('*');
+                inValue = false;
+            } else if (!inValue) {
+                out.append('?');
+                inValue = true;
+            }
+        }
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (text.charAt(pos[0]) != c) {
+            throw new IllegalArgumentException(text);
+        }
+        pos[0]++;
+    }
+
+    private static final class Aggregate {
+
+        private final String fingerprint;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong slowCount = new AtomicLong();
+        private final AtomicLong failedCount = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+        private final AtomicLong totalResults = new AtomicLong();
+
+        Aggregate(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        void add(long micros, int resultCount, boolean slow) {
+            count.incrementAndGet();
+            if (slow) {
+                slowCount.incrementAndGet();
+            }
+            if (resultCount < 0) {
+                failedCount.incrementAndGet();
+            } else {
+                totalResults.addAndGet(resultCount);
+            }
+            totalMicros.addAndGet(micros);
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        FingerprintStats toStats() {
+            return new FingerprintStats(fingerprint, count.get(), slowCount.get(), failedCount.get(),
+                    totalMicros.get(), maxMicros.get(), totalResults.get());
+        }
+    }
+
+    /**
+     * The totals of one fingerprint at one point in time.
+     */
+    public static final class FingerprintStats {
+
+        private final String fingerprint;
+        private final long count;
+        private final long slowCount;
+        private final long failedCount;
+        private final long totalMicros;
+        private final long maxMicros;
+        private final long totalResults;
+
+        FingerprintStats(String fingerprint, long count, long slowCount, long failedCount, long totalMicros,
+                         long maxMicros, long totalResults) {
+            this.fingerprint = fingerprint;
+            this.count = count;
+            this.slowCount = slowCount;
+            this.failedCount = failedCount;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+            this.totalResults = totalResults;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of searches that took longer than the threshold
+         */
+        public long getSlowCount() {
+            return slowCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        public long getTotalMicros() {
+            return totalMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * @return the total number of entries found by the searches that did not fail
+         */
+        public long getTotalResults() {
+            return totalResults;
+        }
+
+        @Override
+        public String toString() {
+            return fingerprint + ": total=" + TimeUnit.MICROSECONDS.toMillis(totalMicros) + " ms, count=" + count
+                    + ", slow=" + slowCount + ", failed=" + failedCount + ", max="
+                    + TimeUnit.MICROSECONDS.toMillis(maxMicros) + " ms, results=" + totalResults;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package se.vgregion.ldapservice;
+
+/**
+ * JMX view of a {@link SlowQueryLog}.
+ */
+public interface SlowQueryLogMBean {
+
+    long getThresholdMillis();
+
+    void setThresholdMillis(long thresholdMillis);
+
+    int getFingerprintCount();
+
+    String[] getTopByTotalTime();
+
+    void reset();
+}
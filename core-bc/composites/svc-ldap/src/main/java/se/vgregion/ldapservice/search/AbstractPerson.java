@@ -9,18 +9,16 @@ import java.util.TreeMap;
 
 /**
  * Super class for bean describing person information in various ldap-db:s. Provides basic bean behaviour: toString
- * hashCode and equals.
+ * hashCode and equals. These work on a {@link BeanMap} view of the properties, made only when one of them is called.
  */
 public abstract class AbstractPerson implements Serializable {
 
-    private final BeanMap bm = new BeanMap(this);
-
     /**
      * {@inheritDoc}
      */
     @Override
     public String toString() {
-        Map<String, Object> map = new TreeMap<String, Object>(bm);
+        Map<String, Object> map = new TreeMap<String, Object>(new BeanMap(this));
         StringBuilder sb = new StringBuilder();
 
         for (Map.Entry entry : map.entrySet()) {
@@ -67,8 +65,7 @@ public abstract class AbstractPerson implements Serializable {
         if (obj == this) {
             return true;
         }
-        BeanMap otherMap = new BeanMap(obj);
-        return bm.equals(otherMap);
+        return new BeanMap(this).equals(new BeanMap(obj));
     }
 
     /**
@@ -76,6 +73,6 @@ public abstract class AbstractPerson implements Serializable {
      */
     @Override
     public int hashCode() {
-        return bm.hashCode();
+        return new BeanMap(this).hashCode();
     }
 }
@@ -0,0 +1,135 @@
+package se.vgregion.ldapservice.search;
+
+import org.springframework.ldap.filter.AndFilter;
+import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.LikeFilter;
+import se.vgregion.ldapservice.search.beanutil.BeanMap;
+import se.vgregion.ldapservice.search.beanutil.Converters;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps ldap attributes to a bean, and a sample bean to a search filter, by calling the accessors of the bean directly
+ * instead of through reflection. Subclasses are generated at build time by
+ * {@link se.vgregion.ldapservice.search.processor.ExplicitLdapNameProcessor} for every class that has fields annotated
+ * with {@link ExplicitLdapName}. They are named after the bean class with the suffix {@value #NAME_SUFFIX} and put in
+ * the same package.
+ * <p/>
+ * {@link LdapFinderService} uses the generated mapper of a bean class when there is one and falls back to reflection
+ * otherwise.
+ *
+ * @param <T> the bean type.
+ */
+public abstract class LdapBeanMapper<T> {
+
+    /**
+     * Appended to the name of a bean class to get the name of its generated mapper.
+     */
+    public static final String NAME_SUFFIX = "LdapBeanMapper";
+
+    private static final Object NONE = new Object();
+
+    private static final ConcurrentMap<Class<?>, Object> MAPPERS = new ConcurrentHashMap<Class<?>, Object>();
+
+    private final Class<T> type;
+
+    protected LdapBeanMapper(Class<T> type) {
+        this.type = type;
+    }
+
+    /**
+     * Gets the generated mapper of a class.
+     *
+     * @param type the bean class.
+     * @param <T>  the bean type.
+     * @return the mapper, or null if none was generated for exactly this class.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> LdapBeanMapper<T> forType(Class<T> type) {
+        Object mapper = MAPPERS.get(type);
+        if (mapper == null) {
+            mapper = load(type);
+            MAPPERS.putIfAbsent(type, mapper);
+        }
+        return mapper == NONE ? null : (LdapBeanMapper<T>) mapper;
+    }
+
+    private static Object load(Class<?> type) {
+        try {
+            Class<?> mapperClass = Class.forName(type.getName() + NAME_SUFFIX, true, type.getClassLoader());
+            if (LdapBeanMapper.class.isAssignableFrom(mapperClass)) {
+                LdapBeanMapper<?> mapper = (LdapBeanMapper<?>) mapperClass.newInstance();
+                if (mapper.getType().equals(type)) {
+                    return mapper;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // No mapper generated, reflection is used instead.
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return NONE;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return a new, empty bean.
+     */
+    public abstract T newInstance();
+
+    /**
+     * Sets the property that an attribute maps to.
+     *
+     * @param bean        the bean to set the property on.
+     * @param attributeId id of the ldap attribute.
+     * @param value       the (first) value of the attribute.
+     * @return false if the attribute is unknown to the mapper, and nothing was set.
+     */
+    public abstract boolean setAttribute(T bean, String attributeId, Object value);
+
+    /**
+     * Adds a condition to the filter for each non-empty property of the sample, like
+     * {@link LdapFinderService#toAndCondition(Object)} does.
+     *
+     * @param sample the sample bean.
+     * @param filter the filter to add the conditions to.
+     */
+    public abstract void appendFilter(T sample, AndFilter filter);
+
+    /**
+     * Converts an attribute value to the type of a property, the same way as {@link BeanMap#put(String, Object)}.
+     */
+    protected Object convert(Class<?> propertyType, Object value) {
+        if (value == null) {
+            return propertyType.isPrimitive() ? BeanMap.defaultPrimitiveValues.get(propertyType) : null;
+        }
+        if (!value.getClass().isAssignableFrom(propertyType)) {
+            return Converters.forBeanClass(type).convert(propertyType, value);
+        }
+        return value;
+    }
+
+    /**
+     * Adds an equals condition, or a like condition if the value contains a '*', unless the value is empty.
+     */
+    protected static void appendFilter(AndFilter filter, String attributeName, Object value) {
+        if (value == null) {
+            return;
+        }
+        String text = value.toString();
+        if ("".equals(text.trim())) {
+            return;
+        }
+        if (text.contains("*")) {
+            filter.and(new LikeFilter(attributeName, text));
+        } else {
+            filter.and(new EqualsFilter(attributeName, text));
+        }
+    }
+}
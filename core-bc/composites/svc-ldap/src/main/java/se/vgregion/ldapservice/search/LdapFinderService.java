@@ -7,22 +7,43 @@ import org.springframework.ldap.filter.AndFilter;
 import org.springframework.ldap.filter.EqualsFilter;
 import org.springframework.ldap.filter.Filter;
 import org.springframework.ldap.filter.LikeFilter;
+import se.vgregion.ldapservice.LdapUser;
+import se.vgregion.ldapservice.ReplicatingLdapServiceWrapper;
+import se.vgregion.ldapservice.SlowQueryLog;
 import se.vgregion.ldapservice.search.beanutil.BeanMap;
+import se.vgregion.ldapservice.search.beanutil.BeanProperties;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.SearchControls;
 import java.lang.annotation.Annotation;
+import java.beans.PropertyDescriptor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 /**
@@ -73,12 +94,25 @@ import java.util.regex.Pattern;
  */
 public class LdapFinderService {
 
+    private static final String[] ALL_ATTRIBUTES = {"*"};
+    private static final ConcurrentMap<Class<?>, String[]> RETURNING_ATTRIBUTES =
+            new ConcurrentHashMap<Class<?>, String[]>();
+
+    private static final int DEFAULT_MAX_THREADS = 10;
+    private static final int DEFAULT_QUEUE_CAPACITY = 100;
+
     private LdapTemplate ldapTemplate;
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private ReplicatingLdapServiceWrapper replica;
+    private SlowQueryLog slowQueryLog;
+    private ExecutorService executor;
+    private int maxThreads = DEFAULT_MAX_THREADS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private RejectedExecutionHandler rejectedExecutionHandler = new ThreadPoolExecutor.AbortPolicy();
 
     /**
      * Finds data from the ldap server. Provide a structure (class instance) with the data to use as search criteria
-     * and gets the answer as a list with the same format (class type) as the criteria.
+     * and gets the answer as a list with the same format (class type) as the criteria. Only the attributes that map
+     * to a property of the class are fetched, see {@link #getReturningAttributes(Class)}.
      *
      * @param sample holds properties that (could) match fields in the db by the operator '=' or 'like' (in conjunction
      *               with having a '*' character in a String value).
@@ -86,43 +120,159 @@ public class LdapFinderService {
      * @return a list of search hits.
      */
     public <T> List<T> find(T sample) {
-        return findImp(sample, newBeanAttributesMapper(sample.getClass()));
+        return findImp(sample, newBeanAttributesMapper(sample.getClass()),
+                getReturningAttributes(sample.getClass()).clone(), 0);
+    }
+
+    /**
+     * Se se.vgregion.ldapservice.search.LdapFinderService#find(T) to understand this method. Except that only the
+     * given attributes are fetched, and so set on the resulting beans. E.g. <code>find(sample, "cn", "mail")</code>.
+     *
+     * @param sample     holds properties that (could) match fields in the db by the operator '=' or 'like' (in
+     *                   conjunction with having a '*' character in a String value).
+     * @param attributes the ldap names of the attributes to fetch. None means the same as {@link #find(Object)}.
+     * @param <T>        type of the param and type of the answers inside the resulting list.
+     * @return a list of search hits.
+     */
+    public <T> List<T> find(T sample, String... attributes) {
+        if (attributes == null || attributes.length == 0) {
+            return find(sample);
+        }
+        return findImp(sample, newBeanAttributesMapper(sample.getClass()), attributes.clone(), 0);
     }
 
     /**
      * Se se.vgregion.ldapservice.search.LdapFinderService#find(T) to understand this method. Except that it wraps
-     * the return in a future object.
+     * the return in a future object. The search is run by a bounded thread pool, see {@link #setMaxThreads(int)}
+     * and {@link #setQueueCapacity(int)}.
      * @param sample holds properties that (could) match fields in the db by the operator '=' or 'like' (in conjunction
      *               with having a '*' character in a String value).
      * @param <T>    type of the param and type of the answers inside the resulting list.
      * @return a list of search hits, wraped in a future object.
+     * @throws RejectedExecutionException if the pool and its queue are full, with the default rejection policy.
      */
     public <T> Future<List<T>> findFuture(final T sample) {
-        return executor.submit(new Callable<List<T>>() {
+        return findFuture(sample, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Se se.vgregion.ldapservice.search.LdapFinderService#findFuture(T) to understand this method. Except that the
+     * search has a deadline, and that only the given attributes are fetched if any are given.
+     * <p/>
+     * The time left until the deadline when the search starts is sent to the server as the time limit of the search,
+     * and a search still waiting in the queue at the deadline is not started at all. Either way the future then
+     * fails. Cancelling the future abandons the search: no more results are read and the search request is abandoned
+     * when its result enumeration is closed.
+     *
+     * @param sample     holds properties that (could) match fields in the db by the operator '=' or 'like' (in
+     *                   conjunction with having a '*' character in a String value).
+     * @param timeout    time from now until the deadline. Zero or less means no deadline.
+     * @param unit       unit of the timeout.
+     * @param attributes the ldap names of the attributes to fetch. None means the ones of the sample class.
+     * @param <T>        type of the param and type of the answers inside the resulting list.
+     * @return a list of search hits, wraped in a future object.
+     * @throws RejectedExecutionException if the pool and its queue are full, with the default rejection policy.
+     */
+    public <T> Future<List<T>> findFuture(final T sample, long timeout, TimeUnit unit, String... attributes) {
+        final String[] returningAttributes = attributes == null || attributes.length == 0
+                ? getReturningAttributes(sample.getClass()).clone() : attributes.clone();
+        final long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        FutureTask<List<T>> task = new FutureTask<List<T>>(new Callable<List<T>>() {
             @Override
             public List<T> call() throws Exception {
-                return find(sample);
+                int timeLimit = 0;
+                if (deadline != 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new TimeoutException("The deadline passed before the search was started.");
+                    }
+                    timeLimit = (int) Math.min(remaining, Integer.MAX_VALUE);
+                }
+                AttributesMapper mapper = new CancellableAttributesMapper(
+                        newBeanAttributesMapper(sample.getClass()), cancelled);
+                return findImp(sample, mapper, returningAttributes, timeLimit);
             }
-        });
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                cancelled.set(true);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        getExecutor().execute(task);
+        return task;
     }
 
-    private <T> List<T> findImp(T sample, final AttributesMapper mapper) {
+    private <T> List<T> findImp(T sample, final AttributesMapper mapper, String[] returningAttributes,
+                                int timeLimit) {
         final Filter searchFilter = toAndCondition(sample);
         final SearchControls searchControls = new SearchControls();
-        searchControls.setReturningAttributes(new String[]{"*"});
+        searchControls.setReturningAttributes(returningAttributes);
         searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchControls.setTimeLimit(timeLimit);
+
+        if (replica != null) {
+            LdapUser[] found = replica.searchReplica(StringUtils.EMPTY, searchFilter.encode(), returningAttributes);
+            if (found != null) {
+                return mapReplicaResult(found, mapper);
+            }
+        }
+        SlowQueryLog log = slowQueryLog;
+        if (log == null) {
+            return ldapTemplate.search(StringUtils.EMPTY, searchFilter.encode(), searchControls,
+                    mapper);
+        }
+        long start = System.nanoTime();
+        int count = -1;
+        try {
+            List<T> result = ldapTemplate.search(StringUtils.EMPTY, searchFilter.encode(), searchControls, mapper);
+            count = result.size();
+            return result;
+        } finally {
+            log.record("find", StringUtils.EMPTY, searchFilter.encode(), count,
+                    returningAttributes != null ? returningAttributes.length : -1, start);
+        }
+    }
 
-        return ldapTemplate.search(StringUtils.EMPTY, searchFilter.encode(), searchControls,
-                mapper);
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> mapReplicaResult(LdapUser[] found, AttributesMapper mapper) {
+        List<T> result = new ArrayList<T>(found.length);
+        try {
+            for (LdapUser ldapUser : found) {
+                result.add((T) mapper.mapFromAttributes(toAttributes(ldapUser)));
+            }
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    static Attributes toAttributes(LdapUser ldapUser) {
+        Attributes attributes = new BasicAttributes(true);
+        for (Map.Entry<String, ArrayList<String>> entry : ldapUser.getAttributes().entrySet()) {
+            Attribute attribute = new BasicAttribute(entry.getKey());
+            for (String value : entry.getValue()) {
+                attribute.add(value);
+            }
+            attributes.put(attribute);
+        }
+        return attributes;
     }
 
     /**
-     * Creates @org.springframework.ldap.core.AttributesMapper that maps values from ldap search to a bean.
+     * Creates @org.springframework.ldap.core.AttributesMapper that maps values from ldap search to a bean. Uses the
+     * {@link LdapBeanMapper} generated for the type if there is one, and reflection otherwise.
      *
      * @param type what type (of bean) to make the mapping functionality for.
      * @return A new instance of org.springframework.ldap.core.AttributesMapper.
      */
     public static AttributesMapper newBeanAttributesMapper(final Class type) {
+        LdapBeanMapper<?> generated = LdapBeanMapper.forType(type);
+        if (generated != null) {
+            return new GeneratedBeanAttributesMapper(generated);
+        }
         return new BeanAttributesMapper(type);
     }
 
@@ -160,22 +310,45 @@ public class LdapFinderService {
 
     AndFilter toAndCondition(Object obj) {
         AndFilter filter = new AndFilter();
-        BeanMap bm = new BeanMap(obj);
-        Class type = obj.getClass();
-        for (Object entryObj : bm.entrySet()) {
-            Map.Entry<String, Object> entry = (Map.Entry<String, Object>) entryObj;
-            String property = entry.getKey();
-            if (bm.isWritable(property)) {
-                Object value = entry.getValue();
-                if (value != null && !"".equals(value.toString().trim())) {
-                    String ldapPropertyName = getPlainNameOrExplicit(type, property);
-                    filter.and(newAttributeFilter(ldapPropertyName, value.toString()));
-                }
+        LdapBeanMapper generated = LdapBeanMapper.forType(obj.getClass());
+        if (generated != null) {
+            generated.appendFilter(obj, filter);
+            return filter;
+        }
+        FilterTemplate template = FilterTemplate.of(obj.getClass());
+        for (int i = 0; i < template.size(); i++) {
+            Object value = template.getValue(i, obj);
+            if (value != null && !"".equals(value.toString().trim())) {
+                filter.and(newAttributeFilter(template.getLdapName(i), value.toString()));
             }
         }
         return filter;
     }
 
+    /**
+     * Gets the ldap names of the writable properties of a class: the value of the {@link ExplicitLdapName} annotation
+     * of the field, or else the property name. Computed once per class.
+     *
+     * @param type the bean class.
+     * @return the attributes to fetch when searching for beans of the class, shared and not to be modified.
+     */
+    static String[] getReturningAttributes(Class<?> type) {
+        String[] attributes = RETURNING_ATTRIBUTES.get(type);
+        if (attributes == null) {
+            Set<String> names = new TreeSet<String>();
+            for (PropertyDescriptor pd : BeanProperties.of(type).getWritableDescriptors()) {
+                try {
+                    names.add(getPlainNameOrExplicitImpl(type, pd.getName()));
+                } catch (NoSuchFieldException e) {
+                    names.add(pd.getName());
+                }
+            }
+            attributes = names.toArray(new String[names.size()]);
+            RETURNING_ATTRIBUTES.putIfAbsent(type, attributes);
+        }
+        return attributes;
+    }
+
     static String getPlainNameOrExplicit(Class type, String propertyName) {
         try {
             return getPlainNameOrExplicitImpl(type, propertyName);
@@ -223,11 +396,83 @@ public class LdapFinderService {
         this.ldapTemplate = ldapTemplate;
     }
 
+    /**
+     * Setter for a local replica of the directory to search instead of the ldap server. Searches the replica can't
+     * answer, e.g. ones with attributes it doesn't hold or with a filter that may select entries outside of it, still
+     * go to the ldap server. The replica must be of the same part of the directory as the ldap template is bound to.
+     * @param replica the new value.
+     */
+    public void setReplica(ReplicatingLdapServiceWrapper replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * Records the directory searches of the find methods in the given log, which logs the slow ones and adds up the
+     * time per filter. No log (the default) records nothing.
+     * @param slowQueryLog the log, or null.
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * Setter for the executor running the searches of the findFuture methods, replacing the bounded pool otherwise
+     * created on first use. The service does not shut down an executor set this way.
+     * @param executor the new value.
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Setter for the number of threads of the pool running the searches of the findFuture methods. Has no effect
+     * once the pool is created, on the first call to a findFuture method. Defaults to 10.
+     * @param maxThreads the new value.
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Setter for the number of searches that may wait for a thread in the pool. Has no effect once the pool is
+     * created. Defaults to 100.
+     * @param queueCapacity the new value.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Setter for what happens to a search when the pool and its queue are full. Has no effect once the pool is
+     * created. Defaults to {@link ThreadPoolExecutor.AbortPolicy}, which throws a RejectedExecutionException.
+     * @param rejectedExecutionHandler the new value.
+     */
+    public void setRejectedExecutionHandler(RejectedExecutionHandler rejectedExecutionHandler) {
+        this.rejectedExecutionHandler = rejectedExecutionHandler;
+    }
+
+    /**
+     * Shuts down the pool running the searches of the findFuture methods, if it was created by this service.
+     */
+    public synchronized void shutdown() {
+        if (executor instanceof OwnedThreadPoolExecutor) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = new OwnedThreadPoolExecutor(maxThreads, queueCapacity, rejectedExecutionHandler);
+        }
+        return executor;
+    }
+
     public String toBeanText(String sampleCn) {
         WebLdapPerson sample = new WebLdapPerson();
         sample.setCn(sampleCn);
         StringBuilder sb = new StringBuilder();
-        findImp(sample, newBeanToJavaCodeAttributesMapper(sb));
+        findImp(sample, newBeanToJavaCodeAttributesMapper(sb), ALL_ATTRIBUTES, 0);
         return sb.toString();
     }
 
@@ -298,4 +543,149 @@ public class LdapFinderService {
             return result;
         }
     }
+
+    /**
+     * The bounded pool the service creates itself when no executor is set. Idle threads are let go.
+     */
+    private static class OwnedThreadPoolExecutor extends ThreadPoolExecutor {
+
+        OwnedThreadPoolExecutor(int maxThreads, int queueCapacity, RejectedExecutionHandler handler) {
+            super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    handler);
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Stops reading search results once the search is cancelled. The exception makes LdapTemplate close the result
+     * enumeration, which abandons the search on the server.
+     */
+    static class CancellableAttributesMapper implements AttributesMapper {
+
+        private final AttributesMapper mapper;
+        private final AtomicBoolean cancelled;
+
+        CancellableAttributesMapper(AttributesMapper mapper, AtomicBoolean cancelled) {
+            this.mapper = mapper;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public Object mapFromAttributes(Attributes attributes) throws NamingException {
+            if (cancelled.get()) {
+                throw new CancellationException("The search was cancelled.");
+            }
+            return mapper.mapFromAttributes(attributes);
+        }
+    }
+
+    /**
+     * The writable properties of a sample class, resolved to their ldap names and getters. It is made once per class
+     * and then used for every filter built from a sample of that class, so that building a filter only reads the
+     * property values.
+     */
+    static final class FilterTemplate {
+
+        private static final ConcurrentMap<Class<?>, FilterTemplate> TEMPLATES =
+                new ConcurrentHashMap<Class<?>, FilterTemplate>();
+
+        private final String[] propertyNames;
+        private final String[] ldapNames;
+        private final Method[] getters;
+
+        private FilterTemplate(Class<?> type) {
+            List<PropertyDescriptor> properties = new ArrayList<PropertyDescriptor>();
+            for (PropertyDescriptor pd : BeanProperties.of(type).getBeanInfo().getPropertyDescriptors()) {
+                if (pd.getWriteMethod() != null && pd.getReadMethod() != null) {
+                    properties.add(pd);
+                }
+            }
+            propertyNames = new String[properties.size()];
+            ldapNames = new String[properties.size()];
+            getters = new Method[properties.size()];
+            for (int i = 0; i < propertyNames.length; i++) {
+                PropertyDescriptor pd = properties.get(i);
+                propertyNames[i] = pd.getName();
+                getters[i] = pd.getReadMethod();
+                try {
+                    ldapNames[i] = getPlainNameOrExplicitImpl(type, pd.getName());
+                } catch (NoSuchFieldException e) {
+                    // Only an error if the property is used in a filter, see getLdapName.
+                    ldapNames[i] = null;
+                }
+            }
+        }
+
+        /**
+         * Gets the template of a class, making it the first time.
+         *
+         * @param type the class of the samples.
+         * @return the shared template.
+         */
+        static FilterTemplate of(Class<?> type) {
+            FilterTemplate template = TEMPLATES.get(type);
+            if (template == null) {
+                template = new FilterTemplate(type);
+                FilterTemplate existing = TEMPLATES.putIfAbsent(type, template);
+                if (existing != null) {
+                    template = existing;
+                }
+            }
+            return template;
+        }
+
+        int size() {
+            return getters.length;
+        }
+
+        String getLdapName(int index) {
+            if (ldapNames[index] == null) {
+                throw new RuntimeException(new NoSuchFieldException(propertyNames[index]));
+            }
+            return ldapNames[index];
+        }
+
+        Object getValue(int index, Object sample) {
+            try {
+                return getters[index].invoke(sample);
+            } catch (Exception e) {
+                throw new RuntimeException("Error for key " + propertyNames[index] + " on object " + sample, e);
+            }
+        }
+    }
+
+    /**
+     * Maps with a generated {@link LdapBeanMapper}. Attributes unknown to it are mapped with reflection, by the
+     * property name derived from the attribute id.
+     */
+    static class GeneratedBeanAttributesMapper implements AttributesMapper {
+
+        private final LdapBeanMapper mapper;
+        private final BeanProperties properties;
+
+        GeneratedBeanAttributesMapper(LdapBeanMapper mapper) {
+            this.mapper = mapper;
+            this.properties = BeanProperties.of(mapper.getType());
+        }
+
+        @Override
+        public Object mapFromAttributes(Attributes attributes) throws NamingException {
+            Object result = mapper.newInstance();
+            BeanMap bm = null;
+            NamingEnumeration<? extends Attribute> all = attributes.getAll();
+            while (all.hasMore()) {
+                Attribute attribute = all.next();
+                if (!mapper.setAttribute(result, attribute.getID(), attribute.get())) {
+                    String name = toBeanPropertyName(attribute.getID());
+                    if (properties.isWritable(name)) {
+                        if (bm == null) {
+                            bm = new BeanMap(result);
+                        }
+                        bm.put(name, attribute.get());
+                    }
+                }
+            }
+            return result;
+        }
+    }
 }
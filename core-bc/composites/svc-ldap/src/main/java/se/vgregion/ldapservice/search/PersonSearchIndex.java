@@ -0,0 +1,523 @@
+package se.vgregion.ldapservice.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.AttributesMapper;
+import se.vgregion.ldapservice.CompactLdapUser;
+import se.vgregion.ldapservice.LdapQuery;
+import se.vgregion.ldapservice.LdapService;
+import se.vgregion.ldapservice.LdapServiceImpl;
+import se.vgregion.ldapservice.LdapUser;
+import se.vgregion.ldapservice.LdapUserCallbackHandler;
+
+import javax.naming.NamingException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index for typeahead searches of persons, e.g. "find colleague" fields, answered without a substring
+ * search against the directory for every keystroke.
+ * <p/>
+ * The index is built from a full load of the persons below a base that match a filter, and rebuilt periodically
+ * once {@link #start() started}. The values of the indexed attributes (cn, givenName, sn and mail by default) are
+ * normalized - lower case, without accents and with runs of spaces and punctuation as word breaks - and kept in
+ * sorted arrays, so a query is a couple of binary searches. The persons are kept as {@link CompactLdapUser}s and
+ * mapped to beans of the given class, e.g. {@link KivPerson} or {@link AdPerson}, only when returned.
+ * <p/>
+ * Use an {@link LdapServiceImpl} as the source to load the persons page by page, or a
+ * {@link se.vgregion.ldapservice.ReplicatingLdapServiceWrapper} to rebuild the index from a local replica.
+ *
+ * @param <T> the bean type of the results.
+ */
+public class PersonSearchIndex<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersonSearchIndex.class);
+    private static final String[] DEFAULT_INDEXED_ATTRIBUTES = {"cn", "givenName", "sn", "mail"};
+    private static final long DEFAULT_REFRESH_INTERVAL_SECONDS = 10 * 60; // 10 minutes
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final char ASCII_LIMIT = 128;
+
+    private final Class<T> type;
+    private final LdapService ldapService;
+    private final String base;
+    private final String filter;
+    private final String[] indexedAttributes;
+    private final String[] returningAttributes;
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService scheduler;
+    private long refreshIntervalSeconds = DEFAULT_REFRESH_INTERVAL_SECONDS;
+
+    /**
+     * Constructor, indexing cn, givenName, sn and mail.
+     *
+     * @param type        the bean type of the results
+     * @param ldapService the service to load the persons with
+     * @param base        the base of the persons
+     * @param filter      the filter of the persons, e.g. <code>(objectClass=person)</code>
+     */
+    public PersonSearchIndex(Class<T> type, LdapService ldapService, String base, String filter) {
+        this(type, ldapService, base, filter, DEFAULT_INDEXED_ATTRIBUTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param type              the bean type of the results
+     * @param ldapService       the service to load the persons with
+     * @param base              the base of the persons
+     * @param filter            the filter of the persons, e.g. <code>(objectClass=person)</code>
+     * @param indexedAttributes the attributes to search in
+     */
+    public PersonSearchIndex(Class<T> type, LdapService ldapService, String base, String filter,
+                             String[] indexedAttributes) {
+        this.type = type;
+        this.ldapService = ldapService;
+        this.base = base;
+        this.filter = filter;
+        this.indexedAttributes = indexedAttributes.clone();
+        Set<String> attributes = new LinkedHashSet<String>(
+                Arrays.asList(LdapFinderService.getReturningAttributes(type)));
+        attributes.addAll(Arrays.asList(indexedAttributes));
+        this.returningAttributes = attributes.toArray(new String[attributes.size()]);
+    }
+
+    /**
+     * Sets the time between rebuilds of the index. Defaults to ten minutes. Has no effect once started.
+     *
+     * @param refreshIntervalSeconds the interval in seconds
+     */
+    public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+        if (refreshIntervalSeconds < 1) {
+            throw new IllegalArgumentException("refreshIntervalSeconds must be at least 1: "
+                    + refreshIntervalSeconds);
+        }
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+
+    /**
+     * Builds the index in the background and rebuilds it periodically. Searches return nothing until the first build
+     * has completed; use {@link #isLoaded()} to tell.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "person-search-index-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Refreshing the person search index failed, keeping the old one: " + e.getMessage(),
+                            e);
+                }
+            }
+        }, 0, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic rebuilds. The index keeps answering searches.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Loads all persons and replaces the index with one built from them.
+     *
+     * @return the number of persons indexed
+     */
+    public int refresh() {
+        final List<CompactLdapUser> persons = new ArrayList<CompactLdapUser>();
+        LdapUserCallbackHandler handler = new LdapUserCallbackHandler() {
+            @Override
+            public void handleLdapUser(LdapUser ldapUser) {
+                persons.add(CompactLdapUser.copyOf(ldapUser));
+            }
+        };
+        if (ldapService instanceof LdapServiceImpl) {
+            ((LdapServiceImpl) ldapService).search(new LdapQuery(base, filter).withAttributes(returningAttributes),
+                    handler);
+        } else {
+            for (LdapUser ldapUser : ldapService.search(base, filter, returningAttributes)) {
+                handler.handleLdapUser(ldapUser);
+            }
+        }
+        build(persons);
+        return persons.size();
+    }
+
+    /**
+     * Replaces the index with one built from the given persons.
+     *
+     * @param persons the persons
+     */
+    public void build(Collection<? extends LdapUser> persons) {
+        snapshot = new Snapshot(persons, indexedAttributes);
+        LOGGER.debug("Built the person search index of " + persons.size() + " persons");
+    }
+
+    /**
+     * @return whether the index has been built
+     */
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return the number of persons in the index
+     */
+    public int size() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.persons.length;
+    }
+
+    /**
+     * Finds the persons with a word starting with each word of the query, in any of the indexed attributes. E.g.
+     * "ann and" finds Anna Andersson and Andreas Annell. Words are separated by spaces and punctuation, so a query for
+     * "anna.andersson@" finds her mail as well.
+     *
+     * @param query the text typed
+     * @param limit the maximum number of persons to return
+     * @return the persons, ordered by their first indexed attribute
+     */
+    public List<T> search(String query, int limit) {
+        Snapshot current = snapshot;
+        String[] words = words(normalize(query));
+        if (current == null || words.length == 0) {
+            return Collections.emptyList();
+        }
+        return toBeans(current, current.words.find(words, limit));
+    }
+
+    /**
+     * Finds the persons with a value of an indexed attribute that starts with the prefix, like an ldap search for
+     * <code>(attribute=prefix*)</code> but ignoring accents.
+     *
+     * @param attribute one of the indexed attributes
+     * @param prefix    the prefix
+     * @param limit     the maximum number of persons to return
+     * @return the persons, ordered by their first indexed attribute
+     */
+    public List<T> searchPrefix(String attribute, String prefix, int limit) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        for (int i = 0; i < indexedAttributes.length; i++) {
+            if (indexedAttributes[i].equalsIgnoreCase(attribute)) {
+                return toBeans(current, current.values[i].find(new String[]{normalize(prefix)}, limit));
+            }
+        }
+        throw new IllegalArgumentException("Not an indexed attribute: " + attribute);
+    }
+
+    private List<T> toBeans(Snapshot current, int[] persons) {
+        AttributesMapper mapper = LdapFinderService.newBeanAttributesMapper(type);
+        List<T> result = new ArrayList<T>(persons.length);
+        try {
+            for (int person : persons) {
+                result.add(type.cast(mapper.mapFromAttributes(
+                        LdapFinderService.toAttributes(current.persons[person]))));
+            }
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String trimmed = text.trim();
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (trimmed.charAt(i) >= ASCII_LIMIT) {
+                String decomposed = Normalizer.normalize(trimmed, Normalizer.Form.NFD);
+                return ACCENTS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ENGLISH);
+            }
+        }
+        return trimmed.toLowerCase(Locale.ENGLISH);
+    }
+
+    static String[] words(String normalized) {
+        List<String> words = new ArrayList<String>(2);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * An immutable index of persons.
+     */
+    private static final class Snapshot {
+
+        private final CompactLdapUser[] persons;
+        // The whole values of each indexed attribute.
+        private final Field[] values;
+        // The words of all indexed attributes.
+        private final Field words;
+
+        Snapshot(Collection<? extends LdapUser> all, String[] indexedAttributes) {
+            persons = new CompactLdapUser[all.size()];
+            final String[] sortKeys = new String[persons.length];
+            Integer[] order = new Integer[persons.length];
+            int n = 0;
+            for (LdapUser person : all) {
+                persons[n] = person instanceof CompactLdapUser ? (CompactLdapUser) person
+                        : CompactLdapUser.copyOf(person);
+                sortKeys[n] = normalize(person.getAttributeValue(indexedAttributes[0]));
+                order[n] = n;
+                n++;
+            }
+            // Number the persons in the order they are returned in.
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return sortKeys[a].compareTo(sortKeys[b]);
+                }
+            });
+            CompactLdapUser[] unsorted = persons.clone();
+            for (int i = 0; i < order.length; i++) {
+                persons[i] = unsorted[order[i]];
+            }
+
+            Field.Builder[] valuesBuilders = new Field.Builder[indexedAttributes.length];
+            for (int a = 0; a < indexedAttributes.length; a++) {
+                valuesBuilders[a] = new Field.Builder(persons.length);
+            }
+            Field.Builder wordsBuilder = new Field.Builder(persons.length);
+            // Person by person, since the words of all attributes go to the same field.
+            for (int i = 0; i < persons.length; i++) {
+                for (int a = 0; a < indexedAttributes.length; a++) {
+                    for (String value : persons[i].getAttributeValues(indexedAttributes[a])) {
+                        String normalized = normalize(value);
+                        if (normalized.length() > 0) {
+                            valuesBuilders[a].add(normalized, i);
+                            for (String word : words(normalized)) {
+                                wordsBuilder.add(word, i);
+                            }
+                        }
+                    }
+                }
+            }
+            values = new Field[indexedAttributes.length];
+            for (int a = 0; a < indexedAttributes.length; a++) {
+                values[a] = valuesBuilders[a].build();
+            }
+            words = wordsBuilder.build();
+        }
+    }
+
+    /**
+     * The distinct keys of a field in sorted order, each with the ascending numbers of the persons that have it, and
+     * the keys of each person.
+     */
+    private static final class Field {
+
+        private static final int[] NONE = new int[0];
+
+        private final String[] keys;
+        private final int[][] postings;
+        // The number of postings of the keys before each key.
+        private final int[] cumulative;
+        private final String[][] byPerson;
+
+        private Field(String[] keys, int[][] postings, String[][] byPerson) {
+            this.keys = keys;
+            this.postings = postings;
+            this.byPerson = byPerson;
+            cumulative = new int[keys.length + 1];
+            for (int i = 0; i < keys.length; i++) {
+                cumulative[i + 1] = cumulative[i] + postings[i].length;
+            }
+        }
+
+        /**
+         * Finds the first persons that have a key starting with each of the prefixes.
+         *
+         * @return the numbers of the persons, ascending
+         */
+        int[] find(String[] prefixes, int limit) {
+            if (prefixes.length == 0 || limit <= 0) {
+                return NONE;
+            }
+            // Start from the prefix with the fewest persons.
+            int low = 0;
+            int high = 0;
+            int fewest = Integer.MAX_VALUE;
+            for (String prefix : prefixes) {
+                int from = lowerBound(prefix);
+                int to = lowerBound(prefix + Character.MAX_VALUE);
+                int count = cumulative[to] - cumulative[from];
+                if (count == 0) {
+                    return NONE;
+                }
+                if (count < fewest) {
+                    fewest = count;
+                    low = from;
+                    high = to;
+                }
+            }
+
+            int[] found = new int[Math.min(limit, byPerson.length)];
+            int size;
+            // The persons are numbered in the order they are returned in, and the postings are ascending, so the first
+            // persons of each key are enough as long as the result doesn't reach past the last of them. Take more of
+            // each key until it doesn't.
+            for (int perKey = found.length; ; perKey *= 4) {
+                BitSet candidates = new BitSet(byPerson.length);
+                int complete = Integer.MAX_VALUE;
+                for (int k = low; k < high; k++) {
+                    int[] persons = postings[k];
+                    int end = Math.min(persons.length, perKey);
+                    for (int i = 0; i < end; i++) {
+                        candidates.set(persons[i]);
+                    }
+                    if (end < persons.length) {
+                        complete = Math.min(complete, persons[end - 1]);
+                    }
+                }
+                size = 0;
+                for (int person = candidates.nextSetBit(0); person >= 0 && person <= complete
+                        && size < found.length; person = candidates.nextSetBit(person + 1)) {
+                    if (prefixes.length == 1 || matches(person, prefixes)) {
+                        found[size++] = person;
+                    }
+                }
+                if (size == found.length || complete == Integer.MAX_VALUE) {
+                    break;
+                }
+            }
+            return size == found.length ? found : Arrays.copyOf(found, size);
+        }
+
+        private boolean matches(int person, String[] prefixes) {
+            for (String prefix : prefixes) {
+                boolean any = false;
+                for (String key : byPerson[person]) {
+                    if (key.startsWith(prefix)) {
+                        any = true;
+                        break;
+                    }
+                }
+                if (!any) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static final class Builder {
+
+            private final Map<String, Postings> postings = new HashMap<String, Postings>();
+            private final List<List<String>> byPerson;
+
+            Builder(int persons) {
+                byPerson = new ArrayList<List<String>>(persons);
+                for (int i = 0; i < persons; i++) {
+                    byPerson.add(new ArrayList<String>(2));
+                }
+            }
+
+            /**
+             * Adds a key of a person. Persons must be added in ascending order.
+             */
+            void add(String key, int person) {
+                Postings list = postings.get(key);
+                if (list == null) {
+                    list = new Postings(key);
+                    postings.put(key, list);
+                } else if (list.persons[list.size - 1] == person) {
+                    return;
+                }
+                list.add(person);
+                // Share one instance of equal keys, e.g. common first names and mail domains.
+                byPerson.get(person).add(list.key);
+            }
+
+            Field build() {
+                String[] keys = postings.keySet().toArray(new String[postings.size()]);
+                Arrays.sort(keys);
+                int[][] sorted = new int[keys.length][];
+                for (int i = 0; i < keys.length; i++) {
+                    Postings list = postings.get(keys[i]);
+                    sorted[i] = Arrays.copyOf(list.persons, list.size);
+                }
+                String[][] keysByPerson = new String[byPerson.size()][];
+                for (int i = 0; i < keysByPerson.length; i++) {
+                    List<String> personKeys = byPerson.get(i);
+                    keysByPerson[i] = personKeys.toArray(new String[personKeys.size()]);
+                }
+                return new Field(keys, sorted, keysByPerson);
+            }
+        }
+
+        private static final class Postings {
+
+            private final String key;
+            private int[] persons = new int[1];
+            private int size;
+
+            Postings(String key) {
+                this.key = key;
+            }
+
+            void add(int person) {
+                if (size == persons.length) {
+                    persons = Arrays.copyOf(persons, size * 2);
+                }
+                persons[size++] = person;
+            }
+        }
+    }
+}
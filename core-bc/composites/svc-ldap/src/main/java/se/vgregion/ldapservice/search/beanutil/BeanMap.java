@@ -7,11 +7,15 @@ import java.beans.BeanInfo;
 import java.beans.PropertyDescriptor;
 import java.util.*;
 
+/**
+ * Map view of the properties of a bean. The property metadata is shared per bean class (see {@link BeanProperties}),
+ * so a BeanMap is cheap to create and can be made on demand rather than kept alongside the bean.
+ */
 public class BeanMap implements Map<String, Object> {
 
     public final static Map<Class<?>, Object> defaultPrimitiveValues = new HashMap<Class<?>, Object>();
 
-    protected final Converters converters = new Converters();
+    protected final Converters converters;
 
     static {
         defaultPrimitiveValues.put(Byte.TYPE, (byte) 0);
@@ -32,7 +36,9 @@ public class BeanMap implements Map<String, Object> {
 
     protected Set<String> keys;
 
-    private final Set<Entry<String, Object>> entries;
+    private final BeanProperties beanProperties;
+
+    private Set<Entry<String, Object>> entries;
 
     /**
      * Makes an instance.
@@ -40,18 +46,11 @@ public class BeanMap implements Map<String, Object> {
      */
     public BeanMap(Object bean) {
         this.bean = bean;
-        beanInfo = MetaHelp.getBeanInfo(bean.getClass());
-        properties = MetaHelp.getDescriptors(beanInfo);
-        keys = Collections.unmodifiableSet(properties.keySet());
-        entries = initEntries();
-    }
-
-    private Set<Entry<String, Object>> initEntries() {
-        Set<Entry<String, Object>> result = new HashSet<Entry<String, Object>>();
-        for (PropertyDescriptor pd : properties.values()) {
-            result.add(new BeanEntry(pd.getName()));
-        }
-        return Collections.unmodifiableSet(result);
+        beanProperties = BeanProperties.of(bean.getClass());
+        converters = Converters.forBeanClass(bean.getClass());
+        beanInfo = beanProperties.getBeanInfo();
+        properties = beanProperties.getDescriptors();
+        keys = beanProperties.getNames();
     }
 
     /**
@@ -59,7 +58,7 @@ public class BeanMap implements Map<String, Object> {
      */
     @Override
     public void clear() {
-        for (PropertyDescriptor pd : getWriteableDescs()) {
+        for (PropertyDescriptor pd : beanProperties.getWritableDescriptors()) {
             Class<?> type = pd.getPropertyType();
             if (type.isPrimitive()) {
                 put(pd.getName(), defaultPrimitiveValues.get(type));
@@ -69,20 +68,6 @@ public class BeanMap implements Map<String, Object> {
         }
     }
 
-    private Set<PropertyDescriptor> getWriteableDescs() {
-        Set<PropertyDescriptor> result = new HashSet<PropertyDescriptor>();
-        for (PropertyDescriptor pd : properties.values()) {
-            if (pd.getWriteMethod() != null) {
-                result.add(pd);
-            }
-        }
-        return result;
-    }
-
-    private PropertyDescriptor getPropertyDesc(String key) {
-        return properties.get(key);
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -104,6 +89,9 @@ public class BeanMap implements Map<String, Object> {
      */
     @Override
     public Set<Entry<String, Object>> entrySet() {
+        if (entries == null) {
+            entries = new EntrySet();
+        }
         return entries;
     }
 
@@ -197,14 +185,14 @@ public class BeanMap implements Map<String, Object> {
 
     @Override
     public int size() {
-        return beanInfo.getPropertyDescriptors().length;
+        return beanProperties.size();
     }
 
     @Override
     public Collection<Object> values() {
         final Collection<Object> result = new HashSet<Object>();
-        for (PropertyDescriptor pd : beanInfo.getPropertyDescriptors()) {
-            result.add(get(pd.getName()));
+        for (String key : keys) {
+            result.add(get(key));
         }
         return result;
     }
@@ -229,10 +217,7 @@ public class BeanMap implements Map<String, Object> {
      * @return true if the value can be set.
      */
     public boolean isWritable(String key) {
-        if (!keySet().contains(key)) {
-            return false;
-        }
-        return getPropertyDesc(key).getWriteMethod() != null;
+        return beanProperties.isWritable(key);
     }
 
     /**
@@ -258,6 +243,20 @@ public class BeanMap implements Map<String, Object> {
         return true;
     }
 
+    /**
+     * Computed the same way as for other maps, from the keys and the current property values, so that it is
+     * consistent with {@link #equals(Object)}.
+     */
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (String key : keys) {
+            Object value = get(key);
+            result += key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        return result;
+    }
+
     private boolean same(Object o1, Object o2) {
         if (o1 == o2) {
             return true;
@@ -269,6 +268,35 @@ public class BeanMap implements Map<String, Object> {
     }
 
 
+    private class EntrySet extends AbstractSet<Entry<String, Object>> {
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+            final Iterator<String> names = keys.iterator();
+            return new Iterator<Entry<String, Object>>() {
+                @Override
+                public boolean hasNext() {
+                    return names.hasNext();
+                }
+
+                @Override
+                public Entry<String, Object> next() {
+                    return new BeanEntry(names.next());
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+    }
+
     class BeanEntry implements Entry<String, Object> {
 
         final String key;
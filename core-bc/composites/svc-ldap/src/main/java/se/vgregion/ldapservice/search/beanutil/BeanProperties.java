@@ -0,0 +1,112 @@
+package se.vgregion.ldapservice.search.beanutil;
+
+import java.beans.BeanInfo;
+import java.beans.PropertyDescriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The properties of a bean class. They are looked up once per class and shared by all {@link BeanMap}s wrapping
+ * instances of that class, so wrapping a bean does not allocate any per property structures.
+ */
+public final class BeanProperties {
+
+    private static final ConcurrentMap<Class<?>, BeanProperties> CACHE =
+            new ConcurrentHashMap<Class<?>, BeanProperties>();
+
+    private final BeanInfo beanInfo;
+
+    private final Map<String, PropertyDescriptor> descriptors;
+
+    private final Set<String> names;
+
+    private final List<PropertyDescriptor> writableDescriptors;
+
+    private BeanProperties(Class<?> type) {
+        beanInfo = MetaHelp.getBeanInfo(type);
+        Map<String, PropertyDescriptor> byName = new HashMap<String, PropertyDescriptor>();
+        List<PropertyDescriptor> writable = new ArrayList<PropertyDescriptor>();
+        for (PropertyDescriptor pd : beanInfo.getPropertyDescriptors()) {
+            byName.put(pd.getName(), pd);
+            if (pd.getWriteMethod() != null) {
+                writable.add(pd);
+            }
+        }
+        descriptors = Collections.unmodifiableMap(byName);
+        names = Collections.unmodifiableSet(byName.keySet());
+        writableDescriptors = Collections.unmodifiableList(writable);
+    }
+
+    /**
+     * Gets the properties of a class, introspecting it the first time.
+     *
+     * @param type the bean class.
+     * @return the shared properties of the class.
+     */
+    public static BeanProperties of(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("Argument cannot be null.");
+        }
+        BeanProperties result = CACHE.get(type);
+        if (result == null) {
+            result = new BeanProperties(type);
+            BeanProperties existing = CACHE.putIfAbsent(type, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    public BeanInfo getBeanInfo() {
+        return beanInfo;
+    }
+
+    /**
+     * @return the property descriptors by property name, unmodifiable.
+     */
+    public Map<String, PropertyDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * @param name name of a property.
+     * @return the descriptor of the property or null if there is no such property.
+     */
+    public PropertyDescriptor getDescriptor(String name) {
+        return descriptors.get(name);
+    }
+
+    /**
+     * @return the property names, unmodifiable.
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @return the descriptors of the properties that have a setter, unmodifiable.
+     */
+    public List<PropertyDescriptor> getWritableDescriptors() {
+        return writableDescriptors;
+    }
+
+    /**
+     * @param name name of a property.
+     * @return true if there is such a property and it has a setter.
+     */
+    public boolean isWritable(String name) {
+        PropertyDescriptor pd = descriptors.get(name);
+        return pd != null && pd.getWriteMethod() != null;
+    }
+
+    public int size() {
+        return descriptors.size();
+    }
+}
@@ -4,141 +4,346 @@
  */
 package se.vgregion.ldapservice.search.beanutil;
 
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Converts attribute values to the types of bean properties. The default converters are kept in one immutable table
+ * shared by all instances, and are thread safe. Custom converters can be registered for a bean class with
+ * {@link #register(Class, Class, Converter)}; they are kept apart from the defaults, which are not copied.
+ * <p/>
+ * Dates are read from <code>yyyy-MM-dd</code>, from LDAP GeneralizedTime (e.g. <code>whenChanged</code>) and from
+ * Active Directory FILETIME, i.e. 100 nanosecond intervals since 1601 (e.g. <code>lastLogon</code>).
+ *
  * @author clalul
  */
 public class Converters {
 
-    private static final Map<Class<?>, Converter> defaultConverters = new HashMap<Class<?>, Converter>();
-    final Map<Class<?>, Converter> converters = new HashMap<Class<?>, Converter>();
-    static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    // Milliseconds between 1601-01-01, where FILETIME starts, and 1970-01-01.
+    private static final long FILETIME_EPOCH_OFFSET_MILLIS = 11644473600000L;
+
+    private static final ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd");
+        }
+    };
+
+    private static final Map<Class<?>, Converter> defaultConverters;
+
+    private static final Converters DEFAULTS = new Converters();
+
+    private static final ConcurrentMap<Class<?>, Converters> BY_BEAN_CLASS =
+            new ConcurrentHashMap<Class<?>, Converters>();
+
+    // The converters registered for one bean class, replaced as a whole when one is added.
+    private volatile Map<Class<?>, Converter> converters;
+
+    /**
+     * Makes an instance with the default converters only.
+     */
     public Converters() {
-        converters.putAll(defaultConverters);
+        converters = Collections.emptyMap();
     }
 
     static {
+        Map<Class<?>, Converter> table = new HashMap<Class<?>, Converter>();
         Converter con;
 
-        defaultConverters.put(Boolean.TYPE, con = new Converter() {
-
+        table.put(Boolean.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Boolean.valueOf(input.toString());
+                if (input instanceof Boolean) {
+                    return input;
+                }
+                return Boolean.valueOf(text(input));
             }
         });
-        defaultConverters.put(Boolean.class, con);
-
-        defaultConverters.put(Character.TYPE, con = new Converter() {
+        table.put(Boolean.class, con);
 
+        table.put(Character.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return input.toString().charAt(0);
+                if (input instanceof Character) {
+                    return input;
+                }
+                return text(input).charAt(0);
             }
         });
-        defaultConverters.put(Character.class, con);
-
-        defaultConverters.put(Byte.TYPE, con = new Converter() {
+        table.put(Character.class, con);
 
+        table.put(Byte.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Byte.valueOf(input.toString());
+                if (input instanceof Number) {
+                    return ((Number) input).byteValue();
+                }
+                return Byte.valueOf(text(input).trim());
             }
         });
-        defaultConverters.put(Byte.class, con);
-
-        defaultConverters.put(Short.TYPE, con = new Converter() {
+        table.put(Byte.class, con);
 
+        table.put(Short.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Short.valueOf(input.toString());
+                if (input instanceof Number) {
+                    return ((Number) input).shortValue();
+                }
+                return Short.valueOf(text(input).trim());
             }
         });
-        defaultConverters.put(Short.class, con);
-
-        defaultConverters.put(Integer.TYPE, con = new Converter() {
+        table.put(Short.class, con);
 
+        table.put(Integer.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Integer.valueOf(input.toString());
+                if (input instanceof Number) {
+                    return ((Number) input).intValue();
+                }
+                return Integer.valueOf(text(input).trim());
             }
         });
-        defaultConverters.put(Integer.class, con);
-
-        defaultConverters.put(Long.TYPE, con = new Converter() {
+        table.put(Integer.class, con);
 
+        table.put(Long.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Long.valueOf(input.toString());
+                if (input instanceof Number) {
+                    return ((Number) input).longValue();
+                }
+                return Long.valueOf(text(input).trim());
             }
         });
-        defaultConverters.put(Long.class, con);
-
-        defaultConverters.put(Float.TYPE, con = new Converter() {
+        table.put(Long.class, con);
 
+        table.put(Float.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Float.valueOf(input.toString());
+                if (input instanceof Number) {
+                    return ((Number) input).floatValue();
+                }
+                return Float.valueOf(text(input).trim());
             }
         });
-        defaultConverters.put(Float.class, con);
+        table.put(Float.class, con);
 
-        defaultConverters.put(Double.TYPE, con = new Converter() {
+        table.put(Double.TYPE, con = new Converter() {
             public Object convert(Object input) {
-                return Double.valueOf(input.toString());
+                if (input instanceof Number) {
+                    return ((Number) input).doubleValue();
+                }
+                return Double.valueOf(text(input).trim());
             }
         });
-        defaultConverters.put(Double.class, con);
+        table.put(Double.class, con);
 
-        defaultConverters.put(Date.class, new Converter() {
+        table.put(Date.class, new Converter() {
             public Object convert(Object input) {
+                if (input instanceof Date) {
+                    return input;
+                }
                 try {
-                    if (!(input instanceof Date)) {
-                        if (input == null || "".equals(input.toString().trim())) {
-                            return null;
-                        }
-                        return sdf.parse(input.toString());
-                    }
+                    return toDate(input);
                 } catch (ParseException pe) {
                     throw new RuntimeException(pe);
                 }
-                return input;
             }
         });
 
-        defaultConverters.put(java.sql.Date.class, new Converter() {
+        table.put(java.sql.Date.class, new Converter() {
             public Object convert(Object input) {
+                if (input instanceof java.sql.Date) {
+                    return input;
+                }
                 try {
-                    if (!(input instanceof java.sql.Date)) {
-                        if (input == null || "".equals(input.toString().trim())) {
-                            return null;
-                        }
-                        Date date = sdf.parse(input.toString());
-                        return new java.sql.Date(date.getTime());
-                    }
+                    Date date = input instanceof Date ? (Date) input : toDate(input);
+                    return date == null ? null : new java.sql.Date(date.getTime());
                 } catch (ParseException pe) {
-
+                    return input;
                 }
-                return input;
             }
         });
-        defaultConverters.put(String.class, con = new Converter() {
+
+        table.put(String.class, new Converter() {
             public Object convert(Object input) {
+                if (input instanceof String) {
+                    return input;
+                }
+                if (input instanceof byte[]) {
+                    return new String((byte[]) input, UTF_8);
+                }
                 return String.valueOf(input);
             }
         });
-        defaultConverters.put(Double.class, con);
-    }
 
+        table.put(byte[].class, new Converter() {
+            public Object convert(Object input) {
+                if (input instanceof String) {
+                    return ((String) input).getBytes(UTF_8);
+                }
+                return input;
+            }
+        });
+
+        defaultConverters = Collections.unmodifiableMap(table);
+    }
 
+    /**
+     * @return the default converters, unmodifiable.
+     */
     public static Map<Class<?>, Converter> getDefaultConverters() {
         return defaultConverters;
     }
 
+    /**
+     * Gets the converters to use for the properties of a bean class: the ones registered for the class or its
+     * closest super class, or else the defaults.
+     *
+     * @param beanClass the bean class.
+     * @return a shared instance.
+     */
+    public static Converters forBeanClass(Class<?> beanClass) {
+        if (BY_BEAN_CLASS.isEmpty()) {
+            return DEFAULTS;
+        }
+        for (Class<?> type = beanClass; type != null; type = type.getSuperclass()) {
+            Converters result = BY_BEAN_CLASS.get(type);
+            if (result != null) {
+                return result;
+            }
+        }
+        return DEFAULTS;
+    }
+
+    /**
+     * Registers a converter for the properties of a type in a bean class and its sub classes. It takes precedence
+     * over the default converter of the type, if any.
+     *
+     * @param beanClass    the bean class.
+     * @param propertyType the type of the properties to use the converter for.
+     * @param converter    the converter.
+     */
+    public static synchronized void register(Class<?> beanClass, Class<?> propertyType, Converter converter) {
+        Converters result = BY_BEAN_CLASS.get(beanClass);
+        if (result == null) {
+            result = new Converters();
+        }
+        Map<Class<?>, Converter> registered = new HashMap<Class<?>, Converter>(result.converters);
+        registered.put(propertyType, converter);
+        result.converters = registered;
+        BY_BEAN_CLASS.put(beanClass, result);
+    }
+
     public Object convert(Class<?> clazz, Object value) {
-        if (defaultConverters.containsKey(clazz)) {
-            return converters.get(clazz).convert(value);
-        } else {
+        Converter converter = converters.isEmpty() ? null : converters.get(clazz);
+        if (converter == null) {
+            converter = defaultConverters.get(clazz);
+        }
+        if (converter == null) {
             return value;
         }
+        return converter.convert(value);
+    }
+
+    private static String text(Object input) {
+        if (input instanceof byte[]) {
+            return new String((byte[]) input, UTF_8);
+        }
+        return input.toString();
+    }
+
+    /**
+     * Reads a date from <code>yyyy-MM-dd</code>, GeneralizedTime or FILETIME text. Empty text, and the FILETIME values
+     * zero and Long.MAX_VALUE that Active Directory uses for 'never', give null.
+     */
+    static Date toDate(Object input) throws ParseException {
+        if (input == null) {
+            return null;
+        }
+        String text = text(input).trim();
+        if (text.length() == 0) {
+            return null;
+        }
+        if (text.length() >= 10 && text.charAt(4) == '-') {
+            return sdf.get().parse(text);
+        }
+        int digits = 0;
+        while (digits < text.length() && Character.isDigit(text.charAt(digits))) {
+            digits++;
+        }
+        if (digits == text.length() && (digits < 10 || digits > 14)) {
+            return fromFileTime(Long.parseLong(text));
+        }
+        if (digits >= 10) {
+            return fromGeneralizedTime(text);
+        }
+        throw new ParseException("Unparseable date: \"" + text + "\"", 0);
+    }
+
+    static Date fromFileTime(long fileTime) {
+        if (fileTime <= 0 || fileTime == Long.MAX_VALUE) {
+            return null;
+        }
+        return new Date(fileTime / 10000 - FILETIME_EPOCH_OFFSET_MILLIS);
+    }
+
+    /**
+     * Reads GeneralizedTime, <code>yyyyMMddHH[mm[ss]][(.|,)fraction][Z|(+|-)hh[mm]]</code>. The fraction is taken as
+     * a fraction of a second. Without a time zone the time is local.
+     */
+    static Date fromGeneralizedTime(String text) throws ParseException {
+        try {
+            int length = text.length();
+            int year = Integer.parseInt(text.substring(0, 4));
+            int month = Integer.parseInt(text.substring(4, 6));
+            int day = Integer.parseInt(text.substring(6, 8));
+            int hour = Integer.parseInt(text.substring(8, 10));
+            int minute = 0;
+            int second = 0;
+            int millis = 0;
+            int pos = 10;
+            if (pos + 2 <= length && Character.isDigit(text.charAt(pos))) {
+                minute = Integer.parseInt(text.substring(pos, pos + 2));
+                pos += 2;
+                if (pos + 2 <= length && Character.isDigit(text.charAt(pos))) {
+                    second = Integer.parseInt(text.substring(pos, pos + 2));
+                    pos += 2;
+                }
+            }
+            if (pos < length && (text.charAt(pos) == '.' || text.charAt(pos) == ',')) {
+                pos++;
+                int start = pos;
+                while (pos < length && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                String fraction = (text.substring(start, pos) + "000").substring(0, 3);
+                millis = Integer.parseInt(fraction);
+            }
+            TimeZone zone = TimeZone.getDefault();
+            if (pos < length) {
+                char sign = text.charAt(pos);
+                if (sign == 'Z' && pos + 1 == length) {
+                    zone = UTC;
+                } else if ((sign == '+' || sign == '-') && (length - pos == 3 || length - pos == 5)) {
+                    zone = TimeZone.getTimeZone("GMT" + text.substring(pos));
+                } else {
+                    throw new ParseException("Unparseable date: \"" + text + "\"", pos);
+                }
+            }
+            Calendar calendar = new GregorianCalendar(zone);
+            calendar.clear();
+            calendar.set(year, month - 1, day, hour, minute, second);
+            calendar.set(Calendar.MILLISECOND, millis);
+            return calendar.getTime();
+        } catch (NumberFormatException e) {
+            throw new ParseException("Unparseable date: \"" + text + "\"", 0);
+        }
     }
 }
@@ -7,12 +7,13 @@ import java.beans.PropertyDescriptor;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MetaHelp {
 
-    private static Map<Class<?>, BeanInfo> beanInfoCache = new HashMap<Class<?>, BeanInfo>();
+    private static Map<Class<?>, BeanInfo> beanInfoCache = new ConcurrentHashMap<Class<?>, BeanInfo>();
 
-    private static Map<BeanInfo, Map<String, PropertyDescriptor>> descriptors = new HashMap<BeanInfo, Map<String, PropertyDescriptor>>();
+    private static Map<BeanInfo, Map<String, PropertyDescriptor>> descriptors = new ConcurrentHashMap<BeanInfo, Map<String, PropertyDescriptor>>();
 
     public static BeanInfo getBeanInfo(Class<?> clazz) {
         if (clazz == null) throw new IllegalArgumentException("Argument cannot be null.");
@@ -35,6 +36,8 @@ public class MetaHelp {
             for (PropertyDescriptor pd : key.getPropertyDescriptors()) {
                 result.put(pd.getName(), pd);
             }
+            result = Collections.unmodifiableMap(result);
+            descriptors.put(key, result);
         }
         return result;
     }
@@ -0,0 +1,308 @@
+package se.vgregion.ldapservice.search.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@code se.vgregion.ldapservice.search.LdapBeanMapper} for every class with fields annotated with
+ * {@code se.vgregion.ldapservice.search.ExplicitLdapName}. The mapper sets the properties of the bean by attribute id
+ * and builds search filters from a sample bean, calling the accessors directly.
+ * <p/>
+ * Only public, concrete, top level classes with a public no-argument constructor get a mapper; other classes are
+ * mapped with reflection as before. The attribute id of a property is the value of the annotation on its field, or the
+ * property name when the field is not annotated.
+ * <p/>
+ * The processor does not depend on the rest of the module so that it can be compiled before it; see the pom.
+ */
+@SupportedAnnotationTypes(ExplicitLdapNameProcessor.EXPLICIT_LDAP_NAME)
+public class ExplicitLdapNameProcessor extends AbstractProcessor {
+
+    static final String EXPLICIT_LDAP_NAME = "se.vgregion.ldapservice.search.ExplicitLdapName";
+    static final String MAPPER_CLASS = "se.vgregion.ldapservice.search.LdapBeanMapper";
+    static final String NAME_SUFFIX = "LdapBeanMapper";
+
+    private final Set<String> generated = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(EXPLICIT_LDAP_NAME);
+        if (annotation == null) {
+            return false;
+        }
+        Set<TypeElement> beans = new LinkedHashSet<TypeElement>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            Element enclosing = element.getEnclosingElement();
+            if (enclosing instanceof TypeElement) {
+                beans.add((TypeElement) enclosing);
+            }
+        }
+        for (TypeElement bean : beans) {
+            if (isMappable(bean) && generated.add(bean.getQualifiedName().toString())) {
+                try {
+                    generate(bean);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Could not generate ldap mapper: " + e.getMessage(), bean);
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isMappable(TypeElement bean) {
+        Set<Modifier> modifiers = bean.getModifiers();
+        if (bean.getNestingKind() != NestingKind.TOP_LEVEL || !modifiers.contains(Modifier.PUBLIC)
+                || modifiers.contains(Modifier.ABSTRACT) || !bean.getTypeParameters().isEmpty()) {
+            note(bean, "not a public, concrete, non generic top level class");
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(bean.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+        note(bean, "no public no-argument constructor");
+        return false;
+    }
+
+    private void note(TypeElement bean, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "No ldap mapper generated for " + bean.getQualifiedName() + ", " + reason + ".", bean);
+    }
+
+    private void generate(TypeElement bean) throws IOException {
+        List<Property> properties = getProperties(bean);
+        String packageName = ((PackageElement) bean.getEnclosingElement()).getQualifiedName().toString();
+        String beanName = bean.getSimpleName().toString();
+        String mapperName = beanName + NAME_SUFFIX;
+        String qualifiedMapperName = packageName.length() == 0 ? mapperName : packageName + "." + mapperName;
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedMapperName, bean);
+        PrintWriter out = new PrintWriter(file.openWriter());
+        try {
+            if (packageName.length() != 0) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Maps ldap attributes to {@link " + beanName + "}.");
+            out.println(" * Generated by " + getClass().getName() + ", do not edit.");
+            out.println(" */");
+            out.println("public final class " + mapperName + " extends " + MAPPER_CLASS + "<" + beanName + "> {");
+            out.println();
+            out.println("    private static final java.util.Map<String, Integer> INDEX = "
+                    + "new java.util.HashMap<String, Integer>();");
+            out.println();
+            out.println("    static {");
+            for (int i = 0; i < properties.size(); i++) {
+                Property property = properties.get(i);
+                if (property.setter != null) {
+                    out.println("        INDEX.put(" + quote(property.attributeId) + ", " + i + ");");
+                }
+            }
+            out.println("    }");
+            out.println();
+            out.println("    public " + mapperName + "() {");
+            out.println("        super(" + beanName + ".class);");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + beanName + " newInstance() {");
+            out.println("        return new " + beanName + "();");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public boolean setAttribute(" + beanName + " bean, String attributeId, Object value) {");
+            out.println("        Integer index = INDEX.get(attributeId);");
+            out.println("        if (index == null) {");
+            out.println("            return false;");
+            out.println("        }");
+            out.println("        switch (index) {");
+            for (int i = 0; i < properties.size(); i++) {
+                Property property = properties.get(i);
+                if (property.setter != null) {
+                    out.println("            case " + i + ":");
+                    out.println("                bean." + property.setter + "((" + property.castType + ") convert("
+                            + property.classLiteral + ", value));");
+                    out.println("                return true;");
+                }
+            }
+            out.println("            default:");
+            out.println("                return false;");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void appendFilter(" + beanName + " sample, "
+                    + "org.springframework.ldap.filter.AndFilter filter) {");
+            for (Property property : properties) {
+                if (property.setter != null && property.getter != null) {
+                    out.println("        appendFilter(filter, " + quote(property.attributeId) + ", sample."
+                            + property.getter + "());");
+                }
+            }
+            out.println("    }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Collects the bean properties in declaration order, super class properties first, like the
+     * {@link java.beans.Introspector} would find them.
+     */
+    private List<Property> getProperties(TypeElement bean) {
+        List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+        for (TypeElement type = bean; type != null; type = getSuperclass(type)) {
+            hierarchy.add(0, type);
+        }
+
+        Map<String, String> explicitNames = new HashMap<String, String>();
+        Map<String, Property> properties = new LinkedHashMap<String, Property>();
+        for (TypeElement type : hierarchy) {
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                String explicitName = getExplicitName(field);
+                if (explicitName != null) {
+                    explicitNames.put(field.getSimpleName().toString(), explicitName);
+                } else {
+                    explicitNames.remove(field.getSimpleName().toString());
+                }
+            }
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                Set<Modifier> modifiers = method.getModifiers();
+                if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)) {
+                    continue;
+                }
+                String name = method.getSimpleName().toString();
+                int parameters = method.getParameters().size();
+                if (name.startsWith("set") && name.length() > 3 && parameters == 1
+                        && method.getReturnType().getKind() == TypeKind.VOID) {
+                    Property property = getProperty(properties, Introspector.decapitalize(name.substring(3)));
+                    property.setter = name;
+                    setType(property, method.getParameters().get(0).asType());
+                } else if (name.startsWith("get") && name.length() > 3 && parameters == 0
+                        && method.getReturnType().getKind() != TypeKind.VOID && !"getClass".equals(name)) {
+                    getProperty(properties, Introspector.decapitalize(name.substring(3))).getter = name;
+                } else if (name.startsWith("is") && name.length() > 2 && parameters == 0
+                        && method.getReturnType().getKind() == TypeKind.BOOLEAN) {
+                    getProperty(properties, Introspector.decapitalize(name.substring(2))).getter = name;
+                }
+            }
+        }
+
+        List<Property> result = new ArrayList<Property>();
+        for (Property property : properties.values()) {
+            String explicitName = explicitNames.get(property.name);
+            property.attributeId = explicitName != null ? explicitName : property.name;
+            result.add(property);
+        }
+        return result;
+    }
+
+    private TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        if (Object.class.getName().equals(element.getQualifiedName().toString())) {
+            return null;
+        }
+        return element;
+    }
+
+    private Property getProperty(Map<String, Property> properties, String name) {
+        Property property = properties.get(name);
+        if (property == null) {
+            property = new Property(name);
+            properties.put(name, property);
+        }
+        return property;
+    }
+
+    private void setType(Property property, TypeMirror type) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        String typeName = erased.toString();
+        property.classLiteral = typeName + ".class";
+        if (erased.getKind().isPrimitive()) {
+            property.castType = processingEnv.getTypeUtils().boxedClass(
+                    processingEnv.getTypeUtils().getPrimitiveType(erased.getKind())).getQualifiedName().toString();
+        } else {
+            property.castType = typeName;
+        }
+    }
+
+    private String getExplicitName(VariableElement field) {
+        for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            if (EXPLICIT_LDAP_NAME.equals(annotationType.getQualifiedName().toString())) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                        : mirror.getElementValues().entrySet()) {
+                    if ("value".equals(entry.getKey().getSimpleName().toString())) {
+                        return (String) entry.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class Property {
+
+        final String name;
+        String attributeId;
+        String setter;
+        String getter;
+        String castType;
+        String classLiteral;
+
+        Property(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package se.vgregion.ldapservice.search.processor;
+
+/**
+ * Annotation processor that generates se.vgregion.ldapservice.search.LdapBeanMapper implementations for beans used
+ * with se.vgregion.ldapservice.search.LdapFinderService. Compiled separately, before the rest of the module.
+ */
@@ -1,27 +1,59 @@
 package se.vgregion.ldapservice;
 
-import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.CacheManager;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.util.StopWatch;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Patrik Bergström
  */
 public class AsyncCachingLdapServiceTest {
 
+    // Each test has caches of its own.
+    private CacheManager cacheManager;
+
+    @Before
+    public void setUp() {
+        cacheManager = new CacheManager();
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.shutdown();
+    }
+
     @Test
     public void testGetLdapUserByUidAsyncCapability() throws Exception {
         SlowMockLdapService ldapService = new SlowMockLdapService(2000);
 
-        AsyncCachingLdapServiceWrapper asyncCachingLdapService = new AsyncCachingLdapServiceWrapper(ldapService, 5);
+        AsyncCachingLdapServiceWrapper asyncCachingLdapService = new AsyncCachingLdapServiceWrapper(ldapService, 5,
+                cacheManager);
 
         LdapUser ldapUser = asyncCachingLdapService.getLdapUserByUid("doesn't matter");
 
@@ -38,8 +70,8 @@ public class AsyncCachingLdapServiceTest {
 
         ldapUser = asyncCachingLdapService.getLdapUserByUid("just another user");
 
-        // If we wait now the user attributes should be ready.
-        Thread.sleep(2000);
+        // Once the lookup is done the user attributes should be ready.
+        awaitLoad(asyncCachingLdapService, AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "just another user"));
 
         stopWatch = new StopWatch();
         stopWatch.start();
@@ -54,7 +86,8 @@ public class AsyncCachingLdapServiceTest {
     public void testGetLdapUserByUidCacheCapability() throws Exception {
         SlowMockLdapService ldapService = new SlowMockLdapService(500);
 
-        AsyncCachingLdapServiceWrapper asyncCachingLdapService = new AsyncCachingLdapServiceWrapper(ldapService, 5000);
+        AsyncCachingLdapServiceWrapper asyncCachingLdapService = new AsyncCachingLdapServiceWrapper(ldapService, 5000,
+                cacheManager);
 
         LdapUser ldapUser = asyncCachingLdapService.getLdapUserByUid("a specific id");
 
@@ -80,23 +113,295 @@ public class AsyncCachingLdapServiceTest {
         assertTrue(stopWatch.getTotalTimeMillis() < 100);
     }
 
-    // The AsyncCachingLdapServiceWrapper should remove objects that are null from cache since they may be null because
-    // of some error and we don't want that to be cached.
+    // The AsyncCachingLdapServiceWrapper should not keep users that are null among the cached users since they may be
+    // null because of some error. They are remembered in the short-lived negative cache instead.
     @Test
     public void testClearCacheFromNullObjects() throws InterruptedException {
-        ReturnNullMockLdapService ldapService = new ReturnNullMockLdapService();
+        ReturnNullMockLdapService ldapService = Mockito.spy(new ReturnNullMockLdapService());
+
+        final long[] now = {System.currentTimeMillis()};
+        AsyncCachingLdapServiceWrapper asyncCachingLdapService = new AsyncCachingLdapServiceWrapper(ldapService, 50000,
+                1, 10, 500, 0, cacheManager) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+
+        // Waits for the lookup, which has moved the user to the negative cache once it is done.
+        LdapUser ldapUser = asyncCachingLdapService.getLdapUserByUid("a specific id");
+        assertNull(ldapUser.getDn());
 
-        AsyncCachingLdapServiceWrapper asyncCachingLdapService = new AsyncCachingLdapServiceWrapper(ldapService, 50000);
+        assertEquals(0, asyncCachingLdapService.getCache().getStatistics().getObjectCount());
+        assertEquals(1, asyncCachingLdapService.getNegativeCache().getStatistics().getObjectCount());
 
-        LdapUser ldapUser = asyncCachingLdapService.getLdapUserByUid("a specific id");
+        assertNull(asyncCachingLdapService.getLdapUserByUid("a specific id").getDn());
+        Mockito.verify(ldapService, Mockito.times(1)).getLdapUserByUid("a specific id");
+
+        now[0] += 1100;
+
+        assertNull(asyncCachingLdapService.getLdapUserByUid("a specific id").getDn());
+        Mockito.verify(ldapService, Mockito.times(2)).getLdapUserByUid("a specific id");
+    }
+
+    @Test
+    public void testCacheKeysDistinguishOperationsAndArguments() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        LdapUser[] allAttributes = new LdapUser[]{new SimpleLdapUser("cn=all")};
+        LdapUser[] onlyMail = new LdapUser[]{new SimpleLdapUser("cn=mail")};
+        Mockito.when(ldapService.search("ou=a", "(cn=x)")).thenReturn(allAttributes);
+        Mockito.when(ldapService.search("ou=a", "(cn=x)", new String[]{"mail", "cn"})).thenReturn(onlyMail);
+
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60, cacheManager);
+
+        assertEquals("cn=all", wrapper.search("ou=a", "(cn=x)")[0].getDn());
+        assertEquals("cn=mail", wrapper.search("ou=a", "(cn=x)", new String[]{"mail", "cn"})[0].getDn());
+        // Same attribute set in another order hits the cache.
+        assertEquals("cn=mail", wrapper.search("ou=a", "(cn=x)", new String[]{"cn", "mail"})[0].getDn());
+
+        Mockito.verify(ldapService, Mockito.times(1)).search("ou=a", "(cn=x)");
+        Mockito.verify(ldapService, Mockito.times(1)).search("ou=a", "(cn=x)", new String[]{"mail", "cn"});
+
+        assertTrue(!AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "Aa").equals(
+                AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "BB")));
+        assertTrue(!AsyncCachingLdapServiceWrapper.CacheKey.forUid("ou=a", "x").equals(
+                AsyncCachingLdapServiceWrapper.CacheKey.forLdapUser("ou=a", "x", null)));
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneDirectoryCall() throws Exception {
+        final SlowMockLdapService ldapService = new SlowMockLdapService(500);
+        final AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60,
+                cacheManager);
+
+        final int callers = 100;
+        final int keys = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callerThreads = Executors.newFixedThreadPool(callers);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < callers; i++) {
+            final int key = i % keys;
+            results.add(callerThreads.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    start.await();
+                    String searchDn = wrapper.search("ou=" + key, "(cn=*)")[0].getDn();
+                    String userDn = wrapper.getLdapUserByUid("uid" + key).getDn();
+                    return searchDn + userDn;
+                }
+            }));
+        }
+        start.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("someDnsomeDn", result.get());
+        }
+        callerThreads.shutdown();
+
+        assertEquals(keys, ldapService.getSearchCalls());
+        assertEquals(keys, ldapService.getLdapUserByUidCalls());
+    }
+
+    @Test
+    public void testRefreshAheadReturnsCachedValueAndReloadsInBackground() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        LdapUser[] first = new LdapUser[]{new SimpleLdapUser("cn=first")};
+        LdapUser[] second = new LdapUser[]{new SimpleLdapUser("cn=second")};
+        Mockito.when(ldapService.search("ou=a", "(cn=x)")).thenReturn(first, second);
+
+        final long[] now = {System.currentTimeMillis()};
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 2, cacheManager) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        wrapper.setRefreshAheadFactor(0.5);
+
+        assertEquals("cn=first", wrapper.search("ou=a", "(cn=x)")[0].getDn());
+
+        now[0] += 1200;
+
+        // Past the refresh point the cached value is still returned immediately...
+        assertEquals("cn=first", wrapper.search("ou=a", "(cn=x)")[0].getDn());
+
+        awaitLoad(wrapper, AsyncCachingLdapServiceWrapper.CacheKey.forSearch("ou=a", "(cn=x)", null));
+
+        // ...and the background reload has replaced it.
+        assertEquals("cn=second", wrapper.search("ou=a", "(cn=x)")[0].getDn());
+        Mockito.verify(ldapService, Mockito.times(2)).search("ou=a", "(cn=x)");
+    }
+
+    @Test
+    public void testStaleValueIsServedWhenDirectoryFails() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        LdapUser[] first = new LdapUser[]{new SimpleLdapUser("cn=first")};
+        Mockito.when(ldapService.search("ou=a", "(cn=x)")).thenReturn(first).thenThrow(
+                new RuntimeException("directory down"));
 
-        Ehcache cache = asyncCachingLdapService.getCache();
+        final long[] now = {System.currentTimeMillis()};
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 1, cacheManager) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        wrapper.setStaleGracePeriodSeconds(60);
 
-        assertEquals(1, cache.getStatistics().getObjectCount());
+        assertEquals("cn=first", wrapper.search("ou=a", "(cn=x)")[0].getDn());
 
-        Thread.sleep(6000);
+        now[0] += 1200;
 
-        assertEquals(0, cache.getStatistics().getObjectCount());
+        assertEquals("cn=first", wrapper.search("ou=a", "(cn=x)")[0].getDn());
+        Mockito.verify(ldapService, Mockito.times(2)).search("ou=a", "(cn=x)");
+    }
+
+    @Test
+    public void testGetLdapUsersByUidsOnlyQueriesUncachedUids() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        Mockito.when(ldapService.getLdapUserByUid("cached")).thenReturn(new SimpleLdapUser("uid=cached"));
+        Mockito.when(ldapService.getLdapUsersByUids(Arrays.asList("fresh", "unknown"))).thenReturn(
+                Collections.<String, LdapUser>singletonMap("fresh", new SimpleLdapUser("uid=fresh")));
+
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60, cacheManager);
+        assertEquals("uid=cached", wrapper.getLdapUserByUid("cached").getDn());
+
+        Map<String, LdapUser> users = wrapper.getLdapUsersByUids(Arrays.asList("cached", "fresh", "unknown"));
+
+        assertEquals(2, users.size());
+        assertEquals("uid=cached", users.get("cached").getDn());
+        assertEquals("uid=fresh", users.get("fresh").getDn());
+        Mockito.verify(ldapService).getLdapUsersByUids(Arrays.asList("fresh", "unknown"));
+
+        // Both the found and the unknown uid are now cached per uid.
+        assertEquals("uid=fresh", wrapper.getLdapUserByUid("fresh").getDn());
+        assertNull(wrapper.getLdapUserByUid("unknown").getDn());
+        Mockito.verify(ldapService, Mockito.never()).getLdapUserByUid("fresh");
+        Mockito.verify(ldapService, Mockito.never()).getLdapUserByUid("unknown");
+    }
+
+    @Test
+    public void testSnapshotRestoresElementsWithTheirRemainingTimeToLive() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        Mockito.when(ldapService.getLdapUserByUid("a")).thenReturn(new SimpleLdapUser("uid=a"));
+        Mockito.when(ldapService.search("ou=a", "(cn=x)")).thenReturn(new LdapUser[]{new SimpleLdapUser("cn=x")});
+        File snapshot = File.createTempFile("ldapcache", ".ser");
+        snapshot.deleteOnExit();
+
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60, cacheManager);
+        wrapper.setSnapshotFile(snapshot);
+        assertEquals("uid=a", wrapper.getLdapUserByUid("a").getDn());
+        wrapper.search("ou=a", "(cn=x)");
+        AsyncCachingLdapServiceWrapper.CacheKey uidKey = AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "a");
+        long creationTime = wrapper.getCache().getQuiet(uidKey).getCreationTime();
+        wrapper.shutdown();
+
+        // A new instance with caches of its own starts from empty, as after a restart.
+        CacheManager restartedCacheManager = new CacheManager();
+        try {
+            AsyncCachingLdapServiceWrapper restarted = new AsyncCachingLdapServiceWrapper(ldapService, 60,
+                    restartedCacheManager);
+            restarted.setSnapshotFile(snapshot);
+            assertEquals(Integer.valueOf(2), restarted.restoreSnapshot().get());
+
+            assertEquals(creationTime, restarted.getCache().getQuiet(uidKey).getCreationTime());
+            assertEquals("uid=a", restarted.getLdapUserByUid("a").getDn());
+            assertEquals("cn=x", restarted.search("ou=a", "(cn=x)")[0].getDn());
+            Mockito.verify(ldapService, Mockito.times(1)).getLdapUserByUid("a");
+            Mockito.verify(ldapService, Mockito.times(1)).search("ou=a", "(cn=x)");
+        } finally {
+            restartedCacheManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetricsCountHitsMissesAndLoads() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        Mockito.when(ldapService.search("ou=a", "(cn=x)")).thenReturn(new LdapUser[]{new SimpleLdapUser("cn=x")});
+
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60, cacheManager);
+        wrapper.search("ou=a", "(cn=x)");
+        wrapper.search("ou=a", "(cn=x)");
+        wrapper.search("ou=a", "(cn=x)");
+
+        CacheMetrics.Snapshot metrics = wrapper.getMetrics().snapshot();
+        assertEquals(2, metrics.getHitCount());
+        assertEquals(1, metrics.getMissCount());
+        assertEquals(1, metrics.getLoads().getCount());
+        assertEquals(0, metrics.getInFlightLoads());
+        assertEquals(2.0 / 3, metrics.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testChangesRefreshTheAffectedReadsWhenRefreshOnChangeIsSet() throws Exception {
+        LdapService ldapService = Mockito.mock(LdapService.class);
+        LdapUser[] first = new LdapUser[]{new SimpleLdapUser("cn=x,ou=a")};
+        LdapUser[] second = new LdapUser[]{new SimpleLdapUser("cn=x,ou=a")};
+        Mockito.when(ldapService.search("ou=a", "(cn=x)")).thenReturn(first, second);
+        Mockito.when(ldapService.search("ou=b", "(cn=y)")).thenReturn(new LdapUser[0]);
+
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60, cacheManager);
+        wrapper.setRefreshOnChange(true);
+        assertSame(first, wrapper.search("ou=a", "(cn=x)"));
+        wrapper.search("ou=b", "(cn=y)");
+
+        wrapper.entriesChanged(Collections.singletonList(new LdapChange(LdapChange.Type.MODIFY, "CN=x, ou=a", null,
+                null)));
+        awaitLoad(wrapper, AsyncCachingLdapServiceWrapper.CacheKey.forSearch("ou=a", "(cn=x)", null));
+
+        assertSame(second, wrapper.search("ou=a", "(cn=x)"));
+        wrapper.search("ou=b", "(cn=y)");
+        assertEquals(1, wrapper.getMetrics().getInvalidationCount());
+        Mockito.verify(ldapService, Mockito.times(2)).search("ou=a", "(cn=x)");
+        Mockito.verify(ldapService, Mockito.times(1)).search("ou=b", "(cn=y)");
+    }
+
+    @Test
+    public void testChangesEvictOnlyTheLookupsHoldingTheEntry() throws Exception {
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(new UidDirectory("c", "d"), 60,
+                cacheManager);
+        wrapper.getLdapUsersByUids(Arrays.asList("c", "d"));
+
+        // The feed reports the full name, the service returned it relative to its base.
+        wrapper.entriesChanged(Collections.singletonList(new LdapChange(LdapChange.Type.MODIFY, "UID=c,ou=people,o=org",
+                null, null)));
+
+        assertNull(wrapper.getCache().getQuiet(AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "c")));
+        assertNotNull(wrapper.getCache().getQuiet(AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "d")));
+        assertEquals(1, wrapper.getMetrics().getInvalidationCount());
+    }
+
+    @Test
+    public void testChangesOnlyForgetTheNotFoundResultsTheyMayAnswer() throws Exception {
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(new UidDirectory(), 60,
+                cacheManager);
+        wrapper.getLdapUsersByUids(Arrays.asList("a", "b"));
+
+        CompactLdapUser added = new CompactLdapUser("uid=a,ou=people");
+        added.setAttributeValue("uid", "a");
+        wrapper.entriesChanged(Collections.singletonList(new LdapChange(LdapChange.Type.ADD, added.getDn(), null,
+                added)));
+
+        assertNull(wrapper.getNegativeCache().get(AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "a")));
+        assertNotNull(wrapper.getNegativeCache().get(AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "b")));
+    }
+
+    @Test
+    public void testReadingAUserWaitsAtMostTheGetTimeout() throws Exception {
+        SlowMockLdapService ldapService = new SlowMockLdapService(2000);
+        AsyncCachingLdapServiceWrapper wrapper = new AsyncCachingLdapServiceWrapper(ldapService, 60, cacheManager);
+        wrapper.setGetTimeoutMillis(200);
+
+        LdapUser ldapUser = wrapper.getLdapUserByUid("slow user");
+
+        long start = System.currentTimeMillis();
+        try {
+            ldapUser.getDn();
+            fail();
+        } catch (LdapUserRetrievalException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
     }
 
     @Test
@@ -109,7 +414,8 @@ public class AsyncCachingLdapServiceTest {
         LdapService ldapService = Mockito.mock(LdapService.class);
         AsyncCachingLdapServiceWrapper serviceWrapper = new AsyncCachingLdapServiceWrapper(ldapService);
         AsyncCachingLdapServiceWrapper.AsyncLdapUserWrapper ldapUserWrapper = new AsyncCachingLdapServiceWrapper
-                .AsyncLdapUserWrapper(new AsyncResult<LdapUser>(ldapUser), 1234);
+                .AsyncLdapUserWrapper(new AsyncResult<LdapUser>(ldapUser),
+                AsyncCachingLdapServiceWrapper.CacheKey.forUid(null, "1234"));
         oos.writeObject(ldapUserWrapper);
 
         // Read input
@@ -121,4 +427,44 @@ public class AsyncCachingLdapServiceTest {
         // Verify
         assertEquals("someDn", dn);
     }
+
+    /**
+     * Waits for the load of the key that is in flight, if any, including putting its result in the cache.
+     */
+    private static void awaitLoad(AsyncCachingLdapServiceWrapper wrapper,
+                                  AsyncCachingLdapServiceWrapper.CacheKey cacheKey) throws Exception {
+        Future<?> load = wrapper.getInFlightLoad(cacheKey);
+        if (load != null) {
+            load.get();
+        }
+    }
+
+    /**
+     * Finds the given uids, each at uid=...,ou=people.
+     */
+    private static class UidDirectory extends ReturnNullMockLdapService {
+
+        private final List<String> uids;
+
+        UidDirectory(String... uids) {
+            this.uids = Arrays.asList(uids);
+        }
+
+        @Override
+        public LdapUser getLdapUserByUid(String uid) {
+            return uids.contains(uid) ? new SimpleLdapUser("uid=" + uid + ",ou=people") : null;
+        }
+
+        @Override
+        public Map<String, LdapUser> getLdapUsersByUids(Collection<String> requested) {
+            Map<String, LdapUser> found = new HashMap<String, LdapUser>();
+            for (String uid : requested) {
+                LdapUser ldapUser = getLdapUserByUid(uid);
+                if (ldapUser != null) {
+                    found.put(uid, ldapUser);
+                }
+            }
+            return found;
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package se.vgregion.ldapservice;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for CircuitBreakerLdapService.
+ */
+public class CircuitBreakerLdapServiceTest {
+
+    private final FlakyLdapService directory = new FlakyLdapService();
+    private final long[] now = {System.currentTimeMillis()};
+    private final CircuitBreakerLdapService service = new CircuitBreakerLdapService(directory) {
+        @Override
+        long currentTimeMillis() {
+            return now[0];
+        }
+    };
+
+    @After
+    public void tearDown() {
+        directory.release.countDown();
+        service.shutdown();
+    }
+
+    @Test
+    public void callsThatTakeTooLongTimeOut() {
+        service.setTimeoutMillis(100);
+        directory.hang = true;
+
+        long start = System.currentTimeMillis();
+        try {
+            service.getLdapUserByUid("a");
+            fail();
+        } catch (LdapServiceUnavailableException e) {
+            // Expected.
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, service.getConsecutiveFailures());
+    }
+
+    @Test
+    public void opensAfterFailuresInARowAndProbesAfterTheOpenPeriod() {
+        service.setFailureThreshold(3);
+        service.setOpenMillis(200);
+        directory.fail = true;
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                service.getLdapUserByUid("a");
+                fail();
+            } catch (IllegalStateException e) {
+                // The directory failure is passed on.
+            }
+        }
+        assertEquals(CircuitBreakerLdapService.State.OPEN, service.getState());
+
+        try {
+            service.getLdapUserByUid("a");
+            fail();
+        } catch (LdapServiceUnavailableException e) {
+            // Failing fast, the directory was not called.
+        }
+        assertEquals(3, directory.calls.get());
+
+        now[0] += 250;
+        directory.fail = false;
+        assertNull(service.getLdapUserByUid("a"));
+        assertEquals(CircuitBreakerLdapService.State.CLOSED, service.getState());
+        assertEquals(4, directory.calls.get());
+    }
+
+    @Test
+    public void aFailedProbeOpensTheCircuitAgain() {
+        service.setFailureThreshold(1);
+        service.setOpenMillis(100);
+        directory.fail = true;
+
+        try {
+            service.getLdapUserByUid("a");
+            fail();
+        } catch (IllegalStateException e) {
+            // Opens the circuit.
+        }
+        now[0] += 150;
+        try {
+            service.getLdapUserByUid("a");
+            fail();
+        } catch (IllegalStateException e) {
+            // The probe failed.
+        }
+        assertEquals(CircuitBreakerLdapService.State.OPEN, service.getState());
+        assertEquals(2, directory.calls.get());
+    }
+
+    @Test
+    public void callerErrorsDoNotCount() {
+        service.setFailureThreshold(1);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                service.search("", "(cn=x)");
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // Not supported by the directory service.
+            }
+        }
+        assertEquals(CircuitBreakerLdapService.State.CLOSED, service.getState());
+    }
+
+    @Test
+    public void callsBeyondTheThreadLimitFailAtOnce() throws Exception {
+        service.setMaxThreads(1);
+        service.setTimeoutMillis(5000);
+        directory.hang = true;
+
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.getLdapUserByUid("a");
+                } catch (RuntimeException e) {
+                    // Released by tearDown.
+                }
+            }
+        });
+        blocked.start();
+        directory.called.await();
+
+        try {
+            service.getLdapUserByUid("b");
+            fail();
+        } catch (LdapServiceUnavailableException e) {
+            // All threads busy.
+        }
+        assertEquals(1, directory.calls.get());
+    }
+
+    private static class FlakyLdapService extends ReturnNullMockLdapService {
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch called = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean fail;
+        private volatile boolean hang;
+
+        @Override
+        public LdapUser getLdapUserByUid(String uid) {
+            calls.incrementAndGet();
+            called.countDown();
+            if (hang) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (fail) {
+                throw new IllegalStateException("directory down");
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test for CompactLdapUser.
+ */
+public class CompactLdapUserTest {
+
+    @Test
+    public void testReadsSameValuesAsLdapUserEntryImpl() {
+        BasicAttributes attributes = new BasicAttributes();
+        attributes.put("uid", "andcu1");
+        attributes.put("mail", "test@test.com");
+        BasicAttribute objectClass = new BasicAttribute("objectClass");
+        objectClass.add("top");
+        objectClass.add("person");
+        attributes.put(objectClass);
+        SearchResult res = new SearchResult("uid=andcu1", null, attributes);
+
+        LdapUser expected = new LdapUserEntryImpl("ou=anv", res);
+        CompactLdapUser compact = new CompactLdapUser("ou=anv", res);
+
+        assertEquals(expected.getDn(), compact.getDn());
+        assertEquals(expected.getAttributeValue("mail"), compact.getAttributeValue("mail"));
+        assertArrayEquals(expected.getAttributeValues("objectClass"), compact.getAttributeValues("objectClass"));
+        assertArrayEquals(expected.getAttributeValues("missing"), compact.getAttributeValues("missing"));
+        assertEquals(expected.getAttributes(), compact.getAttributes());
+    }
+
+    @Test
+    public void testModifications() {
+        CompactLdapUser user = new CompactLdapUser("uid=x");
+        for (int i = 0; i < 100; i++) {
+            user.setAttributeValue("attr" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            user.clearAttribute("attr" + i);
+        }
+        assertEquals(50, user.size());
+        assertNull(user.getAttributeValue("attr10"));
+        assertEquals("value11", user.getAttributeValue("attr11"));
+
+        user.addAttributeValue("attr11", "second");
+        assertArrayEquals(new String[]{"value11", "second"}, user.getAttributeValues("attr11"));
+
+        user.setAttributeValue("attr13", new Object[]{"a", "b"});
+        assertArrayEquals(new String[]{"a", "b"}, user.getAttributeValues("attr13"));
+    }
+
+    @Test
+    public void testAttributeNamesAreShared() {
+        CompactLdapUser first = new CompactLdapUser("uid=a");
+        CompactLdapUser second = new CompactLdapUser("uid=b");
+        first.setAttributeValue(new String("telephoneNumber"), "1");
+        second.setAttributeValue(new String("telephoneNumber"), "2");
+
+        assertSame(first.getAttributes().keySet().iterator().next(),
+                second.getAttributes().keySet().iterator().next());
+    }
+}
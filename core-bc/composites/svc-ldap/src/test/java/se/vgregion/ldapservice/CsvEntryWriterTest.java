@@ -0,0 +1,37 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for CsvEntryWriter.
+ */
+public class CsvEntryWriterTest {
+
+    @Test
+    public void writesOneRowPerEntry() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvEntryWriter writer = new CsvEntryWriter(out, "cn", "mail", "telephoneNumber");
+
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put("cn", "Öberg, \"Åsa\"");
+        BasicAttribute telephoneNumber = new BasicAttribute("telephoneNumber");
+        telephoneNumber.add("1");
+        telephoneNumber.add("2");
+        attributes.put(telephoneNumber);
+        attributes.put("description", "not a column");
+        writer.write("uid=asa,o=vgr", attributes);
+        writer.write("uid=bo,o=vgr", new BasicAttributes("MAIL", "bo@vgregion.se", true));
+        writer.flush();
+
+        assertEquals("dn,cn,mail,telephoneNumber\r\n"
+                + "\"uid=asa,o=vgr\",\"Öberg, \"\"Åsa\"\"\",,\"1;2\"\r\n"
+                + "\"uid=bo,o=vgr\",,bo@vgregion.se,\r\n", out.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,153 @@
+package se.vgregion.ldapservice;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for FailoverContextSource.
+ */
+public class FailoverContextSourceTest {
+
+    private final Map<String, FakeServer> servers = new LinkedHashMap<String, FakeServer>();
+    private FailoverContextSource failoverContextSource;
+
+    private void createServers(int count) {
+        for (int i = 0; i < count; i++) {
+            servers.put("ldap://dc" + i, new FakeServer());
+        }
+        failoverContextSource = new FailoverContextSource(servers);
+    }
+
+    @After
+    public void tearDown() {
+        failoverContextSource.shutdown();
+    }
+
+    @Test
+    public void readsAreSpreadRoundRobin() throws Exception {
+        createServers(4);
+
+        for (int i = 0; i < 8; i++) {
+            failoverContextSource.getReadOnlyContext().close();
+        }
+
+        for (FakeServer server : servers.values()) {
+            assertEquals(2, server.contexts.get());
+        }
+    }
+
+    @Test
+    public void writesStickToThePrimaryUnlessTurnedOff() throws Exception {
+        createServers(2);
+
+        failoverContextSource.getReadWriteContext().close();
+        failoverContextSource.getReadWriteContext().close();
+        assertEquals(2, servers.get("ldap://dc0").contexts.get());
+
+        failoverContextSource.setWriteToPrimary(false);
+        failoverContextSource.getReadWriteContext().close();
+        failoverContextSource.getReadWriteContext().close();
+        assertEquals(1, servers.get("ldap://dc1").contexts.get());
+    }
+
+    @Test
+    public void leastOutstandingAvoidsBusyServers() throws Exception {
+        createServers(2);
+        failoverContextSource.setStrategy(FailoverContextSource.Strategy.LEAST_OUTSTANDING);
+
+        DirContext first = failoverContextSource.getReadOnlyContext();
+        DirContext second = failoverContextSource.getReadOnlyContext();
+        assertEquals(1, failoverContextSource.getOutstanding("ldap://dc0"));
+        assertEquals(1, failoverContextSource.getOutstanding("ldap://dc1"));
+
+        first.close();
+        // Closing twice must not count twice.
+        first.close();
+        String idle = failoverContextSource.getOutstanding("ldap://dc0") == 0 ? "ldap://dc0" : "ldap://dc1";
+        for (int i = 0; i < 3; i++) {
+            failoverContextSource.getReadOnlyContext().close();
+        }
+        assertEquals(4, servers.get(idle).contexts.get());
+        second.close();
+        assertEquals(0, failoverContextSource.getOutstanding("ldap://dc0") + failoverContextSource.getOutstanding(
+                "ldap://dc1"));
+    }
+
+    @Test
+    public void latencyWeightedUsesEveryServer() throws Exception {
+        createServers(3);
+        failoverContextSource.setStrategy(FailoverContextSource.Strategy.LATENCY_WEIGHTED);
+
+        for (int i = 0; i < 300; i++) {
+            DirContext dirContext = failoverContextSource.getReadOnlyContext();
+            dirContext.search("", "(uid=x)", null);
+            dirContext.close();
+        }
+
+        for (FakeServer server : servers.values()) {
+            assertTrue(server.contexts.get() > 0);
+        }
+    }
+
+    @Test
+    public void unreachableServersAreSkippedAndProbedBackIntoRotation() throws Exception {
+        createServers(2);
+        failoverContextSource.setProbeIntervalMillis(50);
+        FakeServer down = servers.get("ldap://dc1");
+        down.reachable = false;
+
+        for (int i = 0; i < 4; i++) {
+            failoverContextSource.getReadOnlyContext().close();
+        }
+        assertEquals(4, servers.get("ldap://dc0").contexts.get());
+        assertEquals(Arrays.asList("ldap://dc0"), failoverContextSource.getAvailableServers());
+
+        down.reachable = true;
+        long deadline = System.currentTimeMillis() + 2000;
+        while (failoverContextSource.getAvailableServers().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("ldap://dc0", "ldap://dc1"), failoverContextSource.getAvailableServers());
+    }
+
+    private static class FakeServer implements ContextSource {
+
+        private final AtomicInteger contexts = new AtomicInteger();
+        private volatile boolean reachable = true;
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            if (!reachable) {
+                throw new RuntimeException("Bind failed", new CommunicationException("Connection refused"));
+            }
+            contexts.incrementAndGet();
+            try {
+                return new MockDirContext();
+            } catch (NamingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            return getReadOnlyContext();
+        }
+
+        @Override
+        public DirContext getContext(String principal, String credentials) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
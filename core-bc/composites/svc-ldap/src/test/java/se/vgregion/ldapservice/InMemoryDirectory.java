@@ -0,0 +1,166 @@
+package se.vgregion.ldapservice;
+
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.ContextNotEmptyException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.ModificationItem;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A directory held in memory, standing in for a server in tests of writes. Entries are kept by dn without any schema;
+ * the only hierarchy kept is that an entry can't be added before its parent or deleted before its children. To make it behave a little like a remote server, opening a context and each operation can be
+ * given a delay.
+ */
+public class InMemoryDirectory implements ContextSource {
+
+    private final ConcurrentMap<String, Attributes> entries = new ConcurrentHashMap<String, Attributes>();
+    private final AtomicInteger openedContexts = new AtomicInteger();
+    private final long connectNanos;
+    private final long operationNanos;
+
+    public InMemoryDirectory() {
+        this(0, 0);
+    }
+
+    /**
+     * @param connectMicros   the time it takes to open a context
+     * @param operationMicros the time each operation takes
+     */
+    public InMemoryDirectory(long connectMicros, long operationMicros) {
+        this.connectNanos = TimeUnit.MICROSECONDS.toNanos(connectMicros);
+        this.operationNanos = TimeUnit.MICROSECONDS.toNanos(operationMicros);
+    }
+
+    public Attributes getEntry(String dn) {
+        return entries.get(dn);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getOpenedContexts() {
+        return openedContexts.get();
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return getReadWriteContext();
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        openedContexts.incrementAndGet();
+        delay(connectNanos);
+        try {
+            return new InMemoryDirContext();
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        throw new UnsupportedOperationException();
+    }
+
+    private static void delay(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    /**
+     * @return the dn without its first rdn; an entry whose parent is a single rdn needs no parent entry
+     */
+    private static String parent(String dn) {
+        int comma = dn.indexOf(',');
+        return comma < 0 ? "" : dn.substring(comma + 1);
+    }
+
+    private class InMemoryDirContext extends InitialDirContext {
+
+        InMemoryDirContext() throws NamingException {
+        }
+
+        @Override
+        public DirContext createSubcontext(String name, Attributes attrs) throws NamingException {
+            delay(operationNanos);
+            String parent = parent(name);
+            if (parent.indexOf(',') >= 0 && !entries.containsKey(parent)) {
+                throw new NameNotFoundException(parent);
+            }
+            if (entries.putIfAbsent(name, (Attributes) attrs.clone()) != null) {
+                throw new NameAlreadyBoundException(name);
+            }
+            return null;
+        }
+
+        @Override
+        public void modifyAttributes(String name, ModificationItem[] mods) throws NamingException {
+            delay(operationNanos);
+            Attributes entry = entries.get(name);
+            if (entry == null) {
+                throw new NameNotFoundException(name);
+            }
+            synchronized (entry) {
+                for (ModificationItem mod : mods) {
+                    Attribute attribute = mod.getAttribute();
+                    if (mod.getModificationOp() == DirContext.REMOVE_ATTRIBUTE) {
+                        entry.remove(attribute.getID());
+                    } else {
+                        entry.put((Attribute) attribute.clone());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void modifyAttributes(String name, int modOp, Attributes attrs) throws NamingException {
+            ModificationItem[] mods = new ModificationItem[attrs.size()];
+            int i = 0;
+            for (NamingEnumeration<? extends Attribute> e = attrs.getAll(); e.hasMore(); ) {
+                mods[i++] = new ModificationItem(modOp, e.next());
+            }
+            modifyAttributes(name, mods);
+        }
+
+        @Override
+        public void destroySubcontext(String name) throws NamingException {
+            delay(operationNanos);
+            for (String dn : entries.keySet()) {
+                if (parent(dn).equals(name)) {
+                    throw new ContextNotEmptyException(name);
+                }
+            }
+            if (entries.remove(name) == null) {
+                throw new NameNotFoundException(name);
+            }
+        }
+
+        @Override
+        public Attributes getAttributes(String name) throws NamingException {
+            Attributes entry = entries.get(name);
+            if (entry == null) {
+                throw new NameNotFoundException(name);
+            }
+            return (Attributes) entry.clone();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
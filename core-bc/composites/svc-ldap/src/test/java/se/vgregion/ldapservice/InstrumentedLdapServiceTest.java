@@ -0,0 +1,57 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for InstrumentedLdapService.
+ */
+public class InstrumentedLdapServiceTest {
+
+    @Test
+    public void recordsCallsAndErrorsPerOperation() {
+        InstrumentedLdapService service = new InstrumentedLdapService(new ReturnNullMockLdapService());
+
+        assertNull(service.getLdapUserByUid("a"));
+        assertNull(service.getLdapUserByUid("b"));
+        try {
+            service.search("ou=a", "(cn=x)");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // The mock does not search.
+        }
+
+        Map<String, OperationMetrics.Snapshot> snapshot = service.snapshot();
+        assertEquals(2, snapshot.get("getLdapUserByUid").getCount());
+        assertEquals(0, snapshot.get("getLdapUserByUid").getErrorCount());
+        assertEquals(1, snapshot.get("search").getCount());
+        assertEquals(1, snapshot.get("search").getErrorCount());
+        assertEquals(0, snapshot.get("deleteLdapUser").getCount());
+    }
+
+    @Test
+    public void registersOneMBeanPerOperation() throws Exception {
+        InstrumentedLdapService service = new InstrumentedLdapService(new ReturnNullMockLdapService());
+        service.getLdapUserByUid("a");
+
+        service.registerMBeans("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LdapMBeans.DOMAIN + ":type=\"LdapOperation\",service=\"test\","
+                + "name=\"getLdapUserByUid\"");
+        assertTrue(server.isRegistered(name));
+        assertEquals(1L, server.getAttribute(name, "Count"));
+
+        service.unregisterMBeans();
+        assertFalse(server.isRegistered(name));
+    }
+}
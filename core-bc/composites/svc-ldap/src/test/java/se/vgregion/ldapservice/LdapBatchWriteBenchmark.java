@@ -0,0 +1,71 @@
+package se.vgregion.ldapservice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Compares adding users one at a time with {@link LdapServiceImpl#addLdapUser(String, HashMap)} with writing them as
+ * one batch with {@link LdapServiceImpl#write(List)}. The directory is an {@link InMemoryDirectory} where opening a
+ * context takes 1 ms and every operation 0.2 ms, roughly a bind and a write against a server on the local network.
+ * Not run as part of the tests; start it with the main method.
+ */
+public final class LdapBatchWriteBenchmark {
+
+    private static final int USERS = 5000;
+    private static final long CONNECT_MICROS = 1000;
+    private static final long OPERATION_MICROS = 200;
+
+    private LdapBatchWriteBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        Properties p = new Properties();
+        p.setProperty("BIND_URL", "ldap://localhost:389");
+        p.setProperty("BASE", "ou=anv,O=VGR");
+
+        InMemoryDirectory directory = new InMemoryDirectory(CONNECT_MICROS, OPERATION_MICROS);
+        LdapServiceImpl ldapService = new LdapServiceImpl(p);
+        ldapService.setContextSource(directory);
+        long start = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+            ldapService.addLdapUser("uid=single" + i + ",ou=personal", attributes(i));
+        }
+        report("One at a time", start, directory);
+
+        for (int parallelism : new int[]{1, 4, 8}) {
+            directory = new InMemoryDirectory(CONNECT_MICROS, OPERATION_MICROS);
+            ldapService.setContextSource(directory);
+            ldapService.setBatchParallelism(parallelism);
+            List<LdapWriteOperation> operations = new ArrayList<LdapWriteOperation>(USERS);
+            for (int i = 0; i < USERS; i++) {
+                operations.add(LdapWriteOperation.add("uid=batch" + i + ",ou=personal", attributes(i), "vgrUser",
+                        "inetOrgPerson"));
+            }
+            start = System.nanoTime();
+            for (LdapWriteResult result : ldapService.write(operations)) {
+                if (!result.isSuccess()) {
+                    throw new IllegalStateException(result.toString());
+                }
+            }
+            report("Batch, parallelism " + parallelism, start, directory);
+        }
+        ldapService.shutdown();
+    }
+
+    private static HashMap<String, String> attributes(int i) {
+        HashMap<String, String> attributes = new HashMap<String, String>();
+        attributes.put("cn", "User " + i);
+        attributes.put("sn", "User");
+        attributes.put("mail", "user" + i + "@vgregion.se");
+        attributes.put("vgr-id", "user" + i);
+        return attributes;
+    }
+
+    private static void report(String name, long start, InMemoryDirectory directory) {
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println(name + ": " + USERS + " adds in " + millis + " ms (" + (USERS * 1000L / Math.max(millis, 1))
+                + " per second), " + directory.getOpenedContexts() + " contexts opened");
+    }
+}
@@ -0,0 +1,123 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LdapFilterMatcherTest {
+
+    private final LdapUser user = user();
+
+    private static LdapUser user() {
+        CompactLdapUser ldapUser = new CompactLdapUser("uid=foo,ou=people");
+        ldapUser.setAttributeValue("uid", "foo");
+        ldapUser.setAttributeValue("cn", "Foo Barsson");
+        ldapUser.setAttributeValue("objectClass", new Object[]{"top", "person"});
+        ldapUser.setAttributeValue("uSNChanged", "120");
+        ldapUser.setAttributeValue("mail", "a(b)*c@vgregion.se");
+        return ldapUser;
+    }
+
+    private boolean matches(String filter) {
+        return LdapFilterMatcher.parse(filter).matches(user);
+    }
+
+    @Test
+    public void equalityIgnoresCase() {
+        assertTrue(matches("(uid=FOO)"));
+        assertTrue(matches("(objectClass=person)"));
+        assertFalse(matches("(uid=bar)"));
+        assertFalse(matches("(missing=foo)"));
+    }
+
+    @Test
+    public void withoutParentheses() {
+        assertTrue(matches("uid=foo"));
+    }
+
+    @Test
+    public void presenceAndSubstrings() {
+        assertTrue(matches("(cn=*)"));
+        assertFalse(matches("(givenName=*)"));
+        assertTrue(matches("(cn=foo*)"));
+        assertTrue(matches("(cn=*barsson)"));
+        assertTrue(matches("(cn=f*o*b*n)"));
+        assertFalse(matches("(cn=*foo)"));
+        assertFalse(matches("(cn=foo b*ar*rs)"));
+    }
+
+    @Test
+    public void orderingIsNumericForNumbers() {
+        assertTrue(matches("(uSNChanged>=99)"));
+        assertTrue(matches("(uSNChanged>=120)"));
+        assertFalse(matches("(uSNChanged>=121)"));
+        assertTrue(matches("(uSNChanged<=1000)"));
+        assertTrue(matches("(cn<=g)"));
+    }
+
+    @Test
+    public void booleanOperators() {
+        assertTrue(matches("(&(objectClass=person)(|(uid=bar)(uid=foo)))"));
+        assertFalse(matches("(&(objectClass=person)(!(uid=foo)))"));
+        assertTrue(matches("(|(uid=bar)(!(uid=baz)))"));
+    }
+
+    @Test
+    public void escapedValues() {
+        assertTrue(matches("(mail=a\\28b\\29\\2ac@vgregion.se)"));
+        assertTrue(matches("(mail=a\\28b\\29\\2a*)"));
+    }
+
+    @Test
+    public void attributeNamesAreReplaced() {
+        LdapFilterMatcher matcher = LdapFilterMatcher.parse("(&(USNCHANGED>=1)(UID=foo))",
+                Collections.singletonMap("usnchanged", "uSNChanged"));
+        assertTrue(matcher.matches(user));
+        assertEquals(new HashSet<String>(Arrays.asList("uSNChanged", "UID")), matcher.getAttributeNames());
+    }
+
+    @Test
+    public void requiredValue() {
+        assertEquals("foo", LdapFilterMatcher.parse("(&(objectclass=person)(uid=foo))").getRequiredValue("uid"));
+        assertNull(LdapFilterMatcher.parse("(|(uid=foo)(uid=bar))").getRequiredValue("uid"));
+        assertNull(LdapFilterMatcher.parse("(!(uid=foo))").getRequiredValue("uid"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unbalanced() {
+        LdapFilterMatcher.parse("(&(uid=foo)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void extensibleMatchIsNotSupported() {
+        LdapFilterMatcher.parse("(cn:caseExactMatch:=Foo)");
+    }
+
+    @Test
+    public void impliesFiltersThatItNarrows() {
+        LdapFilterMatcher person = LdapFilterMatcher.parse("(objectClass=person)");
+        assertTrue(LdapFilterMatcher.parse("(OBJECTCLASS=Person)").implies(person));
+        assertTrue(LdapFilterMatcher.parse("(&(uid=foo)(objectClass=person))").implies(person));
+        assertTrue(LdapFilterMatcher.parse("(&(cn=a*)(&(objectClass=person)(mail=*)))").implies(person));
+        assertFalse(LdapFilterMatcher.parse("(uid=foo)").implies(person));
+        assertFalse(LdapFilterMatcher.parse("(objectClass=group)").implies(person));
+        assertFalse(LdapFilterMatcher.parse("(|(objectClass=person)(uid=foo))").implies(person));
+        assertFalse(LdapFilterMatcher.parse("(!(objectClass=person))").implies(person));
+        assertTrue(LdapFilterMatcher.parse("(&(cn=a*)(uid=foo))").implies(LdapFilterMatcher.parse("(uid=*)")));
+        assertFalse(LdapFilterMatcher.parse("(!(uid=foo))").implies(LdapFilterMatcher.parse("(uid=*)")));
+
+        LdapFilterMatcher activePerson = LdapFilterMatcher.parse("(&(objectClass=person)(!(disabled=true)))");
+        assertTrue(LdapFilterMatcher.parse("(&(!(disabled=TRUE))(uid=foo)(objectClass=person))")
+                .implies(activePerson));
+        assertFalse(LdapFilterMatcher.parse("(&(objectClass=person)(uid=foo))").implies(activePerson));
+        assertFalse(LdapFilterMatcher.parse("(&(objectClass=person)(cn=a\\2a))")
+                .implies(LdapFilterMatcher.parse("(&(objectClass=person)(cn=a*))")));
+    }
+}
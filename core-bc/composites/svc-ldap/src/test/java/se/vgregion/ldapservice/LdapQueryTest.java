@@ -0,0 +1,47 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import javax.naming.directory.SearchControls;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test for LdapQuery.
+ */
+public class LdapQueryTest {
+
+    @Test
+    public void testWithMethodsReturnCopies() {
+        LdapQuery query = new LdapQuery("ou=anv", "(uid=x)");
+        LdapQuery limited = query.withAttributes("cn", "mail").withCountLimit(2).withTimeLimit(1000)
+                .withScope(SearchControls.ONELEVEL_SCOPE);
+
+        assertNull(query.getAttributes());
+        assertEquals(0, query.getCountLimit());
+        assertEquals(SearchControls.SUBTREE_SCOPE, query.getScope());
+
+        SearchControls sc = limited.toSearchControls();
+        assertArrayEquals(new String[]{"cn", "mail"}, sc.getReturningAttributes());
+        assertEquals(2, sc.getCountLimit());
+        assertEquals(1000, sc.getTimeLimit());
+        assertEquals(SearchControls.ONELEVEL_SCOPE, sc.getSearchScope());
+    }
+
+    @Test
+    public void testAttributesCannotBeChangedFromOutside() {
+        String[] attributes = {"cn"};
+        LdapQuery query = new LdapQuery("ou=anv", "(uid=x)").withAttributes(attributes);
+        attributes[0] = "mail";
+        query.getAttributes()[0] = "mail";
+
+        assertArrayEquals(new String[]{"cn"}, query.getAttributes());
+    }
+
+    @Test
+    public void testEmptyAttributesMeanAllAttributes() {
+        assertNull(new LdapQuery("ou=anv", "(uid=x)").withAttributes().toSearchControls().getReturningAttributes());
+    }
+}
@@ -0,0 +1,159 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for the searches of LdapServiceImpl.
+ */
+public class LdapServiceImplSearchTest {
+
+    private LdapServiceImpl ldapService;
+    private List<String> found;
+    private int entriesBeforeSizeLimit;
+
+    @Before
+    public void setUp() {
+        found = new ArrayList<String>();
+        ldapService = new LdapServiceImpl();
+        ldapService.setContextSource(new ContextSource() {
+            @Override
+            public DirContext getReadOnlyContext() {
+                return newContext();
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return newContext();
+            }
+
+            @Override
+            public DirContext getContext(String principal, String credentials) {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @Test
+    public void testSizeLimitAtTheCountLimitEndsTheSearch() {
+        entriesBeforeSizeLimit = 2;
+
+        int count = ldapService.searchEntries(new LdapQuery("ou=anv,o=VGR", "(uid=*)").withCountLimit(2),
+                new Collector());
+
+        assertEquals(2, count);
+        assertEquals(2, found.size());
+    }
+
+    @Test
+    public void testSizeLimitWithoutCountLimitFailsTheSearch() {
+        entriesBeforeSizeLimit = 2;
+
+        try {
+            ldapService.searchEntries(new LdapQuery("ou=anv,o=VGR", "(uid=*)"), new Collector());
+            fail("A search cut short by the server must not look complete");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().startsWith("Search failed"));
+            assertTrue(e.getCause() instanceof SizeLimitExceededException);
+        }
+        assertEquals(2, found.size());
+    }
+
+    @Test
+    public void testSizeLimitBeforeTheCountLimitFailsTheSearch() {
+        entriesBeforeSizeLimit = 2;
+
+        try {
+            ldapService.searchEntries(new LdapQuery("ou=anv,o=VGR", "(uid=*)").withCountLimit(5),
+                    new Collector());
+            fail("A search cut short by the server must not look complete");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SizeLimitExceededException);
+        }
+    }
+
+    private DirContext newContext() {
+        try {
+            return new InitialDirContext() {
+                @Override
+                public NamingEnumeration<SearchResult> search(String name, String filter, SearchControls cons) {
+                    return new SizeLimitedEnumeration(entriesBeforeSizeLimit);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        } catch (NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class Collector implements LdapEntryCallbackHandler {
+        @Override
+        public void handleEntry(String dn, Attributes attributes) {
+            found.add(dn);
+        }
+    }
+
+    /**
+     * Returns the given number of entries and then fails like a directory that has reached its size limit.
+     */
+    private static class SizeLimitedEnumeration implements NamingEnumeration<SearchResult> {
+        private final int size;
+        private int next;
+
+        SizeLimitedEnumeration(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public SearchResult next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            String uid = "user" + next++;
+            return new SearchResult("uid=" + uid, null, new BasicAttributes("uid", uid));
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            if (next >= size) {
+                throw new SizeLimitExceededException();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < size;
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return next();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package se.vgregion.ldapservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for the batch writes of LdapServiceImpl.
+ */
+public class LdapServiceImplWriteTest {
+
+    private InMemoryDirectory directory;
+    private LdapServiceImpl ldapService;
+
+    @Before
+    public void setUp() {
+        directory = new InMemoryDirectory();
+        ldapService = new LdapServiceImpl();
+        ldapService.setContextSource(directory);
+    }
+
+    @After
+    public void tearDown() {
+        ldapService.shutdown();
+    }
+
+    @Test
+    public void everyOperationGetsItsOwnResult() throws Exception {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("cn", "Anna");
+        ldapService.write(Arrays.asList(LdapWriteOperation.add("uid=anna", attributes, "inetOrgPerson"),
+                LdapWriteOperation.add("uid=bo", attributes, "inetOrgPerson")));
+
+        List<LdapWriteOperation> operations = Arrays.asList(
+                LdapWriteOperation.add("uid=anna", attributes),
+                LdapWriteOperation.modify("uid=bo", new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                        new BasicAttribute("mail", "bo@vgregion.se"))),
+                LdapWriteOperation.replace("uid=cecilia", attributes),
+                LdapWriteOperation.delete("uid=anna"));
+        List<LdapWriteResult> results = ldapService.write(operations);
+
+        assertEquals(4, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertSame(operations.get(i), results.get(i).getOperation());
+        }
+        assertEquals(LdapWriteResult.Status.CONFLICT, results.get(0).getStatus());
+        assertTrue(results.get(0).getException() instanceof NameAlreadyBoundException);
+        assertTrue(results.get(1).isSuccess());
+        assertNull(results.get(1).getException());
+        assertEquals(LdapWriteResult.Status.CONFLICT, results.get(2).getStatus());
+        assertTrue(results.get(3).isSuccess());
+
+        assertEquals(1, directory.size());
+        assertEquals("bo@vgregion.se", directory.getEntry("uid=bo").get("mail").get());
+        assertEquals("inetOrgPerson", directory.getEntry("uid=bo").get("objectclass").get());
+    }
+
+    @Test
+    public void contextsAreReusedForTheWholeBatch() {
+        ldapService.setBatchParallelism(3);
+        List<LdapWriteOperation> operations = new ArrayList<LdapWriteOperation>();
+        for (int i = 0; i < 200; i++) {
+            operations.add(LdapWriteOperation.add("uid=user" + i, new HashMap<String, String>(), "person"));
+        }
+
+        for (LdapWriteResult result : ldapService.write(operations)) {
+            assertTrue(result.toString(), result.isSuccess());
+        }
+
+        assertEquals(200, directory.size());
+        assertTrue(directory.getOpenedContexts() <= 3);
+    }
+
+    @Test
+    public void importedParentsAreWrittenBeforeTheirChildren() throws Exception {
+        String ldif = "version: 1\n\n"
+                + "dn: ou=people,o=vgr\nobjectclass: organizationalUnit\n\n"
+                + "dn: uid=anna,ou=people,o=vgr\nobjectclass: person\ncn: Anna\n\n"
+                + "dn: uid=bo,ou=people,o=vgr\nobjectclass: person\ncn: Bo\n\n"
+                + "dn: uid=anna,ou=people,o=vgr\nobjectclass: person\ncn: Anna\n\n"
+                + "dn: uid=bo,ou=people,o=vgr\nchangetype: delete\n";
+
+        Map<LdapWriteResult.Status, Integer> counts = ldapService.importLdif(
+                new ByteArrayInputStream(ldif.getBytes("UTF-8")), 100);
+
+        assertEquals(4, counts.get(LdapWriteResult.Status.SUCCESS).intValue());
+        assertEquals(1, counts.get(LdapWriteResult.Status.CONFLICT).intValue());
+        assertEquals(0, counts.get(LdapWriteResult.Status.FAILURE).intValue());
+        assertEquals(2, directory.size());
+        assertEquals("Anna", directory.getEntry("uid=anna,ou=people,o=vgr").get("cn").get());
+    }
+
+    @Test
+    public void anEmptyBatchWritesNothing() {
+        assertEquals(0, ldapService.write(new ArrayList<LdapWriteOperation>()).size());
+        assertEquals(0, directory.getOpenedContexts());
+    }
+}
@@ -0,0 +1,134 @@
+package se.vgregion.ldapservice;
+
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the retained heap of 10 000 typical AD entries held as {@link LdapUserEntryImpl}, {@link SimpleLdapUser}
+ * and {@link CompactLdapUser}. Not run as part of the tests; start it with the main method, preferably with a fixed
+ * heap, e.g. <code>-Xms512m -Xmx512m</code>.
+ */
+public final class LdapUserFootprintBenchmark {
+
+    private static final int ENTRIES = 10000;
+    private static final String BASE = "ou=anv,o=VGR";
+    private static final String[] SINGLE_VALUED = {"cn", "sn", "givenName", "displayName", "mail", "uid",
+            "userPrincipalName", "sAMAccountName", "title", "department", "company", "telephoneNumber", "mobile",
+            "streetAddress", "postalCode", "l", "physicalDeliveryOfficeName", "distinguishedName", "whenCreated",
+            "whenChanged", "uSNCreated", "uSNChanged", "lastLogon", "pwdLastSet", "accountExpires", "objectGUID",
+            "objectSid", "primaryGroupID", "homeDirectory", "homeDrive", "homeMTA", "mailNickname",
+            "msExchUserCulture", "msExchVersion", "showInAddressBook"};
+
+    private LdapUserFootprintBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 2; round++) {
+            report("LdapUserEntryImpl", measure(new Factory() {
+                @Override
+                public LdapUser create(int i) {
+                    return new LdapUserEntryImpl(BASE, newSearchResult(i));
+                }
+            }));
+            report("SimpleLdapUser", measure(new Factory() {
+                @Override
+                public LdapUser create(int i) {
+                    SearchResult res = newSearchResult(i);
+                    SimpleLdapUser user = new SimpleLdapUser(res.getName() + "," + BASE);
+                    Attributes attributes = res.getAttributes();
+                    user.setCn((String) get(attributes, "cn"));
+                    user.setMail((String) get(attributes, "mail"));
+                    user.setTelephoneNumber((String) get(attributes, "telephoneNumber"));
+                    for (Attribute attribute : java.util.Collections.list(attributes.getAll())) {
+                        Object[] values = new Object[attribute.size()];
+                        for (int j = 0; j < values.length; j++) {
+                            values[j] = get(attribute, j);
+                        }
+                        if (values.length == 1) {
+                            user.setAttributeValue(attribute.getID(), values[0]);
+                        } else {
+                            user.setAttributeValue(attribute.getID(), values);
+                        }
+                    }
+                    return user;
+                }
+            }));
+            report("CompactLdapUser", measure(new Factory() {
+                @Override
+                public LdapUser create(int i) {
+                    return new CompactLdapUser(BASE, newSearchResult(i));
+                }
+            }));
+        }
+    }
+
+    private interface Factory {
+        LdapUser create(int i);
+    }
+
+    private static long measure(Factory factory) {
+        long before = usedHeap();
+        List<LdapUser> users = new ArrayList<LdapUser>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            users.add(factory.create(i));
+        }
+        long after = usedHeap();
+        if (users.get(ENTRIES - 1).getAttributeValue("cn") == null) {
+            throw new IllegalStateException();
+        }
+        return after - before;
+    }
+
+    private static void report(String name, long bytes) {
+        System.out.printf("%-18s %8.1f MB  %6d bytes/entry%n", name, bytes / (1024.0 * 1024.0), bytes / ENTRIES);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Builds a new search result like JNDI does, with fresh attribute name and value strings for every entry.
+    private static SearchResult newSearchResult(int i) {
+        Attributes attributes = new BasicAttributes(true);
+        for (String name : SINGLE_VALUED) {
+            attributes.put(new String(name), name + "-value-" + i);
+        }
+        BasicAttribute objectClass = new BasicAttribute(new String("objectClass"));
+        for (String value : new String[]{"top", "person", "organizationalPerson", "user"}) {
+            objectClass.add(new String(value));
+        }
+        attributes.put(objectClass);
+        BasicAttribute memberOf = new BasicAttribute(new String("memberOf"));
+        for (int g = 0; g < 8; g++) {
+            memberOf.add("CN=group" + (i % 50 + g) + ",OU=Groups,DC=vgregion,DC=se");
+        }
+        attributes.put(memberOf);
+        return new SearchResult("cn=user" + i, null, attributes);
+    }
+
+    private static Object get(Attributes attributes, String name) {
+        return get(attributes.get(name), 0);
+    }
+
+    private static Object get(Attribute attribute, int index) {
+        try {
+            return attribute.get(index);
+        } catch (javax.naming.NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for LdifReader.
+ */
+public class LdifReaderTest {
+
+    @Test
+    public void readsWhatLdifWriterWrote() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            longValue.append("value").append(i);
+        }
+        byte[] photo = {(byte) 0xff, 0, 1, (byte) 0xfe};
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put("cn", "Åsa Öberg");
+        attributes.put("description", longValue.toString());
+        attributes.put("info", ":starts with a colon ");
+        attributes.put("jpegPhoto", photo);
+        BasicAttribute objectClass = new BasicAttribute("objectClass");
+        objectClass.add("top");
+        objectClass.add("person");
+        attributes.put(objectClass);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LdifWriter writer = new LdifWriter(out);
+        writer.write("uid=åsa,ou=people,o=vgr", attributes);
+        writer.write("uid=bo,ou=people,o=vgr", new BasicAttributes("cn", "Bo"));
+        writer.flush();
+
+        String ldif = out.toString("UTF-8");
+        for (String line : ldif.split("\n")) {
+            assertTrue(line.length() <= 76);
+        }
+
+        LdifReader reader = new LdifReader(new ByteArrayInputStream(out.toByteArray()));
+        LdapWriteOperation first = reader.read();
+        assertEquals(LdapWriteOperation.Type.ADD, first.getType());
+        assertEquals("uid=åsa,ou=people,o=vgr", first.getDn());
+        Attributes read = first.getAttributes();
+        assertEquals("Åsa Öberg", read.get("cn").get());
+        assertEquals(longValue.toString(), read.get("description").get());
+        assertEquals(":starts with a colon ", read.get("info").get());
+        assertTrue(Arrays.equals(photo, (byte[]) read.get("jpegPhoto").get()));
+        assertEquals(2, read.get("objectclass").size());
+
+        assertEquals("uid=bo,ou=people,o=vgr", reader.read().getDn());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void binaryValuesThatAreValidTextStayBinary() throws Exception {
+        byte[] guid = "abc".getBytes("UTF-8");
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put("cn", "Åsa");
+        attributes.put("objectGUID", guid);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LdifWriter writer = new LdifWriter(out);
+        writer.write("uid=åsa,ou=people,o=vgr", attributes);
+        writer.flush();
+        assertTrue(out.toString("UTF-8").contains("\nobjectGUID;binary:: YWJj\n"));
+
+        Attributes read = new LdifReader(new ByteArrayInputStream(out.toByteArray())).read().getAttributes();
+        assertEquals("Åsa", read.get("cn").get());
+        assertEquals("objectGUID", read.get("objectGUID").getID());
+        assertTrue(Arrays.equals(guid, (byte[]) read.get("objectGUID").get()));
+    }
+
+    @Test
+    public void readsChangeRecords() throws Exception {
+        String ldif = "version: 1\n"
+                + "# A comment\n"
+                + "dn: uid=anna,ou=people,o=vgr\n"
+                + "changetype: modify\n"
+                + "replace: mail\n"
+                + "mail: anna@vgregion.se\n"
+                + "-\n"
+                + "add: telephoneNumber\n"
+                + "telephoneNumber: 1\n"
+                + "telephoneNumber: 2\n"
+                + "-\n"
+                + "delete: description\n"
+                + "-\n"
+                + "\n"
+                + "\n"
+                + "dn: uid=bo,ou=peop\n"
+                + " le,o=vgr\n"
+                + "changetype: delete\n";
+
+        LdifReader reader = new LdifReader(new ByteArrayInputStream(ldif.getBytes("UTF-8")));
+
+        LdapWriteOperation modify = reader.read();
+        assertEquals(LdapWriteOperation.Type.MODIFY, modify.getType());
+        ModificationItem[] modifications = modify.getModifications();
+        assertEquals(3, modifications.length);
+        assertEquals(DirContext.REPLACE_ATTRIBUTE, modifications[0].getModificationOp());
+        assertEquals("anna@vgregion.se", modifications[0].getAttribute().get());
+        assertEquals(DirContext.ADD_ATTRIBUTE, modifications[1].getModificationOp());
+        assertEquals(2, modifications[1].getAttribute().size());
+        assertEquals(DirContext.REMOVE_ATTRIBUTE, modifications[2].getModificationOp());
+        assertEquals(0, modifications[2].getAttribute().size());
+
+        LdapWriteOperation delete = reader.read();
+        assertEquals(LdapWriteOperation.Type.DELETE, delete.getType());
+        assertEquals("uid=bo,ou=people,o=vgr", delete.getDn());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void unsupportedRecordsAreRejected() throws Exception {
+        String ldif = "dn: uid=anna,o=vgr\nchangetype: modrdn\nnewrdn: uid=anne\ndeleteoldrdn: 1\n";
+        try {
+            new LdifReader(new ByteArrayInputStream(ldif.getBytes("UTF-8"))).read();
+            fail();
+        } catch (IOException e) {
+            assertEquals("LDIF record at line 1: Unsupported changetype: modrdn", e.getMessage());
+        }
+    }
+}
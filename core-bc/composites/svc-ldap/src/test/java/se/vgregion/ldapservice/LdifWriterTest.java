@@ -0,0 +1,56 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for LdifWriter.
+ */
+public class LdifWriterTest {
+
+    @Test
+    public void exportsASearch() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("BIND_URL", "ldap://localhost:389");
+        p.setProperty("BASE", "ou=anv,O=VGR");
+        LdapServiceImpl ldapService = new LdapServiceImpl(p);
+        ldapService.setContextSource(new ContextSource() {
+            @Override
+            public DirContext getReadOnlyContext() {
+                try {
+                    return new MockDirContext();
+                } catch (NamingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return getReadOnlyContext();
+            }
+
+            @Override
+            public DirContext getContext(String principal, String credentials) {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LdifWriter ldif = new LdifWriter(out);
+        assertEquals(1, ldapService.searchEntries(new LdapQuery(null, "uid=andcu1"), ldif));
+        ldif.flush();
+
+        String text = out.toString("UTF-8");
+        assertTrue(text.startsWith("version: 1\n\ndn: uid=andcu1,ou=anv,O=VGR\n"));
+        assertTrue(text.contains("\nmail: test@test.com\n"));
+        assertTrue(text.contains("\nuid: andcu1\n"));
+    }
+}
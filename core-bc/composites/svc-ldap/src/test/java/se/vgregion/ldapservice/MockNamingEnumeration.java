@@ -44,7 +44,6 @@ public class MockNamingEnumeration implements NamingEnumeration {
     }
 
     public void close() throws NamingException {
-        throw new UnsupportedOperationException("TODO: Implement this method");
     }
 
     public boolean hasMore() throws NamingException {
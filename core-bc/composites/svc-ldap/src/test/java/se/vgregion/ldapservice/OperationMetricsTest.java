@@ -0,0 +1,50 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for OperationMetrics.
+ */
+public class OperationMetricsTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long[] values = {0, 1, 3, 4, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = OperationMetrics.bucket(value);
+            assertTrue(value + " above its bucket", value <= OperationMetrics.upperBound(bucket));
+            assertTrue(value + " below its bucket", bucket == 0 || value > OperationMetrics.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinAQuarter() {
+        OperationMetrics metrics = new OperationMetrics("search");
+        long now = System.nanoTime();
+        for (int micros = 1; micros <= 1000; micros++) {
+            metrics.record(now - TimeUnit.MICROSECONDS.toNanos(micros), micros % 100 == 0);
+        }
+
+        assertEquals(1000, metrics.getCount());
+        assertEquals(10, metrics.getErrorCount());
+        assertTrue(metrics.getMaxMicros() >= 1000);
+        assertWithinAQuarter(500, metrics.getP50Micros());
+        assertWithinAQuarter(950, metrics.getP95Micros());
+        assertWithinAQuarter(990, metrics.getP99Micros());
+
+        OperationMetrics.Snapshot snapshot = metrics.snapshot();
+        metrics.reset();
+        assertEquals(0, metrics.getCount());
+        assertEquals(0, metrics.getP99Micros());
+        assertEquals(1000, snapshot.getCount());
+    }
+
+    private static void assertWithinAQuarter(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected, actual >= expected && actual <= expected * 5 / 4 + 5);
+    }
+}
@@ -0,0 +1,55 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test for PersistentSearchChangeFeed.
+ */
+public class PersistentSearchChangeFeedTest {
+
+    private final LdapUser entry = new SimpleLdapUser("uid=foo,ou=people");
+
+    @Test
+    public void readsTheChangeType() {
+        LdapChange change = PersistentSearchChangeFeed.parseEntryChange(new byte[]{0x30, 0x03, 0x0A, 0x01, 0x04},
+                "uid=foo,ou=people", entry);
+
+        assertEquals(LdapChange.Type.MODIFY, change.getType());
+        assertEquals("uid=foo,ou=people", change.getDn());
+        assertNull(change.getPreviousDn());
+        assertSame(entry, change.getEntry());
+    }
+
+    @Test
+    public void readsThePreviousNameOfARenamedEntry() {
+        byte[] value = {0x30, 0x12, 0x0A, 0x01, 0x08, 0x04, 0x0A,
+                'u', 'i', 'd', '=', 'f', ',', 'o', 'u', '=', 'p', 0x02, 0x01, 0x07};
+
+        LdapChange change = PersistentSearchChangeFeed.parseEntryChange(value, "uid=foo,ou=people", entry);
+
+        assertEquals(LdapChange.Type.RENAME, change.getType());
+        assertEquals("uid=f,ou=p", change.getPreviousDn());
+    }
+
+    @Test
+    public void deletesHaveNoEntry() {
+        LdapChange change = PersistentSearchChangeFeed.parseEntryChange(new byte[]{0x30, 0x03, 0x0A, 0x01, 0x02},
+                "uid=foo,ou=people", entry);
+
+        assertEquals(LdapChange.Type.DELETE, change.getType());
+        assertNull(change.getEntry());
+    }
+
+    @Test
+    public void malformedValuesAreReportedAsUnknown() {
+        LdapChange change = PersistentSearchChangeFeed.parseEntryChange(new byte[]{0x30, 0x05, 0x0A},
+                "uid=foo,ou=people", entry);
+
+        assertEquals(LdapChange.Type.UNKNOWN, change.getType());
+        assertSame(entry, change.getEntry());
+    }
+}
@@ -0,0 +1,158 @@
+package se.vgregion.ldapservice;
+
+import net.sf.ehcache.CacheManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for PollingChangeFeed.
+ */
+public class PollingChangeFeedTest {
+
+    private final FakeDirectory directory = new FakeDirectory();
+    private final RecordingListener listener = new RecordingListener();
+
+    @Test
+    public void reportsEachChangeAfterTheHighWaterMarkOnce() {
+        directory.put("foo", "Foo", "10");
+        directory.put("bar", "Bar", "11");
+        PollingChangeFeed feed = new PollingChangeFeed(directory, "ou=people", "(objectClass=person)",
+                ReplicatingLdapServiceWrapper.USN_CHANGED, listener);
+        feed.setHighWaterMark("11");
+
+        assertEquals(0, feed.poll());
+
+        directory.put("foo", "Foo Changed", "12");
+        directory.put("baz", "Baz", "13");
+        assertEquals(2, feed.poll());
+        assertEquals("(&(objectClass=person)(uSNChanged>=12))", directory.searches.get(1));
+        assertEquals("13", feed.getHighWaterMark());
+        assertEquals("uid=foo,ou=people", listener.changes.get(0).getDn());
+        assertEquals(LdapChange.Type.UNKNOWN, listener.changes.get(0).getType());
+        assertEquals("Foo Changed", listener.changes.get(0).getEntry().getAttributeValue("cn"));
+
+        assertEquals(0, feed.poll());
+        assertEquals(2, listener.changes.size());
+    }
+
+    @Test
+    public void entriesChangedAtTheSameTimestampAreNotReportedTwice() {
+        PollingChangeFeed feed = new PollingChangeFeed(directory, "ou=people", "(objectClass=person)",
+                ReplicatingLdapServiceWrapper.MODIFY_TIMESTAMP, listener);
+        feed.setHighWaterMark("20261018115959Z");
+
+        directory.put("foo", "Foo", "20261018120000Z");
+        assertEquals(1, feed.poll());
+        assertEquals("20261018120000Z", feed.getHighWaterMark());
+
+        // Found again since timestamps are compared with >=, but already reported.
+        assertEquals(0, feed.poll());
+
+        directory.put("bar", "Bar", "20261018120000Z");
+        assertEquals(1, feed.poll());
+        assertEquals("uid=bar,ou=people", listener.changes.get(1).getDn());
+
+        directory.put("foo", "Foo Changed", "20261018120001Z");
+        assertEquals(1, feed.poll());
+        assertEquals("uid=foo,ou=people", listener.changes.get(2).getDn());
+    }
+
+    @Test
+    public void theFirstPollOnlyFindsOutWhereTheDirectoryIs() {
+        directory.put("foo", "Foo", "20000101000000Z");
+        PollingChangeFeed feed = new PollingChangeFeed(directory, "ou=people", "(objectClass=person)",
+                ReplicatingLdapServiceWrapper.MODIFY_TIMESTAMP, listener);
+
+        assertEquals(0, feed.poll());
+        assertNotNull(feed.getHighWaterMark());
+        assertTrue(feed.getHighWaterMark().endsWith("Z"));
+        assertTrue(directory.searches.isEmpty());
+
+        assertEquals(0, feed.poll());
+        assertTrue(listener.changes.isEmpty());
+    }
+
+    @Test
+    public void changesEvictTheCachedReadsTheyAffect() {
+        directory.put("foo", "Foo", "10");
+        directory.put("bar", "Bar", "11");
+        CacheManager cacheManager = new CacheManager();
+        try {
+            AsyncCachingLdapServiceWrapper cache = new AsyncCachingLdapServiceWrapper(directory, 60, cacheManager);
+            PollingChangeFeed feed = new PollingChangeFeed(directory, "ou=people", "(objectClass=person)",
+                    ReplicatingLdapServiceWrapper.USN_CHANGED, cache);
+            feed.setHighWaterMark("11");
+
+            assertEquals("Foo", cache.search("ou=people", "(cn=Foo*)")[0].getAttributeValue("cn"));
+            assertEquals(0, cache.search("ou=people", "(cn=Baz)").length);
+            assertEquals(1, cache.search("ou=people", "(cn=Bar)").length);
+            int searches = directory.searches.size();
+
+            directory.put("foo", "Foo Changed", "12");
+            directory.put("baz", "Baz", "13");
+            feed.poll();
+            assertEquals(2, cache.getMetrics().getInvalidationCount());
+
+            // The search holding the changed entry, and the one the new entry matches, go to the directory again.
+            assertEquals("Foo Changed", cache.search("ou=people", "(cn=Foo*)")[0].getAttributeValue("cn"));
+            assertEquals(1, cache.search("ou=people", "(cn=Baz)").length);
+            assertEquals(1, cache.search("ou=people", "(cn=Bar)").length);
+            assertEquals(searches + 3, directory.searches.size());
+        } finally {
+            cacheManager.shutdown();
+        }
+    }
+
+    private static class RecordingListener implements LdapChangeListener {
+
+        private final List<LdapChange> changes = new ArrayList<LdapChange>();
+
+        @Override
+        public void entriesChanged(List<LdapChange> changes) {
+            assertTrue(!changes.isEmpty());
+            this.changes.addAll(changes);
+        }
+    }
+
+    private static class FakeDirectory extends ReturnNullMockLdapService {
+
+        private final Map<String, CompactLdapUser> entries = new LinkedHashMap<String, CompactLdapUser>();
+        private final List<String> searches = new ArrayList<String>();
+
+        void put(String uid, String cn, String change) {
+            CompactLdapUser ldapUser = new CompactLdapUser("uid=" + uid + ",ou=people");
+            ldapUser.setAttributeValue("uid", uid);
+            ldapUser.setAttributeValue("cn", cn);
+            ldapUser.setAttributeValue("objectClass", new Object[]{"top", "person"});
+            ldapUser.setAttributeValue(change.endsWith("Z") ? ReplicatingLdapServiceWrapper.MODIFY_TIMESTAMP
+                    : ReplicatingLdapServiceWrapper.USN_CHANGED, change);
+            entries.put(ldapUser.getDn(), ldapUser);
+        }
+
+        @Override
+        public synchronized LdapUser[] search(String base, String filter) {
+            searches.add(filter);
+            LdapFilterMatcher matcher = LdapFilterMatcher.parse(filter);
+            List<LdapUser> found = new ArrayList<LdapUser>();
+            for (CompactLdapUser ldapUser : entries.values()) {
+                if (matcher.matches(ldapUser)) {
+                    found.add(CompactLdapUser.copyOf(ldapUser));
+                }
+            }
+            return found.toArray(new LdapUser[found.size()]);
+        }
+
+        @Override
+        public LdapUser[] search(String base, String filter, String[] attributes) {
+            return search(base, filter);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.ContextSource;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for PooledContextSource.
+ */
+public class PooledContextSourceTest {
+
+    private AtomicInteger createdContexts;
+    private PooledContextSource pooledContextSource;
+
+    @Before
+    public void setUp() {
+        createdContexts = new AtomicInteger();
+        pooledContextSource = new PooledContextSource(new ContextSource() {
+            @Override
+            public DirContext getReadOnlyContext() {
+                return getReadWriteContext();
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                try {
+                    createdContexts.incrementAndGet();
+                    return new MockDirContext();
+                } catch (NamingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public DirContext getContext(String principal, String credentials) {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @Test
+    public void testClosedContextsAreReused() throws Exception {
+        DirContext first = pooledContextSource.getReadOnlyContext();
+        assertEquals(1, pooledContextSource.getNumActive());
+        first.close();
+        assertEquals(0, pooledContextSource.getNumActive());
+        assertEquals(1, pooledContextSource.getNumIdle());
+
+        DirContext second = pooledContextSource.getReadWriteContext();
+        second.close();
+        // Closing twice must not return the context twice.
+        second.close();
+
+        assertEquals(1, createdContexts.get());
+        assertEquals(1, pooledContextSource.getNumIdle());
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenPoolIsExhausted() throws Exception {
+        pooledContextSource.setMaxActive(1);
+        pooledContextSource.setMaxWaitMillis(100);
+
+        DirContext borrowed = pooledContextSource.getReadOnlyContext();
+        try {
+            pooledContextSource.getReadOnlyContext();
+            fail("The pool should be exhausted");
+        } catch (LdapUserRetrievalException e) {
+            // Expected.
+        } finally {
+            borrowed.close();
+        }
+        assertEquals(0, pooledContextSource.getNumWaiters());
+    }
+
+    @Test
+    public void testLdapServiceImplUsesPool() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("BIND_URL", "ldap://localhost:389");
+        p.setProperty("BASE", "ou=anv,O=VGR");
+        LdapServiceImpl ldapService = new LdapServiceImpl(p);
+        ldapService.setContextSource(pooledContextSource);
+
+        assertEquals(1, ldapService.search(null, LdapServiceTest.uid).length);
+        assertEquals(1, ldapService.search(null, LdapServiceTest.search, new String[]{"mail"}).length);
+
+        assertEquals(1, createdContexts.get());
+        assertEquals(0, pooledContextSource.getNumActive());
+        assertEquals(1, pooledContextSource.getNumIdle());
+    }
+}
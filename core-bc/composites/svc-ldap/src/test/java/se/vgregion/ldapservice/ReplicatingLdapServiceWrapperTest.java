@@ -0,0 +1,326 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicatingLdapServiceWrapperTest {
+
+    private FakeDirectory directory;
+    private ReplicatingLdapServiceWrapper replica;
+
+    @Before
+    public void setUp() {
+        directory = new FakeDirectory();
+        directory.put("foo", "Foo", 10);
+        directory.put("bar", "Bar", 11);
+        replica = new ReplicatingLdapServiceWrapper(directory, "ou=people", "(objectClass=person)",
+                new String[]{"cn", "mail"});
+        replica.setServeReadsWithoutAttributes(true);
+    }
+
+    @Test
+    public void readsGoToTheDirectoryUntilLoaded() {
+        assertFalse(replica.isLoaded());
+        assertEquals(2, replica.search("ou=people", "(cn=*)").length);
+        assertEquals(1, directory.searches.size());
+    }
+
+    @Test
+    public void fullLoadThenDeltas() {
+        assertEquals(2, replica.sync());
+        assertEquals("(objectClass=person)", directory.searches.get(0));
+        assertEquals("11", replica.getHighWaterMark());
+
+        directory.put("foo", "Foo Changed", 12);
+        directory.put("baz", "Baz", 13);
+        assertEquals(2, replica.sync());
+        assertEquals("(&(objectClass=person)(uSNChanged>=12))", directory.searches.get(1));
+        assertEquals("13", replica.getHighWaterMark());
+        assertEquals(3, replica.size());
+
+        assertEquals(0, replica.sync());
+        assertEquals("Foo Changed", replica.getLdapUserByUid("FOO").getAttributeValue("cn"));
+    }
+
+    @Test
+    public void readsAreServedLocally() {
+        replica.sync();
+        int searches = directory.searches.size();
+
+        LdapUser[] found = replica.search("ou=people", "(&(objectclass=person)(CN=f*))");
+        assertEquals(1, found.length);
+        assertEquals("uid=foo,ou=people", found[0].getDn());
+        assertEquals("foo@vgregion.se", found[0].getAttributeValue("mail"));
+
+        LdapUser[] onlyCn = replica.search("ou=people", "(&(objectClass=person)(uid=bar))", new String[]{"cn"});
+        assertEquals("Bar", onlyCn[0].getAttributeValue("cn"));
+        assertNull(onlyCn[0].getAttributeValue("mail"));
+
+        assertEquals(2, replica.search("ou=people", "(objectClass=person)").length);
+        assertEquals("Bar", replica.getLdapUser("ou=people", "(&(uid=bar)(objectClass=person))")
+                .getAttributeValue("cn"));
+        assertNull(replica.getLdapUser("ou=people", "(&(objectClass=person)(uid=bar)(cn=Foo))"));
+        assertEquals(2, replica.getLdapUsersByUids(Arrays.asList("foo", "bar")).size());
+        assertEquals(searches, directory.searches.size());
+        assertEquals(0, directory.uidLookups);
+    }
+
+    @Test
+    public void readsWithoutAttributesGoToTheDirectoryByDefault() {
+        ReplicatingLdapServiceWrapper partial = new ReplicatingLdapServiceWrapper(directory, "ou=people",
+                "(objectClass=person)", new String[]{"cn", "mail"});
+        partial.sync();
+        int searches = directory.searches.size();
+
+        assertEquals("123", partial.getLdapUserByUid("foo").getAttributeValue("telephoneNumber"));
+        assertEquals("123", partial.search("ou=people", "(cn=Foo)")[0].getAttributeValue("telephoneNumber"));
+        assertEquals("123", partial.getLdapUser("ou=people", "(cn=Foo)").getAttributeValue("telephoneNumber"));
+        assertEquals(1, partial.getLdapUsersByUids(Arrays.asList("foo")).size());
+        assertEquals(2, directory.uidLookups);
+        assertEquals(searches + 2, directory.searches.size());
+
+        // Reads naming replicated attributes only are still answered by the replica.
+        assertEquals("Foo", partial.search("ou=people", "(&(objectClass=person)(uid=foo))", new String[]{"cn"})[0]
+                .getAttributeValue("cn"));
+        assertEquals(searches + 2, directory.searches.size());
+    }
+
+    @Test
+    public void returnsCopies() {
+        replica.sync();
+        replica.getLdapUserByUid("foo").setAttributeValue("cn", "Changed");
+        assertEquals("Foo", replica.getLdapUserByUid("foo").getAttributeValue("cn"));
+    }
+
+    @Test
+    public void unsupportedSearchesGoToTheDirectory() {
+        replica.sync();
+        int searches = directory.searches.size();
+
+        replica.search("ou=people", "(telephoneNumber=123)");
+        replica.search("ou=people", "(uid=foo)", new String[]{"telephoneNumber"});
+        replica.search("", "(&(objectClass=person)(uid=foo))");
+        assertEquals(searches + 3, directory.searches.size());
+    }
+
+    @Test
+    public void searchesBeyondTheReplicaFilterGoToTheDirectory() {
+        directory.put("uid=svc-account,ou=people", "svc-account", "Service", 14)
+                .setAttributeValue("objectClass", new Object[]{"top", "account"});
+        replica.sync();
+        assertEquals(2, replica.size());
+        int searches = directory.searches.size();
+
+        assertEquals(1, replica.search("ou=people", "(uid=svc-account)").length);
+        assertEquals("Service", replica.getLdapUser("ou=people", "(uid=svc-account)").getAttributeValue("cn"));
+        assertEquals(1, replica.search("ou=people", "(objectClass=account)", new String[]{"cn"}).length);
+        assertEquals(3, replica.search("ou=people", "(cn=*)").length);
+        assertEquals(2, replica.search("ou=people", "(|(objectClass=person)(cn=Foo))").length);
+        assertEquals(searches + 5, directory.searches.size());
+
+        // Filters that select a part of the replicated entries are answered by the replica.
+        assertEquals(2, replica.search("ou=people", "(&(cn=*)(objectclass=PERSON))").length);
+        assertEquals(1, replica.search("ou=people", "(&(&(objectClass=person)(mail=*))(cn=Bar))").length);
+        assertEquals(searches + 5, directory.searches.size());
+    }
+
+    @Test
+    public void missingUidsAreLookedUpInTheDirectory() {
+        replica.sync();
+        directory.put("new", "New", 20);
+
+        assertNotNull(replica.getLdapUserByUid("new"));
+        Map<String, LdapUser> found = replica.getLdapUsersByUids(Arrays.asList("foo", "new", "nobody"));
+        assertEquals(2, found.size());
+        assertEquals(3, directory.uidLookups);
+    }
+
+    @Test
+    public void searchesForMissingUidsGoToTheDirectory() {
+        replica.sync();
+        directory.put("new", "New", 20);
+        int searches = directory.searches.size();
+
+        assertEquals("New", replica.getLdapUser("ou=people", "(&(objectClass=person)(uid=new))")
+                .getAttributeValue("cn"));
+        assertEquals(1, replica.search("ou=people", "(&(objectClass=person)(uid=new))", new String[]{"cn"}).length);
+        assertNull(replica.getLdapUser("ou=people", "(&(objectClass=person)(uid=nobody))"));
+        assertEquals(searches + 3, directory.searches.size());
+    }
+
+    @Test
+    public void movedEntryReplacesTheOldOne() {
+        replica.sync();
+        directory.entries.remove("uid=foo,ou=people");
+        directory.put("uid=foo,ou=other,ou=people", "foo", "Foo", 30);
+        replica.sync();
+
+        assertEquals(2, replica.size());
+        assertEquals("uid=foo,ou=other,ou=people", replica.getLdapUserByUid("foo").getDn());
+        assertEquals(1, replica.search("ou=people", "(&(objectClass=person)(cn=foo))").length);
+    }
+
+    @Test
+    public void writesInvalidate() {
+        replica.sync();
+        LdapUser foo = replica.getLdapUserByUid("foo");
+        replica.modifyLdapUser(foo, new HashMap<String, String>());
+        assertEquals(1, replica.size());
+        assertEquals(1, directory.modifications);
+    }
+
+    @Test
+    public void fullReloadDropsDeletedEntries() {
+        final long[] now = {System.currentTimeMillis()};
+        replica = new ReplicatingLdapServiceWrapper(directory, "ou=people", "(objectClass=person)",
+                new String[]{"cn", "mail"}) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        replica.setFullReloadIntervalSeconds(60);
+        replica.sync();
+        directory.entries.remove("uid=bar,ou=people");
+        now[0] += 59000;
+        replica.sync();
+        assertEquals(2, replica.size());
+
+        now[0] += 1000;
+        replica.sync();
+        assertEquals(1, replica.size());
+    }
+
+    @Test
+    public void restartResumesFromTheStateFile() throws Exception {
+        File stateFile = File.createTempFile("replica", ".ser");
+        stateFile.delete();
+        try {
+            replica.setStateFile(stateFile);
+            replica.sync();
+            replica.stop();
+            assertTrue(stateFile.isFile());
+
+            directory.put("baz", "Baz", 12);
+            directory.searches.clear();
+            ReplicatingLdapServiceWrapper restarted = new ReplicatingLdapServiceWrapper(directory, "ou=people",
+                    "(objectClass=person)", new String[]{"cn", "mail"});
+            restarted.setStateFile(stateFile);
+            restarted.start();
+            try {
+                assertTrue(restarted.isLoaded());
+                restarted.sync();
+                assertEquals("12", restarted.getHighWaterMark());
+                assertEquals(3, restarted.size());
+                for (String search : directory.searches) {
+                    assertTrue(search, search.contains("uSNChanged>="));
+                }
+            } finally {
+                restarted.stop();
+            }
+
+            ReplicatingLdapServiceWrapper otherSettings = new ReplicatingLdapServiceWrapper(directory, "ou=people",
+                    "(objectClass=person)", new String[]{"cn"});
+            otherSettings.setStateFile(stateFile);
+            directory.searches.clear();
+            otherSettings.start();
+            otherSettings.sync();
+            otherSettings.stop();
+            assertTrue(directory.searches.contains("(objectClass=person)"));
+        } finally {
+            stateFile.delete();
+        }
+    }
+
+    /**
+     * A directory in memory, searched with the LdapFilterMatcher.
+     */
+    private static class FakeDirectory extends ReturnNullMockLdapService {
+
+        private final Map<String, CompactLdapUser> entries = new LinkedHashMap<String, CompactLdapUser>();
+        private final List<String> searches = new ArrayList<String>();
+        private int uidLookups;
+        private int modifications;
+
+        CompactLdapUser put(String uid, String cn, long usn) {
+            return put("uid=" + uid + ",ou=people", uid, cn, usn);
+        }
+
+        CompactLdapUser put(String dn, String uid, String cn, long usn) {
+            CompactLdapUser ldapUser = new CompactLdapUser(dn);
+            ldapUser.setAttributeValue("uid", uid);
+            ldapUser.setAttributeValue("cn", cn);
+            ldapUser.setAttributeValue("mail", uid + "@vgregion.se");
+            ldapUser.setAttributeValue("telephoneNumber", "123");
+            ldapUser.setAttributeValue("objectClass", new Object[]{"top", "person"});
+            ldapUser.setAttributeValue("uSNChanged", String.valueOf(usn));
+            entries.put(ldapUser.getDn(), ldapUser);
+            return ldapUser;
+        }
+
+        @Override
+        public synchronized LdapUser[] search(String base, String filter) {
+            searches.add(filter);
+            LdapFilterMatcher matcher = LdapFilterMatcher.parse(filter);
+            List<LdapUser> found = new ArrayList<LdapUser>();
+            for (CompactLdapUser ldapUser : entries.values()) {
+                if (matcher.matches(ldapUser)) {
+                    found.add(CompactLdapUser.copyOf(ldapUser));
+                }
+            }
+            return found.toArray(new LdapUser[found.size()]);
+        }
+
+        @Override
+        public LdapUser[] search(String base, String filter, String[] attributes) {
+            return search(base, filter);
+        }
+
+        @Override
+        public LdapUser getLdapUser(String base, String filter) {
+            LdapUser[] found = search(base, filter);
+            return found.length > 0 ? found[0] : null;
+        }
+
+        @Override
+        public LdapUser getLdapUserByUid(String uid) {
+            uidLookups++;
+            LdapUser[] found = search("", "(uid=" + uid + ")");
+            searches.remove(searches.size() - 1);
+            return found.length > 0 ? found[0] : null;
+        }
+
+        @Override
+        public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+            Map<String, LdapUser> found = new HashMap<String, LdapUser>();
+            for (String uid : uids) {
+                LdapUser ldapUser = getLdapUserByUid(uid);
+                if (ldapUser != null) {
+                    found.put(uid, ldapUser);
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public boolean modifyLdapUser(LdapUser ldapUser, HashMap<String, String> attributes) {
+            modifications++;
+            return true;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package se.vgregion.ldapservice;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -60,4 +62,9 @@ public class ReturnNullMockLdapService implements LdapService {
     public LdapUser getLdapUserByUid(String s) {
         return null;
     }
+
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        throw new UnsupportedOperationException();
+    }
 }
@@ -0,0 +1,48 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.ldap.core.simple.SimpleLdapTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test for SimpleLdapServiceImpl.
+ */
+public class SimpleLdapServiceImplTest {
+
+    @Test
+    public void testGetLdapUsersByUidsSearchesInChunks() {
+        SimpleLdapTemplate template = Mockito.mock(SimpleLdapTemplate.class);
+        SimpleLdapUser found = new SimpleLdapUser("uid=user7,ou=anv");
+        found.setAttributeValue("uid", "USER7");
+        Mockito.when(template.search(Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SimpleLdapServiceImpl.LdapUserMapper.class)))
+                .thenReturn(Collections.singletonList(found), Collections.<SimpleLdapUser>emptyList());
+
+        SimpleLdapServiceImpl service = new SimpleLdapServiceImpl(template);
+        service.setBulkChunkSize(100);
+
+        List<String> uids = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            uids.add("user" + i);
+        }
+        Map<String, LdapUser> users;
+        try {
+            users = service.getLdapUsersByUids(uids);
+        } finally {
+            service.shutdown();
+        }
+
+        Mockito.verify(template, Mockito.times(3)).search(Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SimpleLdapServiceImpl.LdapUserMapper.class));
+        assertEquals(1, users.size());
+        assertSame(found, users.get("user7"));
+    }
+}
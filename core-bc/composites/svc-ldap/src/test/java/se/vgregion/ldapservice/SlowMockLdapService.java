@@ -1,7 +1,10 @@
 package se.vgregion.ldapservice;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -11,6 +14,8 @@ import static org.mockito.Mockito.when;
  */
 public class SlowMockLdapService implements LdapService {
     private long delayForGettingUser;
+    private final AtomicInteger searchCalls = new AtomicInteger();
+    private final AtomicInteger getLdapUserByUidCalls = new AtomicInteger();
 
     public SlowMockLdapService(long delayForGettingUser) {
         this.delayForGettingUser = delayForGettingUser;
@@ -18,7 +23,12 @@ public class SlowMockLdapService implements LdapService {
 
     @Override
     public LdapUser[] search(String s, String s1) {
-        throw new UnsupportedOperationException();
+        searchCalls.incrementAndGet();
+        LdapUser ldapUser = mock(LdapUser.class);
+        when(ldapUser.getDn()).thenReturn("someDn");
+
+        sleep();
+        return new LdapUser[]{ldapUser};
     }
 
     @Override
@@ -63,15 +73,33 @@ public class SlowMockLdapService implements LdapService {
 
     @Override
     public LdapUser getLdapUserByUid(String s) {
+        getLdapUserByUidCalls.incrementAndGet();
         LdapUser ldapUser = mock(LdapUser.class);
         when(ldapUser.getDn()).thenReturn("someDn");
         when(ldapUser.getAttributeValue("mailServer")).thenReturn("CN=liv,OU=epost,O=vgregion");
 
+        sleep();
+        return ldapUser;
+    }
+
+    private void sleep() {
         try {
             Thread.sleep(delayForGettingUser);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        return ldapUser;
+    }
+
+    public int getSearchCalls() {
+        return searchCalls.get();
+    }
+
+    public int getLdapUserByUidCalls() {
+        return getLdapUserByUidCalls.get();
+    }
+
+    @Override
+    public Map<String, LdapUser> getLdapUsersByUids(Collection<String> uids) {
+        throw new UnsupportedOperationException();
     }
 }
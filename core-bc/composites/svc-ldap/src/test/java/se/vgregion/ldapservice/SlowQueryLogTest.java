@@ -0,0 +1,74 @@
+package se.vgregion.ldapservice;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for SlowQueryLog.
+ */
+public class SlowQueryLogTest {
+
+    @Test
+    public void fingerprintTakesOutTheValues() {
+        assertEquals("(cn=*?*)", SlowQueryLog.fingerprint("(cn=*anna*)"));
+        assertEquals("(cn=?*)", SlowQueryLog.fingerprint("cn=ann*"));
+        assertEquals("(cn=*)", SlowQueryLog.fingerprint("(cn=*)"));
+        assertEquals("(&(objectclass=?)(!(mail=*))(usnchanged>=?))",
+                SlowQueryLog.fingerprint("(&(objectClass=person)(!(mail=*))(uSNChanged>=1234))"));
+    }
+
+    @Test
+    public void fingerprintCollapsesRepeatedFilters() {
+        assertEquals("(&(objectclass=?)(|(uid=?)...))",
+                SlowQueryLog.fingerprint("(&(objectclass=person)(|(uid=a)(uid=b)(uid=c)))"));
+        assertEquals("(|(uid=?)...(mail=?)(uid=?))", SlowQueryLog.fingerprint("(|(uid=a)(uid=b)(mail=c)(uid=d))"));
+    }
+
+    @Test
+    public void malformedFiltersAreStillStripped() {
+        assertEquals("(&(cn=?)", SlowQueryLog.fingerprint("(&(cn=x)"));
+    }
+
+    @Test
+    public void topIsOrderedByTotalTime() {
+        SlowQueryLog log = new SlowQueryLog();
+        long now = System.nanoTime();
+        log.record("search", "", "(cn=*anna*)", 3, 2, now - TimeUnit.MILLISECONDS.toNanos(300));
+        log.record("search", "", "(cn=*bo*)", 1, 2, now - TimeUnit.MILLISECONDS.toNanos(300));
+        log.record("search", "", "(uid=anna)", 1, 2, now - TimeUnit.MILLISECONDS.toNanos(400));
+        log.record("search", "", "(uid=bo)", -1, -1, now - TimeUnit.MILLISECONDS.toNanos(10));
+
+        List<SlowQueryLog.FingerprintStats> top = log.getTop(10);
+
+        assertEquals(2, top.size());
+        assertEquals("(cn=*?*)", top.get(0).getFingerprint());
+        assertEquals(2, top.get(0).getCount());
+        assertEquals(4, top.get(0).getTotalResults());
+        assertEquals("(uid=?)", top.get(1).getFingerprint());
+        assertEquals(1, top.get(1).getFailedCount());
+        assertEquals(1, log.getTop(1).size());
+        assertEquals(2, log.getTopByTotalTime().length);
+    }
+
+    @Test
+    public void newFingerprintsBeyondTheLimitAreAddedUpAsOther() {
+        SlowQueryLog log = new SlowQueryLog();
+        log.setMaxFingerprints(1);
+        log.record("search", "", "(cn=a)", 1, 1, System.nanoTime());
+        log.record("search", "", "(uid=a)", 1, 1, System.nanoTime());
+        log.record("search", "", "(mail=a)", 1, 1, System.nanoTime());
+        log.record("search", "", "(cn=b)", 1, 1, System.nanoTime());
+
+        assertEquals(2, log.getFingerprintCount());
+        for (SlowQueryLog.FingerprintStats stats : log.getTop(10)) {
+            assertEquals(2, stats.getCount());
+        }
+
+        log.reset();
+        assertEquals(0, log.getFingerprintCount());
+    }
+}
@@ -0,0 +1,60 @@
+package se.vgregion.ldapservice.search;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import se.vgregion.ldapservice.search.beanutil.BeanMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Test for AbstractPerson.
+ */
+public class AbstractPersonTest {
+
+    @Test
+    public void equalsAndHashCode() {
+        KivPerson kp1 = new KivPerson();
+        kp1.setCn("foo");
+        KivPerson kp2 = new KivPerson();
+        kp2.setCn("foo");
+
+        Assert.assertEquals(kp1, kp2);
+        Assert.assertEquals(kp1.hashCode(), kp2.hashCode());
+        Assert.assertEquals(kp1.hashCode(), kp1.hashCode());
+
+        Set<KivPerson> set = new HashSet<KivPerson>();
+        set.add(kp1);
+        Assert.assertTrue(set.contains(kp2));
+
+        kp2.setCn("bar");
+        Assert.assertFalse(kp1.equals(kp2));
+    }
+
+    @Test
+    public void toStringContainsProperties() {
+        KivPerson kp = new KivPerson();
+        kp.setCn("foo");
+        Assert.assertTrue(kp.toString().contains("cn: foo"));
+    }
+
+    @Test
+    public void serializable() throws Exception {
+        KivPerson kp = new KivPerson();
+        kp.setCn("foo");
+        new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(kp);
+    }
+
+    @Test
+    public void beanMapsShareMetadata() {
+        BeanMap bm1 = new BeanMap(new KivPerson());
+        BeanMap bm2 = new BeanMap(new KivPerson());
+        Assert.assertSame(bm1.keySet(), bm2.keySet());
+        Assert.assertEquals(bm1.keySet().size(), bm1.entrySet().size());
+        Assert.assertTrue(bm1.isWritable("cn"));
+        Assert.assertFalse(bm1.isWritable("class"));
+        Assert.assertFalse(bm1.isWritable("noSuchProperty"));
+    }
+}
@@ -0,0 +1,63 @@
+package se.vgregion.ldapservice.search;
+
+import org.springframework.ldap.core.AttributesMapper;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the per row cost of mapping search results to {@link AdPerson} with the generated {@link LdapBeanMapper}
+ * and with reflection. Not run as part of the tests; start it with the main method.
+ */
+public final class AttributesMapperBenchmark {
+
+    private static final int ROWS = 5000;
+    private static final int ROUNDS = 20;
+
+    private static final String[] ATTRIBUTES = {"cn", "mail", "givenName", "sn", "displayName", "title",
+            "department", "company", "telephoneNumber", "mobile", "userPrincipalName", "sAMAccountName",
+            "distinguishedName", "uSNChanged", "uSNCreated", "whenChanged", "whenCreated", "objectGUID",
+            "homeDirectory", "homeDrive", "mailNickname", "msExchUserCulture", "msRTCSIP-PrimaryUserAddress",
+            "msRTCSIP-PrimaryHomeServer", "extensionAttribute1", "extensionAttribute2", "proxyAddresses",
+            "memberOf", "objectClass", "name"};
+
+    private static volatile Object sink;
+
+    private AttributesMapperBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Attributes> rows = new ArrayList<Attributes>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            Attributes attributes = new BasicAttributes(true);
+            for (String name : ATTRIBUTES) {
+                attributes.put(name, name + "-value-" + i);
+            }
+            attributes.put("userCertificate", new byte[]{1, 2, 3, (byte) i});
+            rows.add(attributes);
+        }
+
+        AttributesMapper reflection = new LdapFinderService.BeanAttributesMapper(AdPerson.class);
+        AttributesMapper generated = LdapFinderService.newBeanAttributesMapper(AdPerson.class);
+        if (generated instanceof LdapFinderService.BeanAttributesMapper) {
+            System.out.println("No generated mapper found, compile with the ExplicitLdapNameProcessor.");
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long reflectionNanos = run(reflection, rows);
+            long generatedNanos = run(generated, rows);
+            System.out.printf("reflection: %6d ns/row   generated: %6d ns/row%n", reflectionNanos / ROWS,
+                    generatedNanos / ROWS);
+        }
+    }
+
+    private static long run(AttributesMapper mapper, List<Attributes> rows) throws Exception {
+        long start = System.nanoTime();
+        for (Attributes row : rows) {
+            sink = mapper.mapFromAttributes(row);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,68 @@
+package se.vgregion.ldapservice.search;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.springframework.ldap.filter.AndFilter;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * Test for the LdapBeanMapper:s generated by the ExplicitLdapNameProcessor.
+ */
+public class LdapBeanMapperTest {
+
+    @Test
+    public void generatedForAnnotatedBeans() {
+        Assert.assertNotNull(LdapBeanMapper.forType(AdPerson.class));
+        Assert.assertNotNull(LdapBeanMapper.forType(KivPerson.class));
+        Assert.assertNotNull(LdapBeanMapper.forType(WebLdapPerson.class));
+        Assert.assertSame(LdapBeanMapper.forType(KivPerson.class), LdapBeanMapper.forType(KivPerson.class));
+        Assert.assertNull(LdapBeanMapper.forType(String.class));
+    }
+
+    @Test
+    public void mapsLikeReflection() throws Exception {
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put("cn", "foo");
+        attributes.put("mail", "foo@vgregion.se");
+        attributes.put("vgr-id", "foo1");
+        attributes.put("userCertificate;binary", new byte[]{1, 2, 3});
+        attributes.put("unknownAttribute", "bar");
+
+        Object generated = LdapFinderService.newBeanAttributesMapper(KivPerson.class).mapFromAttributes(attributes);
+        Object reflected = new LdapFinderService.BeanAttributesMapper(KivPerson.class).mapFromAttributes(attributes);
+
+        Assert.assertTrue(generated instanceof KivPerson);
+        Assert.assertEquals(reflected, generated);
+        Assert.assertEquals("foo1", ((KivPerson) generated).getVgrId());
+    }
+
+    @Test
+    public void unknownAttributeIdFallsBackToReflection() throws Exception {
+        Attributes attributes = new BasicAttributes(true);
+        attributes.put("given-name", "Foo");
+
+        KivPerson generated = (KivPerson) LdapFinderService.newBeanAttributesMapper(KivPerson.class)
+                .mapFromAttributes(attributes);
+
+        Assert.assertEquals("Foo", generated.getGivenName());
+    }
+
+    @Test
+    public void appendFilter() {
+        KivPerson sample = new KivPerson();
+        sample.setCn("foo*");
+        sample.setMail(" ");
+        sample.setVgrId("bar");
+
+        AndFilter filter = new AndFilter();
+        LdapBeanMapper.forType(KivPerson.class).appendFilter(sample, filter);
+
+        String encoded = filter.encode();
+        Assert.assertTrue(encoded, encoded.contains("(cn=foo*)"));
+        Assert.assertTrue(encoded, encoded.contains("(vgr-id=bar)"));
+        Assert.assertFalse(encoded.contains("mail"));
+        Assert.assertEquals(new LdapFinderService().toAndCondition(sample).encode(), encoded);
+    }
+}
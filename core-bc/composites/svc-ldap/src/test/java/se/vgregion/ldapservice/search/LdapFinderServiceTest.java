@@ -4,10 +4,24 @@ import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.LdapTemplate;
+import se.vgregion.ldapservice.CompactLdapUser;
+import se.vgregion.ldapservice.LdapUser;
+import se.vgregion.ldapservice.ReplicatingLdapServiceWrapper;
+import se.vgregion.ldapservice.ReturnNullMockLdapService;
 
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Test for LdapFinderService.
@@ -45,5 +59,236 @@ public class LdapFinderServiceTest {
         Assert.assertNotNull(s);
     }
 
+    @Test
+    public void toAndConditionWithoutGeneratedMapper() {
+        SampleBean sample = new SampleBean();
+        sample.setCn("foo*");
+        sample.setVgrId("bar");
+        sample.setMail(" ");
+        Assert.assertEquals("(&(cn=foo*)(vgr-id=bar))", finder.toAndCondition(sample).encode());
+    }
+
+    @Test
+    public void filterTemplateIsSharedPerClass() {
+        LdapFinderService.FilterTemplate template = LdapFinderService.FilterTemplate.of(SampleBean.class);
+        Assert.assertSame(template, LdapFinderService.FilterTemplate.of(SampleBean.class));
+        Assert.assertEquals(3, template.size());
+    }
+
+    @Test
+    public void findReturnsAttributesOfTheBeanClass() {
+        CapturingLdapTemplate capturing = new CapturingLdapTemplate();
+        finder.setLdapTemplate(capturing);
+        SampleBean sample = new SampleBean();
+        sample.setCn("foo");
+
+        finder.find(sample);
+
+        Assert.assertTrue(Arrays.equals(new String[]{"cn", "mail", "vgr-id"},
+                capturing.searchControls.getReturningAttributes()));
+        Assert.assertEquals("(cn=foo)", capturing.filter);
+    }
+
+    @Test
+    public void findUsesTheReplica() {
+        CompactLdapUser entry = new CompactLdapUser("uid=foo");
+        entry.setAttributeValue("uid", "foo");
+        entry.setAttributeValue("cn", "foo");
+        entry.setAttributeValue("vgr-id", "foo1");
+        entry.setAttributeValue("objectClass", "person");
+        entry.setAttributeValue("uSNChanged", "1");
+        final LdapUser[] directory = {entry};
+        ReturnNullMockLdapService ldapService = new ReturnNullMockLdapService() {
+            @Override
+            public LdapUser[] search(String base, String filter, String[] attributes) {
+                return directory;
+            }
+        };
+        ReplicatingLdapServiceWrapper replica = new ReplicatingLdapServiceWrapper(ldapService, "", "(cn=*)",
+                new String[]{"cn", "mail", "vgr-id"});
+        replica.sync();
+        CapturingLdapTemplate capturing = new CapturingLdapTemplate();
+        finder.setLdapTemplate(capturing);
+        finder.setReplica(replica);
+        SampleBean sample = new SampleBean();
+        sample.setCn("FOO");
+
+        List<SampleBean> found = finder.find(sample);
+
+        Assert.assertEquals(1, found.size());
+        Assert.assertEquals("foo1", found.get(0).getVgrId());
+        Assert.assertNull(capturing.filter);
+
+        finder.find(sample, "cn", "telephoneNumber");
+        Assert.assertEquals("(cn=FOO)", capturing.filter);
+
+        // The sample may match entries that are not persons, which a replica of the persons doesn't hold.
+        ReplicatingLdapServiceWrapper persons = new ReplicatingLdapServiceWrapper(ldapService, "",
+                "(objectClass=person)", new String[]{"cn", "mail", "vgr-id"});
+        persons.sync();
+        finder.setReplica(persons);
+        capturing.filter = null;
+        finder.find(sample);
+        Assert.assertEquals("(cn=FOO)", capturing.filter);
+    }
+
+    @Test
+    public void findWithExplicitAttributes() {
+        CapturingLdapTemplate capturing = new CapturingLdapTemplate();
+        finder.setLdapTemplate(capturing);
+        KivPerson kp = new KivPerson();
+        kp.setCn("foo");
+
+        finder.find(kp, "cn", "mail");
+
+        Assert.assertTrue(Arrays.equals(new String[]{"cn", "mail"},
+                capturing.searchControls.getReturningAttributes()));
+    }
+
+    @Test
+    public void returningAttributesOfAdPerson() {
+        List<String> attributes = Arrays.asList(LdapFinderService.getReturningAttributes(AdPerson.class));
+        Assert.assertTrue(attributes.contains("msRTCSIP-PrimaryUserAddress"));
+        Assert.assertTrue(attributes.contains("uSNChanged"));
+        Assert.assertFalse(attributes.contains("*"));
+        Assert.assertFalse(attributes.contains("class"));
+    }
+
+    @Test
+    public void findFutureWithDeadlineSetsTimeLimit() throws Exception {
+        CapturingLdapTemplate capturing = new CapturingLdapTemplate();
+        finder.setLdapTemplate(capturing);
+        KivPerson kp = new KivPerson();
+        kp.setCn("foo");
+
+        finder.findFuture(kp, 5, TimeUnit.SECONDS, "cn").get();
+
+        int timeLimit = capturing.searchControls.getTimeLimit();
+        Assert.assertTrue(timeLimit > 0 && timeLimit <= 5000);
+        Assert.assertTrue(Arrays.equals(new String[]{"cn"}, capturing.searchControls.getReturningAttributes()));
+        finder.shutdown();
+    }
+
+    @Test
+    public void findFutureIsBounded() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        finder.setLdapTemplate(new LdapTemplate() {
+            @Override
+            public List search(String base, String filter, SearchControls controls, AttributesMapper mapper) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new ArrayList();
+            }
+        });
+        finder.setMaxThreads(1);
+        finder.setQueueCapacity(1);
+        KivPerson kp = new KivPerson();
+        kp.setCn("foo");
+
+        Future<List<KivPerson>> running = finder.findFuture(kp);
+        Future<List<KivPerson>> queued = finder.findFuture(kp);
+        try {
+            finder.findFuture(kp);
+            Assert.fail("Expected the search to be rejected.");
+        } catch (RejectedExecutionException e) {
+            // Expected, one running and one queued.
+        } finally {
+            release.countDown();
+        }
+        Assert.assertNotNull(running.get());
+        Assert.assertNotNull(queued.get());
+        finder.shutdown();
+    }
+
+    @Test
+    public void cancelStopsReadingResults() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicReference<RuntimeException> stoppedBy = new AtomicReference<RuntimeException>();
+        finder.setLdapTemplate(new LdapTemplate() {
+            @Override
+            public List search(String base, String filter, SearchControls controls, AttributesMapper mapper) {
+                List result = new ArrayList();
+                try {
+                    while (true) {
+                        result.add(mapper.mapFromAttributes(new BasicAttributes()));
+                        started.countDown();
+                        Thread.sleep(1);
+                    }
+                } catch (RuntimeException e) {
+                    stoppedBy.set(e);
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        KivPerson kp = new KivPerson();
+        kp.setCn("foo");
+
+        Future<List<KivPerson>> future = finder.findFuture(kp);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        future.cancel(false);
+
+        Assert.assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(stoppedBy.get() instanceof CancellationException);
+        finder.shutdown();
+    }
+
+    static class CapturingLdapTemplate extends LdapTemplate {
+
+        String filter;
+        SearchControls searchControls;
+
+        @Override
+        public List search(String base, String filter, SearchControls controls, AttributesMapper mapper) {
+            this.filter = filter;
+            this.searchControls = controls;
+            return new ArrayList();
+        }
+    }
+
+    /**
+     * Bean without a generated LdapBeanMapper, since the annotation processor does not run on the tests.
+     */
+    public static class SampleBean {
+
+        private String cn;
+
+        private String mail;
+
+        @ExplicitLdapName("vgr-id")
+        private String vgrId;
+
+        public String getCn() {
+            return cn;
+        }
+
+        public void setCn(String cn) {
+            this.cn = cn;
+        }
+
+        public String getMail() {
+            return mail;
+        }
+
+        public void setMail(String mail) {
+            this.mail = mail;
+        }
+
+        public String getVgrId() {
+            return vgrId;
+        }
+
+        public void setVgrId(String vgrId) {
+            this.vgrId = vgrId;
+        }
+    }
+
 
 }
@@ -0,0 +1,60 @@
+package se.vgregion.ldapservice.search;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the bytes allocated when mapping a 5 000 row search result to {@link AdPerson} beans, and when only
+ * creating that many empty beans. Not run as part of the tests; start it with the main method on a HotSpot JVM, which
+ * provides the per thread allocation counter.
+ */
+public final class PersonMappingAllocationBenchmark {
+
+    private static final int ROWS = 5000;
+
+    private PersonMappingAllocationBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Attributes> rows = new ArrayList<Attributes>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            Attributes attributes = new BasicAttributes(true);
+            attributes.put("cn", "user" + i);
+            attributes.put("mail", "user" + i + "@vgregion.se");
+            attributes.put("title", "title" + i);
+            attributes.put("department", "department" + i);
+            attributes.put("telephoneNumber", "031-" + i);
+            attributes.put("uSNChanged", String.valueOf(100000 + i));
+            rows.add(attributes);
+        }
+        LdapFinderService.BeanAttributesMapper mapper = new LdapFinderService.BeanAttributesMapper(AdPerson.class);
+
+        for (int round = 0; round < 5; round++) {
+            long before = allocatedBytes();
+            List<Object> persons = new ArrayList<Object>(ROWS);
+            for (int i = 0; i < ROWS; i++) {
+                persons.add(new AdPerson());
+            }
+            long created = allocatedBytes() - before;
+
+            before = allocatedBytes();
+            persons.clear();
+            for (Attributes row : rows) {
+                persons.add(mapper.mapFromAttributes(row));
+            }
+            long mapped = allocatedBytes() - before;
+
+            System.out.printf("new AdPerson() x %d: %8.1f KB   mapping %d rows: %8.1f KB%n", ROWS, created / 1024.0,
+                    ROWS, mapped / 1024.0);
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,93 @@
+package se.vgregion.ldapservice.search;
+
+import se.vgregion.ldapservice.CompactLdapUser;
+import se.vgregion.ldapservice.LdapFilterMatcher;
+import se.vgregion.ldapservice.LdapUser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the latency of typeahead queries answered by {@link PersonSearchIndex} with a substring search of a
+ * synthetic directory of 50000 persons. The directory search is simulated by matching the filter against every
+ * entry in memory, which is what the server has to do for a <code>cn=*foo*</code> filter without a substring index;
+ * the network round trip comes on top of it. Not run as part of the tests; start it with the main method.
+ */
+public final class PersonSearchIndexBenchmark {
+
+    private static final int PERSONS = 50000;
+    private static final int QUERIES = 2000;
+    private static final int LIMIT = 20;
+
+    private static final String[] GIVEN_NAMES = {"Anna", "Eva", "Maria", "Karin", "Sara", "Lena", "Emma", "Kerstin",
+            "Erik", "Lars", "Karl", "Anders", "Johan", "Per", "Nils", "Mikael", "Åsa", "Björn", "Örjan", "Ingrid"};
+    private static final String[] SURNAMES = {"Andersson", "Johansson", "Karlsson", "Nilsson", "Eriksson",
+            "Larsson", "Olsson", "Persson", "Svensson", "Gustafsson", "Pettersson", "Jonsson", "Jansson", "Hansson",
+            "Bengtsson", "Jönsson", "Lindberg", "Jakobsson", "Magnusson", "Lindström", "Öberg", "Åberg"};
+
+    private static volatile Object sink;
+
+    private PersonSearchIndexBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        List<LdapUser> directory = new ArrayList<LdapUser>(PERSONS);
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        for (int i = 0; i < PERSONS; i++) {
+            String givenName = GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)];
+            String sn = SURNAMES[random.nextInt(SURNAMES.length)] + (i % 7 == 0 ? "-" + SURNAMES[i % 5] : "");
+            CompactLdapUser person = new CompactLdapUser("cn=" + givenName + " " + sn + " " + i + ",ou=people");
+            person.setAttributeValue("cn", givenName + " " + sn);
+            person.setAttributeValue("givenName", givenName);
+            person.setAttributeValue("sn", sn);
+            // Like real addresses, only the second and later persons with the same name get a number.
+            String name = (givenName + "." + sn).toLowerCase();
+            Integer same = names.get(name);
+            names.put(name, same == null ? 1 : same + 1);
+            person.setAttributeValue("mail", name + (same == null ? "" : String.valueOf(same + 1)) + "@vgregion.se");
+            person.setAttributeValue("vgr-id", "user" + i);
+            directory.add(person);
+        }
+        String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String name = random.nextBoolean() ? GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]
+                    : SURNAMES[random.nextInt(SURNAMES.length)];
+            queries[i] = name.substring(0, 2 + random.nextInt(Math.min(4, name.length() - 2))).toLowerCase();
+        }
+
+        PersonSearchIndex<KivPerson> index = new PersonSearchIndex<KivPerson>(KivPerson.class, null, "", "");
+        long start = System.nanoTime();
+        index.build(directory);
+        System.out.printf("Built the index of %d persons in %d ms%n", PERSONS, (System.nanoTime() - start) / 1000000);
+
+        for (int round = 0; round < 3; round++) {
+            start = System.nanoTime();
+            for (String query : queries) {
+                sink = index.search(query, LIMIT);
+            }
+            long indexNanos = (System.nanoTime() - start) / QUERIES;
+
+            int scanned = QUERIES / 20;
+            start = System.nanoTime();
+            for (int q = 0; q < scanned; q++) {
+                LdapFilterMatcher filter = LdapFilterMatcher.parse("(|(cn=*" + queries[q] + "*)(mail="
+                        + queries[q] + "*))");
+                List<LdapUser> found = new ArrayList<LdapUser>();
+                for (LdapUser person : directory) {
+                    if (filter.matches(person)) {
+                        found.add(person);
+                    }
+                }
+                sink = found;
+            }
+            long scanNanos = (System.nanoTime() - start) / scanned;
+
+            System.out.printf("index: %d us/query, substring scan: %d us/query%n", indexNanos / 1000,
+                    scanNanos / 1000);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package se.vgregion.ldapservice.search;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import se.vgregion.ldapservice.CompactLdapUser;
+import se.vgregion.ldapservice.LdapUser;
+import se.vgregion.ldapservice.ReturnNullMockLdapService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test for PersonSearchIndex.
+ */
+public class PersonSearchIndexTest {
+
+    private PersonSearchIndex<KivPerson> index;
+
+    @Before
+    public void setUp() {
+        index = new PersonSearchIndex<KivPerson>(KivPerson.class, new ReturnNullMockLdapService() {
+            @Override
+            public LdapUser[] search(String base, String filter, String[] attributes) {
+                return new LdapUser[]{
+                        person("Anna Andersson", "Anna", "Andersson", "anna.andersson@vgregion.se"),
+                        person("Andreas Annell", "Andreas", "Annell", "andreas.annell@vgregion.se"),
+                        person("Åsa Öberg", "Åsa", "Öberg", "asa.oberg@vgregion.se"),
+                        person("Bo Ek", "Bo", "Ek", "bo.ek@vgregion.se")};
+            }
+        }, "", "(objectClass=person)");
+    }
+
+    private static LdapUser person(String cn, String givenName, String sn, String mail) {
+        CompactLdapUser ldapUser = new CompactLdapUser("cn=" + cn);
+        ldapUser.setAttributeValue("cn", cn);
+        ldapUser.setAttributeValue("givenName", givenName);
+        ldapUser.setAttributeValue("sn", sn);
+        ldapUser.setAttributeValue("mail", mail);
+        ldapUser.setAttributeValue("vgr-id", givenName.toLowerCase());
+        return ldapUser;
+    }
+
+    private static List<String> cns(List<KivPerson> persons) {
+        List<String> cns = new ArrayList<String>();
+        for (KivPerson person : persons) {
+            cns.add(person.getCn());
+        }
+        return cns;
+    }
+
+    @Test
+    public void emptyUntilBuilt() {
+        Assert.assertFalse(index.isLoaded());
+        Assert.assertTrue(index.search("anna", 10).isEmpty());
+    }
+
+    @Test
+    public void wordPrefixes() {
+        Assert.assertEquals(4, index.refresh());
+
+        Assert.assertEquals(Arrays.asList("Andreas Annell", "Anna Andersson"), cns(index.search("an", 10)));
+        Assert.assertEquals(Arrays.asList("Andreas Annell", "Anna Andersson"), cns(index.search("ann and", 10)));
+        Assert.assertEquals(Arrays.asList("Anna Andersson"), cns(index.search("ANNA.ANDERSSON@", 10)));
+        Assert.assertEquals(Arrays.asList("Andreas Annell"), cns(index.search("an", 1)));
+        Assert.assertTrue(index.search("anna ek", 10).isEmpty());
+        Assert.assertTrue(index.search(" ", 10).isEmpty());
+    }
+
+    @Test
+    public void wordsSharedByAttributesKeepTheOrder() {
+        index = new PersonSearchIndex<KivPerson>(KivPerson.class, new ReturnNullMockLdapService() {
+            @Override
+            public LdapUser[] search(String base, String filter, String[] attributes) {
+                return new LdapUser[]{
+                        person("Zed Ström", "Zed", "Ström", "zed.strom@vgregion.se"),
+                        person("Bo Ek", "Bo", "Ek", "zed@vgregion.se")};
+            }
+        }, "", "(objectClass=person)");
+        index.refresh();
+
+        Assert.assertEquals(Arrays.asList("Bo Ek"), cns(index.search("zed", 1)));
+        Assert.assertEquals(Arrays.asList("Bo Ek", "Zed Ström"), cns(index.search("zed", 10)));
+    }
+
+    @Test
+    public void accentsAreIgnored() {
+        index.refresh();
+
+        Assert.assertEquals(Arrays.asList("Åsa Öberg"), cns(index.search("asa ob", 10)));
+        Assert.assertEquals(Arrays.asList("Åsa Öberg"), cns(index.search("Åsa", 10)));
+    }
+
+    @Test
+    public void attributePrefix() {
+        index.refresh();
+
+        Assert.assertEquals(Arrays.asList("Bo Ek"), cns(index.searchPrefix("mail", "bo.", 10)));
+        Assert.assertTrue(index.searchPrefix("mail", "ek", 10).isEmpty());
+        Assert.assertEquals(2, index.searchPrefix("cn", "an", 10).size());
+    }
+
+    @Test
+    public void returnsNewBeans() {
+        index.refresh();
+
+        KivPerson anna = index.search("anna", 1).get(0);
+        Assert.assertEquals("anna", anna.getVgrId());
+        Assert.assertEquals("anna.andersson@vgregion.se", anna.getMail());
+        Assert.assertNotSame(anna, index.search("anna", 1).get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notIndexed() {
+        index.refresh();
+        index.searchPrefix("vgr-id", "anna", 10);
+    }
+}
@@ -0,0 +1,151 @@
+package se.vgregion.ldapservice.search.beanutil;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test for Converters.
+ */
+public class ConvertersTest {
+
+    private final Converters converters = new Converters();
+
+    @Test
+    public void numbers() {
+        Assert.assertEquals(12, converters.convert(Integer.TYPE, " 12"));
+        Assert.assertEquals(12L, converters.convert(Long.class, 12));
+        Assert.assertEquals(1.5d, converters.convert(Double.class, "1.5"));
+        Assert.assertEquals(Boolean.TRUE, converters.convert(Boolean.TYPE, "true"));
+    }
+
+    @Test
+    public void stringsAndBytes() {
+        Assert.assertEquals("åäö", converters.convert(String.class, "åäö".getBytes(java.nio.charset.Charset.forName(
+                "UTF-8"))));
+        byte[] bytes = (byte[]) converters.convert(byte[].class, "abc");
+        Assert.assertEquals("abc", new String(bytes));
+        Assert.assertEquals("12", converters.convert(String.class, 12));
+    }
+
+    @Test
+    public void dates() {
+        Assert.assertEquals(date(2013, 11, 27, 0, 0, 0, TimeZone.getDefault()), converters.convert(Date.class,
+                "2013-11-27"));
+        Assert.assertNull(converters.convert(Date.class, " "));
+    }
+
+    @Test
+    public void generalizedTime() {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        Assert.assertEquals(date(2013, 11, 27, 8, 31, 5, utc), converters.convert(Date.class, "20131127083105.0Z"));
+        Assert.assertEquals(date(2013, 11, 27, 8, 31, 5, utc), converters.convert(Date.class, "20131127093105+0100"));
+        Date withMillis = (Date) converters.convert(Date.class, "20131127083105.25Z");
+        Assert.assertEquals(date(2013, 11, 27, 8, 31, 5, utc).getTime() + 250, withMillis.getTime());
+    }
+
+    @Test
+    public void fileTime() {
+        Assert.assertEquals(new Date(0), converters.convert(Date.class, "116444736000000000"));
+        Assert.assertEquals(new Date(1000), converters.convert(Date.class, 116444736010000000L));
+        Assert.assertNull(converters.convert(Date.class, "0"));
+        Assert.assertNull(converters.convert(Date.class, String.valueOf(Long.MAX_VALUE)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unparseableDate() {
+        converters.convert(Date.class, "yesterday");
+    }
+
+    @Test
+    public void datesAreThreadSafe() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 8; i++) {
+            final int day = i + 1;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    Date expected = date(2013, 11, day, 0, 0, 0, TimeZone.getDefault());
+                    for (int j = 0; j < 2000; j++) {
+                        if (!expected.equals(converters.convert(Date.class, "2013-11-0" + day))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            Assert.assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void registerPerBeanClass() {
+        Converters.register(RegisteredBean.class, String.class, new Converter() {
+            public Object convert(Object value) {
+                return "#" + value;
+            }
+        });
+
+        BeanMap registered = new BeanMap(new RegisteredBean());
+        registered.put("name", 12);
+        Assert.assertEquals("#12", registered.get("name"));
+
+        BeanMap subclass = new BeanMap(new RegisteredSubBean());
+        subclass.put("name", 12);
+        Assert.assertEquals("#12", subclass.get("name"));
+
+        BeanMap other = new BeanMap(new OtherBean());
+        other.put("name", 12);
+        Assert.assertEquals("12", other.get("name"));
+    }
+
+    private static Date date(int year, int month, int day, int hour, int minute, int second, TimeZone zone) {
+        Calendar calendar = new GregorianCalendar(zone);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTime();
+    }
+
+    public static class RegisteredBean {
+
+        private String name;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class RegisteredSubBean extends RegisteredBean {
+    }
+
+    public static class OtherBean {
+
+        private String name;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+}